@@ -18,14 +18,18 @@ limitations under the License.
 
 package org.zu.ardulink;
 
+import static org.zu.ardulink.util.Strings.fromBytes;
+
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.zu.ardulink.ParsedFrameListener.FrameType;
 import org.zu.ardulink.event.AnalogReadChangeEvent;
 import org.zu.ardulink.event.AnalogReadChangeListener;
 import org.zu.ardulink.event.ConnectionEvent;
@@ -33,8 +37,10 @@ import org.zu.ardulink.event.ConnectionListener;
 import org.zu.ardulink.event.DigitalReadChangeEvent;
 import org.zu.ardulink.event.DigitalReadChangeListener;
 import org.zu.ardulink.event.DisconnectionEvent;
-import org.zu.ardulink.event.IncomingMessageEvent;
-import org.zu.ardulink.util.SetMultiMap;
+import org.zu.ardulink.event.IntPinListener;
+import org.zu.ardulink.protocol.IncomingMessageHandler;
+import org.zu.ardulink.util.PartitionedExecutor;
+import org.zu.ardulink.util.PinListeners;
 
 /**
  * [ardulinktitle] [ardulinkversion]
@@ -42,6 +48,8 @@ import org.zu.ardulink.util.SetMultiMap;
  * library with Ardulink http://www.ardulink.org/.
  * 
  * This class implements other methods to manage events about messages from arduino board.
+ * By default the listeners are called by the thread receiving the messages, if
+ * {@link #enableListenerWorkers(int) enabled} they are called by worker threads.
  * 
  * @author Luciano Zu project Ardulink http://www.ardulink.org/
  * 
@@ -57,8 +65,89 @@ public class ConnectionContact {
 
 	private final Set<ConnectionListener> connectionListeners = Collections.synchronizedSet(new HashSet<ConnectionListener>());
 	private final Set<RawDataListener> rawDataListeners = Collections.synchronizedSet(new HashSet<RawDataListener>());
-	private final SetMultiMap<Integer, AnalogReadChangeListener> analogReadChangeListeners = new SetMultiMap<Integer, AnalogReadChangeListener>();
-	private final SetMultiMap<Integer, DigitalReadChangeListener> digitalReadChangeListeners = new SetMultiMap<Integer, DigitalReadChangeListener>();
+	// copied on change, so frames are passed without locking
+	private volatile RawFrameListener[] rawFrameListeners = new RawFrameListener[0];
+	private volatile ParsedFrameListener[] parsedFrameListeners = new ParsedFrameListener[0];
+	// what the frame being parsed was, only used by the thread calling parseInput
+	private FrameType parsedType;
+	private int parsedPin;
+	private final PinListeners<AnalogReadChangeListener> analogReadChangeListeners = new PinListeners<AnalogReadChangeListener>(
+			AnalogReadChangeListener.class, AnalogReadChangeListener.ALL_PINS);
+	private final PinListeners<DigitalReadChangeListener> digitalReadChangeListeners = new PinListeners<DigitalReadChangeListener>(
+			DigitalReadChangeListener.class, DigitalReadChangeListener.ALL_PINS);
+	private final PinListeners<IntPinListener> analogIntPinListeners = new PinListeners<IntPinListener>(
+			IntPinListener.class, IntPinListener.ALL_PINS);
+	private final PinListeners<IntPinListener> digitalIntPinListeners = new PinListeners<IntPinListener>(
+			IntPinListener.class, IntPinListener.ALL_PINS);
+
+	/**
+	 * Calls the analog/digital listeners if enabled, null otherwise.
+	 * @see #enableListenerWorkers(int)
+	 */
+	private volatile PartitionedExecutor listenerWorkers;
+
+	/**
+	 * Guards handing events to {@link #listenerWorkers} and replacing them,
+	 * so no event is passed to workers being shut down. It is not the
+	 * ConnectionContact's monitor since the listeners running on the workers
+	 * may register other listeners.
+	 */
+	private final Object listenerWorkersLock = new Object();
+
+	private final IncomingMessageHandler incomingMessageHandler = new IncomingMessageHandler() {
+
+		@Override
+		public boolean wantsAnalogRead(int pin) {
+			parsedType = FrameType.ANALOG_READ;
+			parsedPin = pin;
+			return analogReadChangeListeners.hasListeners(pin) || analogIntPinListeners.hasListeners(pin);
+		}
+
+		@Override
+		public boolean wantsDigitalRead(int pin) {
+			parsedType = FrameType.DIGITAL_READ;
+			parsedPin = pin;
+			return digitalReadChangeListeners.hasListeners(pin) || digitalIntPinListeners.hasListeners(pin);
+		}
+
+		@Override
+		public void analogReadChanged(final int pin, final int value, byte[] message, int offset, int length) {
+			// the event (and the message's String) is only created for the legacy listeners
+			final AnalogReadChangeEvent event = analogReadChangeListeners.hasListeners(pin)
+					? new AnalogReadChangeEvent(pin, value, fromBytes(message, offset, length)) : null;
+			if (event == null && !analogIntPinListeners.hasListeners(pin)) {
+				return;
+			}
+			final long nanoTime = System.nanoTime();
+			if (listenerWorkers == null || !executeOnListenerWorker(pin, new Runnable() {
+				@Override
+				public void run() {
+					fireAnalogRead(pin, value, nanoTime, event);
+				}
+			})) {
+				fireAnalogRead(pin, value, nanoTime, event);
+			}
+		}
+
+		@Override
+		public void digitalReadChanged(final int pin, final int value, byte[] message, int offset, int length) {
+			final DigitalReadChangeEvent event = digitalReadChangeListeners.hasListeners(pin)
+					? new DigitalReadChangeEvent(pin, value, fromBytes(message, offset, length)) : null;
+			if (event == null && !digitalIntPinListeners.hasListeners(pin)) {
+				return;
+			}
+			final long nanoTime = System.nanoTime();
+			if (listenerWorkers == null || !executeOnListenerWorker(pin, new Runnable() {
+				@Override
+				public void run() {
+					fireDigitalRead(pin, value, nanoTime, event);
+				}
+			})) {
+				fireDigitalRead(pin, value, nanoTime, event);
+			}
+		}
+
+	};
 	
 	/**
 	 * Register a ConnectionListener to receive events about connection status.
@@ -100,9 +189,189 @@ public class ConnectionContact {
 		return rawDataListeners.remove(rawDataListener);
 	}
 	
+	/**
+	 * Register a RawFrameListener to receive the frames from Arduino without copying.
+	 * @param rawFrameListener
+	 * @return true if this set did not already contain the specified rawFrameListener
+	 * @see Link
+	 */
+	public synchronized boolean addRawFrameListener(RawFrameListener rawFrameListener) {
+		RawFrameListener[] changed = added(rawFrameListeners, rawFrameListener);
+		if (changed == rawFrameListeners) {
+			return false;
+		}
+		rawFrameListeners = changed;
+		return true;
+	}
+
+	/**
+	 * Remove a RawFrameListener from the notification set.
+	 * @param rawFrameListener
+	 * @return true if this set contained the specified rawFrameListener
+	 * @see Link
+	 */
+	public synchronized boolean removeRawFrameListener(RawFrameListener rawFrameListener) {
+		RawFrameListener[] changed = removed(rawFrameListeners, rawFrameListener);
+		if (changed == rawFrameListeners) {
+			return false;
+		}
+		rawFrameListeners = changed;
+		return true;
+	}
+
+	/**
+	 * Register a ParsedFrameListener to receive the frames from Arduino after parsing them.
+	 * @param parsedFrameListener
+	 * @return true if this set did not already contain the specified parsedFrameListener
+	 * @see Link
+	 */
+	public synchronized boolean addParsedFrameListener(ParsedFrameListener parsedFrameListener) {
+		ParsedFrameListener[] changed = added(parsedFrameListeners, parsedFrameListener);
+		if (changed == parsedFrameListeners) {
+			return false;
+		}
+		parsedFrameListeners = changed;
+		return true;
+	}
+
+	/**
+	 * Remove a ParsedFrameListener from the notification set.
+	 * @param parsedFrameListener
+	 * @return true if this set contained the specified parsedFrameListener
+	 * @see Link
+	 */
+	public synchronized boolean removeParsedFrameListener(ParsedFrameListener parsedFrameListener) {
+		ParsedFrameListener[] changed = removed(parsedFrameListeners, parsedFrameListener);
+		if (changed == parsedFrameListeners) {
+			return false;
+		}
+		parsedFrameListeners = changed;
+		return true;
+	}
+
+	private static <T> T[] added(T[] listeners, T listener) {
+		if (Arrays.asList(listeners).contains(listener)) {
+			return listeners;
+		}
+		T[] changed = Arrays.copyOf(listeners, listeners.length + 1);
+		changed[listeners.length] = listener;
+		return changed;
+	}
+
+	private static <T> T[] removed(T[] listeners, T listener) {
+		int index = Arrays.asList(listeners).indexOf(listener);
+		if (index < 0) {
+			return listeners;
+		}
+		T[] changed = Arrays.copyOf(listeners, listeners.length - 1);
+		System.arraycopy(listeners, index + 1, changed, index, changed.length - index);
+		return changed;
+	}
+
 	public ConnectionContact(Link link) {
 		this.link = link;
 	}
+
+	/**
+	 * Calls the analog and digital listeners on worker threads instead of the
+	 * thread receiving the messages. The events are distributed over the
+	 * workers by pin: the events of a pin are always passed in the order they
+	 * were received while different pins are processed in parallel. So
+	 * listeners registered for several pins (e.g. ALL_PINS) have to be thread
+	 * safe. Each worker queues up to
+	 * {@link PartitionedExecutor#DEFAULT_CAPACITY} events.
+	 * @param workers the number of worker threads (e.g. the number of cores)
+	 */
+	public void enableListenerWorkers(int workers) {
+		enableListenerWorkers(workers, PartitionedExecutor.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Like {@link #enableListenerWorkers(int)}. When the queue of a worker is
+	 * full the thread receiving the messages waits for the listeners, so
+	 * slow listeners slow down the reception instead of piling up events.
+	 * @param workers the number of worker threads (e.g. the number of cores)
+	 * @param capacity the maximum number of events queued per worker
+	 * @see #getListenerBacklog()
+	 */
+	public void enableListenerWorkers(int workers, int capacity) {
+		PartitionedExecutor newWorkers = new PartitionedExecutor(workers, capacity, "ardulink-listener");
+		synchronized (listenerWorkersLock) {
+			drainListenerWorkers();
+			listenerWorkers = newWorkers;
+		}
+	}
+
+	/**
+	 * Passes the pending events and returns to calling the listeners on the
+	 * thread receiving the messages. Must not be called by a listener running
+	 * on a worker.
+	 */
+	public void disableListenerWorkers() {
+		synchronized (listenerWorkersLock) {
+			drainListenerWorkers();
+			listenerWorkers = null;
+		}
+	}
+
+	/**
+	 * Stops the current workers after they passed their pending events. The
+	 * events received meanwhile wait for the lock, so the events of a pin keep
+	 * their order.
+	 */
+	private void drainListenerWorkers() {
+		PartitionedExecutor workers = listenerWorkers;
+		if (workers != null) {
+			workers.shutdown();
+			try {
+				workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @return false if the task was not handed to a worker and has to be run
+	 *         by the caller
+	 */
+	private boolean executeOnListenerWorker(int pin, Runnable task) {
+		synchronized (listenerWorkersLock) {
+			PartitionedExecutor workers = listenerWorkers;
+			if (workers == null) {
+				return false;
+			}
+			try {
+				workers.execute(pin, task);
+				return true;
+			} catch (RejectedExecutionException e) {
+				logger.warn("Listener workers rejected an event, calling the listeners directly", e);
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of events queued for the listener workers, 0 if the
+	 *         listeners are called on the receiving thread
+	 */
+	public int getListenerBacklog() {
+		PartitionedExecutor workers = listenerWorkers;
+		return workers == null ? 0 : workers.getBacklog();
+	}
+
+	/**
+	 * Waits until the listeners were called for all the events received so
+	 * far. Does nothing if the listeners are called on the receiving thread.
+	 * @param timeout
+	 * @param unit
+	 * @return false if the timeout elapsed
+	 * @throws InterruptedException
+	 */
+	public boolean awaitListeners(long timeout, TimeUnit unit) throws InterruptedException {
+		PartitionedExecutor workers = listenerWorkers;
+		return workers == null || workers.awaitIdle(timeout, unit);
+	}
 	
 	/**
 	 * Register an AnalogReadChangeListener to receive events about analog pin change state.
@@ -115,7 +384,7 @@ public class ConnectionContact {
 	public boolean addAnalogReadChangeListener(AnalogReadChangeListener listener) {
 		int pinListening = listener.getPinListening();
 		synchronized (analogReadChangeListeners) {
-			boolean added = analogReadChangeListeners.put(pinListening,
+			boolean added = analogReadChangeListeners.add(pinListening,
 					listener);
 			if (pinListening != AnalogReadChangeListener.ALL_PINS) {
 				link.startListenAnalogPin(pinListening);
@@ -139,8 +408,8 @@ public class ConnectionContact {
 					listener);
 			if (removed
 					&& pinListening != AnalogReadChangeListener.ALL_PINS
-					&& analogReadChangeListeners.asMap().get(pinListening)
-							.isEmpty()) {
+					&& analogReadChangeListeners.isEmpty(pinListening)
+					&& analogIntPinListeners.isEmpty(pinListening)) {
 				link.stopListenAnalogPin(pinListening);
 			}
 			return removed;
@@ -158,7 +427,7 @@ public class ConnectionContact {
 	public boolean addDigitalReadChangeListener(DigitalReadChangeListener listener) {
 		int pinListening = listener.getPinListening();
 		synchronized (digitalReadChangeListeners) {
-			boolean added = digitalReadChangeListeners.put(pinListening, listener);
+			boolean added = digitalReadChangeListeners.add(pinListening, listener);
 			if (pinListening != DigitalReadChangeListener.ALL_PINS) {
 				link.startListenDigitalPin(pinListening);
 			}
@@ -179,8 +448,8 @@ public class ConnectionContact {
 			boolean removed = digitalReadChangeListeners.remove(pinListening,
 					listener);
 			if (removed
-					&& digitalReadChangeListeners.asMap().get(pinListening)
-							.isEmpty()
+					&& digitalReadChangeListeners.isEmpty(pinListening)
+					&& digitalIntPinListeners.isEmpty(pinListening)
 					&& pinListening != DigitalReadChangeListener.ALL_PINS) {
 				link.stopListenDigitalPin(pinListening);
 			}
@@ -188,74 +457,179 @@ public class ConnectionContact {
 		}
 	}
 	
+	/**
+	 * Register an IntPinListener to receive the values read from an analog pin
+	 * without creating an event per value. Call a startListenAnalogPin.
+	 * @param listener
+	 * @return true if this set did not already contain the specified IntPinListener
+	 * @see Link
+	 */
+	public boolean addAnalogIntPinListener(IntPinListener listener) {
+		int pinListening = listener.getPinListening();
+		synchronized (analogReadChangeListeners) {
+			boolean added = analogIntPinListeners.add(pinListening, listener);
+			if (pinListening != IntPinListener.ALL_PINS) {
+				link.startListenAnalogPin(pinListening);
+			}
+			return added;
+		}
+	}
+
+	/**
+	 * Remove an analog IntPinListener. Call a stopListenAnalogPin if no other
+	 * listener listens to the pin.
+	 * @param listener
+	 * @return true if this set contained the specified IntPinListener
+	 * @see Link
+	 */
+	public boolean removeAnalogIntPinListener(IntPinListener listener) {
+		int pinListening = listener.getPinListening();
+		synchronized (analogReadChangeListeners) {
+			boolean removed = analogIntPinListeners.remove(pinListening, listener);
+			if (removed
+					&& pinListening != IntPinListener.ALL_PINS
+					&& analogReadChangeListeners.isEmpty(pinListening)
+					&& analogIntPinListeners.isEmpty(pinListening)) {
+				link.stopListenAnalogPin(pinListening);
+			}
+			return removed;
+		}
+	}
+
+	/**
+	 * Register an IntPinListener to receive the values read from a digital pin
+	 * without creating an event per value. Call a startListenDigitalPin.
+	 * @param listener
+	 * @return true if this set did not already contain the specified IntPinListener
+	 * @see Link
+	 */
+	public boolean addDigitalIntPinListener(IntPinListener listener) {
+		int pinListening = listener.getPinListening();
+		synchronized (digitalReadChangeListeners) {
+			boolean added = digitalIntPinListeners.add(pinListening, listener);
+			if (pinListening != IntPinListener.ALL_PINS) {
+				link.startListenDigitalPin(pinListening);
+			}
+			return added;
+		}
+	}
+
+	/**
+	 * Remove a digital IntPinListener. Call a stopListenDigitalPin if no other
+	 * listener listens to the pin.
+	 * @param listener
+	 * @return true if this set contained the specified IntPinListener
+	 * @see Link
+	 */
+	public boolean removeDigitalIntPinListener(IntPinListener listener) {
+		int pinListening = listener.getPinListening();
+		synchronized (digitalReadChangeListeners) {
+			boolean removed = digitalIntPinListeners.remove(pinListening, listener);
+			if (removed
+					&& pinListening != IntPinListener.ALL_PINS
+					&& digitalReadChangeListeners.isEmpty(pinListening)
+					&& digitalIntPinListeners.isEmpty(pinListening)) {
+				link.stopListenDigitalPin(pinListening);
+			}
+			return removed;
+		}
+	}
+
 	public void writeLog(String id, String text) {
 		logger.info(text);
 	}
 
 	/**
 	 * Method invoked by Raphael Blatter's SerialConnection class.
-	 * This method call the Link.parseMessage method and if the IncomingMessageEvent is not null fire the event
-	 * to the listeners.
+	 * Converts the message and calls {@link #parseInput(String, byte[], int, int)}.
 	 */
 	public void parseInput(String id, int numBytes, int[] message) {
+		byte[] frame = new byte[numBytes];
+		for (int i = 0; i < numBytes; i++) {
+			frame[i] = (byte) message[i];
+		}
+		parseInput(id, frame, 0, numBytes);
+	}
+
+	/**
+	 * Method invoked by the connections for every frame received.
+	 * The frame is passed to the raw listeners, then this method call the Link.parseMessage method
+	 * that decodes the message directly from the connection's buffer. The values of pins nobody
+	 * listens to are not decoded, events are only created if there are listeners for the pin.
+	 * Afterwards the frame is passed to the parsed listeners with what it was.
+	 * The frame is a read-only slice of the connection's buffer, it is only valid during this call.
+	 * @param id
+	 * @param frame the buffer containing the frame
+	 * @param offset index of the frame's first byte
+	 * @param length length of the frame
+	 */
+	public void parseInput(String id, byte[] frame, int offset, int length) {
 		logger.debug("Message from Arduino has arrived.");
-		fireDataToRawDataListener(id, numBytes, message);
-		int[] realMsg = Arrays.copyOf(message, numBytes);
-		// String msg = new String(message, 0, numBytes);
-		// logger.fine(msg);
-		IncomingMessageEvent event = link.parseMessage(realMsg);
-		if (event != null) {
-			if(event instanceof AnalogReadChangeEvent) {
-				fireAnalogReadChangeEvent((AnalogReadChangeEvent)event);
-			} else if(event instanceof DigitalReadChangeEvent) {
-				fireDigitalReadChangeEvent((DigitalReadChangeEvent)event);
-			}
+		for (RawFrameListener rawFrameListener : rawFrameListeners) {
+			rawFrameListener.frameReceived(id, frame, offset, length);
+		}
+		if (!rawDataListeners.isEmpty()) {
+			fireDataToRawDataListener(id, frame, offset, length);
+		}
+		ParsedFrameListener[] parsedFrameListeners = this.parsedFrameListeners;
+		parsedType = FrameType.OTHER;
+		parsedPin = -1;
+		link.parseMessage(frame, offset, length, incomingMessageHandler);
+		for (ParsedFrameListener parsedFrameListener : parsedFrameListeners) {
+			parsedFrameListener.frameParsed(id, frame, offset, length, parsedType, parsedPin);
 		}
 	}
 
-	private void fireDataToRawDataListener(String id, int numBytes, int[] message) {
+	private void fireDataToRawDataListener(String id, byte[] frame, int offset, int length) {
+		// RawDataListener works on ints, so they get a copy
+		int[] message = new int[length];
+		for (int i = 0; i < length; i++) {
+			message[i] = frame[offset + i] & 0xFF;
+		}
 		for (RawDataListener rawDataListener : rawDataListeners) {
-			rawDataListener.parseInput(id, numBytes, message);
+			rawDataListener.parseInput(id, length, message);
+		}
+	}
+
+	private void fireAnalogRead(int pin, int value, long nanoTime, AnalogReadChangeEvent event) {
+		fireValue(analogIntPinListeners, pin, value, nanoTime);
+		if (event != null) {
+			fireAnalogReadChangeEvent(event);
+		}
+	}
+
+	private void fireDigitalRead(int pin, int value, long nanoTime, DigitalReadChangeEvent event) {
+		fireValue(digitalIntPinListeners, pin, value, nanoTime);
+		if (event != null) {
+			fireDigitalReadChangeEvent(event);
+		}
+	}
+
+	private static void fireValue(PinListeners<IntPinListener> listeners, int pin, int value, long nanoTime) {
+		for (IntPinListener intPinListener : listeners.listeners(pin)) {
+			intPinListener.onValue(pin, value, nanoTime);
+		}
+		for (IntPinListener intPinListener : listeners.allPinListeners()) {
+			intPinListener.onValue(pin, value, nanoTime);
 		}
 	}
 
 	private void fireAnalogReadChangeEvent(AnalogReadChangeEvent event) {
-		int pin = event.getPin();
-		synchronized (analogReadChangeListeners) {
-			Map<Integer, Set<AnalogReadChangeListener>> listeners = analogReadChangeListeners
-					.asMap();
-			Set<AnalogReadChangeListener> pinListeningSet = listeners.get(pin);
-			if (pinListeningSet != null) {
-				for (AnalogReadChangeListener analogReadChangeListener : pinListeningSet) {
-					analogReadChangeListener.stateChanged(event);
-				}
-			}
-			pinListeningSet = listeners.get(AnalogReadChangeListener.ALL_PINS);
-			if (pinListeningSet != null) {
-				for (AnalogReadChangeListener analogReadChangeListener : pinListeningSet) {
-					analogReadChangeListener.stateChanged(event);
-				}
-			}
+		// arrays published by PinListeners, neither locked nor copied
+		for (AnalogReadChangeListener analogReadChangeListener : analogReadChangeListeners.listeners(event.getPin())) {
+			analogReadChangeListener.stateChanged(event);
+		}
+		for (AnalogReadChangeListener analogReadChangeListener : analogReadChangeListeners.allPinListeners()) {
+			analogReadChangeListener.stateChanged(event);
 		}
 	}
 
 	private void fireDigitalReadChangeEvent(DigitalReadChangeEvent event) {
-		int pin = event.getPin();
-		synchronized (digitalReadChangeListeners) {
-			Map<Integer, Set<DigitalReadChangeListener>> listeners = digitalReadChangeListeners
-					.asMap();
-			Set<DigitalReadChangeListener> pinListeningSet = listeners.get(pin);
-			if (pinListeningSet != null) {
-				for (DigitalReadChangeListener digitalReadChangeListener : pinListeningSet) {
-					digitalReadChangeListener.stateChanged(event);
-				}
-			}
-			pinListeningSet = listeners.get(DigitalReadChangeListener.ALL_PINS);
-			if (pinListeningSet != null) {
-				for (DigitalReadChangeListener digitalReadChangeListener : pinListeningSet) {
-					digitalReadChangeListener.stateChanged(event);
-				}
-			}
+		for (DigitalReadChangeListener digitalReadChangeListener : digitalReadChangeListeners.listeners(event.getPin())) {
+			digitalReadChangeListener.stateChanged(event);
+		}
+		for (DigitalReadChangeListener digitalReadChangeListener : digitalReadChangeListeners.allPinListeners()) {
+			digitalReadChangeListener.stateChanged(event);
 		}
 	}
 
@@ -24,6 +24,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.zu.ardulink.connection.Connection;
 import org.zu.ardulink.connection.serial.SerialConnection;
@@ -31,11 +32,16 @@ import org.zu.ardulink.event.AnalogReadChangeListener;
 import org.zu.ardulink.event.ConnectionListener;
 import org.zu.ardulink.event.DigitalReadChangeListener;
 import org.zu.ardulink.event.IncomingMessageEvent;
+import org.zu.ardulink.event.IntPinListener;
 import org.zu.ardulink.protocol.ALProtocol;
+import org.zu.ardulink.protocol.Batch;
 import org.zu.ardulink.protocol.IProtocol;
+import org.zu.ardulink.protocol.IncomingMessageHandler;
 import org.zu.ardulink.protocol.LoggerReplyMessageCallback;
 import org.zu.ardulink.protocol.MessageInfo;
 import org.zu.ardulink.protocol.ProtocolHandler;
+import org.zu.ardulink.protocol.ProtocolSession;
+import org.zu.ardulink.protocol.ReplyFuture;
 import org.zu.ardulink.protocol.ReplyMessageCallback;
 
 /**
@@ -73,6 +79,7 @@ public class Link {
 	}
 	
 	private final ConnectionContact connectionContact = new ConnectionContact(this);
+	private final ProtocolSession protocolSession = new ProtocolSession(this);
 	private Connection connection;
 	private final String name;
 	
@@ -228,6 +235,18 @@ public class Link {
 		return connection.writeSerial(message);
 	}
 
+	/**
+	 * Writes raw bytes to arduino (as writeSerial(String) no divider is added)
+	 * @param message
+	 * @param offset
+	 * @param length
+	 * @return
+	 * @see SerialConnection
+	 */
+	public boolean writeSerial(byte[] message, int offset, int length) {
+		return connection.writeSerial(message, offset, length);
+	}
+
 	/**
 	 * Writes data to arduino
 	 * @param numBytes
@@ -279,6 +298,48 @@ public class Link {
 		return connectionContact.removeRawDataListener(rawDataListener);
 	}
 
+	/**
+	 * Register a RawFrameListener to receive the frames from Arduino as they were received
+	 * (without copying them).
+	 * @param rawFrameListener
+	 * @return true if this set did not already contain the specified rawFrameListener
+	 * @see ConnectionContact
+	 */
+	public boolean addRawFrameListener(RawFrameListener rawFrameListener) {
+		return connectionContact.addRawFrameListener(rawFrameListener);
+	}
+
+	/**
+	 * Remove a RawFrameListener from the notification set.
+	 * @param rawFrameListener
+	 * @return true if this set contained the specified rawFrameListener
+	 * @see ConnectionContact
+	 */
+	public boolean removeRawFrameListener(RawFrameListener rawFrameListener) {
+		return connectionContact.removeRawFrameListener(rawFrameListener);
+	}
+
+	/**
+	 * Register a ParsedFrameListener to receive the frames from Arduino after they were parsed
+	 * together with what they were (e.g. the value of an analog pin).
+	 * @param parsedFrameListener
+	 * @return true if this set did not already contain the specified parsedFrameListener
+	 * @see ConnectionContact
+	 */
+	public boolean addParsedFrameListener(ParsedFrameListener parsedFrameListener) {
+		return connectionContact.addParsedFrameListener(parsedFrameListener);
+	}
+
+	/**
+	 * Remove a ParsedFrameListener from the notification set.
+	 * @param parsedFrameListener
+	 * @return true if this set contained the specified parsedFrameListener
+	 * @see ConnectionContact
+	 */
+	public boolean removeParsedFrameListener(ParsedFrameListener parsedFrameListener) {
+		return connectionContact.removeParsedFrameListener(parsedFrameListener);
+	}
+
 	/**
 	 * Register an AnalogReadChangeListener to receive events about analog pin change state.
 	 * With this method ardulink is able to receive information from arduino board
@@ -321,6 +382,97 @@ public class Link {
 		return connectionContact.removeDigitalReadChangeListener(listener);
 	}
 
+	/**
+	 * Register an IntPinListener to receive the values read from an analog pin.
+	 * Unlike an AnalogReadChangeListener no event is created per value.
+	 * @param listener
+	 * @return true if this set did not already contain the specified IntPinListener
+	 * @see ConnectionContact
+	 */
+	public boolean addAnalogIntPinListener(IntPinListener listener) {
+		return connectionContact.addAnalogIntPinListener(listener);
+	}
+
+	/**
+	 * Remove an analog IntPinListener from the notification set.
+	 * @param listener
+	 * @return true if this set contained the specified IntPinListener
+	 * @see ConnectionContact
+	 */
+	public boolean removeAnalogIntPinListener(IntPinListener listener) {
+		return connectionContact.removeAnalogIntPinListener(listener);
+	}
+
+	/**
+	 * Register an IntPinListener to receive the values read from a digital pin.
+	 * Unlike a DigitalReadChangeListener no event is created per value.
+	 * @param listener
+	 * @return true if this set did not already contain the specified IntPinListener
+	 * @see ConnectionContact
+	 */
+	public boolean addDigitalIntPinListener(IntPinListener listener) {
+		return connectionContact.addDigitalIntPinListener(listener);
+	}
+
+	/**
+	 * Remove a digital IntPinListener from the notification set.
+	 * @param listener
+	 * @return true if this set contained the specified IntPinListener
+	 * @see ConnectionContact
+	 */
+	public boolean removeDigitalIntPinListener(IntPinListener listener) {
+		return connectionContact.removeDigitalIntPinListener(listener);
+	}
+
+	/**
+	 * Calls the analog and digital listeners on worker threads, events of
+	 * the same pin in order, different pins in parallel.
+	 * @param workers the number of worker threads
+	 * @see ConnectionContact#enableListenerWorkers(int)
+	 */
+	public void enableListenerWorkers(int workers) {
+		connectionContact.enableListenerWorkers(workers);
+	}
+
+	/**
+	 * Like {@link #enableListenerWorkers(int)} with a maximum number of events
+	 * queued per worker.
+	 * @param workers the number of worker threads
+	 * @param capacity the maximum number of events queued per worker
+	 * @see ConnectionContact#enableListenerWorkers(int, int)
+	 */
+	public void enableListenerWorkers(int workers, int capacity) {
+		connectionContact.enableListenerWorkers(workers, capacity);
+	}
+
+	/**
+	 * @return the number of events queued for the listener workers
+	 * @see ConnectionContact#getListenerBacklog()
+	 */
+	public int getListenerBacklog() {
+		return connectionContact.getListenerBacklog();
+	}
+
+	/**
+	 * Returns to calling the listeners on the thread receiving the messages.
+	 * @see ConnectionContact#disableListenerWorkers()
+	 */
+	public void disableListenerWorkers() {
+		connectionContact.disableListenerWorkers();
+	}
+
+	/**
+	 * Waits until the listeners were called for all the events received so far.
+	 * @param timeout
+	 * @param unit
+	 * @return false if the timeout elapsed
+	 * @throws InterruptedException
+	 * @see ConnectionContact#awaitListeners(long, TimeUnit)
+	 */
+	public boolean awaitListeners(long timeout, TimeUnit unit) throws InterruptedException {
+		return connectionContact.awaitListeners(timeout, unit);
+	}
+
 	/**
 	 * @return a simple LoggerCallback implementation just to log messages reply from arduino.
 	 */
@@ -588,6 +740,156 @@ public class Link {
 		return protocol.stopListenAnalogPin(this, pin, callback);
 	}
 
+	/**
+	 * Asynchronous version of sendKeyPressEvent, sends information about which key was pressed.
+	 * Returns without waiting for the reply.
+	 * @param keychar
+	 * @param keycode
+	 * @param keylocation
+	 * @param keymodifiers
+	 * @param keymodifiersex
+	 * @return a future completed with the MessageInfo when arduino replied (or the reply timed out)
+	 */
+	public ReplyFuture sendKeyPressEventAsync(char keychar, int keycode, int keylocation, int keymodifiers, int keymodifiersex) {
+		ReplyFuture future = new ReplyFuture();
+		return future.sent(sendKeyPressEvent(keychar, keycode, keylocation, keymodifiers, keymodifiersex, future));
+	}
+
+	/**
+	 * Asynchronous version of sendPowerPinIntensity, requests arduino to perform an analogWrite function call.
+	 * Returns without waiting for the reply.
+	 * @param pin
+	 * @param intensity
+	 * @return a future completed with the MessageInfo when arduino replied (or the reply timed out)
+	 */
+	public ReplyFuture sendPowerPinIntensityAsync(int pin, int intensity) {
+		ReplyFuture future = new ReplyFuture();
+		return future.sent(sendPowerPinIntensity(pin, intensity, future));
+	}
+
+	/**
+	 * Asynchronous version of sendPowerPinSwitch, requests arduino to perform a digitalWrite function call.
+	 * Returns without waiting for the reply.
+	 * @param pin
+	 * @param power
+	 * @return a future completed with the MessageInfo when arduino replied (or the reply timed out)
+	 */
+	public ReplyFuture sendPowerPinSwitchAsync(int pin, int power) {
+		ReplyFuture future = new ReplyFuture();
+		return future.sent(sendPowerPinSwitch(pin, power, future));
+	}
+
+	/**
+	 * Asynchronous version of sendToneMessage, requests arduino to perform a tone function call.
+	 * Returns without waiting for the reply.
+	 * @param pin
+	 * @param frequency
+	 * @return a future completed with the MessageInfo when arduino replied (or the reply timed out)
+	 */
+	public ReplyFuture sendToneMessageAsync(int pin, int frequency) {
+		ReplyFuture future = new ReplyFuture();
+		return future.sent(sendToneMessage(pin, frequency, future));
+	}
+
+	/**
+	 * Asynchronous version of sendToneMessage, requests arduino to perform a tone function call.
+	 * Returns without waiting for the reply.
+	 * @param pin
+	 * @param frequency
+	 * @param duration
+	 * @return a future completed with the MessageInfo when arduino replied (or the reply timed out)
+	 */
+	public ReplyFuture sendToneMessageAsync(int pin, int frequency, int duration) {
+		ReplyFuture future = new ReplyFuture();
+		return future.sent(sendToneMessage(pin, frequency, duration, future));
+	}
+
+	/**
+	 * Asynchronous version of sendNoToneMessage, requests arduino to perform a noTone function call.
+	 * Returns without waiting for the reply.
+	 * @param pin
+	 * @return a future completed with the MessageInfo when arduino replied (or the reply timed out)
+	 */
+	public ReplyFuture sendNoToneMessageAsync(int pin) {
+		ReplyFuture future = new ReplyFuture();
+		return future.sent(sendNoToneMessage(pin, future));
+	}
+
+	/**
+	 * Asynchronous version of sendCustomMessage, sends a custom message to arduino.
+	 * Returns without waiting for the reply.
+	 * @param message
+	 * @return a future completed with the MessageInfo when arduino replied (or the reply timed out)
+	 */
+	public ReplyFuture sendCustomMessageAsync(String message) {
+		ReplyFuture future = new ReplyFuture();
+		return future.sent(sendCustomMessage(message, future));
+	}
+
+	/**
+	 * Asynchronous version of startListenDigitalPin, requests arduino to start sending the values read from a digital pin.
+	 * Returns without waiting for the reply.
+	 * @param pin
+	 * @return a future completed with the MessageInfo when arduino replied (or the reply timed out)
+	 */
+	public ReplyFuture startListenDigitalPinAsync(int pin) {
+		ReplyFuture future = new ReplyFuture();
+		return future.sent(startListenDigitalPin(pin, future));
+	}
+
+	/**
+	 * Asynchronous version of stopListenDigitalPin, requests arduino to stop sending the values read from a digital pin.
+	 * Returns without waiting for the reply.
+	 * @param pin
+	 * @return a future completed with the MessageInfo when arduino replied (or the reply timed out)
+	 */
+	public ReplyFuture stopListenDigitalPinAsync(int pin) {
+		ReplyFuture future = new ReplyFuture();
+		return future.sent(stopListenDigitalPin(pin, future));
+	}
+
+	/**
+	 * Asynchronous version of startListenAnalogPin, requests arduino to start sending the values read from an analog pin.
+	 * Returns without waiting for the reply.
+	 * @param pin
+	 * @return a future completed with the MessageInfo when arduino replied (or the reply timed out)
+	 */
+	public ReplyFuture startListenAnalogPinAsync(int pin) {
+		ReplyFuture future = new ReplyFuture();
+		return future.sent(startListenAnalogPin(pin, future));
+	}
+
+	/**
+	 * Asynchronous version of stopListenAnalogPin, requests arduino to stop sending the values read from an analog pin.
+	 * Returns without waiting for the reply.
+	 * @param pin
+	 * @return a future completed with the MessageInfo when arduino replied (or the reply timed out)
+	 */
+	public ReplyFuture stopListenAnalogPinAsync(int pin) {
+		ReplyFuture future = new ReplyFuture();
+		return future.sent(stopListenAnalogPin(pin, future));
+	}
+
+	/**
+	 * Creates a batch to send several commands (i.e. the intensities of the pins
+	 * of a RGB LED) together in a single write.
+	 * <code>link.batch().powerPinIntensity(9, r).powerPinIntensity(10, g).powerPinIntensity(11, b).send();</code>
+	 * @return a new and empty Batch for this link
+	 */
+	public Batch batch() {
+		return new Batch(this);
+	}
+
+	/**
+	 * Call protocol sendBatch with this Link. Use {@link Batch#send(ReplyMessageCallback)}.
+	 * @param batch
+	 * @param callback
+	 * @return the MessageInfo class
+	 */
+	public MessageInfo sendBatch(Batch batch, ReplyMessageCallback callback) {
+		return protocol.sendBatch(this, batch, callback);
+	}
+
 	/**
 	 * @return the protocol name
 	 */
@@ -602,10 +904,31 @@ public class Link {
 	 * @return
 	 */
 	public IncomingMessageEvent parseMessage(int[] realMsg) {
-		return protocol.parseMessage(realMsg);
+		return protocol.parseMessage(this, realMsg);
+	}
+
+	/**
+	 * Parse a message sent from arduino without copying it. This method should not called directly.
+	 * It calls the specific protocol parseMessage.
+	 * @param message the buffer containing the message
+	 * @param offset index of the message's first byte
+	 * @param length length of the message
+	 * @param handler receives the decoded content
+	 * @see IProtocol#parseMessage(Link, byte[], int, int, IncomingMessageHandler)
+	 */
+	public void parseMessage(byte[] message, int offset, int length, IncomingMessageHandler handler) {
+		protocol.parseMessage(this, message, offset, length, handler);
 	}
 
 	public Connection getConnection() {
 		return connection;
 	}
+
+	/**
+	 * @return the per link state used by the protocol. Sends on different
+	 *         links are serialized on different sessions.
+	 */
+	public ProtocolSession getProtocolSession() {
+		return protocolSession;
+	}
 }
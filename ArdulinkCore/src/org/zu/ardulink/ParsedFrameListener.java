@@ -0,0 +1,62 @@
+/**
+Copyright 2013 project Ardulink http://www.ardulink.org/
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.zu.ardulink;
+
+/**
+ * [ardulinktitle] [ardulinkversion]
+ * Receives every frame from Arduino after the link parsed it, together with
+ * what it was, so a listener can pass frames on selectively (e.g. the ones
+ * of a pin) without parsing them again. As for {@link RawFrameListener} the
+ * frame is a slice of the connection's buffer, only valid during the call.
+ *
+ * @author project Ardulink http://www.ardulink.org/
+ * @see Link#addParsedFrameListener(ParsedFrameListener)
+ *
+ * [adsense]
+ *
+ */
+public interface ParsedFrameListener {
+
+	/**
+	 * What a frame was.
+	 */
+	enum FrameType {
+		/**
+		 * The value of an analog pin.
+		 */
+		ANALOG_READ,
+		/**
+		 * The value of a digital pin.
+		 */
+		DIGITAL_READ,
+		/**
+		 * Anything else (replies, custom messages, frames not understood).
+		 */
+		OTHER
+	}
+
+	/**
+	 * @param id the id of the connection
+	 * @param frame the buffer containing the frame
+	 * @param offset index of the frame's first byte
+	 * @param length length of the frame
+	 * @param type what the frame was
+	 * @param pin the pin of a read, -1 for other frames
+	 */
+	void frameParsed(String id, byte[] frame, int offset, int length, FrameType type, int pin);
+
+}
@@ -0,0 +1,42 @@
+/**
+Copyright 2013 project Ardulink http://www.ardulink.org/
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.zu.ardulink;
+
+/**
+ * [ardulinktitle] [ardulinkversion]
+ * Receives every frame from Arduino as it was received, before (and
+ * independent of) parsing. Unlike {@link RawDataListener} the frame is
+ * passed as a slice of the connection's buffer, nothing is copied. The slice
+ * is only valid during the call and must not be changed.
+ *
+ * @author project Ardulink http://www.ardulink.org/
+ * @see Link#addRawFrameListener(RawFrameListener)
+ *
+ * [adsense]
+ *
+ */
+public interface RawFrameListener {
+
+	/**
+	 * @param id the id of the connection
+	 * @param frame the buffer containing the frame
+	 * @param offset index of the frame's first byte
+	 * @param length length of the frame
+	 */
+	void frameReceived(String id, byte[] frame, int offset, int length);
+
+}
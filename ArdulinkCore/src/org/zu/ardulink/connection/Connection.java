@@ -35,6 +35,7 @@ public interface Connection {
 	boolean disconnect();
 	boolean isConnected();
 	boolean writeSerial(String message);
+	boolean writeSerial(byte[] message, int offset, int length);
 	boolean writeSerial(int numBytes, int message[]);
 	void setConnectionContact(ConnectionContact contact);
 
@@ -55,6 +55,11 @@ public class FakeConnection implements Connection {
 		return true;
 	}
 
+	@Override
+	public boolean writeSerial(byte[] message, int offset, int length) {
+		return writeSerial(new String(message, offset, length));
+	}
+
 	@Override
 	public boolean writeSerial(int numBytes, int[] message) {
 		throw new RuntimeException("binary writeSerial should not be called for this connection");
@@ -0,0 +1,245 @@
+/**
+Copyright 2013 project Ardulink http://www.ardulink.org/
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.zu.ardulink.connection;
+
+import static org.zu.ardulink.util.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * [ardulinktitle] [ardulinkversion]
+ * Cuts the stream of bytes received by a connection into the packages
+ * (frames) separated by the divider. Data is read directly into the
+ * assembler's buffer and every complete frame is passed to the
+ * {@link FrameHandler} as a slice of this buffer, so frames are neither
+ * copied nor converted. Frames split across several reads are completed by
+ * the following reads: only the incomplete frame at the end of the buffer is
+ * moved to its start when the buffer runs full, the buffer grows if the
+ * frame doesn't leave enough room.
+ * <br/>
+ * Frames longer than the maximum frame length are dropped: everything up to
+ * the next divider is discarded, the following frame is passed again.
+ * <br/>
+ * Instances are not thread safe, they are used by the connection's reader.
+ *
+ * @author project Ardulink http://www.ardulink.org/
+ *
+ * [adsense]
+ *
+ */
+public class FrameAssembler {
+
+	/**
+	 * Receives the frames of a {@link FrameAssembler}.
+	 */
+	public interface FrameHandler {
+
+		/**
+		 * A frame (without divider) was received. The slice is only valid
+		 * during this call and must not be changed by anyone but the
+		 * connection owning the assembler. The divider follows the frame in
+		 * the buffer (at offset + length), so the frame can be forwarded
+		 * including its divider.
+		 * @param buffer the assembler's buffer
+		 * @param offset index of the frame's first byte
+		 * @param length length of the frame
+		 */
+		void frameReceived(byte[] buffer, int offset, int length);
+
+	}
+
+	private static final Logger logger = LoggerFactory.getLogger(FrameAssembler.class);
+
+	public static final int DEFAULT_MAX_FRAME_LENGTH = 1024;
+
+	/**
+	 * Minimum room for a single read.
+	 */
+	private static final int READ_SIZE = 1024;
+
+	private final int divider;
+	private final FrameHandler handler;
+	private volatile int maxFrameLength;
+
+	private byte[] buffer = new byte[2 * READ_SIZE];
+	// start of the incomplete frame
+	private int start;
+	// end of the data received
+	private int end;
+	// bytes before this index are checked for the divider
+	private int scanned;
+	// discarding a frame that is too long until the next divider
+	private boolean discarding;
+	private volatile long droppedFrames;
+
+	public FrameAssembler(int divider, FrameHandler handler) {
+		this(divider, DEFAULT_MAX_FRAME_LENGTH, handler);
+	}
+
+	/**
+	 * @param divider the byte separating two frames (0-255)
+	 * @param maxFrameLength longer frames are dropped
+	 * @param handler receives the frames
+	 */
+	public FrameAssembler(int divider, int maxFrameLength, FrameHandler handler) {
+		checkArgument(divider >= 0 && divider <= 255, "divider must be between 0 and 255 but was %s", divider);
+		setMaxFrameLength(maxFrameLength);
+		this.divider = divider;
+		this.handler = handler;
+	}
+
+	/**
+	 * Reads once from in (so it blocks if in blocks) and passes all the
+	 * frames completed by the data read.
+	 * @param in
+	 * @return the number of bytes read or -1 at the end of the stream (like {@link InputStream#read(byte[])})
+	 * @throws IOException
+	 */
+	public int readFrom(InputStream in) throws IOException {
+		makeRoom(READ_SIZE);
+		int read = in.read(buffer, end, buffer.length - end);
+		if (read > 0) {
+			end += read;
+			assemble();
+		}
+		return read;
+	}
+
+	/**
+	 * Adds a single byte received (for connections that receive byte by byte).
+	 * @param b
+	 */
+	public void append(byte b) {
+		makeRoom(1);
+		buffer[end++] = b;
+		assemble();
+	}
+
+	/**
+	 * Adds the bytes received.
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 */
+	public void append(byte[] bytes, int offset, int length) {
+		while (length > 0) {
+			int chunk = Math.min(length, READ_SIZE);
+			makeRoom(chunk);
+			System.arraycopy(bytes, offset, buffer, end, chunk);
+			end += chunk;
+			assemble();
+			offset += chunk;
+			length -= chunk;
+		}
+	}
+
+	/**
+	 * Adds the bytes remaining in the buffer (e.g. a direct buffer a channel
+	 * read into), they are copied once into the assembler's buffer.
+	 * @param bytes
+	 */
+	public void append(ByteBuffer bytes) {
+		while (bytes.hasRemaining()) {
+			int chunk = Math.min(bytes.remaining(), READ_SIZE);
+			makeRoom(chunk);
+			bytes.get(buffer, end, chunk);
+			end += chunk;
+			assemble();
+		}
+	}
+
+	/**
+	 * Discards the incomplete frame, e.g. after the connection was reopened.
+	 */
+	public void reset() {
+		start = end = scanned = 0;
+		discarding = false;
+	}
+
+	private void assemble() {
+		for (int i = scanned; i < end; i++) {
+			if ((buffer[i] & 0xFF) == divider) {
+				if (discarding) {
+					discarding = false;
+				} else if (i > start) {
+					handler.frameReceived(buffer, start, i - start);
+				}
+				start = i + 1;
+			} else if (discarding) {
+				start = i + 1;
+			} else if (i - start >= maxFrameLength) {
+				discarding = true;
+				droppedFrames++;
+				logger.warn("Dropped a frame longer than {} bytes", maxFrameLength);
+				start = i + 1;
+			}
+		}
+		scanned = end;
+		if (start == end) {
+			// nothing incomplete, start over at the beginning of the buffer
+			start = end = scanned = 0;
+		}
+	}
+
+	private void makeRoom(int needed) {
+		if (buffer.length - end >= needed) {
+			return;
+		}
+		int pending = end - start;
+		byte[] target = buffer;
+		if (buffer.length - pending < needed) {
+			target = new byte[Math.max(buffer.length * 2, pending + needed)];
+		}
+		System.arraycopy(buffer, start, target, 0, pending);
+		buffer = target;
+		scanned -= start;
+		end = pending;
+		start = 0;
+	}
+
+	public int getMaxFrameLength() {
+		return maxFrameLength;
+	}
+
+	/**
+	 * @param maxFrameLength frames longer than maxFrameLength bytes are dropped
+	 */
+	public void setMaxFrameLength(int maxFrameLength) {
+		checkArgument(maxFrameLength > 0, "maxFrameLength must be positive but was %s", maxFrameLength);
+		this.maxFrameLength = maxFrameLength;
+	}
+
+	/**
+	 * @return the number of frames dropped since they were too long
+	 */
+	public long getDroppedFrames() {
+		return droppedFrames;
+	}
+
+	/**
+	 * @return the current size of the buffer (grows with long frames)
+	 */
+	public int getCapacity() {
+		return buffer.length;
+	}
+
+}
@@ -0,0 +1,263 @@
+/**
+Copyright 2013 project Ardulink http://www.ardulink.org/
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.zu.ardulink.connection;
+
+import static org.zu.ardulink.util.Preconditions.checkArgument;
+import static org.zu.ardulink.util.Preconditions.checkNotNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zu.ardulink.connection.FrameAssembler.FrameHandler;
+
+/**
+ * [ardulinktitle] [ardulinkversion]
+ * Hands the frames received by a connection's reader over to a dispatcher
+ * thread that passes them on (parsing, listeners, ...), so a slow consumer
+ * never keeps the reader from draining the port.
+ * <br/>
+ * The frames are copied into a ring of preallocated slots that is shared
+ * without locks by a single producer (the reader calling
+ * {@link #frameReceived(byte[], int, int)}) and the dispatcher. If the ring
+ * is full the {@link OverflowPolicy} decides whether the reader waits or a
+ * frame is dropped, dropped frames are counted.
+ *
+ * @author project Ardulink http://www.ardulink.org/
+ *
+ * [adsense]
+ *
+ */
+public class FrameDispatcher implements FrameHandler {
+
+	/**
+	 * What happens to a frame received while the ring is full.
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * The reader waits until the dispatcher made room (nothing is
+		 * dropped, but the port may overflow).
+		 */
+		BLOCK,
+		/**
+		 * The oldest frame not dispatched yet is dropped.
+		 */
+		DROP_OLDEST,
+		/**
+		 * The frame received is dropped.
+		 */
+		DROP_NEWEST
+	}
+
+	private static final Logger logger = LoggerFactory.getLogger(FrameDispatcher.class);
+
+	private static final int INITIAL_SLOT_SIZE = 64;
+
+	private final int capacity;
+	private final OverflowPolicy policy;
+	private final FrameHandler handler;
+	private final Thread dispatcher;
+
+	private final byte[][] slots;
+	private final int[] lengths;
+	// index of the next frame written, only changed by the producer
+	private final AtomicLong head = new AtomicLong();
+	// index of the next frame dispatched, changed by the dispatcher and by the producer dropping the oldest frame
+	private final AtomicLong tail = new AtomicLong();
+
+	private volatile boolean closed;
+	private volatile boolean dispatcherWaiting;
+	private volatile Thread waitingProducer;
+
+	private final AtomicLong droppedFrames = new AtomicLong();
+	private volatile long dispatchedFrames;
+
+	/**
+	 * @param capacity
+	 *            the number of frames the ring holds
+	 * @param policy
+	 *            what to do if the ring is full
+	 * @param handler
+	 *            receives the frames on the dispatcher thread
+	 * @param name
+	 *            name of the dispatcher thread
+	 */
+	public FrameDispatcher(int capacity, OverflowPolicy policy, FrameHandler handler, String name) {
+		checkArgument(capacity > 0, "capacity must be positive but was %s", capacity);
+		this.capacity = capacity;
+		this.policy = checkNotNull(policy, "policy must not be null");
+		this.handler = checkNotNull(handler, "handler must not be null");
+		this.slots = new byte[capacity][INITIAL_SLOT_SIZE];
+		this.lengths = new int[capacity];
+		this.dispatcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				dispatch();
+			}
+		}, name);
+		this.dispatcher.setDaemon(true);
+		this.dispatcher.start();
+	}
+
+	/**
+	 * Queues a copy of the frame. Must only be called by a single thread.
+	 */
+	@Override
+	public void frameReceived(byte[] buffer, int offset, int length) {
+		long h = head.get();
+		while (!closed && h - tail.get() >= capacity) {
+			if (policy == OverflowPolicy.DROP_NEWEST) {
+				droppedFrames.incrementAndGet();
+				return;
+			} else if (policy == OverflowPolicy.DROP_OLDEST) {
+				long t = tail.get();
+				// fails if the dispatcher took the frame meanwhile
+				if (h - t >= capacity && tail.compareAndSet(t, t + 1)) {
+					droppedFrames.incrementAndGet();
+				}
+			} else {
+				waitForRoom(h);
+			}
+		}
+		if (closed) {
+			droppedFrames.incrementAndGet();
+			return;
+		}
+		int slot = (int) (h % capacity);
+		byte[] target = slots[slot];
+		if (target.length < length) {
+			target = slots[slot] = new byte[Math.max(length, 2 * target.length)];
+		}
+		System.arraycopy(buffer, offset, target, 0, length);
+		lengths[slot] = length;
+		head.set(h + 1);
+		if (dispatcherWaiting) {
+			LockSupport.unpark(dispatcher);
+		}
+	}
+
+	private void waitForRoom(long h) {
+		waitingProducer = Thread.currentThread();
+		if (!closed && h - tail.get() >= capacity) {
+			LockSupport.park(this);
+		}
+		waitingProducer = null;
+	}
+
+	private void dispatch() {
+		byte[] frame = new byte[INITIAL_SLOT_SIZE];
+		while (true) {
+			long t = tail.get();
+			if (t == head.get()) {
+				if (closed) {
+					return;
+				}
+				waitForFrames(t);
+				continue;
+			}
+			int slot = (int) (t % capacity);
+			byte[] source = slots[slot];
+			int length = Math.min(lengths[slot], source.length);
+			if (frame.length < length) {
+				frame = new byte[Math.max(length, 2 * frame.length)];
+			}
+			System.arraycopy(source, 0, frame, 0, length);
+			// if the producer dropped the frame while it was copied the copy may be garbage
+			if (!tail.compareAndSet(t, t + 1)) {
+				continue;
+			}
+			Thread producer = waitingProducer;
+			if (producer != null) {
+				LockSupport.unpark(producer);
+			}
+			try {
+				handler.frameReceived(frame, 0, length);
+			} catch (RuntimeException e) {
+				logger.error("Error dispatching a frame", e);
+			}
+			dispatchedFrames++;
+		}
+	}
+
+	private void waitForFrames(long t) {
+		dispatcherWaiting = true;
+		if (!closed && t == head.get()) {
+			LockSupport.park(this);
+		}
+		dispatcherWaiting = false;
+	}
+
+	/**
+	 * Dispatches the frames queued and stops the dispatcher thread. Frames
+	 * received afterwards are dropped.
+	 */
+	public void shutdown() {
+		close();
+		if (Thread.currentThread() != dispatcher) {
+			try {
+				dispatcher.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Like {@link #shutdown()} but doesn't wait for the dispatcher thread to
+	 * pass on the frames queued, e.g. if the caller must not block.
+	 */
+	public void close() {
+		closed = true;
+		LockSupport.unpark(dispatcher);
+		Thread producer = waitingProducer;
+		if (producer != null) {
+			LockSupport.unpark(producer);
+		}
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @return the number of frames waiting to be dispatched
+	 */
+	public int size() {
+		return (int) Math.max(0, head.get() - tail.get());
+	}
+
+	/**
+	 * @return the number of frames dropped since the ring was full (or the
+	 *         dispatcher was shut down)
+	 */
+	public long getDroppedFrames() {
+		return droppedFrames.get();
+	}
+
+	/**
+	 * @return the number of frames passed to the handler
+	 */
+	public long getDispatchedFrames() {
+		return dispatchedFrames;
+	}
+
+}
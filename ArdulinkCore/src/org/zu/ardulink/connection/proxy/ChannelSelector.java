@@ -0,0 +1,264 @@
+/**
+Copyright 2013 project Ardulink http://www.ardulink.org/
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.zu.ardulink.connection.proxy;
+
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * [ardulinktitle] [ardulinkversion]
+ * A single thread serving many non-blocking channels: the thread waits until
+ * one of the channels registered can be read (or written) and calls the
+ * channel's {@link ChannelHandler}. So any number of remote links needs only
+ * this one thread instead of a reader thread per link.
+ * <br/>
+ * Registrations and changes of the interest are passed to the selector's
+ * thread, so they can be made by any thread.
+ *
+ * @author project Ardulink http://www.ardulink.org/
+ *
+ * [adsense]
+ *
+ */
+public class ChannelSelector {
+
+	/**
+	 * Called by the selector's thread, the methods must not block.
+	 */
+	public interface ChannelHandler {
+
+		/**
+		 * The channel has data to read.
+		 * @throws IOException the channel is closed
+		 */
+		void readable() throws IOException;
+
+		/**
+		 * The channel can be written again (only if write interest was set).
+		 * @throws IOException the channel is closed
+		 */
+		void writable() throws IOException;
+
+		/**
+		 * The channel was closed after the handler threw an exception.
+		 * @param cause
+		 */
+		void closed(IOException cause);
+
+	}
+
+	private static final Logger logger = LoggerFactory.getLogger(ChannelSelector.class);
+
+	private static ChannelSelector defaultSelector;
+
+	private final Selector selector;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private final Thread thread;
+	private volatile boolean running = true;
+
+	/**
+	 * @return the selector shared by all the connections not given another
+	 *         one, started on first use
+	 * @throws IOException
+	 */
+	public static synchronized ChannelSelector getDefault() throws IOException {
+		if (defaultSelector == null) {
+			defaultSelector = new ChannelSelector("ardulink-selector");
+		}
+		return defaultSelector;
+	}
+
+	/**
+	 * Opens the selector and starts its (daemon) thread.
+	 * @param name the name of the thread
+	 * @throws IOException
+	 */
+	public ChannelSelector(String name) throws IOException {
+		this.selector = Selector.open();
+		this.thread = new Thread(name) {
+			@Override
+			public void run() {
+				select();
+			}
+		};
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Switches the channel to non-blocking mode and registers it for reading.
+	 * @param channel
+	 * @param handler
+	 * @throws IOException
+	 */
+	public void register(final SelectableChannel channel, final ChannelHandler handler) throws IOException {
+		channel.configureBlocking(false);
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					channel.register(selector, OP_READ, handler);
+				} catch (IOException e) {
+					closed(handler, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @param channel a channel registered
+	 * @param write true if {@link ChannelHandler#writable()} should be
+	 *            called when the channel can be written
+	 */
+	public void setWriteInterest(SelectableChannel channel, boolean write) {
+		setInterest(channel, OP_WRITE, write);
+	}
+
+	/**
+	 * @param channel a channel registered
+	 * @param read false to stop reading the channel for a while (e.g. while
+	 *            the data read so far can't be processed)
+	 */
+	public void setReadInterest(SelectableChannel channel, boolean read) {
+		setInterest(channel, OP_READ, read);
+	}
+
+	private void setInterest(final SelectableChannel channel, final int op, final boolean interested) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				SelectionKey key = channel.keyFor(selector);
+				if (key != null && key.isValid()) {
+					key.interestOps(interested ? key.interestOps() | op : key.interestOps() & ~op);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Closes the channel. The selector is woken up since a registered channel
+	 * is only closed completely by the next selection.
+	 * @param channel
+	 * @throws IOException
+	 */
+	public void close(SelectableChannel channel) throws IOException {
+		channel.close();
+		selector.wakeup();
+	}
+
+	/**
+	 * Stops the thread and closes the selector (but not the channels).
+	 */
+	public void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * @return the number of channels registered
+	 */
+	public int getChannels() {
+		return selector.keys().size();
+	}
+
+	/**
+	 * Runs the task on the selector's thread (e.g. to continue with the data
+	 * of a channel after a blocking operation was done by another thread).
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	private void select() {
+		try {
+			while (running) {
+				selector.select();
+				for (Runnable task; (task = tasks.poll()) != null;) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						logger.error("Error running a task", e);
+					}
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					handle(key);
+				}
+			}
+		} catch (IOException e) {
+			logger.error("Selector failed", e);
+		} finally {
+			try {
+				selector.close();
+			} catch (IOException e) {
+				logger.error("Error closing the selector", e);
+			}
+		}
+	}
+
+	private void handle(SelectionKey key) {
+		ChannelHandler handler = (ChannelHandler) key.attachment();
+		try {
+			if (key.isValid() && key.isReadable()) {
+				handler.readable();
+			}
+			if (key.isValid() && key.isWritable()) {
+				handler.writable();
+			}
+		} catch (IOException e) {
+			close(key, handler, e);
+		} catch (RuntimeException e) {
+			// the handler's state is unknown, keeping the channel could spin
+			logger.error("Error handling a channel, closing it", e);
+			close(key, handler, new IOException(e));
+		}
+	}
+
+	private void close(SelectionKey key, ChannelHandler handler, IOException cause) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			logger.error("Error closing the channel", e);
+		}
+		closed(handler, cause);
+	}
+
+	private void closed(ChannelHandler handler, IOException cause) {
+		try {
+			handler.closed(cause);
+		} catch (RuntimeException e) {
+			logger.error("Error handling a closed channel", e);
+		}
+	}
+
+}
@@ -0,0 +1,214 @@
+/**
+Copyright 2013 project Ardulink http://www.ardulink.org/
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.zu.ardulink.connection.proxy;
+
+import static org.zu.ardulink.util.Preconditions.checkArgument;
+import static org.zu.ardulink.util.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * [ardulinktitle] [ardulinkversion]
+ * Writes to a non-blocking channel registered with a {@link ChannelSelector}.
+ * Buffers are written immediately as long as nothing is pending. If the
+ * socket can't take them they are queued and written together (gathering
+ * write) as soon as the socket can be written again, so callers never block.
+ * <br/>
+ * The bytes queued can be bounded, the {@link OverflowPolicy} decides what
+ * happens to a buffer that doesn't fit, so a peer not reading costs a bounded
+ * amount of memory. Buffers written together (e.g. a header and its payload)
+ * are queued, written and dropped as a whole.
+ * <br/>
+ * Writing is synchronized on the instance, {@link #writePending()} has to
+ * be called by the channel's {@link ChannelSelector.ChannelHandler#writable()}.
+ *
+ * @author project Ardulink http://www.ardulink.org/
+ *
+ * [adsense]
+ *
+ */
+public class ChannelWriter {
+
+	/**
+	 * What happens to a buffer written while the queue is full.
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * The buffer written is dropped.
+		 */
+		DROP_NEWEST,
+		/**
+		 * The oldest buffers not started yet are dropped to make room.
+		 */
+		DROP_OLDEST,
+		/**
+		 * Writing fails with an {@link IOException}, the channel should be
+		 * closed.
+		 */
+		DISCONNECT
+	}
+
+	private final SocketChannel channel;
+	private final ChannelSelector selector;
+	private final int maxPendingBytes;
+	private final OverflowPolicy policy;
+
+	private final LinkedList<ByteBuffer[]> pending = new LinkedList<ByteBuffer[]>();
+	private int pendingBytes;
+	private boolean awaitingWritable;
+
+	private volatile long writtenBytes;
+	private volatile long droppedBuffers;
+
+	/**
+	 * A writer queuing without limit.
+	 */
+	public ChannelWriter(SocketChannel channel, ChannelSelector selector) {
+		this(channel, selector, Integer.MAX_VALUE, OverflowPolicy.DROP_NEWEST);
+	}
+
+	/**
+	 * @param channel
+	 * @param selector the selector the channel is registered with
+	 * @param maxPendingBytes the maximum number of bytes queued
+	 * @param policy what happens if a buffer doesn't fit into the queue
+	 */
+	public ChannelWriter(SocketChannel channel, ChannelSelector selector, int maxPendingBytes, OverflowPolicy policy) {
+		checkArgument(maxPendingBytes > 0, "maxPendingBytes must be positive but was %s", maxPendingBytes);
+		this.channel = checkNotNull(channel, "channel must not be null");
+		this.selector = checkNotNull(selector, "selector must not be null");
+		this.maxPendingBytes = maxPendingBytes;
+		this.policy = checkNotNull(policy, "policy must not be null");
+	}
+
+	/**
+	 * Writes the remaining bytes of the buffers or queues them. The buffers
+	 * are written one after the other and dropped together, they must not be
+	 * changed afterwards.
+	 * @param buffers
+	 * @return false if the buffers were dropped since the queue is full
+	 * @throws IOException the channel is closed or the queue is full and
+	 *             the policy is {@link OverflowPolicy#DISCONNECT}
+	 */
+	public synchronized boolean write(ByteBuffer... buffers) throws IOException {
+		int length = remaining(buffers);
+		if (awaitingWritable && !makeRoom(length)) {
+			droppedBuffers++;
+			if (policy == OverflowPolicy.DISCONNECT) {
+				throw new IOException("More than " + maxPendingBytes + " bytes pending");
+			}
+			return false;
+		}
+		pending.add(buffers);
+		pendingBytes += length;
+		if (!awaitingWritable) {
+			writePending();
+		}
+		return true;
+	}
+
+	private boolean makeRoom(int needed) {
+		if (policy == OverflowPolicy.DROP_OLDEST) {
+			// the first buffers may have been written partly already, they're kept
+			Iterator<ByteBuffer[]> buffers = pending.iterator();
+			buffers.next();
+			while (maxPendingBytes - pendingBytes < needed && buffers.hasNext()) {
+				pendingBytes -= remaining(buffers.next());
+				buffers.remove();
+				droppedBuffers++;
+			}
+		}
+		return maxPendingBytes - pendingBytes >= needed;
+	}
+
+	private static int remaining(ByteBuffer[] buffers) {
+		int remaining = 0;
+		for (ByteBuffer buffer : buffers) {
+			remaining += buffer.remaining();
+		}
+		return remaining;
+	}
+
+	/**
+	 * Writes as much of the pending buffers as the socket takes with a single
+	 * gathering write, waits for the socket to be writable if anything
+	 * remains.
+	 * @throws IOException
+	 */
+	public synchronized void writePending() throws IOException {
+		List<ByteBuffer> all = new ArrayList<ByteBuffer>();
+		for (ByteBuffer[] buffers : pending) {
+			all.addAll(Arrays.asList(buffers));
+		}
+		long written = channel.write(all.toArray(new ByteBuffer[all.size()]));
+		writtenBytes += written;
+		pendingBytes -= written;
+		while (!pending.isEmpty() && remaining(pending.getFirst()) == 0) {
+			pending.removeFirst();
+		}
+		boolean remaining = !pending.isEmpty();
+		if (remaining != awaitingWritable) {
+			awaitingWritable = remaining;
+			selector.setWriteInterest(channel, remaining);
+		}
+	}
+
+	/**
+	 * @return the number of writes (buffers or buffers written together) not
+	 *         (completely) written yet
+	 */
+	public synchronized int getPendingBuffers() {
+		return pending.size();
+	}
+
+	/**
+	 * @return the number of bytes queued
+	 */
+	public synchronized int getPendingBytes() {
+		return pendingBytes;
+	}
+
+	/**
+	 * @return the number of bytes written to the channel
+	 */
+	public long getWrittenBytes() {
+		return writtenBytes;
+	}
+
+	/**
+	 * @return the number of writes dropped since the queue was full
+	 */
+	public long getDroppedBuffers() {
+		return droppedBuffers;
+	}
+
+	public int getMaxPendingBytes() {
+		return maxPendingBytes;
+	}
+
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+
+}
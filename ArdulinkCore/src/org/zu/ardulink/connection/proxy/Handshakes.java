@@ -0,0 +1,78 @@
+/**
+Copyright 2013 project Ardulink http://www.ardulink.org/
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.zu.ardulink.connection.proxy;
+
+import static org.zu.ardulink.util.Strings.LATIN_1;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * [ardulinktitle] [ardulinkversion]
+ * The lines of the (blocking) handshake with the proxy server.
+ *
+ * @author project Ardulink http://www.ardulink.org/
+ *
+ * [adsense]
+ *
+ */
+final class Handshakes {
+
+	private Handshakes() {
+		super();
+	}
+
+	static void writeLines(SocketChannel channel, String... lines) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (String line : lines) {
+			sb.append(line).append('\n');
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(LATIN_1));
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Reads a line, bytes following the line stay in the buffer.
+	 * @param channel a blocking channel
+	 * @param readBuffer the buffer the channel is read into (in write mode)
+	 * @return the line without line terminator or null at the end of the stream
+	 */
+	static String readLine(SocketChannel channel, ByteBuffer readBuffer) throws IOException {
+		StringBuilder line = new StringBuilder();
+		while (true) {
+			readBuffer.flip();
+			while (readBuffer.hasRemaining()) {
+				char c = (char) (readBuffer.get() & 0xFF);
+				if (c == '\n') {
+					readBuffer.compact();
+					return line.toString();
+				}
+				if (c != '\r') {
+					line.append(c);
+				}
+			}
+			readBuffer.clear();
+			if (channel.read(readBuffer) < 0) {
+				return null;
+			}
+		}
+	}
+
+}
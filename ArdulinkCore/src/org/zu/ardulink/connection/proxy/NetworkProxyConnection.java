@@ -18,26 +18,39 @@ limitations under the License.
 
 package org.zu.ardulink.connection.proxy;
 
+import static org.zu.ardulink.util.Preconditions.checkArgument;
 import static org.zu.ardulink.util.Preconditions.checkNotNull;
 import static org.zu.ardulink.util.Preconditions.checkState;
+import static org.zu.ardulink.util.Strings.LATIN_1;
 
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.zu.ardulink.ConnectionContact;
 import org.zu.ardulink.Link;
 import org.zu.ardulink.connection.Connection;
+import org.zu.ardulink.connection.FrameAssembler;
+import org.zu.ardulink.connection.FrameDispatcher;
+import org.zu.ardulink.connection.FrameDispatcher.OverflowPolicy;
 import org.zu.ardulink.protocol.IProtocol;
 
 /**
  * [ardulinktitle] [ardulinkversion]
+ * Connection to a board attached to a NetworkProxyServer. The handshake is
+ * made blocking, afterwards the socket channel is non-blocking and read by
+ * a {@link ChannelSelector} shared with the other remote links. Messages
+ * written while the socket can't take them are queued and written together
+ * (gathering write) as soon as the socket can be written again.
+ * The frames received are passed to the listeners by a
+ * {@link FrameDispatcher} of the link, so a slow listener doesn't stall the
+ * other links sharing the selector.
+ * 
  * @author Luciano Zu project Ardulink http://www.ardulink.org/
  * 
  * [adsense]
@@ -46,38 +59,53 @@ public class NetworkProxyConnection implements Connection, NetworkProxyMessages
 
 	public static final int DEFAULT_LISTENING_PORT = 4478;
 
-	private Socket socket = null;
+	public static final int DEFAULT_DISPATCHER_CAPACITY = 256;
 
-	private BufferedReader bufferedReader;
-	private InputStream inputStream;
-	private PrintWriter printWriter;
-	private OutputStream outputStream;
-	
-	private boolean handshakeComplete;
+	private static final int READ_BUFFER_SIZE = 1024;
+
+	private final SocketChannel channel;
+
+	private final ChannelSelector selector;
+
+	/**
+	 * Filled by the channel, read while handshaking and by the selector's thread afterwards.
+	 */
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+	private final ChannelWriter writer;
+
+	private volatile boolean handshakeComplete;
+
+	private PinSubscription subscription;
+
+	private int dispatcherCapacity = DEFAULT_DISPATCHER_CAPACITY;
+
+	private volatile FrameDispatcher dispatcher;
 	
 	private ConnectionContact contact;
 	
-	private String id;
+	private final String id;
 
 	/**
-	 * The Thread used to receive the data from the Serial interface.
+	 * Showing the {@link Receiver} that the connection has been closed on purpose.
 	 */
-	private Thread reader;
+	private volatile boolean end = false;
+	
+	public NetworkProxyConnection(String host, int port) throws IOException {
+		this(host, port, ChannelSelector.getDefault());
+	}
 
 	/**
-	 * Communicating between threads, showing the {@link #reader} when the
-	 * connection has been closed, so it can {@link Thread#join()}.
+	 * @param host
+	 * @param port
+	 * @param selector reads the connection (see {@link ChannelSelector#getDefault()})
+	 * @throws IOException
 	 */
-	private boolean end = false;
-	
-	public NetworkProxyConnection(String host, int port) throws IOException {
+	public NetworkProxyConnection(String host, int port, ChannelSelector selector) throws IOException {
 		id = host + ":" + port;
-		socket = new Socket(host, port);
-
-		inputStream = socket.getInputStream();
-		bufferedReader = new BufferedReader(new InputStreamReader(inputStream));
-		outputStream = socket.getOutputStream();
-		printWriter = new PrintWriter(outputStream, true);
+		this.selector = checkNotNull(selector, "selector must not be null");
+		channel = SocketChannel.open(new InetSocketAddress(host, port));
+		writer = new ChannelWriter(channel, selector);
 	}
 
 	@Override
@@ -85,14 +113,13 @@ public class NetworkProxyConnection implements Connection, NetworkProxyMessages
 		List<String> retvalue = null;
 		if(!handshakeComplete) {
 			try {
-				printWriter.println(GET_PORT_LIST_CMD);
-				printWriter.flush();
-				String inputLine = bufferedReader.readLine();
+				writeLines(GET_PORT_LIST_CMD);
+				String inputLine = readLine();
 				if(inputLine != null && inputLine.startsWith(NUMBER_OF_PORTS)) {
 					int numOfPorts = Integer.parseInt(inputLine.substring(NUMBER_OF_PORTS.length()));
 					retvalue = new ArrayList<String>(numOfPorts);
 					for(int i = 0; i < numOfPorts; i++) {
-						inputLine = bufferedReader.readLine();
+						inputLine = readLine();
 						retvalue.add(inputLine);
 					}
 				}
@@ -121,19 +148,23 @@ public class NetworkProxyConnection implements Connection, NetworkProxyMessages
 
 		boolean retvalue = false;
 		try {
-			printWriter.println(CONNECT_CMD);
-			printWriter.println(portName);
-			printWriter.println(baudRate.toString());
-			printWriter.flush();
+			if (subscription != null) {
+				writeLines(SUBSCRIBE_CMD, subscription.toString());
+			}
+			writeLines(CONNECT_CMD, portName, baudRate.toString());
 			
-			String inputLine = bufferedReader.readLine();
+			String inputLine = readLine();
 			if(inputLine != null && inputLine.equals(OK)) {
 				retvalue = true;
 				handshakeComplete = true;
-
-				reader = (new Thread(new SerialReader(inputStream)));
 				end = false;
-				reader.start();
+
+				Receiver receiver = new Receiver();
+				// data received together with the reply of the handshake
+				readBuffer.flip();
+				receiver.frameAssembler.append(readBuffer);
+				readBuffer.clear();
+				selector.register(channel, receiver);
 			}
 			contact.connected(id, portName);
 		} catch (IOException e) {
@@ -145,26 +176,46 @@ public class NetworkProxyConnection implements Connection, NetworkProxyMessages
 	@Override
 	public boolean disconnect() {
 		try {
-			socket.close();
-			contact.disconnected(id);
 			end = true;
+			FrameDispatcher frameDispatcher = dispatcher;
+			if (frameDispatcher != null) {
+				frameDispatcher.shutdown();
+			}
+			selector.close(channel);
+			contact.disconnected(id);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-		return socket.isConnected();
+		return channel.isConnected();
 	}
 
 	@Override
 	public boolean isConnected() {
-		boolean retvalue = socket.isConnected() & handshakeComplete;
+		boolean retvalue = channel.isConnected() & handshakeComplete;
 		return retvalue;
 	}
 
 	@Override
 	public boolean writeSerial(String message) {
-		printWriter.print(message);
-		printWriter.flush();
-			
+		byte[] bytes = message.getBytes(LATIN_1);
+		return writeSerial(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * The message is copied, so the caller can reuse the buffer. It's written
+	 * immediately if nothing is pending, otherwise it's queued and written by
+	 * the selector's thread together with the other messages pending.
+	 */
+	@Override
+	public boolean writeSerial(byte[] message, int offset, int length) {
+		ByteBuffer copy = ByteBuffer.allocate(length);
+		copy.put(message, offset, length).flip();
+		try {
+			writer.write(copy);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
 		return true;
 	}
 
@@ -178,57 +229,150 @@ public class NetworkProxyConnection implements Connection, NetworkProxyMessages
 		this.contact = contact;
 	}
 
+	/**
+	 * Lets the server forward only the frames of the subscription instead of every frame
+	 * of the board. Has to be set before connecting.
+	 * @param subscription the frames to receive, null for all
+	 */
+	public void setSubscription(PinSubscription subscription) {
+		checkState(!handshakeComplete, "Subscription must be set before connecting");
+		this.subscription = subscription;
+	}
+
+	public PinSubscription getSubscription() {
+		return subscription;
+	}
+
+	/**
+	 * Passes the frames received to the listeners on a thread of this link
+	 * (the default) instead of the selector's thread. The link isn't read
+	 * while half of the capacity is waiting to be dispatched. Has to be set
+	 * before connecting.
+	 * @param capacity the number of frames waiting to be dispatched
+	 */
+	public void enableDispatcher(int capacity) {
+		checkState(!handshakeComplete, "Dispatcher must be set before connecting");
+		checkArgument(capacity > 1, "capacity must be greater than 1 but was %s", capacity);
+		dispatcherCapacity = capacity;
+	}
+
+	/**
+	 * Calls the listeners on the selector's thread shared with the other
+	 * remote links. The listeners must not block then (e.g. by sending a
+	 * message waiting for a reply), all the links would be stalled. Has to
+	 * be set before connecting.
+	 */
+	public void disableDispatcher() {
+		checkState(!handshakeComplete, "Dispatcher must be set before connecting");
+		dispatcherCapacity = 0;
+	}
+
+	/**
+	 * @return the dispatcher of the current connection or null if disabled
+	 */
+	public FrameDispatcher getDispatcher() {
+		return dispatcher;
+	}
+
 	public boolean isHandshakeComplete() {
 		return handshakeComplete;
 	}
-	
+
+	private void writeLines(String... lines) throws IOException {
+		Handshakes.writeLines(channel, lines);
+	}
+
+	/**
+	 * Reads a line of the (blocking) handshake, bytes following the line stay
+	 * in the {@link #readBuffer}.
+	 * @return the line without line terminator or null at the end of the stream
+	 */
+	private String readLine() throws IOException {
+		return Handshakes.readLine(channel, readBuffer);
+	}
+
 	/**
-	 * A separate class to use as the {@link org.zu.ardulink.connection.serial.SerialConnection#reader}. It is run as a
-	 * separate {@link Thread} and manages the incoming data, packaging them
-	 * using {@link org.zu.ardulink.connection.serial.SerialConnection#divider} into arrays of <b>int</b>s and
-	 * forwarding them using
-	 * {@link org.zu.ardulink.connection.ConnectionContact#parseInput(int, int, int[])}.
+	 * Receives the data on the {@link ChannelSelector}'s thread, packaging it
+	 * using {@link IProtocol#DEFAULT_INCOMING_MESSAGE_DIVIDER} and
+	 * forwarding the frames using
+	 * {@link org.zu.ardulink.ConnectionContact#parseInput(String, byte[], int, int)}
+	 * on the dispatcher's thread (if enabled).
 	 * 
 	 */
-	private class SerialReader implements Runnable {
-		private InputStream in;
-		private int[] tempBytes = new int[1024];
-		private int numTempBytes = 0;
+	private class Receiver implements ChannelSelector.ChannelHandler, FrameAssembler.FrameHandler {
 
-		public SerialReader(InputStream in) {
-			this.in = in;
-		}
+		private final FrameAssembler frameAssembler = new FrameAssembler(
+				IProtocol.DEFAULT_INCOMING_MESSAGE_DIVIDER & 0xFF, this);
 
-		public void run() {
-			byte[] buffer = new byte[1024];
-			int len = -1, i, temp;
-			try {
-				while (!end) {
-					if ((len = this.in.read(buffer)) > -1) {
-						for (i = 0; i < len; i++) {
-							temp = buffer[i];
-
-							if (temp == (int)IProtocol.DEFAULT_INCOMING_MESSAGE_DIVIDER) {
-								if  (numTempBytes > 0) {
-									contact.parseInput(id, numTempBytes,
-											tempBytes);
-								}
-								numTempBytes = 0;
-							} else {
-								tempBytes[numTempBytes] = temp;
-								++numTempBytes;
-							}
+		private final FrameDispatcher frameDispatcher;
+
+		private final AtomicBoolean readPaused = new AtomicBoolean();
+
+		private Receiver() {
+			frameDispatcher = dispatcherCapacity == 0 ? null : new FrameDispatcher(dispatcherCapacity,
+					OverflowPolicy.BLOCK, new FrameAssembler.FrameHandler() {
+						@Override
+						public void frameReceived(byte[] buffer, int offset, int length) {
+							dispatched(buffer, offset, length);
 						}
-					}
-				}
-			} catch (IOException e) {
+					}, "ardulink-dispatcher-" + id);
+			dispatcher = frameDispatcher;
+		}
+
+		@Override
+		public void frameReceived(byte[] buffer, int offset, int length) {
+			if (frameDispatcher == null) {
+				contact.parseInput(id, buffer, offset, length);
+			} else {
+				frameDispatcher.frameReceived(buffer, offset, length);
+			}
+		}
+
+		/**
+		 * Called on the dispatcher's thread.
+		 */
+		private void dispatched(byte[] buffer, int offset, int length) {
+			contact.parseInput(id, buffer, offset, length);
+			resumeReadingIfCaughtUp();
+		}
+
+		private void resumeReadingIfCaughtUp() {
+			if (readPaused.get() && frameDispatcher.size() <= frameDispatcher.getCapacity() / 4
+					&& readPaused.compareAndSet(true, false)) {
+				selector.setReadInterest(channel, true);
+			}
+		}
+
+		@Override
+		public void readable() throws IOException {
+			if (channel.read(readBuffer) < 0) {
+				throw new EOFException("Proxy server closed the connection");
+			}
+			readBuffer.flip();
+			frameAssembler.append(readBuffer);
+			readBuffer.clear();
+			if (frameDispatcher != null && frameDispatcher.size() >= frameDispatcher.getCapacity() / 2) {
+				// paused before the flag is set, so resuming is always queued after pausing
+				selector.setReadInterest(channel, false);
+				readPaused.set(true);
+				// the dispatcher may have caught up already
+				resumeReadingIfCaughtUp();
+			}
+		}
+
+		@Override
+		public void writable() throws IOException {
+			writer.writePending();
+		}
+
+		@Override
+		public void closed(IOException cause) {
+			if (frameDispatcher != null) {
+				// the selector's thread must not wait for the listeners
+				frameDispatcher.close();
+			}
+			if (!end) {
 				end = true;
-				try {
-					outputStream.close();
-					inputStream.close();
-				} catch (IOException e1) {
-					e1.printStackTrace();
-				}
 				contact.disconnected(id);
 				contact.writeLog(id, "connection has been interrupted");
 			}
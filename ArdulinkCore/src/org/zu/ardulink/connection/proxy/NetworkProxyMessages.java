@@ -32,4 +32,14 @@ public interface NetworkProxyMessages {
 	public static final String STOP_SERVER_CMD = "ardulink:networkproxyserver:stop_server";
 	public static final String GET_PORT_LIST_CMD = "ardulink:networkproxyserver:get_port_list";
 	public static final String CONNECT_CMD = "ardulink:networkproxyserver:connect";
+	/**
+	 * Followed by a line declaring the frames to forward (see {@link PinSubscription}), sent
+	 * before {@link #CONNECT_CMD}. There is no reply, servers not knowing it forward every frame.
+	 */
+	public static final String SUBSCRIBE_CMD = "ardulink:networkproxyserver:subscribe";
+	/**
+	 * Switches the connection to packets (see {@link PacketAssembler}) carrying the data of
+	 * several boards, one stream per board. The server replies {@link #OK}.
+	 */
+	public static final String MULTIPLEX_CMD = "ardulink:networkproxyserver:multiplex";
 }
@@ -0,0 +1,204 @@
+/**
+Copyright 2013 project Ardulink http://www.ardulink.org/
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.zu.ardulink.connection.proxy;
+
+import static org.zu.ardulink.util.Preconditions.checkNotNull;
+import static org.zu.ardulink.util.Preconditions.checkState;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * [ardulinktitle] [ardulinkversion]
+ * A single connection to a proxy server carrying several boards: every
+ * {@link NetworkProxyStream} created by the multiplexer is a connection to
+ * a board of the server, all of them share the multiplexer's socket, its
+ * handshake and its reader (see {@link PacketAssembler} for the packets).
+ * <pre>
+ * NetworkProxyMultiplexer multiplexer = new NetworkProxyMultiplexer("server", 4478);
+ * Link first = Link.createInstance("first", multiplexer.newConnection());
+ * first.connect("COM3");
+ * Link second = Link.createInstance("second", multiplexer.newConnection());
+ * second.connect("COM4");
+ * </pre>
+ * Servers not supporting multiplexing refuse the multiplexer when it is
+ * created.
+ *
+ * @author project Ardulink http://www.ardulink.org/
+ *
+ * [adsense]
+ *
+ */
+public class NetworkProxyMultiplexer implements NetworkProxyMessages {
+
+	private static final Logger logger = LoggerFactory.getLogger(NetworkProxyMultiplexer.class);
+
+	private static final int READ_BUFFER_SIZE = 1024;
+
+	private final SocketChannel channel;
+	private final ChannelSelector selector;
+	private final ChannelWriter writer;
+	private final String id;
+
+	/**
+	 * Filled by the channel, read while handshaking and by the selector's thread afterwards.
+	 */
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+	private final ConcurrentMap<Integer, NetworkProxyStream> streams = new ConcurrentHashMap<Integer, NetworkProxyStream>();
+	private final AtomicInteger nextStream = new AtomicInteger(1);
+
+	private volatile boolean closed;
+
+	public NetworkProxyMultiplexer(String host, int port) throws IOException {
+		this(host, port, ChannelSelector.getDefault());
+	}
+
+	/**
+	 * Connects to the server and switches the connection to packets.
+	 * @param host
+	 * @param port
+	 * @param selector reads the connection (see {@link ChannelSelector#getDefault()})
+	 * @throws IOException the server can't be reached or doesn't support multiplexing
+	 */
+	public NetworkProxyMultiplexer(String host, int port, ChannelSelector selector) throws IOException {
+		id = host + ":" + port;
+		this.selector = checkNotNull(selector, "selector must not be null");
+		channel = SocketChannel.open(new InetSocketAddress(host, port));
+		Handshakes.writeLines(channel, MULTIPLEX_CMD);
+		String reply = Handshakes.readLine(channel, readBuffer);
+		if (!OK.equals(reply)) {
+			channel.close();
+			throw new IOException("Proxy server " + id + " doesn't support multiplexing");
+		}
+		writer = new ChannelWriter(channel, selector);
+		Receiver receiver = new Receiver();
+		// packets received together with the reply of the handshake
+		readBuffer.flip();
+		receiver.packets.append(readBuffer);
+		readBuffer.clear();
+		selector.register(channel, receiver);
+	}
+
+	/**
+	 * @return a new connection to a board of the server using this
+	 *         multiplexer's socket, it's attached to the board when connected
+	 */
+	public NetworkProxyStream newConnection() {
+		checkState(!closed, "Multiplexer %s is closed", id);
+		int stream = nextStream.getAndIncrement();
+		checkState(stream <= PacketAssembler.MAX_STREAM, "No more streams available");
+		NetworkProxyStream connection = new NetworkProxyStream(this, stream, id + "#" + stream);
+		streams.put(stream, connection);
+		return connection;
+	}
+
+	/**
+	 * Closes the socket, all the streams get disconnected.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		closed = true;
+		selector.close(channel);
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return the number of streams created
+	 */
+	public int getStreams() {
+		return streams.size();
+	}
+
+	/**
+	 * Writes a packet, the payload is copied, payloads longer than a packet
+	 * are split.
+	 */
+	boolean send(int type, int stream, byte[] payload, int offset, int length) {
+		try {
+			do {
+				int chunk = Math.min(length, PacketAssembler.MAX_PAYLOAD_LENGTH);
+				writer.write(PacketAssembler.packet(type, stream, payload, offset, chunk));
+				offset += chunk;
+				length -= chunk;
+			} while (length > 0);
+			return true;
+		} catch (IOException e) {
+			logger.warn("Error writing to {}", id, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Receives the packets on the {@link ChannelSelector}'s thread and passes
+	 * them to their streams.
+	 */
+	private class Receiver implements ChannelSelector.ChannelHandler, PacketAssembler.PacketHandler {
+
+		private final PacketAssembler packets = new PacketAssembler(this);
+
+		@Override
+		public void packetReceived(int type, int stream, byte[] buffer, int offset, int length) {
+			NetworkProxyStream connection = streams.get(stream);
+			if (connection == null) {
+				logger.debug("Packet {} of unknown stream {} dropped", type, stream);
+			} else if (type == PacketAssembler.DATA) {
+				connection.frameReceived(buffer, offset, length);
+			} else if (type == PacketAssembler.OPENED || type == PacketAssembler.REFUSED) {
+				connection.replyReceived(type == PacketAssembler.OPENED);
+			} else {
+				logger.debug("Packet of unknown type {} dropped", type);
+			}
+		}
+
+		@Override
+		public void readable() throws IOException {
+			if (channel.read(readBuffer) < 0) {
+				throw new EOFException("Proxy server closed the connection");
+			}
+			readBuffer.flip();
+			packets.append(readBuffer);
+			readBuffer.clear();
+		}
+
+		@Override
+		public void writable() throws IOException {
+			writer.writePending();
+		}
+
+		@Override
+		public void closed(IOException cause) {
+			closed = true;
+			for (NetworkProxyStream stream : streams.values()) {
+				stream.interrupted();
+			}
+		}
+	}
+
+}
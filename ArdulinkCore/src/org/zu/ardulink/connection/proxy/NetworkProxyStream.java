@@ -0,0 +1,251 @@
+/**
+Copyright 2013 project Ardulink http://www.ardulink.org/
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.zu.ardulink.connection.proxy;
+
+import static org.zu.ardulink.util.Preconditions.checkArgument;
+import static org.zu.ardulink.util.Preconditions.checkNotNull;
+import static org.zu.ardulink.util.Preconditions.checkState;
+import static org.zu.ardulink.util.Strings.LATIN_1;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.zu.ardulink.ConnectionContact;
+import org.zu.ardulink.Link;
+import org.zu.ardulink.connection.Connection;
+
+/**
+ * [ardulinktitle] [ardulinkversion]
+ * A connection to a board of a proxy server through a
+ * {@link NetworkProxyMultiplexer}, see
+ * {@link NetworkProxyMultiplexer#newConnection()}. Connecting attaches the
+ * stream to the board, the board's frames are passed to the contact
+ * directly from the multiplexer's buffer.
+ *
+ * @author project Ardulink http://www.ardulink.org/
+ *
+ * [adsense]
+ *
+ */
+public class NetworkProxyStream implements Connection {
+
+	/**
+	 * How long connecting waits for the server to open the board by default.
+	 */
+	public static final long DEFAULT_OPEN_TIMEOUT_MILLIS = 10000;
+
+	private final NetworkProxyMultiplexer multiplexer;
+	private final int stream;
+	private final String id;
+	private final BlockingQueue<Boolean> replies = new ArrayBlockingQueue<Boolean>(1);
+	// replies to open requests given up, they are dropped, guarded by replies
+	private int abandonedReplies;
+
+	private PinSubscription subscription;
+	private volatile long openTimeoutMillis = DEFAULT_OPEN_TIMEOUT_MILLIS;
+	private ConnectionContact contact;
+	private volatile boolean connected;
+
+	NetworkProxyStream(NetworkProxyMultiplexer multiplexer, int stream, String id) {
+		this.multiplexer = multiplexer;
+		this.stream = stream;
+		this.id = id;
+	}
+
+	/**
+	 * The ports can't be listed through a multiplexer.
+	 * @return an empty list
+	 */
+	@Override
+	public List<String> getPortList() {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public boolean connect(Object... params) {
+		Integer baudRate = Link.DEFAULT_BAUDRATE;
+		checkState(checkNotNull(params, "Params must not be null").length >= 1,
+				"This connection accepts a String port name and a Integer baud rate. Only the port name is mandatory. Null or zero arguments passed.");
+		checkState(params[0] instanceof String,
+				"This connection accepts a String port name and a Integer baud rate. Only the port name is mandatory. First argument was not a String");
+		String portName = (String) params[0];
+		if (params.length > 1) {
+			checkState(
+					params[1] instanceof Integer,
+					"This connection accepts a String port name and a Integer baud rate. Only the port name is mandatory. Second argument was not an Integer");
+			baudRate = (Integer) params[1];
+		}
+		checkState(!connected, "Stream %s is connected already", id);
+
+		StringBuilder open = new StringBuilder().append(portName).append('\n').append(baudRate);
+		if (subscription != null) {
+			open.append('\n').append(subscription);
+		}
+		byte[] payload = open.toString().getBytes(LATIN_1);
+		replies.clear();
+		if (!multiplexer.send(PacketAssembler.OPEN, stream, payload, 0, payload.length)) {
+			return false;
+		}
+		Boolean opened = null;
+		try {
+			opened = replies.poll(openTimeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		connected = opened == null ? abandonOpen() : opened;
+		if (connected) {
+			contact.connected(id, portName);
+		}
+		return connected;
+	}
+
+	/**
+	 * Gives up waiting for the server to open the board. The server is told
+	 * to close the stream and its reply to the open request is dropped when
+	 * it arrives.
+	 * @return true if the board has been opened meanwhile
+	 */
+	private boolean abandonOpen() {
+		synchronized (replies) {
+			Boolean opened = replies.poll();
+			if (opened != null) {
+				return opened;
+			}
+			abandonedReplies++;
+		}
+		multiplexer.send(PacketAssembler.CLOSE, stream, new byte[0], 0, 0);
+		return false;
+	}
+
+	@Override
+	public boolean disconnect() {
+		if (connected) {
+			connected = false;
+			multiplexer.send(PacketAssembler.CLOSE, stream, new byte[0], 0, 0);
+			contact.disconnected(id);
+		}
+		return connected;
+	}
+
+	@Override
+	public boolean isConnected() {
+		return connected && !multiplexer.isClosed();
+	}
+
+	@Override
+	public boolean writeSerial(String message) {
+		byte[] bytes = message.getBytes(LATIN_1);
+		return writeSerial(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * The message is copied into a packet, so the caller can reuse the
+	 * buffer.
+	 */
+	@Override
+	public boolean writeSerial(byte[] message, int offset, int length) {
+		return connected && multiplexer.send(PacketAssembler.DATA, stream, message, offset, length);
+	}
+
+	/**
+	 * The numbers are sent as bytes like the other messages, the message has
+	 * to end with the divider of the board's protocol.
+	 */
+	@Override
+	public boolean writeSerial(int numBytes, int[] message) {
+		byte[] bytes = new byte[numBytes];
+		for (int i = 0; i < numBytes; i++) {
+			bytes[i] = (byte) message[i];
+		}
+		return writeSerial(bytes, 0, numBytes);
+	}
+
+	@Override
+	public void setConnectionContact(ConnectionContact contact) {
+		this.contact = contact;
+	}
+
+	/**
+	 * Lets the server forward only the frames of the subscription instead of every frame
+	 * of the board. Has to be set before connecting.
+	 * @param subscription the frames to receive, null for all
+	 */
+	public void setSubscription(PinSubscription subscription) {
+		checkState(!connected, "Subscription must be set before connecting");
+		this.subscription = subscription;
+	}
+
+	public PinSubscription getSubscription() {
+		return subscription;
+	}
+
+	/**
+	 * @param timeout how long connecting waits for the server to open the
+	 *            board, the stream is closed if the server doesn't reply in time
+	 * @param unit
+	 */
+	public void setOpenTimeout(long timeout, TimeUnit unit) {
+		checkArgument(timeout > 0, "timeout must be positive but was %s", timeout);
+		openTimeoutMillis = unit.toMillis(timeout);
+	}
+
+	public long getOpenTimeout(TimeUnit unit) {
+		return unit.convert(openTimeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return the number of the stream within the multiplexer's connection
+	 */
+	public int getStream() {
+		return stream;
+	}
+
+	void frameReceived(byte[] buffer, int offset, int length) {
+		if (connected) {
+			contact.parseInput(id, buffer, offset, length);
+		}
+	}
+
+	/**
+	 * The server replies to each open request exactly once.
+	 */
+	void replyReceived(boolean opened) {
+		synchronized (replies) {
+			if (abandonedReplies > 0) {
+				abandonedReplies--;
+			} else {
+				replies.offer(opened);
+			}
+		}
+	}
+
+	/**
+	 * The multiplexer's connection has been closed.
+	 */
+	void interrupted() {
+		replies.offer(false);
+		if (connected) {
+			connected = false;
+			contact.disconnected(id);
+			contact.writeLog(id, "connection has been interrupted");
+		}
+	}
+
+}
@@ -0,0 +1,191 @@
+/**
+Copyright 2013 project Ardulink http://www.ardulink.org/
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.zu.ardulink.connection.proxy;
+
+import static org.zu.ardulink.util.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * [ardulinktitle] [ardulinkversion]
+ * The packets of a multiplexed proxy connection (see
+ * {@link NetworkProxyMessages#MULTIPLEX_CMD}): several boards are attached
+ * through a single connection, each one by its own stream. Every packet
+ * starts with a header of {@value #HEADER_LENGTH} bytes: the type (one
+ * byte), the stream (two bytes) and the length of the payload (two bytes),
+ * both big endian.
+ * <br/>
+ * The assembler cuts the bytes received into packets, each complete packet
+ * is passed to the {@link PacketHandler} as a slice of the assembler's
+ * buffer. Instances are not thread safe, they are used by the connection's
+ * reader.
+ *
+ * @author project Ardulink http://www.ardulink.org/
+ *
+ * [adsense]
+ *
+ */
+public class PacketAssembler {
+
+	/**
+	 * Receives the packets of a {@link PacketAssembler}.
+	 */
+	public interface PacketHandler {
+
+		/**
+		 * A packet was received. The slice is only valid during this call.
+		 * @param type the packet's type
+		 * @param stream the stream the packet belongs to
+		 * @param buffer the assembler's buffer
+		 * @param offset index of the payload's first byte
+		 * @param length length of the payload
+		 * @throws IOException the connection should be closed
+		 */
+		void packetReceived(int type, int stream, byte[] buffer, int offset, int length) throws IOException;
+
+	}
+
+	public static final int HEADER_LENGTH = 5;
+
+	public static final int MAX_PAYLOAD_LENGTH = 0xFFFF;
+
+	public static final int MAX_STREAM = 0xFFFF;
+
+	/**
+	 * Client to server: attach the stream to a board, the payload are the
+	 * lines port name, baud rate and optionally a {@link PinSubscription}.
+	 */
+	public static final int OPEN = 1;
+
+	/**
+	 * Server to client: the stream has been attached, empty payload.
+	 */
+	public static final int OPENED = 2;
+
+	/**
+	 * Server to client: the board couldn't be connected, empty payload.
+	 */
+	public static final int REFUSED = 3;
+
+	/**
+	 * Both directions: messages for the board or a frame of the board.
+	 */
+	public static final int DATA = 4;
+
+	/**
+	 * Client to server: detach the stream from its board, empty payload.
+	 */
+	public static final int CLOSE = 5;
+
+	private final PacketHandler handler;
+
+	private byte[] buffer = new byte[2 * 1024];
+	// start of the incomplete packet
+	private int start;
+	// end of the data received
+	private int end;
+
+	public PacketAssembler(PacketHandler handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * Adds the bytes remaining in the buffer and passes all the packets
+	 * completed by them.
+	 * @param bytes
+	 * @throws IOException thrown by the handler
+	 */
+	public void append(ByteBuffer bytes) throws IOException {
+		while (bytes.hasRemaining()) {
+			int chunk = Math.min(bytes.remaining(), makeRoom());
+			bytes.get(buffer, end, chunk);
+			end += chunk;
+			assemble();
+		}
+	}
+
+	private int makeRoom() {
+		if (end == buffer.length) {
+			int incomplete = end - start;
+			if (start == 0) {
+				// a single packet fills the buffer
+				byte[] bigger = new byte[2 * buffer.length];
+				System.arraycopy(buffer, 0, bigger, 0, incomplete);
+				buffer = bigger;
+			} else {
+				System.arraycopy(buffer, start, buffer, 0, incomplete);
+			}
+			start = 0;
+			end = incomplete;
+		}
+		return buffer.length - end;
+	}
+
+	private void assemble() throws IOException {
+		while (end - start >= HEADER_LENGTH) {
+			int length = unsignedShort(start + 3);
+			if (end - start < HEADER_LENGTH + length) {
+				break;
+			}
+			int type = buffer[start] & 0xFF;
+			int stream = unsignedShort(start + 1);
+			int offset = start + HEADER_LENGTH;
+			start = offset + length;
+			handler.packetReceived(type, stream, buffer, offset, length);
+		}
+		if (start == end) {
+			start = end = 0;
+		}
+	}
+
+	private int unsignedShort(int index) {
+		return (buffer[index] & 0xFF) << 8 | buffer[index + 1] & 0xFF;
+	}
+
+	/**
+	 * @param type
+	 * @param stream
+	 * @param length the length of the payload following the header
+	 * @return the header, ready to be written
+	 */
+	public static ByteBuffer header(int type, int stream, int length) {
+		checkArgument(stream >= 0 && stream <= MAX_STREAM, "stream must be between 0 and %s but was %s",
+				MAX_STREAM, stream);
+		checkArgument(length >= 0 && length <= MAX_PAYLOAD_LENGTH,
+				"length must be between 0 and %s but was %s", MAX_PAYLOAD_LENGTH, length);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.put((byte) type).putShort((short) stream).putShort((short) length).flip();
+		return header;
+	}
+
+	/**
+	 * @param type
+	 * @param stream
+	 * @param payload
+	 * @param offset
+	 * @param length
+	 * @return the packet (header and a copy of the payload), ready to be written
+	 */
+	public static ByteBuffer packet(int type, int stream, byte[] payload, int offset, int length) {
+		ByteBuffer header = header(type, stream, length);
+		ByteBuffer packet = ByteBuffer.allocate(HEADER_LENGTH + length);
+		packet.put(header).put(payload, offset, length).flip();
+		return packet;
+	}
+
+}
@@ -0,0 +1,175 @@
+/**
+Copyright 2013 project Ardulink http://www.ardulink.org/
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.zu.ardulink.connection.proxy;
+
+import static org.zu.ardulink.util.Preconditions.checkArgument;
+import static org.zu.ardulink.util.Preconditions.checkNotNull;
+
+import java.util.BitSet;
+
+import org.zu.ardulink.ParsedFrameListener.FrameType;
+
+/**
+ * [ardulinktitle] [ardulinkversion]
+ * The frames a proxy client wants the server to forward, declared by the
+ * pins and the types of the frames. The server parses each frame of the
+ * board once and forwards it only to the clients whose subscription matches.
+ * <br/>
+ * The subscription is sent as a line of comma separated tokens:
+ * <code>analog/&lt;pin&gt;</code>, <code>analog/*</code>,
+ * <code>digital/&lt;pin&gt;</code>, <code>digital/*</code> and
+ * <code>other</code> (any other frame, e.g. replies and custom messages).
+ * An empty subscription matches nothing.
+ *
+ * @author project Ardulink http://www.ardulink.org/
+ * @see NetworkProxyMessages#SUBSCRIBE_CMD
+ *
+ * [adsense]
+ *
+ */
+public class PinSubscription {
+
+	private static final String ANALOG = "analog/";
+	private static final String DIGITAL = "digital/";
+	private static final String ALL = "*";
+	private static final String OTHER = "other";
+
+	private final BitSet analogPins = new BitSet();
+	private final BitSet digitalPins = new BitSet();
+	private boolean allAnalogPins;
+	private boolean allDigitalPins;
+	private boolean others;
+
+	/**
+	 * @param spec
+	 *            the subscription as returned by {@link #toString()}
+	 * @return the subscription
+	 * @throws IllegalArgumentException
+	 *             if the spec contains an unknown token
+	 */
+	public static PinSubscription parse(String spec) {
+		PinSubscription subscription = new PinSubscription();
+		for (String token : checkNotNull(spec, "spec must not be null").split(",")) {
+			token = token.trim();
+			if (token.isEmpty()) {
+				continue;
+			} else if (token.equals(OTHER)) {
+				subscription.others();
+			} else if (token.equals(ANALOG + ALL)) {
+				subscription.allAnalogPins();
+			} else if (token.equals(DIGITAL + ALL)) {
+				subscription.allDigitalPins();
+			} else if (token.startsWith(ANALOG)) {
+				subscription.analogPin(pin(token, ANALOG));
+			} else if (token.startsWith(DIGITAL)) {
+				subscription.digitalPin(pin(token, DIGITAL));
+			} else {
+				throw new IllegalArgumentException("Unknown token " + token + " in " + spec);
+			}
+		}
+		return subscription;
+	}
+
+	private static int pin(String token, String prefix) {
+		try {
+			return Integer.parseInt(token.substring(prefix.length()));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Illegal pin in " + token);
+		}
+	}
+
+	public PinSubscription analogPin(int pin) {
+		analogPins.set(checkPin(pin));
+		return this;
+	}
+
+	public PinSubscription allAnalogPins() {
+		allAnalogPins = true;
+		return this;
+	}
+
+	public PinSubscription digitalPin(int pin) {
+		digitalPins.set(checkPin(pin));
+		return this;
+	}
+
+	public PinSubscription allDigitalPins() {
+		allDigitalPins = true;
+		return this;
+	}
+
+	/**
+	 * Subscribes to the frames neither being an analog nor a digital read.
+	 * @return this
+	 */
+	public PinSubscription others() {
+		others = true;
+		return this;
+	}
+
+	private static int checkPin(int pin) {
+		checkArgument(pin >= 0, "pin must not be negative but was %s", pin);
+		return pin;
+	}
+
+	/**
+	 * @param type
+	 *            what the frame was
+	 * @param pin
+	 *            the pin of a read
+	 * @return true if the frame is to be forwarded
+	 */
+	public boolean matches(FrameType type, int pin) {
+		switch (type) {
+		case ANALOG_READ:
+			return allAnalogPins || analogPins.get(pin);
+		case DIGITAL_READ:
+			return allDigitalPins || digitalPins.get(pin);
+		default:
+			return others;
+		}
+	}
+
+	/**
+	 * @return the subscription in the form {@link #parse(String)} reads
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		append(sb, ANALOG, allAnalogPins, analogPins);
+		append(sb, DIGITAL, allDigitalPins, digitalPins);
+		if (others) {
+			separate(sb).append(OTHER);
+		}
+		return sb.toString();
+	}
+
+	private static void append(StringBuilder sb, String prefix, boolean all, BitSet pins) {
+		if (all) {
+			separate(sb).append(prefix).append(ALL);
+			return;
+		}
+		for (int pin = pins.nextSetBit(0); pin >= 0; pin = pins.nextSetBit(pin + 1)) {
+			separate(sb).append(prefix).append(pin);
+		}
+	}
+
+	private static StringBuilder separate(StringBuilder sb) {
+		return sb.length() == 0 ? sb : sb.append(',');
+	}
+
+}
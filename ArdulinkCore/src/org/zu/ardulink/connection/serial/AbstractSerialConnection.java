@@ -25,10 +25,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.zu.ardulink.ConnectionContact;
 import org.zu.ardulink.Link;
 import org.zu.ardulink.connection.Connection;
+import org.zu.ardulink.connection.FrameAssembler;
+import org.zu.ardulink.connection.FrameAssembler.FrameHandler;
+import org.zu.ardulink.connection.FrameDispatcher;
+import org.zu.ardulink.connection.FrameDispatcher.OverflowPolicy;
+import org.zu.ardulink.util.Cobs;
 
 /**
  * [ardulinktitle] [ardulinkversion]
@@ -38,15 +44,31 @@ import org.zu.ardulink.connection.Connection;
  * received over the Serial interface.
  * 
  * This class also makes packages out of a stream of bytes received, using a
- * {@link #divider}, and sending these packages as an array of <b>int</b>s (each
- * between 0 and 255) to a function implemented by a class implementing the
- * {@link org.zu.ardulink.connection.ConnectionContact}-interface.
+ * {@link #divider} and a {@link FrameAssembler}, and passes these packages as
+ * slices of the receive buffer to
+ * {@link org.zu.ardulink.ConnectionContact#parseInput(String, byte[], int, int)}.
+ * If {@link #setCobsFraming(boolean) COBS framing} is enabled packages can
+ * contain any byte, even the {@link #divider}.
+ * If {@link #enableDispatcher(int, OverflowPolicy) enabled} the packages are
+ * passed on by a separate thread, so the reader only reads.
  * 
  * [adsense]
  */
 public abstract class AbstractSerialConnection implements Connection {
 	
 	public static final String DEFAULT_CONNECTION_NAME = Link.DEFAULT_LINK_NAME;
+
+	/**
+	 * How long the {@link #reader} waits before reading again if a read
+	 * returned no data and the port doesn't notify about available data.
+	 */
+	private static final long POLL_INTERVAL_MILLIS = 5;
+
+	/**
+	 * How long the {@link #reader} waits for a notification about available
+	 * data before reading again anyway.
+	 */
+	private static final long NOTIFICATION_TIMEOUT_MILLIS = 100;
 	
 	private InputStream inputStream;
 	private OutputStream outputStream;
@@ -65,7 +87,15 @@ public abstract class AbstractSerialConnection implements Connection {
 	 * Communicating between threads, showing the {@link #reader} when the
 	 * connection has been closed, so it can {@link Thread#join()}.
 	 */
-	private boolean end = true;
+	private volatile boolean end = true;
+
+	/**
+	 * Set if the port calls {@link #dataAvailable()}, so the {@link #reader}
+	 * can wait for it instead of polling.
+	 */
+	private volatile boolean dataAvailableNotifications;
+	private final Object dataLock = new Object();
+	private boolean dataPending;
 
 	/**
 	 * Link to the instance of the class implementing {@link org.zu.ardulink.connection.ConnectionContact}.
@@ -95,8 +125,38 @@ public abstract class AbstractSerialConnection implements Connection {
 	 */
 	private String id;
 
-	private final int[] tempBytes = new int[1024];
-	private int numTempBytes;
+	/**
+	 * Cuts the received bytes into packages, only used by the {@link #reader}.
+	 */
+	private final FrameAssembler frameAssembler;
+
+	/**
+	 * Passes the packages to the {@link #contact} if enabled, null otherwise.
+	 * @see #enableDispatcher(int, OverflowPolicy)
+	 */
+	private volatile FrameDispatcher dispatcher;
+
+	/**
+	 * Whether packages are COBS encoded.
+	 * @see #setCobsFraming(boolean)
+	 */
+	private volatile boolean cobsFraming;
+	private final Object frameLock = new Object();
+	private byte[] frameBuffer = new byte[0];
+
+	/**
+	 * Configuration of the write behind mode, a negative delay if disabled.
+	 * @see #enableWriteBehind(long, TimeUnit, int)
+	 */
+	private long writeBehindDelayNanos = -1;
+	private int writeBehindBatchBytes;
+	private volatile WriteBehindOutputStream writeBehind;
+	/**
+	 * Held while writing and while {@link #writeBehind} is replaced, so no
+	 * message is written to a write behind stream shut down or overtakes the
+	 * messages it flushes when shut down.
+	 */
+	private final Object writeLock = new Object();
 
 	/**
 	 * @param id
@@ -121,6 +181,12 @@ public abstract class AbstractSerialConnection implements Connection {
 	public AbstractSerialConnection(String id, ConnectionContact contact, int divider) {
 		this.contact = contact;
 		this.divider = max(0, min(divider, 255));
+		this.frameAssembler = new FrameAssembler(this.divider, new FrameHandler() {
+			@Override
+			public void frameReceived(byte[] buffer, int offset, int length) {
+				packageReceived(buffer, offset, length);
+			}
+		});
 		this.id = id;
 	}
 
@@ -185,9 +251,11 @@ public abstract class AbstractSerialConnection implements Connection {
 	/**
 	 * A separate class to use as the {@link org.zu.ardulink.connection.serial.AbstractSerialConnection#reader}. It is run as a
 	 * separate {@link Thread} and manages the incoming data, packaging them
-	 * using {@link org.zu.ardulink.connection.serial.AbstractSerialConnection#divider} into arrays of <b>int</b>s and
+	 * using {@link org.zu.ardulink.connection.serial.AbstractSerialConnection#divider} and
 	 * forwarding them using
-	 * {@link org.zu.ardulink.connection.ConnectionContact#parseInput(int, int, int[])}.
+	 * {@link org.zu.ardulink.ConnectionContact#parseInput(String, byte[], int, int)}.
+	 * If a read returns no data (ports may not block) the reader waits for
+	 * {@link AbstractSerialConnection#dataAvailable()} instead of spinning.
 	 * 
 	 */
 	private class SerialReader implements Runnable {
@@ -198,30 +266,12 @@ public abstract class AbstractSerialConnection implements Connection {
 		}
 
 		public void run() {
-			byte[] buffer = new byte[1024];
-			int len = -1, i, temp;
+			frameAssembler.reset();
 			try {
 				while (!end) {
-					// if ((in.available()) > 0) {
-						if ((len = this.in.read(buffer)) > -1) {
-							for (i = 0; i < len; i++) {
-								temp = buffer[i];
-								 // adjust from C-Byte to Java-Byte
-								if (temp < 0)
-									temp += 256;
-								if (temp == divider) {
-									if  (numTempBytes > 0) {
-										contact.parseInput(id, numTempBytes,
-												tempBytes);
-									}
-									numTempBytes = 0;
-								} else {
-									tempBytes[numTempBytes] = temp;
-									++numTempBytes;
-								}
-							}
-						}
-					// }
+					if (frameAssembler.readFrom(this.in) <= 0) {
+						waitForData();
+					}
 				}
 			} catch (IOException e) {
 				end = true;
@@ -238,9 +288,65 @@ public abstract class AbstractSerialConnection implements Connection {
 		}
 	}
 	
+	private void packageReceived(byte[] buffer, int offset, int numBytes) {
+		// the frame is decoded in place, the assembler doesn't need it any more
+		int length = cobsFraming ? Cobs.decode(buffer, offset, numBytes,
+				divider) : numBytes;
+		if (length < 0) {
+			contact.writeLog(id, "Dropped a malformed COBS frame.");
+		} else if (length > 0) {
+			FrameDispatcher frameDispatcher = dispatcher;
+			if (frameDispatcher == null) {
+				contact.parseInput(id, buffer, offset, length);
+			} else {
+				frameDispatcher.frameReceived(buffer, offset, length);
+			}
+		}
+	}
+
+	/**
+	 * Waits until {@link #dataAvailable()} is called or, if the port doesn't
+	 * notify about available data, until the poll interval passed.
+	 */
+	private void waitForData() {
+		synchronized (dataLock) {
+			if (!dataPending && !end) {
+				try {
+					dataLock.wait(dataAvailableNotifications ? NOTIFICATION_TIMEOUT_MILLIS
+							: POLL_INTERVAL_MILLIS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					end = true;
+				}
+			}
+			dataPending = false;
+		}
+	}
+
+	/**
+	 * Called by ports that notify about received data (e.g. RXTX's
+	 * DATA_AVAILABLE event) to wake up the {@link #reader}.
+	 */
+	protected void dataAvailable() {
+		synchronized (dataLock) {
+			dataPending = true;
+			dataLock.notifyAll();
+		}
+	}
+
+	/**
+	 * @param dataAvailableNotifications
+	 *            true if the port calls {@link #dataAvailable()} whenever
+	 *            data is received, so the {@link #reader} doesn't have to poll
+	 *            if a read returned no data.
+	 */
+	protected void setDataAvailableNotifications(boolean dataAvailableNotifications) {
+		this.dataAvailableNotifications = dataAvailableNotifications;
+	}
+
 	public void startReader() {
 		if(end) {
-			reader = (new Thread(new SerialReader(inputStream)));
+			reader = new Thread(new SerialReader(inputStream), "ardulink-serial-reader-" + id);
 			end = false;
 			reader.start();
 		}
@@ -248,6 +354,7 @@ public abstract class AbstractSerialConnection implements Connection {
 
 	public void stopReader() {
 		end = true;
+		dataAvailable();
 //		try {
 //			outputStream.close();
 //			inputStream.close();
@@ -274,13 +381,48 @@ public abstract class AbstractSerialConnection implements Connection {
 	 * @return <b>true</b> if the message could be sent, <b>false</b> otherwise.
 	 */
 	public boolean writeSerial(String message) {
+		byte[] bytes = message.getBytes();
+		return writeSerial(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Byte oriented variant of {@link #writeSerial(String)}: the bytes are
+	 * written as they are without adding the {@link #divider}. Callers can
+	 * pass a reused buffer so sending does not need to allocate. If
+	 * {@link #setCobsFraming(boolean) COBS framing} is enabled every frame
+	 * terminated by the {@link #divider} is encoded before it is written.
+	 * 
+	 * @param message
+	 *            the buffer holding the message
+	 * @param offset
+	 *            the start of the message in the buffer
+	 * @param length
+	 *            the number of bytes to send
+	 * @return <b>true</b> if the message could be sent, <b>false</b> otherwise.
+	 */
+	public boolean writeSerial(byte[] message, int offset, int length) {
+		if (cobsFraming) {
+			return writeCobsFrames(message, offset, length);
+		}
+		return write(message, offset, length);
+	}
+
+	private boolean write(byte[] message, int offset, int length) {
 		boolean success = false;
 		if (isConnected()) {
 			try {
-				outputStream.write(message.getBytes());
-				outputStream.flush();
+				synchronized (writeLock) {
+					WriteBehindOutputStream behind = writeBehind;
+					if (behind == null) {
+						outputStream.write(message, offset, length);
+						outputStream.flush();
+					} else {
+						behind.write(message, offset, length);
+					}
+				}
 				success = true;
 			} catch (IOException e) {
+				// not holding the lock, disconnect may stop the write behind
 				disconnect();
 			}
 		} else {
@@ -304,9 +446,12 @@ public abstract class AbstractSerialConnection implements Connection {
 	 *            connection (between 0 and 256).
 	 * @return <b>true</b> if the message could be sent, <b>false</b> otherwise
 	 *         or if one of the numbers is equal to the #{@link AbstractSerialConnection#divider}
-	 *         .
+	 *         (unless {@link #setCobsFraming(boolean) COBS framing} is enabled).
 	 */
 	public boolean writeSerial(int numBytes, int message[]) {
+		if (cobsFraming) {
+			return writeCobsFrame(numBytes, message);
+		}
 		boolean success = true;
 		int i;
 		for (i = 0; i < numBytes; ++i) {
@@ -317,11 +462,23 @@ public abstract class AbstractSerialConnection implements Connection {
 		}
 		if (success && isConnected()) {
 			try {
-				for (i = 0; i < numBytes; ++i) {
-						outputStream.write(changeToByte(message[i]));
+				synchronized (writeLock) {
+					WriteBehindOutputStream behind = writeBehind;
+					if (behind == null) {
+						for (i = 0; i < numBytes; ++i) {
+								outputStream.write(changeToByte(message[i]));
+						}
+						outputStream.write(changeToByte(divider));
+						outputStream.flush();
+					} else {
+						byte[] bytes = new byte[numBytes + 1];
+						for (i = 0; i < numBytes; ++i) {
+							bytes[i] = changeToByte(message[i]);
+						}
+						bytes[numBytes] = changeToByte(divider);
+						behind.write(bytes, 0, bytes.length);
+					}
 				}
-				outputStream.write(changeToByte(divider));
-				outputStream.flush();
 			} catch (IOException e) {
 				success = false;
 				disconnect();
@@ -335,6 +492,215 @@ public abstract class AbstractSerialConnection implements Connection {
 		return success;
 	}
 
+	private boolean writeCobsFrame(int numBytes, int[] message) {
+		synchronized (frameLock) {
+			int maxLength = Cobs.maxEncodedLength(numBytes) + 1;
+			if (frameBuffer.length < maxLength) {
+				frameBuffer = new byte[maxLength];
+			}
+			int length = Cobs.encode(message, 0, numBytes, frameBuffer, 0,
+					divider);
+			frameBuffer[length++] = changeToByte(divider);
+			return write(frameBuffer, 0, length);
+		}
+	}
+
+	private boolean writeCobsFrames(byte[] message, int offset, int length) {
+		synchronized (frameLock) {
+			int maxLength = Cobs.maxEncodedFramesLength(length);
+			if (frameBuffer.length < maxLength) {
+				frameBuffer = new byte[maxLength];
+			}
+			int encoded = Cobs.encodeFrames(message, offset, length,
+					frameBuffer, 0, divider);
+			return write(frameBuffer, 0, encoded);
+		}
+	}
+
+	/**
+	 * Enables the write behind mode: messages are not written and flushed one
+	 * by one but queued and written by a separate thread. All the messages
+	 * queued within maxDelay or until maxBatchBytes are reached are passed to
+	 * the port in a single write followed by a single flush. Callers that
+	 * can't wait for maxDelay use {@link #flush()}.
+	 * 
+	 * @param maxDelay
+	 *            the maximum time a message is held back
+	 * @param unit
+	 *            unit of maxDelay
+	 * @param maxBatchBytes
+	 *            the number of bytes written without waiting for maxDelay
+	 * @see WriteBehindOutputStream
+	 */
+	public synchronized void enableWriteBehind(long maxDelay, TimeUnit unit, int maxBatchBytes) {
+		if (maxDelay < 0 || maxBatchBytes <= 0) {
+			throw new IllegalArgumentException("maxDelay must not be negative and maxBatchBytes must be positive");
+		}
+		this.writeBehindDelayNanos = unit.toNanos(maxDelay);
+		this.writeBehindBatchBytes = maxBatchBytes;
+		startWriteBehind();
+	}
+
+	/**
+	 * Writes the queued messages and returns to writing each message
+	 * immediately.
+	 */
+	public synchronized void disableWriteBehind() {
+		this.writeBehindDelayNanos = -1;
+		stopWriteBehind();
+	}
+
+	/**
+	 * @return the write behind stream holding the statistics about the
+	 *         batches written or null if write behind is disabled
+	 */
+	public WriteBehindOutputStream getWriteBehind() {
+		return writeBehind;
+	}
+
+	/**
+	 * Writes the messages queued in write behind mode immediately and waits
+	 * until they are written. Does nothing if write behind is disabled.
+	 * 
+	 * @return <b>true</b> if the messages could be written, <b>false</b>
+	 *         otherwise.
+	 */
+	public boolean flush() {
+		try {
+			synchronized (writeLock) {
+				WriteBehindOutputStream behind = writeBehind;
+				if (behind != null) {
+					behind.flush();
+				}
+			}
+		} catch (IOException e) {
+			disconnect();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Enables or disables the COBS (Consistent Overhead Byte Stuffing)
+	 * framing of packages. If enabled
+	 * {@link #writeSerial(int, int[])} encodes the package so it doesn't
+	 * contain the {@link #divider} any more (instead of refusing it),
+	 * {@link #writeSerial(byte[], int, int)} encodes each of the frames
+	 * terminated by the {@link #divider} the protocols write and every
+	 * package received is decoded before it is passed to the
+	 * {@link ConnectionContact}. So packages can contain any byte value at
+	 * the cost of one byte per 254 bytes. Both sides of the connection have to
+	 * agree on the framing.
+	 * 
+	 * @param cobsFraming
+	 * @see Cobs
+	 */
+	public void setCobsFraming(boolean cobsFraming) {
+		this.cobsFraming = cobsFraming;
+	}
+
+	public boolean isCobsFraming() {
+		return cobsFraming;
+	}
+
+	/**
+	 * Sets the maximum length of a package received. Longer packages are
+	 * dropped, reading continues with the package following the next
+	 * {@link #divider}.
+	 * 
+	 * @param maxFrameLength
+	 *            the maximum length in bytes (default
+	 *            {@value FrameAssembler#DEFAULT_MAX_FRAME_LENGTH})
+	 */
+	public void setMaxFrameLength(int maxFrameLength) {
+		frameAssembler.setMaxFrameLength(maxFrameLength);
+	}
+
+	public int getMaxFrameLength() {
+		return frameAssembler.getMaxFrameLength();
+	}
+
+	/**
+	 * @return the number of packages dropped since they were longer than
+	 *         {@link #getMaxFrameLength()}
+	 */
+	public long getDroppedFrames() {
+		return frameAssembler.getDroppedFrames();
+	}
+
+	/**
+	 * Decouples reading from the processing of the packages received (parsing
+	 * and calling the listeners): the reader copies every package into a ring
+	 * buffer and a separate thread passes them to the
+	 * {@link ConnectionContact}. So slow listeners don't keep the reader from
+	 * draining the port.
+	 * 
+	 * @param capacity
+	 *            the number of packages the ring buffer holds
+	 * @param policy
+	 *            what happens to packages received while the ring buffer is
+	 *            full
+	 * @see FrameDispatcher
+	 */
+	public synchronized void enableDispatcher(int capacity, OverflowPolicy policy) {
+		disableDispatcher();
+		dispatcher = new FrameDispatcher(capacity, policy, new FrameHandler() {
+			@Override
+			public void frameReceived(byte[] buffer, int offset, int length) {
+				contact.parseInput(id, buffer, offset, length);
+			}
+		}, "ardulink-dispatcher-" + id);
+	}
+
+	/**
+	 * Passes the packages still queued and returns to passing each package
+	 * on the reader's thread.
+	 */
+	public synchronized void disableDispatcher() {
+		FrameDispatcher frameDispatcher = dispatcher;
+		dispatcher = null;
+		if (frameDispatcher != null) {
+			frameDispatcher.shutdown();
+		}
+	}
+
+	/**
+	 * @return the dispatcher holding the counters of dispatched and dropped
+	 *         packages or null if the dispatcher is disabled
+	 */
+	public FrameDispatcher getDispatcher() {
+		return dispatcher;
+	}
+
+	private void startWriteBehind() {
+		synchronized (writeLock) {
+			stopWriteBehind();
+			if (writeBehindDelayNanos >= 0 && outputStream != null) {
+				writeBehind = new WriteBehindOutputStream(outputStream,
+						writeBehindDelayNanos, TimeUnit.NANOSECONDS,
+						writeBehindBatchBytes);
+			}
+		}
+	}
+
+	/**
+	 * The writers wait until the messages queued are written, so the
+	 * messages following them are written directly in order.
+	 */
+	private void stopWriteBehind() {
+		synchronized (writeLock) {
+			WriteBehindOutputStream behind = writeBehind;
+			writeBehind = null;
+			if (behind != null) {
+				try {
+					behind.shutdown();
+				} catch (IOException e) {
+					// the port is gone, so are the pending messages
+				}
+			}
+		}
+	}
+
 	private byte changeToByte(int num) {
 		return (byte) max(0, min(num, 255));
 	}
@@ -378,7 +744,8 @@ public abstract class AbstractSerialConnection implements Connection {
 		this.inputStream = inputStream;
 	}
 
-	protected void setOutputStream(OutputStream outputStream) {
+	protected synchronized void setOutputStream(OutputStream outputStream) {
 		this.outputStream = outputStream;
+		startWriteBehind();
 	}
 }
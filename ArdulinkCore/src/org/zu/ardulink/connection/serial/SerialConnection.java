@@ -22,10 +22,13 @@ import static org.zu.ardulink.util.Preconditions.checkNotNull;
 import static org.zu.ardulink.util.Preconditions.checkState;
 import gnu.io.CommPortIdentifier;
 import gnu.io.SerialPort;
+import gnu.io.SerialPortEvent;
+import gnu.io.SerialPortEventListener;
 
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.TooManyListenersException;
 
 import org.zu.ardulink.ConnectionContact;
 import org.zu.ardulink.connection.Connection;
@@ -38,7 +41,8 @@ import org.zu.ardulink.connection.Connection;
  * ports can be received using this class.
  * 
  * A separate {@link Thread} is started to handle messages that are being
- * received over the Serial interface.
+ * received over the Serial interface. It is woken up by RXTX's DATA_AVAILABLE
+ * events so an idle port doesn't cost CPU.
  * 
  * This class also makes packages out of a stream of bytes received, using a
  * {@link #divider}, and sending these packages as an array of <b>int</b>s (each
@@ -199,6 +203,7 @@ public class SerialConnection extends AbstractSerialConnection implements Connec
 
 				setInputStream(serialPort.getInputStream());
 				setOutputStream(serialPort.getOutputStream());
+				enableDataAvailableNotifications();
 
 				startReader();
 				writeLog("connection on " + portName + " established");
@@ -213,6 +218,24 @@ public class SerialConnection extends AbstractSerialConnection implements Connec
 		return retvalue;
 	}
 
+	private void enableDataAvailableNotifications() {
+		try {
+			serialPort.addEventListener(new SerialPortEventListener() {
+				@Override
+				public void serialEvent(SerialPortEvent event) {
+					if (event.getEventType() == SerialPortEvent.DATA_AVAILABLE) {
+						dataAvailable();
+					}
+				}
+			});
+			serialPort.notifyOnDataAvailable(true);
+			setDataAvailableNotifications(true);
+		} catch (TooManyListenersException e) {
+			writeLog("no data available notifications, polling the port");
+			setDataAvailableNotifications(false);
+		}
+	}
+
 	/**
 	 * Simple function closing the connection held by this instance of
 	 * {@link org.zu.ardulink.connection.serial.SerialConnection}. It also ends the Thread {@link org.zu.ardulink.connection.serial.SerialConnection#reader}.
@@ -223,6 +246,8 @@ public class SerialConnection extends AbstractSerialConnection implements Connec
 	public boolean disconnect() {
 		if(isConnected()) {
 			stopReader();
+			serialPort.removeEventListener();
+			setDataAvailableNotifications(false);
 			serialPort.close();
 			setConnected(false);
 		}
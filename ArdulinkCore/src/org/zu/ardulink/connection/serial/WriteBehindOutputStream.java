@@ -0,0 +1,294 @@
+/**
+Copyright 2013 project Ardulink http://www.ardulink.org/
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.zu.ardulink.connection.serial;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * [ardulinktitle] [ardulinkversion]
+ * An OutputStream that gathers the bytes written and writes them to the
+ * underlying stream using a dedicated thread. All the bytes written within
+ * maxDelay (counted from the first byte of a batch) or until maxBatchBytes are
+ * reached are passed to the underlying stream in a single write followed by a
+ * single flush, so many small messages become one OS write and one USB
+ * transfer.
+ * <br/>
+ * {@link #write(byte[], int, int)} returns as soon as the bytes are queued, it
+ * only blocks while the batch is full. {@link #flush()} writes the pending
+ * bytes immediately and waits until they are written. A failure of the
+ * underlying stream is thrown by the next write or flush.
+ *
+ * @author project Ardulink http://www.ardulink.org/
+ * @see AbstractSerialConnection#enableWriteBehind(long, TimeUnit, int)
+ *
+ * [adsense]
+ *
+ */
+public class WriteBehindOutputStream extends OutputStream {
+
+	private final OutputStream out;
+	private final long maxDelayNanos;
+	private final int maxBatchBytes;
+	private final Thread writer;
+
+	private byte[] pending;
+	private byte[] writing;
+	private int pendingLength;
+	private int pendingMessages;
+	private long firstPendingNanos;
+	private boolean flushRequested;
+	private boolean closed;
+	private IOException failure;
+
+	// total number of bytes queued/written, used to wait for flushes
+	private long queued;
+	private long written;
+
+	private long batches;
+	private long messages;
+	private int largestBatch;
+
+	/**
+	 * @param out
+	 *            the stream to write to
+	 * @param maxDelay
+	 *            the maximum time bytes are held back
+	 * @param unit
+	 *            unit of maxDelay
+	 * @param maxBatchBytes
+	 *            the number of bytes that are written without waiting for
+	 *            maxDelay
+	 */
+	public WriteBehindOutputStream(OutputStream out, long maxDelay, TimeUnit unit, int maxBatchBytes) {
+		if(maxBatchBytes <= 0) {
+			throw new IllegalArgumentException("maxBatchBytes must be positive but was " + maxBatchBytes);
+		}
+		this.out = out;
+		this.maxDelayNanos = unit.toNanos(maxDelay);
+		this.maxBatchBytes = maxBatchBytes;
+		this.pending = new byte[maxBatchBytes];
+		this.writing = new byte[maxBatchBytes];
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeBatches();
+			}
+		}, "ardulink-write-behind");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	/**
+	 * Queues a message. The bytes of a single call are always written
+	 * together.
+	 */
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		checkUsable();
+		try {
+			// wait for the writer if the message does not fit into the batch
+			while(pendingLength > 0 && pendingLength + len > maxBatchBytes) {
+				flushRequested = true;
+				notifyAll();
+				wait();
+				checkUsable();
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the writer");
+		}
+		if(len > pending.length) {
+			// a single message bigger than a batch
+			pending = Arrays.copyOf(pending, len);
+		}
+		if(pendingLength == 0) {
+			firstPendingNanos = System.nanoTime();
+		}
+		System.arraycopy(b, off, pending, pendingLength, len);
+		pendingLength += len;
+		pendingMessages++;
+		queued += len;
+		if(pendingLength == len || pendingLength >= maxBatchBytes) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Writes the pending bytes immediately and waits until they are written.
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+		checkUsable();
+		long target = queued;
+		try {
+			while(written < target) {
+				flushRequested = true;
+				notifyAll();
+				wait();
+				checkFailure();
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the writer");
+		}
+	}
+
+	/**
+	 * Writes the pending bytes and stops the writer thread. The underlying
+	 * stream is not closed.
+	 */
+	public void shutdown() throws IOException {
+		synchronized(this) {
+			if(closed) {
+				return;
+			}
+			try {
+				flush();
+			} finally {
+				closed = true;
+				notifyAll();
+			}
+		}
+		try {
+			writer.join();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			shutdown();
+		} finally {
+			out.close();
+		}
+	}
+
+	private void checkUsable() throws IOException {
+		checkFailure();
+		if(closed) {
+			throw new IOException("Stream closed");
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		if(failure != null) {
+			throw failure;
+		}
+	}
+
+	private void writeBatches() {
+		while(true) {
+			int length;
+			int count;
+			synchronized(this) {
+				try {
+					while(pendingLength == 0) {
+						if(closed) {
+							return;
+						}
+						wait();
+					}
+					long deadline = firstPendingNanos + maxDelayNanos;
+					long remaining;
+					while(!flushRequested && !closed && pendingLength < maxBatchBytes
+							&& (remaining = deadline - System.nanoTime()) > 0) {
+						NANOSECONDS.timedWait(this, remaining);
+					}
+				} catch(InterruptedException e) {
+					failure = new IOException("Writer interrupted");
+					notifyAll();
+					return;
+				}
+				byte[] batch = pending;
+				pending = writing;
+				writing = batch;
+				length = pendingLength;
+				count = pendingMessages;
+				pendingLength = 0;
+				pendingMessages = 0;
+				flushRequested = false;
+				// there is room for new messages again
+				notifyAll();
+			}
+			try {
+				out.write(writing, 0, length);
+				out.flush();
+			} catch(IOException e) {
+				synchronized(this) {
+					failure = e;
+					notifyAll();
+				}
+				return;
+			}
+			synchronized(this) {
+				written += length;
+				batches++;
+				messages += count;
+				largestBatch = Math.max(largestBatch, length);
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of writes to the underlying stream
+	 */
+	public synchronized long getBatches() {
+		return batches;
+	}
+
+	/**
+	 * @return the number of messages (calls of write) written to the underlying stream
+	 */
+	public synchronized long getMessages() {
+		return messages;
+	}
+
+	/**
+	 * @return the number of bytes written to the underlying stream
+	 */
+	public synchronized long getBytes() {
+		return written;
+	}
+
+	/**
+	 * @return the number of bytes of the biggest batch
+	 */
+	public synchronized int getLargestBatch() {
+		return largestBatch;
+	}
+
+	/**
+	 * @return the average number of messages per write to the underlying stream
+	 */
+	public synchronized double getAverageMessagesPerBatch() {
+		return batches == 0 ? 0 : (double) messages / batches;
+	}
+
+}
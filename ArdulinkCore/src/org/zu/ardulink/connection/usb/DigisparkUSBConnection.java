@@ -29,6 +29,9 @@ import java.util.concurrent.TimeUnit;
 
 import org.zu.ardulink.ConnectionContact;
 import org.zu.ardulink.connection.Connection;
+import org.zu.ardulink.connection.FrameAssembler;
+import org.zu.ardulink.protocol.SimpleBinaryProtocol;
+import org.zu.ardulink.util.Cobs;
 
 import ch.ntb.usb.LibusbJava;
 import ch.ntb.usb.USB;
@@ -89,7 +92,15 @@ public class DigisparkUSBConnection implements Connection {
 	 * @see org.zu.ardulink.connection.serial.SerialConnection#SerialConnection(int, ConnectionContact, int)
 	 */
 	private int divider;
-	public static final int DEFAULT_DIVIDER = 255;
+	public static final int DEFAULT_DIVIDER = SimpleBinaryProtocol.DIVIDER;
+
+	/**
+	 * Whether packages are COBS encoded.
+	 * @see #setCobsFraming(boolean)
+	 */
+	private volatile boolean cobsFraming;
+	private final Object frameLock = new Object();
+	private byte[] frameBuffer = new byte[0];
 	
 	public DigisparkUSBConnection() {
 		this.id = DEFAULT_ID;
@@ -270,16 +281,35 @@ public class DigisparkUSBConnection implements Connection {
 	}
 
 	public boolean writeSerial(String message) {
+		byte[] out = message.getBytes();
+		return writeSerial(out, 0, out.length);
+	}
+
+	@Override
+	public boolean writeSerial(byte[] message, int offset, int length) {
+		if (cobsFraming) {
+			synchronized (frameLock) {
+				int maxLength = Cobs.maxEncodedFramesLength(length);
+				if (frameBuffer.length < maxLength) {
+					frameBuffer = new byte[maxLength];
+				}
+				int encoded = Cobs.encodeFrames(message, offset, length, frameBuffer, 0, divider);
+				return write(frameBuffer, 0, encoded);
+			}
+		}
+		return write(message, offset, length);
+	}
+
+	private boolean write(byte[] message, int offset, int length) {
 		
 		boolean success = true;
 		
-		byte[] out = message.getBytes();
-		for (int i = 0; i < out.length; i++) {
+		for (int i = offset; i < offset + length; i++) {
 			
-			int len = LibusbJava.usb_control_msg(usbDevHandle, (0x01 << 5), 0x09, 0, (int) out[i], new byte[0], 0, 0);
+			int len = LibusbJava.usb_control_msg(usbDevHandle, (0x01 << 5), 0x09, 0, message[i] & 0xFF, new byte[0], 0, 0);
 			if (len < 0) {
 				tryARecover();
-				len = LibusbJava.usb_control_msg(usbDevHandle, (0x01 << 5), 0x09, 0, (int) out[i], new byte[0], 0, 0);
+				len = LibusbJava.usb_control_msg(usbDevHandle, (0x01 << 5), 0x09, 0, message[i] & 0xFF, new byte[0], 0, 0);
 				checkState(len >= 0, "LibusbJava.controlMsg: %s",
 						LibusbJava.usb_strerror());
 			}			
@@ -288,8 +318,34 @@ public class DigisparkUSBConnection implements Connection {
 		return success;
 	}
 
+	/**
+	 * Enables or disables the COBS (Consistent Overhead Byte Stuffing)
+	 * framing of packages, see
+	 * {@link org.zu.ardulink.connection.serial.AbstractSerialConnection#setCobsFraming(boolean)}.
+	 * 
+	 * @param cobsFraming
+	 */
+	public void setCobsFraming(boolean cobsFraming) {
+		this.cobsFraming = cobsFraming;
+	}
+
+	public boolean isCobsFraming() {
+		return cobsFraming;
+	}
+
 	@Override
 	public boolean writeSerial(int numBytes, int[] message) {
+		if (cobsFraming) {
+			synchronized (frameLock) {
+				int maxLength = Cobs.maxEncodedLength(numBytes) + 1;
+				if (frameBuffer.length < maxLength) {
+					frameBuffer = new byte[maxLength];
+				}
+				int length = Cobs.encode(message, 0, numBytes, frameBuffer, 0, divider);
+				frameBuffer[length++] = (byte) divider;
+				return write(frameBuffer, 0, length);
+			}
+		}
 		boolean success = true;
 		
 		for (int i = 0; i < numBytes; i++) {
@@ -334,15 +390,24 @@ public class DigisparkUSBConnection implements Connection {
 	/**
 	 * A separate class. It is run as a
 	 * separate {@link Thread} and manages the incoming data, packaging them
-	 * using {@link org.zu.ardulink.connection.serial.SerialConnection#divider} into arrays of <b>int</b>s and
+	 * using {@link #divider} and
 	 * forwarding them using
-	 * {@link org.zu.ardulink.connection.ConnectionContact#parseInput(int, int, int[])}.
+	 * {@link org.zu.ardulink.ConnectionContact#parseInput(String, byte[], int, int)}.
 	 * 
 	 */
-	private class DigisparkUSBReader implements Runnable {
+	private class DigisparkUSBReader implements Runnable, FrameAssembler.FrameHandler {
 
-		private int[] tempBytes = new int[1024];
-		private int numTempBytes;
+		private final FrameAssembler frameAssembler = new FrameAssembler(divider & 0xFF, this);
+
+		@Override
+		public void frameReceived(byte[] buffer, int offset, int numBytes) {
+			int length = cobsFraming ? Cobs.decode(buffer, offset, numBytes, divider) : numBytes;
+			if (length < 0) {
+				contact.writeLog(id, "Dropped a malformed COBS frame.");
+			} else if (length > 0) {
+				contact.parseInput(id, buffer, offset, length);
+			}
+		}
 
 		public void run() {
 			byte[] readbyte = new byte[1];
@@ -351,16 +416,7 @@ public class DigisparkUSBConnection implements Connection {
 				while(!end) {
 					int result = LibusbJava.usb_control_msg(usbDevHandle, (0x01 << 5) | 0x80, 0x01, 0, 0, readbyte, 1, 0);
 					if(result > 0) {
-						byte temp = readbyte[0];
-						if (temp == divider) {
-							if  (numTempBytes > 0) {
-								contact.parseInput(id, numTempBytes, tempBytes);
-							}
-							numTempBytes = 0;
-						} else {
-							tempBytes[numTempBytes] = temp;
-							++numTempBytes;
-						}
+						frameAssembler.append(readbyte[0]);
 					}
 				}
 			}
@@ -0,0 +1,47 @@
+/**
+Copyright 2013 project Ardulink http://www.ardulink.org/
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.zu.ardulink.event;
+
+/**
+ * [ardulinktitle] [ardulinkversion]
+ * Receives the values read from a pin as primitives. Unlike
+ * {@link AnalogReadChangeListener} and {@link DigitalReadChangeListener} no
+ * event object (and no String of the message received) is created per
+ * value, so listeners that only need pin and value don't produce garbage.
+ *
+ * @author project Ardulink http://www.ardulink.org/
+ * @see org.zu.ardulink.Link#addAnalogIntPinListener(IntPinListener)
+ * @see org.zu.ardulink.Link#addDigitalIntPinListener(IntPinListener)
+ *
+ * [adsense]
+ *
+ */
+public interface IntPinListener {
+
+	public static final int ALL_PINS = -1;
+
+	/**
+	 * A value was read from the pin.
+	 * @param pin
+	 * @param value
+	 * @param nanoTime the {@link System#nanoTime()} the message was received at
+	 */
+	public void onValue(int pin, int value, long nanoTime);
+
+	public int getPinListening();
+
+}
@@ -18,17 +18,12 @@ limitations under the License.
 
 package org.zu.ardulink.protocol;
 
-import static java.util.Collections.synchronizedMap;
-
-import java.util.HashMap;
-import java.util.Map;
+import static org.zu.ardulink.util.Strings.fromBytes;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.zu.ardulink.Link;
-import org.zu.ardulink.event.AnalogReadChangeEvent;
-import org.zu.ardulink.event.DigitalReadChangeEvent;
-import org.zu.ardulink.event.IncomingMessageEvent;
+import org.zu.ardulink.util.ByteArrayBuilder;
 
 
 /**
@@ -87,19 +82,53 @@ import org.zu.ardulink.event.IncomingMessageEvent;
  * 
  * [adsense]
  */
-public class ALProtocol implements IProtocol {
+public class ALProtocol extends AbstractProtocol {
 
 	public static final String NAME = "ArdulinkProtocol";
 
-	private static final String OUTGOING_MESSAGE_DIVIDER = "\n";
+	private static final char OUTGOING_MESSAGE_DIVIDER = '\n';
+
+	private static final byte[] KPRS = ascii("alp://kprs/chr");
+	private static final byte[] COD = ascii("cod");
+	private static final byte[] LOC = ascii("loc");
+	private static final byte[] MOD = ascii("mod");
+	private static final byte[] MEX = ascii("mex");
+	private static final byte[] PPIN = ascii("alp://ppin/");
+	private static final byte[] PPSW = ascii("alp://ppsw/");
+	private static final byte[] TONE = ascii("alp://tone/");
+	private static final byte[] NOTN = ascii("alp://notn/");
+	private static final byte[] SRLD = ascii("alp://srld/");
+	private static final byte[] SPLD = ascii("alp://spld/");
+	private static final byte[] SRLA = ascii("alp://srla/");
+	private static final byte[] SPLA = ascii("alp://spla/");
+	private static final byte[] CUST = ascii("alp://cust/");
+
+	private static final byte[] PREFIX = ascii("alp://");
+	private static final byte[] ID_PREFIX = ascii("?id=");
+	private static final byte[] OK = ascii("ok");
+	private static final byte[] KO = ascii("ko");
+	private static final int RPLY = command('r', 'p', 'l', 'y');
+	private static final int ARED = command('a', 'r', 'e', 'd');
+	private static final int DRED = command('d', 'r', 'e', 'd');
+	// index of the parameters (relative to the message's start) e.g. the pin in alp://ared/<pin>/<value>
+	private static final int PARAMETERS = 11;
+	private static final long INVALID_NUMBER = Long.MIN_VALUE;
 	
 	private static final Logger logger = LoggerFactory.getLogger(ALProtocol.class);
-	private static long nextId = 1;
-	
-	private final Map<Long, MessageInfo> messageInfos = synchronizedMap(new HashMap<Long, MessageInfo>());
 	
 	public static final int NO_DURATION = -1;
 
+	public ALProtocol() {
+		this(new ReplyRegistry());
+	}
+
+	/**
+	 * @param replyRegistry holds the messages sent with a callback until Arduino replies
+	 */
+	public ALProtocol(ReplyRegistry replyRegistry) {
+		super(replyRegistry);
+	}
+
 	@Override
 	public String getProtocolName() {
 		return NAME;
@@ -142,123 +171,34 @@ public class ALProtocol implements IProtocol {
 	
 	@Override
 	public MessageInfo sendKeyPressEvent(Link link, char keychar, int keycode,	int keylocation, int keymodifiers, int keymodifiersex, ReplyMessageCallback callback) {
-		MessageInfo retvalue = new MessageInfo();
-		synchronized(this) {
-			if(link.isConnected()) {
-				
-				long currentId = nextId++;
-				retvalue.setMessageID(currentId);
-				if(callback != null) {
-					retvalue.setCallback(callback);
-					messageInfos.put(currentId, retvalue);
-				}
-				
-				StringBuilder builder = new StringBuilder("alp://kprs/chr");
-				builder.append(keychar);
-				builder.append("cod");
-				builder.append(keycode);
-				builder.append("loc");
-				builder.append(keylocation);
-				builder.append("mod");
-				builder.append(keymodifiers);
-				builder.append("mex");
-				builder.append(keymodifiersex);
-				if(callback != null) {
-					builder.append("?id=");
-					builder.append(currentId);
-				}
-				builder.append(OUTGOING_MESSAGE_DIVIDER);
-				
-				String mesg = builder.toString();
-				logger.debug(mesg);
-				
-				boolean result = link.writeSerial(mesg);
-				retvalue.setSent(result);
-				retvalue.setMessageSent(mesg);
-				
-				if(!result) {
-					messageInfos.remove(currentId);
-				}
-			}
-			
+		ProtocolSession session = link.getProtocolSession();
+		synchronized (session) {
+			return send(session, session.newMessage().append(KPRS).append(keychar)
+					.append(COD).append(keycode).append(LOC).append(keylocation)
+					.append(MOD).append(keymodifiers).append(MEX)
+					.append(keymodifiersex), callback);
 		}
-		return retvalue;
 	}
 
 	@Override
 	public MessageInfo sendPowerPinIntensity(Link link, int pin, int intensity, ReplyMessageCallback callback) {
-		MessageInfo retvalue = new MessageInfo();
-		synchronized(this) {
-			if(link.isConnected()) {
-				
-				long currentId = nextId++;
-				retvalue.setMessageID(currentId);
-				if(callback != null) {
-					retvalue.setCallback(callback);
-					messageInfos.put(currentId, retvalue);
-				}
-				
-				StringBuilder builder = new StringBuilder("alp://ppin/");
-				builder.append(pin);
-				builder.append("/");
-				builder.append(intensity);
-				if(callback != null) {
-					builder.append("?id=");
-					builder.append(currentId);
-				}
-				builder.append(OUTGOING_MESSAGE_DIVIDER);
-				
-				String mesg = builder.toString();
-				logger.debug(mesg);
-				
-				boolean result = link.writeSerial(mesg);
-				retvalue.setSent(result);
-				retvalue.setMessageSent(mesg);
-
-				if(!result) {
-					messageInfos.remove(currentId);
-				}
-			}
+		ProtocolSession session = link.getProtocolSession();
+		synchronized (session) {
+			return send(session, session.newMessage().append(PPIN).append(pin)
+					.append('/').append(intensity), callback);
 		}
-		
-		return retvalue;
 	}
 
 	@Override
 	public MessageInfo sendPowerPinSwitch(Link link, int pin, int power, ReplyMessageCallback callback) {
-		MessageInfo retvalue = new MessageInfo();
-		synchronized(this) {
-			if(link.isConnected() && (power == POWER_HIGH || power == POWER_LOW)) {
-				long currentId = nextId++;
-				retvalue.setMessageID(currentId);
-				if(callback != null) {
-					retvalue.setCallback(callback);
-					messageInfos.put(currentId, retvalue);
-				}
-
-				StringBuilder builder = new StringBuilder("alp://ppsw/");
-				builder.append(pin);
-				builder.append("/");
-				builder.append(power);
-				if(callback != null) {
-					builder.append("?id=");
-					builder.append(currentId);
-				}
-				builder.append(OUTGOING_MESSAGE_DIVIDER);
-				
-				String mesg = builder.toString();
-				logger.debug(mesg);
-				
-				boolean result = link.writeSerial(mesg);
-				retvalue.setSent(result);
-				retvalue.setMessageSent(mesg);
-
-				if(!result) {
-					messageInfos.remove(currentId);
-				}
-			}
+		if(power != POWER_HIGH && power != POWER_LOW) {
+			return new MessageInfo();
+		}
+		ProtocolSession session = link.getProtocolSession();
+		synchronized (session) {
+			return send(session, session.newMessage().append(PPSW).append(pin)
+					.append('/').append(power), callback);
 		}
-		return retvalue;
 	}
 
 	@Override
@@ -268,119 +208,73 @@ public class ALProtocol implements IProtocol {
 
 	@Override
 	public MessageInfo sendToneMessage(Link link, int pin, int frequency, int duration, ReplyMessageCallback callback) {
-		MessageInfo retvalue = new MessageInfo();
-		synchronized(this) {
-			if(link.isConnected()) {
-				
-				long currentId = nextId++;
-				retvalue.setMessageID(currentId);
-				if(callback != null) {
-					retvalue.setCallback(callback);
-					messageInfos.put(currentId, retvalue);
-				}
-				
-				StringBuilder builder = new StringBuilder("alp://tone/");
-				builder.append(pin);
-				builder.append("/");
-				builder.append(frequency);
-				builder.append("/");
-				builder.append(duration);
-				if(callback != null) {
-					builder.append("?id=");
-					builder.append(currentId);
-				}
-				builder.append(OUTGOING_MESSAGE_DIVIDER);
-				
-				String mesg = builder.toString();
-				logger.debug(mesg);
-				
-				boolean result = link.writeSerial(mesg);
-				retvalue.setSent(result);
-				retvalue.setMessageSent(mesg);
-
-				if(!result) {
-					messageInfos.remove(currentId);
-				}
-			}
+		ProtocolSession session = link.getProtocolSession();
+		synchronized (session) {
+			return send(session, session.newMessage().append(TONE).append(pin)
+					.append('/').append(frequency).append('/').append(duration),
+					callback);
 		}
-		
-		return retvalue;	
 	}
 
 	@Override
 	public MessageInfo sendNoToneMessage(Link link, int pin, ReplyMessageCallback callback) {
-		MessageInfo retvalue = new MessageInfo();
-		synchronized(this) {
-			if(link.isConnected()) {
-				
-				long currentId = nextId++;
-				retvalue.setMessageID(currentId);
-				if(callback != null) {
-					retvalue.setCallback(callback);
-					messageInfos.put(currentId, retvalue);
-				}
-				
-				StringBuilder builder = new StringBuilder("alp://notn/");
-				builder.append(pin);
-				if(callback != null) {
-					builder.append("?id=");
-					builder.append(currentId);
-				}
-				builder.append(OUTGOING_MESSAGE_DIVIDER);
-				
-				String mesg = builder.toString();
-				logger.debug(mesg);
-				
-				boolean result = link.writeSerial(mesg);
-				retvalue.setSent(result);
-				retvalue.setMessageSent(mesg);
-
-				if(!result) {
-					messageInfos.remove(currentId);
-				}
-			}
+		ProtocolSession session = link.getProtocolSession();
+		synchronized (session) {
+			return send(session, session.newMessage().append(NOTN).append(pin), callback);
 		}
-		
-		return retvalue;
 	}
 
 	@Override
 	public MessageInfo sendCustomMessage(Link link, String message, ReplyMessageCallback callback) {
-		MessageInfo retvalue = new MessageInfo();
-		synchronized(this) {
-			if(link.isConnected()) {
-				
-				long currentId = nextId++;
-				retvalue.setMessageID(currentId);
-				if(callback != null) {
-					retvalue.setCallback(callback);
-					messageInfos.put(currentId, retvalue);
-				}
-				
-				StringBuilder builder = new StringBuilder("alp://cust/");
-				builder.append(message);
-				if(callback != null) {
-					builder.append("?id=");
-					builder.append(currentId);
-				}
-				builder.append(OUTGOING_MESSAGE_DIVIDER);
-				
-				String mesg = builder.toString();
-				logger.debug(mesg);
-				
-				boolean result = link.writeSerial(mesg);
-				retvalue.setSent(result);
-				retvalue.setMessageSent(mesg);
-
-				if(!result) {
-					messageInfos.remove(currentId);
-				}
-			}
+		ProtocolSession session = link.getProtocolSession();
+		synchronized (session) {
+			return send(session, session.newMessage().append(CUST).append(message), callback);
 		}
-		
-		return retvalue;
 	}	
 	
+	@Override
+	protected void appendCommand(ByteArrayBuilder message, Batch batch, int index) {
+		int pin = batch.getArgument(index, 0);
+		switch(batch.getCommand(index)) {
+		case POWER_PIN_INTENSITY:
+			message.append(PPIN).append(pin).append('/').append(batch.getArgument(index, 1));
+			break;
+		case POWER_PIN_SWITCH:
+			message.append(PPSW).append(pin).append('/').append(batch.getArgument(index, 1));
+			break;
+		case TONE:
+			message.append(TONE).append(pin).append('/').append(batch.getArgument(index, 1))
+					.append('/').append(batch.getArgument(index, 2));
+			break;
+		case NO_TONE:
+			message.append(NOTN).append(pin);
+			break;
+		case CUSTOM:
+			message.append(CUST).append(batch.getCustomMessage(index));
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported command " + batch.getCommand(index));
+		}
+	}
+
+	@Override
+	protected long maxMessageId() {
+		return Long.MAX_VALUE;
+	}
+
+	@Override
+	protected void complete(ByteArrayBuilder message, long id) {
+		if(id != UNDEFINED_ID) {
+			message.append(ID_PREFIX).append(id);
+		}
+		message.append(OUTGOING_MESSAGE_DIVIDER);
+	}
+
+	@Override
+	protected String toString(ByteArrayBuilder message) {
+		return message.toString();
+	}
+
 	@Override
 	public MessageInfo startListenDigitalPin(Link link, int pin) {
 		return startListenDigitalPin(link, pin, null);
@@ -403,204 +297,150 @@ public class ALProtocol implements IProtocol {
 
 	@Override
 	public MessageInfo startListenDigitalPin(Link link, int pin, ReplyMessageCallback callback) {
-		MessageInfo retvalue = new MessageInfo();
-		synchronized(this) {
-			if(link.isConnected()) {
-				long currentId = nextId++;
-				retvalue.setMessageID(currentId);
-				if(callback != null) {
-					retvalue.setCallback(callback);
-					messageInfos.put(currentId, retvalue);
-				}
-
-				StringBuilder builder = new StringBuilder("alp://srld/");
-				builder.append(pin);
-				if(callback != null) {
-					builder.append("?id=");
-					builder.append(currentId);
-				}
-				builder.append(OUTGOING_MESSAGE_DIVIDER);
-				
-				String mesg = builder.toString();
-				logger.debug(mesg);
-				
-				boolean result = link.writeSerial(mesg);
-				retvalue.setSent(result);
-				retvalue.setMessageSent(mesg);
-
-				if(!result) {
-					messageInfos.remove(currentId);
-				}
-			}
+		ProtocolSession session = link.getProtocolSession();
+		synchronized (session) {
+			return send(session, session.newMessage().append(SRLD).append(pin), callback);
 		}
-		return retvalue;
 	}
 
 	@Override
 	public MessageInfo stopListenDigitalPin(Link link, int pin, ReplyMessageCallback callback) {
-		MessageInfo retvalue = new MessageInfo();
-		synchronized(this) {
-			if(link.isConnected()) {
-				long currentId = nextId++;
-				retvalue.setMessageID(currentId);
-				if(callback != null) {
-					retvalue.setCallback(callback);
-					messageInfos.put(currentId, retvalue);
-				}
-
-				StringBuilder builder = new StringBuilder("alp://spld/");
-				builder.append(pin);
-				if(callback != null) {
-					builder.append("?id=");
-					builder.append(currentId);
-				}
-				builder.append(OUTGOING_MESSAGE_DIVIDER);
-				
-				String mesg = builder.toString();
-				logger.debug(mesg);
-				
-				boolean result = link.writeSerial(mesg);
-				retvalue.setSent(result);
-				retvalue.setMessageSent(mesg);
-
-				if(!result) {
-					messageInfos.remove(currentId);
-				}
-			}
+		ProtocolSession session = link.getProtocolSession();
+		synchronized (session) {
+			return send(session, session.newMessage().append(SPLD).append(pin), callback);
 		}
-		return retvalue;
 	}
 
 	@Override
 	public MessageInfo startListenAnalogPin(Link link, int pin, ReplyMessageCallback callback) {
-		MessageInfo retvalue = new MessageInfo();
-		synchronized(this) {
-			if(link.isConnected()) {
-				long currentId = nextId++;
-				retvalue.setMessageID(currentId);
-				if(callback != null) {
-					retvalue.setCallback(callback);
-					messageInfos.put(currentId, retvalue);
-				}
-
-				StringBuilder builder = new StringBuilder("alp://srla/");
-				builder.append(pin);
-				if(callback != null) {
-					builder.append("?id=");
-					builder.append(currentId);
-				}
-				builder.append(OUTGOING_MESSAGE_DIVIDER);
-				
-				String mesg = builder.toString();
-				logger.debug(mesg);
-				
-				boolean result = link.writeSerial(mesg);
-				retvalue.setSent(result);
-				retvalue.setMessageSent(mesg);
-
-				if(!result) {
-					messageInfos.remove(currentId);
-				}
-			}
+		ProtocolSession session = link.getProtocolSession();
+		synchronized (session) {
+			return send(session, session.newMessage().append(SRLA).append(pin), callback);
 		}
-		return retvalue;
 	}
 
 	@Override
 	public MessageInfo stopListenAnalogPin(Link link, int pin,	ReplyMessageCallback callback) {
-		MessageInfo retvalue = new MessageInfo();
-		synchronized(this) {
-			if(link.isConnected()) {
-				long currentId = nextId++;
-				retvalue.setMessageID(currentId);
-				if(callback != null) {
-					retvalue.setCallback(callback);
-					messageInfos.put(currentId, retvalue);
-				}
-
-				StringBuilder builder = new StringBuilder("alp://spla/");
-				builder.append(pin);
-				if(callback != null) {
-					builder.append("?id=");
-					builder.append(currentId);
-				}
-				builder.append(OUTGOING_MESSAGE_DIVIDER);
-				
-				String mesg = builder.toString();
-				logger.debug(mesg);
-				
-				boolean result = link.writeSerial(mesg);
-				retvalue.setSent(result);
-				retvalue.setMessageSent(mesg);
-
-				if(!result) {
-					messageInfos.remove(currentId);
-				}
-			}
+		ProtocolSession session = link.getProtocolSession();
+		synchronized (session) {
+			return send(session, session.newMessage().append(SPLA).append(pin), callback);
 		}
-		return retvalue;
 	}	
 	
 	@Override
-	public IncomingMessageEvent parseMessage(int[] message) {
-		IncomingMessageEvent retvalue = null;
-		try {
-			String msg = new String(message, 0, message.length).trim();
-			if(msg.startsWith("alp://")) { // OK is a message I know
-				String cmd = msg.substring(6,10);
-				if("rply".equals(cmd)) { // alp://rply/ok?id<messageid> alp://rply/ko?id<messageid>
-					parseReplyMessage(msg);
-				} else if("dred".equals(cmd)) { // alp://dred/<pin>/<value>
-					retvalue = parseDigitalReadMessage(msg);
-				} else if("ared".equals(cmd)) { // alp://ared/<pin>/<value>
-					retvalue = parseAnalogReadMessage(msg);
-				} else { // Message I don't recognize its very strange!
-					logger.error(
-							"Arduino sent to me a message in ALProtocol that I don't recognize. Msg: {}",
-							msg);
-				}
+	public void parseMessage(Link link, byte[] message, int offset, int length, IncomingMessageHandler handler) {
+		int start = offset;
+		int end = offset + length;
+		// same as String#trim
+		while(start < end && (message[start] & 0xFF) <= ' ') {
+			start++;
+		}
+		while(end > start && (message[end - 1] & 0xFF) <= ' ') {
+			end--;
+		}
+		if(!startsWith(message, start, end, PREFIX)) {
+			return;
+		}
+		int command = end - start < PARAMETERS ? 0 : command(message[start + 6], message[start + 7], message[start + 8], message[start + 9]);
+		int parameters = start + PARAMETERS;
+		if(command == ARED || command == DRED) { // alp://ared/<pin>/<value> alp://dred/<pin>/<value>
+			int separator = indexOf(message, '/', parameters, end);
+			long pin = separator < 0 ? INVALID_NUMBER : parseNumber(message, parameters, separator);
+			if(isInt(pin) && !(command == ARED ? handler.wantsAnalogRead((int) pin) : handler.wantsDigitalRead((int) pin))) {
+				// nobody listens to the pin, the value is not decoded
+				return;
+			}
+			long value = separator < 0 ? INVALID_NUMBER : parseNumber(message, separator + 1, end);
+			if(!isInt(pin) || !isInt(value)) {
+				logger.error("Errror parsing message sent from Arduino. Msg: {}", fromBytes(message, start, end - start));
+			} else if(command == ARED) {
+				handler.analogReadChanged((int) pin, (int) value, message, start, end - start);
+			} else {
+				handler.digitalReadChanged((int) pin, (int) value, message, start, end - start);
+			}
+		} else if(command == RPLY) { // alp://rply/ok?id=<messageid> alp://rply/ko?id=<messageid>
+			parseReplyMessage(link, message, start, end);
+		} else { // Message I don't recognize its very strange!
+			logger.error(
+					"Arduino sent to me a message in ALProtocol that I don't recognize. Msg: {}",
+					fromBytes(message, start, end - start));
+		}
+	}
+
+	private void parseReplyMessage(Link link, byte[] message, int start, int end) {
+		int parameters = start + PARAMETERS;
+		int idIndex = indexOf(message, '?', parameters, end);
+		long id = idIndex < 0 || !startsWith(message, idIndex, end, ID_PREFIX) ? INVALID_NUMBER
+				: parseNumber(message, idIndex + ID_PREFIX.length, end);
+		if(id == INVALID_NUMBER) {
+			logger.error("Errror parsing message sent from Arduino. Msg: {}", fromBytes(message, start, end - start));
+			return;
+		}
+		int reply = UNDEFINED_REPLY;
+		if(startsWith(message, parameters, end, OK)) {
+			reply = REPLY_OK;
+		} else if(startsWith(message, parameters, end, KO)) {
+			reply = REPLY_KO;
+		}
+		replied(link, id, reply, fromBytes(message, start, end - start));
+	}
+
+	private static int command(int c0, int c1, int c2, int c3) {
+		return (c0 & 0xFF) << 24 | (c1 & 0xFF) << 16 | (c2 & 0xFF) << 8 | (c3 & 0xFF);
+	}
+
+	private static boolean startsWith(byte[] message, int start, int end, byte[] prefix) {
+		if(end - start < prefix.length) {
+			return false;
+		}
+		for(int i = 0; i < prefix.length; i++) {
+			if(message[start + i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int indexOf(byte[] message, int c, int start, int end) {
+		for(int i = start; i < end; i++) {
+			if(message[i] == c) {
+				return i;
 			}
 		}
-		catch(Exception e) {
-			logger.error("Errror parsing message sent from Arduino.", e);
-			e.printStackTrace();
+		return -1;
+	}
+
+	/**
+	 * Parses the decimal number (like Long#parseLong) in message from start to end (exclusive)
+	 * @return the number or INVALID_NUMBER if the characters are no valid number
+	 */
+	private static long parseNumber(byte[] message, int start, int end) {
+		boolean negative = start < end && message[start] == '-';
+		int i = negative || start < end && message[start] == '+' ? start + 1 : start;
+		if(i == end || end - i > 18) {
+			return INVALID_NUMBER;
 		}
-		return retvalue;
-	}
-
-	private IncomingMessageEvent parseDigitalReadMessage(String msg) {
-        int separatorPosition = msg.indexOf('/', 11 );
-        String pin = msg.substring(11,separatorPosition);
-        String value = msg.substring(separatorPosition + 1);
-        DigitalReadChangeEvent e = new DigitalReadChangeEvent(Integer.parseInt(pin), Integer.parseInt(value), msg);
-        return e;
-	}
-
-	private IncomingMessageEvent parseAnalogReadMessage(String msg) {
-        int separatorPosition = msg.indexOf('/', 11 );
-        String pin = msg.substring(11,separatorPosition);
-        String value = msg.substring(separatorPosition + 1);
-        AnalogReadChangeEvent e = new AnalogReadChangeEvent(Integer.parseInt(pin), Integer.parseInt(value), msg);
-        return e;
-	}
-
-	private void parseReplyMessage(String msg) {
-		String result = msg.substring(11,13);
-		int idIndex = msg.indexOf("?id=");
-		String tmpId = msg.substring(idIndex + 4).trim();
-		Long id = Long.parseLong(tmpId);
-		MessageInfo messageInfo = messageInfos.get(id);
-		if(messageInfo != null) {
-			if("ok".equals(result)) {
-				messageInfo.setReply(REPLY_OK);
-			} else if("ko".equals(result)) {
-				messageInfo.setReply(REPLY_KO);
+		long result = 0;
+		for(; i < end; i++) {
+			int digit = message[i] - '0';
+			if(digit < 0 || digit > 9) {
+				return INVALID_NUMBER;
 			}
-			messageInfo.setMessageReceived(msg);
-			messageInfos.remove(id);
-			
-			messageInfo.getCallback().replyInfo(messageInfo); // Callback!
+			result = result * 10 + digit;
+		}
+		return negative ? -result : result;
+	}
+
+	private static boolean isInt(long number) {
+		return number >= Integer.MIN_VALUE && number <= Integer.MAX_VALUE;
+	}
+
+	private static byte[] ascii(String string) {
+		byte[] chars = new byte[string.length()];
+		for(int i = 0; i < chars.length; i++) {
+			chars[i] = (byte) string.charAt(i);
 		}
+		return chars;
 	}
 
 	@Override
@@ -615,7 +455,7 @@ public class ALProtocol implements IProtocol {
 
 	@Override
 	public int getOutgoingMessageDivider() {
-		return ALProtocol.OUTGOING_MESSAGE_DIVIDER.charAt(0);
+		return ALProtocol.OUTGOING_MESSAGE_DIVIDER;
 	}
 
 }
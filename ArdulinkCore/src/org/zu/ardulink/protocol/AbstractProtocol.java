@@ -0,0 +1,241 @@
+/**
+Copyright 2013 project Ardulink http://www.ardulink.org/
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.zu.ardulink.protocol;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.zu.ardulink.util.Strings.fromBytes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zu.ardulink.Link;
+import org.zu.ardulink.event.AnalogReadChangeEvent;
+import org.zu.ardulink.event.DigitalReadChangeEvent;
+import org.zu.ardulink.event.IncomingMessageEvent;
+import org.zu.ardulink.util.ByteArrayBuilder;
+
+/**
+ * [ardulinktitle] [ardulinkversion]
+ * Base class of the protocols. It implements everything that doesn't depend
+ * on the encoding: messages sent with a callback are registered in the
+ * {@link ReplyRegistry} and pass the link's {@link RequestWindow}, replies are
+ * matched and passed to the callback and batches are written at once.
+ * Subclasses encode the commands into the session's buffer and complete them
+ * with the (optional) message id and the divider.
+ *
+ * @author project Ardulink http://www.ardulink.org/
+ * @see ALProtocol
+ * @see SimpleBinaryProtocol
+ *
+ * [adsense]
+ *
+ */
+public abstract class AbstractProtocol implements IProtocol {
+
+	private static final Logger logger = LoggerFactory.getLogger(AbstractProtocol.class);
+
+	private final ReplyRegistry replyRegistry;
+
+	/**
+	 * @param replyRegistry holds the messages sent with a callback until Arduino replies
+	 */
+	protected AbstractProtocol(ReplyRegistry replyRegistry) {
+		this.replyRegistry = replyRegistry;
+	}
+
+	/**
+	 * @return the registry of messages waiting for a reply, i.e. to configure the default timeout
+	 */
+	public ReplyRegistry getReplyRegistry() {
+		return replyRegistry;
+	}
+
+	/**
+	 * @return the highest id a message waiting for a reply can get, ids
+	 * start at 1 and wrap around after this one
+	 */
+	protected abstract long maxMessageId();
+
+	/**
+	 * Appends the command of the batch at index to message.
+	 * @param message
+	 * @param batch
+	 * @param index
+	 */
+	protected abstract void appendCommand(ByteArrayBuilder message, Batch batch, int index);
+
+	/**
+	 * Completes an encoded command with the id (if Arduino has to reply) and the divider.
+	 * @param message
+	 * @param id the message id or {@link IProtocol#UNDEFINED_ID} if no reply is wanted
+	 */
+	protected abstract void complete(ByteArrayBuilder message, long id);
+
+	/**
+	 * @param message
+	 * @return a readable representation of an encoded message (for callbacks and logging)
+	 */
+	protected abstract String toString(ByteArrayBuilder message);
+
+	@Override
+	public MessageInfo sendBatch(Link link, Batch batch, ReplyMessageCallback callback) {
+		ProtocolSession session = link.getProtocolSession();
+		synchronized (session) {
+			ByteArrayBuilder message = session.newMessage();
+			int last = batch.size() - 1;
+			for(int i = 0; i < last; i++) {
+				appendCommand(message, batch, i);
+				complete(message, UNDEFINED_ID);
+			}
+			// the last one gets the id (if any)
+			appendCommand(message, batch, last);
+			return send(session, message, callback);
+		}
+	}
+
+	/**
+	 * Completes the message with the optional id and the divider and writes it
+	 * through the session. Only messages with a callback get an id, it is
+	 * taken from the session's counter skipping ids still waiting for a
+	 * reply, so a wrapped counter never reuses a pending id. The message is
+	 * registered for the session, so replies received by other links never
+	 * complete it. Apart from
+	 * taking the id, encoding and writing are only serialized per link.
+	 * The caller must hold the session's monitor since message is the
+	 * session's reusable buffer.
+	 * The message is only converted into a String if a callback is interested
+	 * in it (or debug logging is enabled), so sends without callback don't
+	 * produce garbage apart from the returned MessageInfo.
+	 * Messages with a callback have to pass the link's RequestWindow.
+	 */
+	protected MessageInfo send(ProtocolSession session, ByteArrayBuilder message, ReplyMessageCallback callback) {
+		MessageInfo retvalue = new MessageInfo();
+		if(session.getLink().isConnected()) {
+			long currentId = UNDEFINED_ID;
+			if(callback != null) {
+				retvalue.setCallback(callback);
+				// the registry's capacity is shared by all links, check and register atomically
+				synchronized (replyRegistry) {
+					if(replyRegistry.size() >= replyRegistry.getCapacity()) {
+						logger.warn("{} messages are waiting for a reply, message not sent.", replyRegistry.getCapacity());
+						return retvalue;
+					}
+					do {
+						currentId = session.nextMessageId(maxMessageId());
+					} while(replyRegistry.isRegistered(session, currentId));
+					retvalue.setMessageID(currentId);
+					register(session, currentId, retvalue, callback);
+				}
+			}
+			complete(message, currentId);
+
+			if(logger.isDebugEnabled()) {
+				logger.debug(toString(message));
+			}
+
+			if(callback != null) {
+				retvalue.setMessageSent(toString(message));
+				int admission = session.getRequestWindow().admit(retvalue, message, replyRegistry);
+				if(admission == RequestWindow.QUEUED) {
+					retvalue.setSent(true);
+					return retvalue;
+				} else if(admission == RequestWindow.REJECTED) {
+					replyRegistry.remove(session, currentId);
+					return retvalue;
+				}
+			}
+
+			boolean result = session.write(message);
+			retvalue.setSent(result);
+
+			if(!result && callback != null) {
+				replyRegistry.remove(session, currentId);
+				RequestWindow.completed(retvalue, RequestWindow.FAILED);
+			}
+		}
+		return retvalue;
+	}
+
+	private boolean register(ProtocolSession session, long id, MessageInfo messageInfo, ReplyMessageCallback callback) {
+		if(callback instanceof TimedReplyMessageCallback) {
+			TimedReplyMessageCallback timed = (TimedReplyMessageCallback) callback;
+			return replyRegistry.register(session, id, messageInfo, timed.getTimeout(MILLISECONDS), MILLISECONDS);
+		}
+		return replyRegistry.register(session, id, messageInfo);
+	}
+
+	/**
+	 * Passes a reply received from Arduino to the callback of the message
+	 * waiting for it. Replies to unknown (e.g. timed out) messages are ignored.
+	 * @param link the link the reply was received from
+	 * @param id
+	 * @param reply {@link IProtocol#REPLY_OK}, {@link IProtocol#REPLY_KO} or {@link IProtocol#UNDEFINED_REPLY}
+	 * @param messageReceived
+	 */
+	protected void replied(Link link, long id, int reply, String messageReceived) {
+		MessageInfo messageInfo = replyRegistry.remove(link.getProtocolSession(), id);
+		if(messageInfo != null) {
+			if(reply != UNDEFINED_REPLY) {
+				messageInfo.setReply(reply);
+			}
+			messageInfo.setMessageReceived(messageReceived);
+			RequestWindow.completed(messageInfo, RequestWindow.REPLIED);
+			
+			messageInfo.getCallback().replyInfo(messageInfo); // Callback!
+		}
+	}
+
+	@Override
+	public IncomingMessageEvent parseMessage(Link link, int[] message) {
+		byte[] bytes = new byte[message.length];
+		for(int i = 0; i < message.length; i++) {
+			bytes[i] = (byte) message[i];
+		}
+		EventCreator eventCreator = new EventCreator();
+		parseMessage(link, bytes, 0, bytes.length, eventCreator);
+		return eventCreator.event;
+	}
+
+	/**
+	 * Collects the event of a single message for {@link AbstractProtocol#parseMessage(Link, int[])}.
+	 */
+	private static class EventCreator implements IncomingMessageHandler {
+
+		private IncomingMessageEvent event;
+
+		@Override
+		public boolean wantsAnalogRead(int pin) {
+			return true;
+		}
+
+		@Override
+		public boolean wantsDigitalRead(int pin) {
+			return true;
+		}
+
+		@Override
+		public void analogReadChanged(int pin, int value, byte[] message, int offset, int length) {
+			event = new AnalogReadChangeEvent(pin, value, fromBytes(message, offset, length));
+		}
+
+		@Override
+		public void digitalReadChanged(int pin, int value, byte[] message, int offset, int length) {
+			event = new DigitalReadChangeEvent(pin, value, fromBytes(message, offset, length));
+		}
+
+	}
+
+}
@@ -0,0 +1,219 @@
+/**
+Copyright 2013 project Ardulink http://www.ardulink.org/
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.zu.ardulink.protocol;
+
+import static org.zu.ardulink.util.Preconditions.checkArgument;
+import static org.zu.ardulink.util.Preconditions.checkState;
+
+import java.util.Arrays;
+
+import org.zu.ardulink.Link;
+
+/**
+ * [ardulinktitle] [ardulinkversion]
+ * Collects several commands that are sent to Arduino together: the protocol
+ * encodes them into one block that is written at once, so related pin changes
+ * (e.g. the three colors of a RGB LED) reach the board close together and
+ * share locking, encoding and flushing.
+ * <br/>
+ * If the batch is sent with a callback only the last command asks for a
+ * reply. Arduino processes the commands in order, so this single reply
+ * acknowledges the whole batch.
+ * <br/>
+ * A batch can be reused after it was sent. Instances are not thread safe.
+ * 
+ * @author project Ardulink http://www.ardulink.org/
+ * @see Link#batch()
+ * 
+ * [adsense]
+ *
+ */
+public class Batch {
+
+	public enum Command {
+		POWER_PIN_INTENSITY, POWER_PIN_SWITCH, TONE, NO_TONE, CUSTOM
+	}
+
+	private static final int ARGUMENTS = 3;
+
+	private final Link link;
+	private Command[] commands = new Command[8];
+	private int[] arguments = new int[8 * ARGUMENTS];
+	private String[] customMessages = new String[8];
+	private int size;
+
+	public Batch(Link link) {
+		this.link = link;
+	}
+
+	/**
+	 * Adds an analogWrite(pin, intensity), see {@link Link#sendPowerPinIntensity(int, int)}
+	 * @param pin
+	 * @param intensity
+	 * @return this batch
+	 */
+	public Batch powerPinIntensity(int pin, int intensity) {
+		return add(Command.POWER_PIN_INTENSITY, pin, intensity, 0, null);
+	}
+
+	/**
+	 * Adds a digitalWrite(pin, power), see {@link Link#sendPowerPinSwitch(int, int)}
+	 * @param pin
+	 * @param power {@link IProtocol#POWER_HIGH} or {@link IProtocol#POWER_LOW}
+	 * @return this batch
+	 */
+	public Batch powerPinSwitch(int pin, int power) {
+		checkArgument(power == IProtocol.POWER_HIGH || power == IProtocol.POWER_LOW,
+				"power must be %s or %s but was %s", IProtocol.POWER_HIGH, IProtocol.POWER_LOW, power);
+		return add(Command.POWER_PIN_SWITCH, pin, power, 0, null);
+	}
+
+	/**
+	 * Adds a tone(pin, frequency), see {@link Link#sendToneMessage(int, int)}
+	 * @param pin
+	 * @param frequency
+	 * @return this batch
+	 */
+	public Batch tone(int pin, int frequency) {
+		return tone(pin, frequency, ALProtocol.NO_DURATION);
+	}
+
+	/**
+	 * Adds a tone(pin, frequency, duration), see {@link Link#sendToneMessage(int, int, int)}
+	 * @param pin
+	 * @param frequency
+	 * @param duration
+	 * @return this batch
+	 */
+	public Batch tone(int pin, int frequency, int duration) {
+		return add(Command.TONE, pin, frequency, duration, null);
+	}
+
+	/**
+	 * Adds a noTone(pin), see {@link Link#sendNoToneMessage(int)}
+	 * @param pin
+	 * @return this batch
+	 */
+	public Batch noTone(int pin) {
+		return add(Command.NO_TONE, pin, 0, 0, null);
+	}
+
+	/**
+	 * Adds a custom message, see {@link Link#sendCustomMessage(String)}
+	 * @param message
+	 * @return this batch
+	 */
+	public Batch custom(String message) {
+		return add(Command.CUSTOM, 0, 0, 0, message);
+	}
+
+	private Batch add(Command command, int argument0, int argument1, int argument2, String customMessage) {
+		if(size == commands.length) {
+			commands = Arrays.copyOf(commands, size * 2);
+			arguments = Arrays.copyOf(arguments, size * 2 * ARGUMENTS);
+			customMessages = Arrays.copyOf(customMessages, size * 2);
+		}
+		commands[size] = command;
+		arguments[size * ARGUMENTS] = argument0;
+		arguments[size * ARGUMENTS + 1] = argument1;
+		arguments[size * ARGUMENTS + 2] = argument2;
+		customMessages[size] = customMessage;
+		size++;
+		return this;
+	}
+
+	/**
+	 * Sends all the commands without asking for a reply and clears the batch.
+	 * @return the MessageInfo of the block
+	 */
+	public MessageInfo send() {
+		return send(null);
+	}
+
+	/**
+	 * Sends all the commands and clears the batch. Only the last command asks
+	 * for a reply.
+	 * @param callback called when Arduino replied to the last command
+	 * @return the MessageInfo of the block
+	 */
+	public MessageInfo send(ReplyMessageCallback callback) {
+		checkState(size > 0, "Batch is empty");
+		try {
+			return link.sendBatch(this, callback);
+		} finally {
+			clear();
+		}
+	}
+
+	/**
+	 * Asynchronous version of {@link #send(ReplyMessageCallback)}.
+	 * @return a future completed when Arduino replied to the last command
+	 */
+	public ReplyFuture sendAsync() {
+		ReplyFuture future = new ReplyFuture();
+		return future.sent(send(future));
+	}
+
+	public void clear() {
+		Arrays.fill(customMessages, 0, size, null);
+		size = 0;
+	}
+
+	/**
+	 * @return the number of commands in this batch
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param index
+	 * @return the command at index
+	 */
+	public Command getCommand(int index) {
+		checkIndex(index);
+		return commands[index];
+	}
+
+	/**
+	 * @param index
+	 * @param argument 0 (the pin) to 2
+	 * @return the argument of the command at index in the order of the
+	 *         parameters of the method adding the command
+	 */
+	public int getArgument(int index, int argument) {
+		checkIndex(index);
+		checkArgument(argument >= 0 && argument < ARGUMENTS, "Illegal argument index %s", argument);
+		return arguments[index * ARGUMENTS + argument];
+	}
+
+	/**
+	 * @param index
+	 * @return the message of the CUSTOM command at index
+	 */
+	public String getCustomMessage(int index) {
+		checkIndex(index);
+		return customMessages[index];
+	}
+
+	private void checkIndex(int index) {
+		if(index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+	}
+
+}
@@ -51,6 +51,10 @@ public interface IProtocol {
 	public static final int UNDEFINED_REPLY = -1;
 	public static final int REPLY_OK = 1;
 	public static final int REPLY_KO = 0;
+	/**
+	 * Reply set if Arduino did not reply in time to a message sent with a callback
+	 */
+	public static final int REPLY_TIMEOUT = -2;
 	
 	public static final byte DEFAULT_INCOMING_MESSAGE_DIVIDER = (byte)255;
 	public static final byte DEFAULT_OUTGOING_MESSAGE_DIVIDER = '\n';
@@ -195,16 +199,39 @@ public interface IProtocol {
 	 * @return a MessageInfo containing the success or failure (for comunication)
 	 */
 	public MessageInfo sendCustomMessage(Link link, String message, ReplyMessageCallback callback);
+
+	/**
+	 * Sends all the commands of the batch in a single write. If a callback is set only the last command
+	 * asks Arduino for a reply.
+	 * @param link
+	 * @param batch
+	 * @param callback
+	 * @return a MessageInfo containing the success or failure (for comunication)
+	 */
+	public MessageInfo sendBatch(Link link, Batch batch, ReplyMessageCallback callback);
 	
 	/**
 	 * When a message arrives from Arduino, ConnectionContactImpl and Link classes call this method that parses message and
 	 * returns a specific event. If message arrived is a reply message then null is returned and a callback action is taken.
 	 * Otherwise the caller take specific action based on specific IncomingMessage.
 	 * i.e. if a AnalogReadChangeEvent is raised then the caller fire the event to all the listeners.
+	 * @param link the link the message was received from, replies only complete its messages
 	 * @param realMsg
 	 * @return IncomingMessageEvent dependent from message parsed, null if message is a reply message.
 	 */
-	public IncomingMessageEvent parseMessage(int[] realMsg);
+	public IncomingMessageEvent parseMessage(Link link, int[] realMsg);
+
+	/**
+	 * Parses a message sent from Arduino directly from the buffer it was received into. Reply messages
+	 * are handled by the protocol (the callback is called), everything else is passed to the handler.
+	 * Implementations must not keep a reference to the buffer nor change it, it is reused by the connection.
+	 * @param link the link the message was received from, replies only complete its messages
+	 * @param message the buffer containing the message
+	 * @param offset index of the message's first byte
+	 * @param length length of the message
+	 * @param handler receives the decoded content
+	 */
+	public void parseMessage(Link link, byte[] message, int offset, int length, IncomingMessageHandler handler);
 
 	/**
 	 * Sends the request to listen on a specific pin. After calling this method, Arduino
@@ -0,0 +1,71 @@
+/**
+Copyright 2013 project Ardulink http://www.ardulink.org/
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.zu.ardulink.protocol;
+
+/**
+ * [ardulinktitle] [ardulinkversion]
+ * Receives the content of messages decoded by
+ * {@link IProtocol#parseMessage(org.zu.ardulink.Link, byte[], int, int, IncomingMessageHandler)}.
+ * The values are passed as they are decoded, the raw message is only valid
+ * during the call (the array is the connection's receive buffer) so
+ * implementations that need the text have to create it before returning.
+ * Before the value of a read message is decoded the protocol asks the handler
+ * whether it is interested in the pin at all, messages of pins nobody listens
+ * to are skipped.
+ *
+ * @author project Ardulink http://www.ardulink.org/
+ *
+ * [adsense]
+ *
+ */
+public interface IncomingMessageHandler {
+
+	/**
+	 * Asked after the pin of an analog read message was decoded.
+	 * @param pin
+	 * @return false if the message is to be skipped
+	 */
+	boolean wantsAnalogRead(int pin);
+
+	/**
+	 * Asked after the pin of a digital read message was decoded.
+	 * @param pin
+	 * @return false if the message is to be skipped
+	 */
+	boolean wantsDigitalRead(int pin);
+
+	/**
+	 * Arduino sent the value read from an analog pin.
+	 * @param pin
+	 * @param value
+	 * @param message the buffer containing the raw message
+	 * @param offset index of the message's first character
+	 * @param length length of the message
+	 */
+	void analogReadChanged(int pin, int value, byte[] message, int offset, int length);
+
+	/**
+	 * Arduino sent the value read from a digital pin.
+	 * @param pin
+	 * @param value
+	 * @param message the buffer containing the raw message
+	 * @param offset index of the message's first character
+	 * @param length length of the message
+	 */
+	void digitalReadChanged(int pin, int value, byte[] message, int offset, int length);
+
+}
@@ -36,6 +36,11 @@ public class MessageInfo {
 	private String messageReceived;
 	private int reply = IProtocol.UNDEFINED_REPLY;
 	private ReplyMessageCallback callback;
+
+	// bookkeeping of the RequestWindow the message is in
+	RequestWindow requestWindow;
+	int windowState = RequestWindow.NONE;
+	long windowNanos;
 	
 	public MessageInfo() {
 		super();
@@ -68,6 +73,10 @@ public class MessageInfo {
 		this.messageID = messageID;
 	}
 
+	/**
+	 * @return the message sent. To keep sending free of garbage protocols may
+	 *         only fill it for messages sent with a ReplyMessageCallback.
+	 */
 	public String getMessageSent() {
 		return messageSent;
 	}
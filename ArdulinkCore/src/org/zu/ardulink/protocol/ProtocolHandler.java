@@ -48,6 +48,7 @@ public class ProtocolHandler {
 	static {
 		ALProtocol alProtocol = new ALProtocol();
 		installProtocolImplementation(alProtocol);
+		installProtocolImplementation(new SimpleBinaryProtocol());
 		currentProtocolImplementation = alProtocol;
 	}
 
@@ -0,0 +1,109 @@
+/**
+Copyright 2013 project Ardulink http://www.ardulink.org/
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.zu.ardulink.protocol;
+
+import org.zu.ardulink.Link;
+import org.zu.ardulink.util.ByteArrayBuilder;
+
+/**
+ * [ardulinktitle] [ardulinkversion]
+ * Per Link state of a protocol. A protocol implementation is shared between all
+ * the links using it, so everything that has to be serialized for a single
+ * board (writing a message to the connection) is done through the session of
+ * that board's Link. Sends to different links never wait for each other.
+ * The session also owns the buffer messages are encoded into, so the encoding
+ * of outgoing messages does not produce garbage.
+ *
+ * @author project Ardulink http://www.ardulink.org/
+ * @see Link#getProtocolSession()
+ *
+ * [adsense]
+ *
+ */
+public class ProtocolSession {
+
+	private final Link link;
+	private final ByteArrayBuilder messageBuilder = new ByteArrayBuilder(64);
+	private final RequestWindow requestWindow = new RequestWindow(this);
+	private long lastMessageId;
+
+	public ProtocolSession(Link link) {
+		this.link = link;
+	}
+
+	/**
+	 * Returns the (cleared) buffer of this session to encode a new message
+	 * into. The buffer is reused so the caller has to hold the session's
+	 * monitor from this call until the message is written using
+	 * {@link #write(ByteArrayBuilder)}.
+	 *
+	 * @return the session's message buffer
+	 */
+	public ByteArrayBuilder newMessage() {
+		return messageBuilder.clear();
+	}
+
+	/**
+	 * Writes an encoded message to the link. Writes of the same session are
+	 * serialized so messages never interleave on the wire.
+	 *
+	 * @param message
+	 * @return true if the message was written
+	 */
+	public boolean write(ByteArrayBuilder message) {
+		synchronized (this) {
+			return link.writeSerial(message.getBuffer(), 0, message.length());
+		}
+	}
+
+	/**
+	 * Writes an encoded message to the link. Writes of the same session are
+	 * serialized so messages never interleave on the wire.
+	 *
+	 * @param message
+	 * @return true if the message was written
+	 */
+	public boolean write(byte[] message) {
+		synchronized (this) {
+			return link.writeSerial(message, 0, message.length);
+		}
+	}
+
+	/**
+	 * Ids are counted per link, so the messages of one link don't make the
+	 * ids of another one wrap around sooner.
+	 *
+	 * @param maxId the highest id the protocol can encode
+	 * @return the next id in 1..maxId
+	 */
+	synchronized long nextMessageId(long maxId) {
+		lastMessageId = lastMessageId % maxId + 1;
+		return lastMessageId;
+	}
+
+	public Link getLink() {
+		return link;
+	}
+
+	/**
+	 * @return the window limiting the messages of this link waiting for a reply
+	 */
+	public RequestWindow getRequestWindow() {
+		return requestWindow;
+	}
+
+}
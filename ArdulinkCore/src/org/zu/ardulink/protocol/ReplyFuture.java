@@ -0,0 +1,169 @@
+/**
+Copyright 2013 project Ardulink http://www.ardulink.org/
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.zu.ardulink.protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zu.ardulink.Link;
+
+/**
+ * [ardulinktitle] [ardulinkversion]
+ * The pending result of a message sent with one of the Link's async methods
+ * (e.g. {@link Link#sendPowerPinIntensityAsync(int, int)}). The future is
+ * completed with the message's MessageInfo when the reply is parsed, when the
+ * reply timed out ({@link IProtocol#REPLY_TIMEOUT}) or immediately if the
+ * message could not be sent at all ({@link MessageInfo#isSent()} is false).
+ * <br/>
+ * Nobody has to block: callbacks added using
+ * {@link #addCallback(ReplyMessageCallback)} are called by the thread
+ * completing the future (or the calling thread if it is already done), so a
+ * single thread can keep any number of messages in flight.
+ *
+ * @author project Ardulink http://www.ardulink.org/
+ * @see ReplyMessageCallback
+ *
+ * [adsense]
+ *
+ */
+public class ReplyFuture implements Future<MessageInfo>, ReplyMessageCallback {
+
+	private static final Logger logger = LoggerFactory.getLogger(ReplyFuture.class);
+
+	private final CountDownLatch done = new CountDownLatch(1);
+	private MessageInfo messageInfo;
+	private List<ReplyMessageCallback> callbacks;
+
+	/**
+	 * Completes the future if the message was not sent, in this case there
+	 * will never be a reply.
+	 * @param messageInfo the MessageInfo returned by the send method
+	 * @return this future
+	 */
+	public ReplyFuture sent(MessageInfo messageInfo) {
+		if(!messageInfo.isSent()) {
+			complete(messageInfo);
+		}
+		return this;
+	}
+
+	@Override
+	public void replyInfo(MessageInfo messageInfo) {
+		complete(messageInfo);
+	}
+
+	private void complete(MessageInfo messageInfo) {
+		List<ReplyMessageCallback> toCall;
+		synchronized(this) {
+			if(this.messageInfo != null) {
+				return;
+			}
+			this.messageInfo = messageInfo;
+			toCall = callbacks;
+			callbacks = null;
+		}
+		done.countDown();
+		if(toCall != null) {
+			for (ReplyMessageCallback callback : toCall) {
+				call(callback, messageInfo);
+			}
+		}
+	}
+
+	/**
+	 * Adds a callback called when this future completes. If the future is
+	 * already completed the callback is called immediately.
+	 * @param callback
+	 * @return this future
+	 */
+	public ReplyFuture addCallback(ReplyMessageCallback callback) {
+		MessageInfo completed;
+		synchronized(this) {
+			completed = this.messageInfo;
+			if(completed == null) {
+				if(callbacks == null) {
+					callbacks = new ArrayList<ReplyMessageCallback>(2);
+				}
+				callbacks.add(callback);
+				return this;
+			}
+		}
+		call(callback, completed);
+		return this;
+	}
+
+	private static void call(ReplyMessageCallback callback, MessageInfo messageInfo) {
+		try {
+			callback.replyInfo(messageInfo);
+		} catch(RuntimeException e) {
+			logger.error("Error calling reply callback of message {}", messageInfo.getMessageID(), e);
+		}
+	}
+
+	/**
+	 * @return true if Arduino replied with {@link IProtocol#REPLY_OK}. Waits for the reply if
+	 * the future is not yet completed.
+	 * @throws InterruptedException
+	 */
+	public boolean isOk() throws InterruptedException {
+		return get().getReply() == IProtocol.REPLY_OK;
+	}
+
+	/**
+	 * A sent message can not be taken back, so the future can not be cancelled.
+	 * @return false
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	@Override
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	@Override
+	public MessageInfo get() throws InterruptedException {
+		done.await();
+		return completed();
+	}
+
+	@Override
+	public MessageInfo get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+		if(!done.await(timeout, unit)) {
+			throw new TimeoutException("No reply within " + timeout + " " + unit);
+		}
+		return completed();
+	}
+
+	private synchronized MessageInfo completed() {
+		return messageInfo;
+	}
+
+}
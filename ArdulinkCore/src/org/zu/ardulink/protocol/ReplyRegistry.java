@@ -0,0 +1,402 @@
+/**
+Copyright 2013 project Ardulink http://www.ardulink.org/
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.zu.ardulink.protocol;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.zu.ardulink.util.Preconditions.checkArgument;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * [ardulinktitle] [ardulinkversion]
+ * Holds the messages waiting for a reply from Arduino. The number of pending
+ * messages is bounded and each message expires after its timeout: if Arduino
+ * does not reply (e.g. because the board was reset) the callback is called
+ * with {@link IProtocol#REPLY_TIMEOUT}, so neither memory nor callers waiting
+ * for a reply grow without limit.
+ * <br/>
+ * A registry is shared by the links using a protocol while the ids are
+ * counted per link, so messages are identified by their owner (the link's
+ * {@link ProtocolSession}) and id. A reply only completes a message of the
+ * link it was received from.
+ * <br/>
+ * All the storage is allocated upfront: entries are kept in fixed size
+ * arrays, ids are looked up in an open addressing table of primitive longs
+ * and timeouts are tracked by a hashed timing wheel. A single daemon thread
+ * advances the wheel while there are pending messages.
+ *
+ * @author project Ardulink http://www.ardulink.org/
+ *
+ * [adsense]
+ *
+ */
+public class ReplyRegistry {
+
+	private static final Logger logger = LoggerFactory.getLogger(ReplyRegistry.class);
+
+	public static final int DEFAULT_CAPACITY = 1024;
+	public static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+
+	private static final long TICK_MILLIS = 10;
+	private static final long TICK_NANOS = MILLISECONDS.toNanos(TICK_MILLIS);
+	private static final int WHEEL_SIZE = 512;
+	private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+	private static final int NONE = -1;
+
+	private final int capacity;
+
+	// the entries, linked into the wheel's buckets (or the free list) by next/previous
+	private final Object[] owners;
+	private final long[] ids;
+	private final MessageInfo[] messageInfos;
+	private final long[] deadlines;
+	private final long[] timeouts;
+	private final int[] next;
+	private final int[] previous;
+	private int free;
+	private int size;
+
+	// open addressing id -> entry index
+	private final long[] tableIds;
+	private final int[] tableEntries;
+	private final int tableMask;
+
+	private final int[] wheel = new int[WHEEL_SIZE];
+	private final long startNanos = System.nanoTime();
+	private long expiredTick;
+
+	private final MessageInfo[] expired;
+	private long defaultTimeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+	private Thread timer;
+
+	public ReplyRegistry() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity the maximum number of messages waiting for a reply
+	 */
+	public ReplyRegistry(int capacity) {
+		if(capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive but was " + capacity);
+		}
+		this.capacity = capacity;
+		this.owners = new Object[capacity];
+		this.ids = new long[capacity];
+		this.messageInfos = new MessageInfo[capacity];
+		this.deadlines = new long[capacity];
+		this.timeouts = new long[capacity];
+		this.next = new int[capacity];
+		this.previous = new int[capacity];
+		this.expired = new MessageInfo[capacity];
+		for(int i = 0; i < capacity; i++) {
+			next[i] = i + 1 < capacity ? i + 1 : NONE;
+		}
+		int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+		this.tableIds = new long[tableSize];
+		this.tableEntries = new int[tableSize];
+		this.tableMask = tableSize - 1;
+		Arrays.fill(tableEntries, NONE);
+		Arrays.fill(wheel, NONE);
+	}
+
+	/**
+	 * Registers a message waiting for a reply using the default timeout.
+	 * @param owner
+	 * @param id
+	 * @param messageInfo
+	 * @return false if the maximum number of pending messages is reached
+	 */
+	public boolean register(Object owner, long id, MessageInfo messageInfo) {
+		return register(owner, id, messageInfo, getDefaultTimeout(MILLISECONDS), MILLISECONDS);
+	}
+
+	/**
+	 * Registers a message waiting for a reply. If no reply arrives within
+	 * timeout the message's callback is called with
+	 * {@link IProtocol#REPLY_TIMEOUT}.
+	 * @param owner the session the id belongs to
+	 * @param id
+	 * @param messageInfo
+	 * @param timeout
+	 * @param unit
+	 * @return false if the maximum number of pending messages is reached
+	 * @throws IllegalArgumentException if a message of the owner with this id
+	 * is already waiting for a reply
+	 */
+	public synchronized boolean register(Object owner, long id, MessageInfo messageInfo, long timeout, TimeUnit unit) {
+		checkArgument(indexOf(owner, id) == NONE, "A message with id %s is already waiting for a reply", id);
+		if(free == NONE) {
+			return false;
+		}
+		int entry = free;
+		free = next[entry];
+		owners[entry] = owner;
+		ids[entry] = id;
+		messageInfos[entry] = messageInfo;
+		// round up and skip the current tick which has partly passed already,
+		// a message never expires early
+		long ticks = (unit.toNanos(timeout) + TICK_NANOS - 1) / TICK_NANOS;
+		timeouts[entry] = Math.max(1, ticks);
+		deadlines[entry] = currentTick() + timeouts[entry] + 1;
+		link(entry);
+		put(owner, id, entry);
+		if(size++ == 0) {
+			startOrNotifyTimer();
+		}
+		return true;
+	}
+
+	/**
+	 * Removes the message of the owner waiting for the reply with the given id.
+	 * @param owner
+	 * @param id
+	 * @return the message or null if there is none (e.g. it timed out)
+	 */
+	public synchronized MessageInfo remove(Object owner, long id) {
+		int index = indexOf(owner, id);
+		if(index < 0) {
+			return null;
+		}
+		int entry = tableEntries[index];
+		delete(index);
+		return release(entry);
+	}
+
+	/**
+	 * Starts the timeout of a message again, e.g. when it is written after
+	 * waiting for room in the {@link RequestWindow}.
+	 * @param owner
+	 * @param id
+	 * @return false if there is no message with the id (e.g. it timed out)
+	 */
+	public synchronized boolean restart(Object owner, long id) {
+		int index = indexOf(owner, id);
+		if(index < 0) {
+			return false;
+		}
+		int entry = tableEntries[index];
+		unlink(entry);
+		deadlines[entry] = currentTick() + timeouts[entry] + 1;
+		link(entry);
+		return true;
+	}
+
+	/**
+	 * @param owner
+	 * @param id
+	 * @return true if a message of the owner with the given id is waiting for
+	 * a reply
+	 */
+	public synchronized boolean isRegistered(Object owner, long id) {
+		return indexOf(owner, id) != NONE;
+	}
+
+	/**
+	 * @return the number of messages waiting for a reply
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public synchronized long getDefaultTimeout(TimeUnit unit) {
+		return unit.convert(defaultTimeoutMillis, MILLISECONDS);
+	}
+
+	/**
+	 * Sets the timeout used for messages registered without explicit timeout.
+	 * @param timeout
+	 * @param unit
+	 */
+	public synchronized void setDefaultTimeout(long timeout, TimeUnit unit) {
+		if(timeout <= 0) {
+			throw new IllegalArgumentException("timeout must be positive but was " + timeout);
+		}
+		this.defaultTimeoutMillis = unit.toMillis(timeout);
+	}
+
+	private long currentTick() {
+		return (System.nanoTime() - startNanos) / TICK_NANOS;
+	}
+
+	private void startOrNotifyTimer() {
+		if(timer == null) {
+			expiredTick = currentTick();
+			timer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					runTimer();
+				}
+			}, "ardulink-reply-timeout");
+			timer.setDaemon(true);
+			timer.start();
+		} else {
+			notifyAll();
+		}
+	}
+
+	private void runTimer() {
+		try {
+			while(true) {
+				int count;
+				synchronized(this) {
+					while(size == 0) {
+						wait();
+						// ticks while waiting can not contain entries
+						expiredTick = currentTick();
+					}
+					wait(TICK_MILLIS);
+					count = expire();
+				}
+				for(int i = 0; i < count; i++) {
+					MessageInfo messageInfo = expired[i];
+					expired[i] = null;
+					timedOut(messageInfo);
+				}
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void timedOut(MessageInfo messageInfo) {
+		messageInfo.setReply(IProtocol.REPLY_TIMEOUT);
+		RequestWindow.completed(messageInfo, RequestWindow.TIMED_OUT);
+		try {
+			messageInfo.getCallback().replyInfo(messageInfo);
+		} catch(RuntimeException e) {
+			logger.error("Error calling reply callback of message {}", messageInfo.getMessageID(), e);
+		}
+	}
+
+	/**
+	 * Removes all the entries whose deadline has passed and puts them into expired.
+	 * @return the number of expired entries
+	 */
+	private int expire() {
+		long now = currentTick();
+		// after a full round all buckets have been visited
+		long from = Math.max(expiredTick + 1, now - WHEEL_MASK);
+		int count = 0;
+		for(long tick = from; tick <= now; tick++) {
+			int bucket = (int) (tick & WHEEL_MASK);
+			int entry = wheel[bucket];
+			while(entry != NONE) {
+				int nextEntry = next[entry];
+				if(deadlines[entry] <= now) {
+					delete(indexOf(owners[entry], ids[entry]));
+					expired[count++] = release(entry);
+				}
+				entry = nextEntry;
+			}
+		}
+		expiredTick = now;
+		return count;
+	}
+
+	private void link(int entry) {
+		int bucket = (int) (deadlines[entry] & WHEEL_MASK);
+		int head = wheel[bucket];
+		next[entry] = head;
+		previous[entry] = NONE;
+		if(head != NONE) {
+			previous[head] = entry;
+		}
+		wheel[bucket] = entry;
+	}
+
+	private MessageInfo release(int entry) {
+		unlink(entry);
+		MessageInfo messageInfo = messageInfos[entry];
+		messageInfos[entry] = null;
+		owners[entry] = null;
+		next[entry] = free;
+		free = entry;
+		size--;
+		return messageInfo;
+	}
+
+	private void unlink(int entry) {
+		int nextEntry = next[entry];
+		int previousEntry = previous[entry];
+		if(previousEntry == NONE) {
+			wheel[(int) (deadlines[entry] & WHEEL_MASK)] = nextEntry;
+		} else {
+			next[previousEntry] = nextEntry;
+		}
+		if(nextEntry != NONE) {
+			previous[nextEntry] = previousEntry;
+		}
+	}
+
+	private static int hash(Object owner, long id) {
+		int h = ((int) (id ^ (id >>> 32)) + 31 * System.identityHashCode(owner)) * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private void put(Object owner, long id, int entry) {
+		int index = hash(owner, id) & tableMask;
+		while(tableEntries[index] != NONE) {
+			index = (index + 1) & tableMask;
+		}
+		tableIds[index] = id;
+		tableEntries[index] = entry;
+	}
+
+	private int indexOf(Object owner, long id) {
+		int index = hash(owner, id) & tableMask;
+		while(tableEntries[index] != NONE) {
+			if(tableIds[index] == id && owners[tableEntries[index]] == owner) {
+				return index;
+			}
+			index = (index + 1) & tableMask;
+		}
+		return NONE;
+	}
+
+	/**
+	 * Deletes the table slot at index and moves following entries of the
+	 * probe sequence back so lookups never stop at a gap.
+	 */
+	private void delete(int index) {
+		int gap = index;
+		int current = index;
+		while(true) {
+			current = (current + 1) & tableMask;
+			if(tableEntries[current] == NONE) {
+				break;
+			}
+			int home = hash(owners[tableEntries[current]], tableIds[current]) & tableMask;
+			boolean reachable = gap <= current ? gap < home && home <= current : gap < home || home <= current;
+			if(!reachable) {
+				tableIds[gap] = tableIds[current];
+				tableEntries[gap] = tableEntries[current];
+				gap = current;
+			}
+		}
+		tableEntries[gap] = NONE;
+	}
+
+}
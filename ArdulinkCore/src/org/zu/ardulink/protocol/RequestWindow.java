@@ -0,0 +1,425 @@
+/**
+Copyright 2013 project Ardulink http://www.ardulink.org/
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.zu.ardulink.protocol;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zu.ardulink.util.ByteArrayBuilder;
+
+/**
+ * [ardulinktitle] [ardulinkversion]
+ * Limits the number of messages of a Link that are waiting for a reply
+ * (messages sent with a callback). Arduino's serial buffer is small, if
+ * requests are sent faster than the sketch processes them they are dropped.
+ * Sends beyond the window depending on the {@link Policy} block until a reply
+ * arrives, fail or are queued and written as soon as a reply arrives.
+ * Queued messages are written by a writer thread of the window, so the
+ * threads completing messages (receiving replies, timing them out) never
+ * write. The reply timeout of a message that waited for room starts again
+ * when it is written.
+ * <br/>
+ * If the window is adaptive its size is derived from the reply latency: it
+ * grows by one per window of replies while the latency stays near the
+ * lowest latency seen and shrinks if it rises (requests are queueing up on
+ * the board) or replies time out.
+ * <br/>
+ * The window is unlimited (disabled) by default, it uses the monitor of its
+ * ProtocolSession.
+ *
+ * @author project Ardulink http://www.ardulink.org/
+ * @see ProtocolSession#getRequestWindow()
+ *
+ * [adsense]
+ *
+ */
+public class RequestWindow {
+
+	private static final Logger logger = LoggerFactory.getLogger(RequestWindow.class);
+
+	public enum Policy {
+		/** the sending thread waits until the message fits into the window */
+		BLOCK,
+		/** the message is not sent (MessageInfo#isSent() is false) */
+		FAIL,
+		/** the message is queued and sent when the window has room again */
+		QUEUE
+	}
+
+	public static final int UNLIMITED = Integer.MAX_VALUE;
+
+	// results of admit
+	static final int ACQUIRED = 0;
+	static final int QUEUED = 1;
+	static final int REJECTED = 2;
+
+	// outcomes for completed
+	static final int REPLIED = 0;
+	static final int TIMED_OUT = 1;
+	static final int FAILED = 2;
+
+	// MessageInfo#windowState
+	static final int NONE = 0;
+	private static final int WAITING = 1;
+	private static final int IN_QUEUE = 2;
+	private static final int IN_FLIGHT = 3;
+
+	private final ProtocolSession session;
+	private final LinkedList<Queued> queue = new LinkedList<Queued>();
+	private Thread writer;
+
+	private Policy policy = Policy.BLOCK;
+	private int maxSize = UNLIMITED;
+	private boolean adaptive;
+	private int size = UNLIMITED;
+	private int inFlight;
+	private int waiting;
+	private long rejected;
+
+	private int repliesSinceResize;
+	private long minLatencyNanos = Long.MAX_VALUE;
+	private long smoothedLatencyNanos;
+
+	public RequestWindow(ProtocolSession session) {
+		this.session = session;
+	}
+
+	/**
+	 * Decides if a message sent with a callback may be written now. Must be
+	 * called holding the session's monitor, the monitor is released while
+	 * blocking.
+	 * @param messageInfo
+	 * @param message the encoded message (the session's buffer)
+	 * @param replyRegistry the registry the message is waiting in
+	 * @return ACQUIRED if the message has to be written by the caller (for
+	 *         BLOCK it is written into the buffer again), QUEUED if it will
+	 *         be written later or REJECTED
+	 */
+	int admit(MessageInfo messageInfo, ByteArrayBuilder message, ReplyRegistry replyRegistry) {
+		if(maxSize == UNLIMITED) {
+			return ACQUIRED;
+		}
+		messageInfo.requestWindow = this;
+		if(hasRoom() && queue.isEmpty() && waiting == 0) {
+			startFlight(messageInfo);
+			return ACQUIRED;
+		}
+		switch(policy) {
+		case QUEUE:
+			messageInfo.windowState = IN_QUEUE;
+			queue.add(new Queued(messageInfo, message.toByteArray(), replyRegistry));
+			startWriter();
+			return QUEUED;
+		case BLOCK:
+			return block(messageInfo, message, replyRegistry);
+		default:
+			messageInfo.requestWindow = null;
+			rejected++;
+			return REJECTED;
+		}
+	}
+
+	private int block(MessageInfo messageInfo, ByteArrayBuilder message, ReplyRegistry replyRegistry) {
+		// other threads use the buffer while this one waits
+		byte[] copy = message.toByteArray();
+		messageInfo.windowState = WAITING;
+		waiting++;
+		try {
+			while(messageInfo.windowState == WAITING && !hasRoom()) {
+				session.wait();
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			waiting--;
+		}
+		// the reply timeout starts when the message is written
+		if(messageInfo.windowState != WAITING || !hasRoom()
+				|| !replyRegistry.restart(session, messageInfo.getMessageID())) {
+			// interrupted or timed out while waiting
+			messageInfo.windowState = NONE;
+			messageInfo.requestWindow = null;
+			rejected++;
+			return REJECTED;
+		}
+		startFlight(messageInfo);
+		message.clear().append(copy);
+		return ACQUIRED;
+	}
+
+	private boolean hasRoom() {
+		return inFlight < size;
+	}
+
+	private void startFlight(MessageInfo messageInfo) {
+		messageInfo.windowState = IN_FLIGHT;
+		messageInfo.windowNanos = System.nanoTime();
+		inFlight++;
+	}
+
+	/**
+	 * Called when the message got its reply, timed out or could not be written.
+	 * @param messageInfo
+	 * @param outcome
+	 */
+	static void completed(MessageInfo messageInfo, int outcome) {
+		RequestWindow requestWindow = messageInfo.requestWindow;
+		if(requestWindow != null) {
+			requestWindow.complete(messageInfo, outcome);
+		}
+	}
+
+	private void complete(MessageInfo messageInfo, int outcome) {
+		synchronized(session) {
+			int state = messageInfo.windowState;
+			messageInfo.windowState = NONE;
+			messageInfo.requestWindow = null;
+			if(state == IN_FLIGHT) {
+				inFlight--;
+				adapt(messageInfo, outcome);
+			} else if(state == IN_QUEUE) {
+				remove(messageInfo);
+			}
+			// wakes the writer and the blocked senders
+			session.notifyAll();
+		}
+	}
+
+	private void adapt(MessageInfo messageInfo, int outcome) {
+		if(outcome == REPLIED) {
+			long latency = System.nanoTime() - messageInfo.windowNanos;
+			minLatencyNanos = Math.min(minLatencyNanos, latency);
+			smoothedLatencyNanos = smoothedLatencyNanos == 0 ? latency
+					: smoothedLatencyNanos + (latency - smoothedLatencyNanos) / 8;
+			if(adaptive && ++repliesSinceResize >= size) {
+				repliesSinceResize = 0;
+				if(smoothedLatencyNanos > 2 * minLatencyNanos) {
+					size = Math.max(1, size - 1);
+				} else {
+					size = Math.min(maxSize, size + 1);
+				}
+			}
+		} else if(outcome == TIMED_OUT && adaptive) {
+			repliesSinceResize = 0;
+			size = Math.max(1, size / 2);
+		}
+	}
+
+	private void remove(MessageInfo messageInfo) {
+		for(Iterator<Queued> iterator = queue.iterator(); iterator.hasNext();) {
+			if(iterator.next().messageInfo == messageInfo) {
+				iterator.remove();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Starts the writer if the queue was empty. Must be called holding the
+	 * session's monitor.
+	 */
+	private void startWriter() {
+		if(writer == null) {
+			writer = new Thread("ardulink-request-window") {
+				@Override
+				public void run() {
+					writeQueued();
+				}
+			};
+			writer.setDaemon(true);
+			writer.start();
+		}
+	}
+
+	/**
+	 * Writes the queued messages as the window gets room and stops once the
+	 * queue is empty. If a message can not be written no reply will arrive,
+	 * so its callback is called right away with MessageInfo#isSent() false
+	 * instead of after the timeout.
+	 */
+	private void writeQueued() {
+		while(true) {
+			MessageInfo failed;
+			synchronized(session) {
+				Queued queued = takeQueued();
+				if(queued == null) {
+					writer = null;
+					return;
+				}
+				// the reply timeout starts when the message is written
+				long id = queued.messageInfo.getMessageID();
+				if(!queued.replyRegistry.restart(session, id)
+						|| session.write(queued.message)
+						|| queued.replyRegistry.remove(session, id) == null) {
+					// timed out meanwhile or written
+					continue;
+				}
+				failed = queued.messageInfo;
+				failed.setSent(false);
+				complete(failed, FAILED);
+			}
+			try {
+				failed.getCallback().replyInfo(failed);
+			} catch(RuntimeException e) {
+				logger.error("Error calling reply callback of message {}", failed.getMessageID(), e);
+			}
+		}
+	}
+
+	/**
+	 * Waits until the window has room for the first queued message and
+	 * starts its flight. Must be called holding the session's monitor.
+	 * @return the message or null if the queue is empty (or the writer was interrupted)
+	 */
+	private Queued takeQueued() {
+		try {
+			while(!queue.isEmpty() && !hasRoom()) {
+				session.wait();
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		if(queue.isEmpty()) {
+			return null;
+		}
+		Queued queued = queue.removeFirst();
+		startFlight(queued.messageInfo);
+		return queued;
+	}
+
+	public Policy getPolicy() {
+		synchronized(session) {
+			return policy;
+		}
+	}
+
+	public void setPolicy(Policy policy) {
+		synchronized(session) {
+			this.policy = policy;
+			session.notifyAll();
+		}
+	}
+
+	/**
+	 * @return the maximum number of messages waiting for a reply, UNLIMITED if the window is disabled
+	 */
+	public int getMaxSize() {
+		synchronized(session) {
+			return maxSize;
+		}
+	}
+
+	/**
+	 * Sets the maximum number of messages waiting for a reply.
+	 * @param maxSize the maximum or UNLIMITED to disable the window
+	 */
+	public void setMaxSize(int maxSize) {
+		if(maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize must be positive but was " + maxSize);
+		}
+		synchronized(session) {
+			this.maxSize = maxSize;
+			this.size = adaptive ? Math.min(size, maxSize) : maxSize;
+			session.notifyAll();
+		}
+	}
+
+	public boolean isAdaptive() {
+		synchronized(session) {
+			return adaptive;
+		}
+	}
+
+	/**
+	 * @param adaptive if true the size of the window is derived from the reply
+	 *            latency (between 1 and maxSize), otherwise it's maxSize
+	 */
+	public void setAdaptive(boolean adaptive) {
+		synchronized(session) {
+			this.adaptive = adaptive;
+			this.size = adaptive ? Math.min(maxSize, 1) : maxSize;
+			this.repliesSinceResize = 0;
+		}
+	}
+
+	/**
+	 * @return the current size of the window
+	 */
+	public int getSize() {
+		synchronized(session) {
+			return size;
+		}
+	}
+
+	/**
+	 * @return the number of messages written and waiting for their reply
+	 */
+	public int getInFlight() {
+		synchronized(session) {
+			return inFlight;
+		}
+	}
+
+	/**
+	 * @return the number of messages queued (Policy QUEUE)
+	 */
+	public int getQueued() {
+		synchronized(session) {
+			return queue.size();
+		}
+	}
+
+	/**
+	 * @return the number of messages not sent because the window was full
+	 */
+	public long getRejected() {
+		synchronized(session) {
+			return rejected;
+		}
+	}
+
+	/**
+	 * @param unit
+	 * @return the smoothed reply latency, 0 if there was no reply yet
+	 */
+	public long getLatency(TimeUnit unit) {
+		synchronized(session) {
+			return unit.convert(smoothedLatencyNanos, NANOSECONDS);
+		}
+	}
+
+	private static class Queued {
+
+		private final MessageInfo messageInfo;
+		private final byte[] message;
+		private final ReplyRegistry replyRegistry;
+
+		public Queued(MessageInfo messageInfo, byte[] message, ReplyRegistry replyRegistry) {
+			this.messageInfo = messageInfo;
+			this.message = message;
+			this.replyRegistry = replyRegistry;
+		}
+
+	}
+
+}
@@ -18,182 +18,373 @@ limitations under the License.
 
 package org.zu.ardulink.protocol;
 
+import static org.zu.ardulink.util.Preconditions.checkArgument;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.zu.ardulink.Link;
-import org.zu.ardulink.connection.usb.DigisparkUSBConnection;
-import org.zu.ardulink.event.IncomingMessageEvent;
+import org.zu.ardulink.util.ByteArrayBuilder;
 
 
 /**
  * [ardulinktitle] [ardulinkversion]
  * This is a binary protocol to minimize messages payload. With this protocol tiny devices as Digispark work better
- * than with text protocols as ALProtocol (that is the default).
- * Hovewer this protocol is actually very limited and are implemented only sendPowerPinIntensity and sendPowerPinSwitch
- * methods (without callback feature).
+ * than with text protocols as ALProtocol (that is the default) and a serial link can carry several times
+ * more messages per second.<br/>
+ * <br/>
+ * Each message is a frame of bytes terminated by the divider 255. The first byte is the message type, the
+ * size of the frame is fixed for each type (apart from custom messages). Numbers are split into groups of
+ * 7 bits (most significant first) so no byte but the divider can be 255.<br/>
+ * <br/>
+ * Messages from ardulink to arduino end with the two bytes message id (0 if no reply is requested):<br/>
+ * <br/>
+ * 10 kprs - Key Pressed: &lt;char:3&gt;&lt;key code:3&gt;&lt;key location:3&gt;&lt;key modifiers:3&gt;&lt;key modifiers ex:3&gt;&lt;id:2&gt;<br/>
+ * 11 ppin - Power Pin Intensity: &lt;pin:1&gt;&lt;intensity:2&gt;&lt;id:2&gt;<br/>
+ * 12 ppsw - Power Pin Switch: &lt;pin:1&gt;&lt;power:1&gt;&lt;id:2&gt;<br/>
+ * 13 tone - Tone square wave start: &lt;pin:1&gt;&lt;frequency:3&gt;&lt;duration:3&gt;&lt;id:2&gt; (duration 0: until notn)<br/>
+ * 14 notn - Tone square wave stop: &lt;pin:1&gt;&lt;id:2&gt;<br/>
+ * 15 srld - Start Listening Digital Pin: &lt;pin:1&gt;&lt;id:2&gt;<br/>
+ * 16 spld - Stop Listening Digital Pin: &lt;pin:1&gt;&lt;id:2&gt;<br/>
+ * 17 srla - Start Listening Analog Pin: &lt;pin:1&gt;&lt;id:2&gt;<br/>
+ * 18 spla - Stop Listening Analog Pin: &lt;pin:1&gt;&lt;id:2&gt;<br/>
+ * 19 cust - Custom message: &lt;message bytes&gt;&lt;id:2&gt;<br/>
+ * <br/>
+ * Messages from arduino to ardulink are:<br/>
+ * <br/>
+ * 20 ared - Analog Pin Read: &lt;pin:1&gt;&lt;value:2&gt;<br/>
+ * 21 dred - Digital Pin Read: &lt;pin:1&gt;&lt;value:1&gt;<br/>
+ * 22 rply - reply message: &lt;id:2&gt;&lt;1 ok, 0 ko:1&gt;<br/>
+ * <br/>
+ * e.g. ppin 9 to 255 is 11 9 1 127 0 0 255 (7 bytes) instead of 17 bytes with ALProtocol and
+ * ared 5 1023 is 20 5 7 127 255 (5 bytes) instead of 18.
+ * Since message ids are 14 bits wide at most 16383 messages can wait for a reply.
+ * 
  * @author Luciano Zu project Ardulink http://www.ardulink.org/
  * @see IProtocol
  * [adsense]
  *
  */
-public class SimpleBinaryProtocol implements IProtocol {
+public class SimpleBinaryProtocol extends AbstractProtocol {
 
 	private static final Logger logger = LoggerFactory.getLogger(SimpleBinaryProtocol.class);
 
 	public static final String NAME = "SimpleBinaryProtocol";
 
+	private static final int KEY_PRESS_MESSAGE = 10;
 	private static final int POWER_PIN_INTENSITY_MESSAGE = 11;
 	private static final int POWER_PIN_SWITCH_MESSAGE = 12;
-	
-	private static long nextId = 1;
+	private static final int TONE_MESSAGE = 13;
+	private static final int NO_TONE_MESSAGE = 14;
+	private static final int START_LISTEN_DIGITAL_MESSAGE = 15;
+	private static final int STOP_LISTEN_DIGITAL_MESSAGE = 16;
+	private static final int START_LISTEN_ANALOG_MESSAGE = 17;
+	private static final int STOP_LISTEN_ANALOG_MESSAGE = 18;
+	private static final int CUSTOM_MESSAGE = 19;
+	private static final int ANALOG_READ_MESSAGE = 20;
+	private static final int DIGITAL_READ_MESSAGE = 21;
+	private static final int REPLY_MESSAGE = 22;
+
+	/**
+	 * Terminates each message, the other bytes of a message are 7 bit values.
+	 */
+	public static final int DIVIDER = 255;
+	private static final int BITS_PER_BYTE = 7;
+	private static final int NO_ID = 0;
+	public static final int MAX_MESSAGE_ID = (1 << 2 * BITS_PER_BYTE) - 1;
+
+	public SimpleBinaryProtocol() {
+		this(new ReplyRegistry());
+	}
+
+	/**
+	 * @param replyRegistry holds the messages sent with a callback until Arduino replies, its capacity
+	 * must be less than {@link #MAX_MESSAGE_ID} since the ids are reused
+	 */
+	public SimpleBinaryProtocol(ReplyRegistry replyRegistry) {
+		super(replyRegistry);
+		checkArgument(replyRegistry.getCapacity() < MAX_MESSAGE_ID,
+				"Capacity of the reply registry must be less than %s", MAX_MESSAGE_ID);
+	}
 
 	@Override
 	public MessageInfo sendKeyPressEvent(Link link, char keychar, int keycode, int keylocation, int keymodifiers, int keymodifiersex) {
-		throw new UnsupportedOperationException();
+		return sendKeyPressEvent(link, keychar, keycode, keylocation, keymodifiers, keymodifiersex, null);
 	}
 
 	@Override
 	public MessageInfo sendPowerPinIntensity(Link link, int pin, int intensity) {
-		MessageInfo retvalue = new MessageInfo();
-		synchronized(this) {
-			if(link.isConnected()) {
-				
-				long currentId = nextId++;
-				retvalue.setMessageID(currentId);
-				
-				int[] message = {POWER_PIN_INTENSITY_MESSAGE, pin, intensity};
-				
-				logger.debug("{} {} {}", message[0], message[1], message[2]);
-				
-				boolean result = link.writeSerial(message.length, message);
-				retvalue.setSent(result);
-				retvalue.setMessageSent("unsupported");
-			}
-		}
-
-		return retvalue;
+		return sendPowerPinIntensity(link, pin, intensity, null);
 	}
 
 	@Override
 	public MessageInfo sendPowerPinSwitch(Link link, int pin, int power) {
-		MessageInfo retvalue = new MessageInfo();
-		synchronized(this) {
-			if(link.isConnected()) {
-				
-				long currentId = nextId++;
-				retvalue.setMessageID(currentId);
-				
-				int[] message = {POWER_PIN_SWITCH_MESSAGE, pin, power};
-
-				logger.debug("{} {} {}", message[0], message[1], message[2]);
-				
-				boolean result = link.writeSerial(message.length, message);
-				retvalue.setSent(result);
-				retvalue.setMessageSent("unsupported");
-			}
-		}
-
-		return retvalue;
+		return sendPowerPinSwitch(link, pin, power, null);
 	}
 
 	@Override
 	public MessageInfo sendToneMessage(Link link, int pin, int frequency) {
-		throw new UnsupportedOperationException();
+		return sendToneMessage(link, pin, frequency, null);
 	}
 
 	@Override
 	public MessageInfo sendToneMessage(Link link, int pin, int frequency, int duration) {
-		throw new UnsupportedOperationException();
+		return sendToneMessage(link, pin, frequency, duration, null);
 	}
 
 	@Override
 	public MessageInfo sendNoToneMessage(Link link, int pin) {
-		throw new UnsupportedOperationException();
+		return sendNoToneMessage(link, pin, null);
 	}
 	
 	@Override
 	public MessageInfo sendCustomMessage(Link link, String message) {
-		throw new UnsupportedOperationException();
+		return sendCustomMessage(link, message, null);
 	}
 
 	@Override
 	public MessageInfo sendKeyPressEvent(Link link, char keychar, int keycode, int keylocation, int keymodifiers, int keymodifiersex, ReplyMessageCallback callback) {
-		throw new UnsupportedOperationException();
+		ProtocolSession session = link.getProtocolSession();
+		synchronized (session) {
+			ByteArrayBuilder message = session.newMessage().appendByte(KEY_PRESS_MESSAGE);
+			append(message, keychar, 3);
+			append(message, keycode, 3);
+			append(message, keylocation, 3);
+			append(message, keymodifiers, 3);
+			append(message, keymodifiersex, 3);
+			return send(session, message, callback);
+		}
 	}
 
 	@Override
 	public MessageInfo sendPowerPinIntensity(Link link, int pin, int intensity, ReplyMessageCallback callback) {
-		throw new UnsupportedOperationException();
+		ProtocolSession session = link.getProtocolSession();
+		synchronized (session) {
+			return send(session, appendPowerPinIntensity(session.newMessage(), pin, intensity), callback);
+		}
 	}
 
 	@Override
 	public MessageInfo sendPowerPinSwitch(Link link, int pin, int power, ReplyMessageCallback callback) {
-		throw new UnsupportedOperationException();
+		if(power != POWER_HIGH && power != POWER_LOW) {
+			return new MessageInfo();
+		}
+		ProtocolSession session = link.getProtocolSession();
+		synchronized (session) {
+			return send(session, appendPowerPinSwitch(session.newMessage(), pin, power), callback);
+		}
 	}
 
 	@Override
 	public MessageInfo sendToneMessage(Link link, int pin, int frequency, ReplyMessageCallback callback) {
-		throw new UnsupportedOperationException();
+		return sendToneMessage(link, pin, frequency, ALProtocol.NO_DURATION, callback);
 	}
 
 	@Override
 	public MessageInfo sendToneMessage(Link link, int pin, int frequency, int duration, ReplyMessageCallback callback) {
-		throw new UnsupportedOperationException();
+		ProtocolSession session = link.getProtocolSession();
+		synchronized (session) {
+			return send(session, appendTone(session.newMessage(), pin, frequency, duration), callback);
+		}
 	}
 
 	@Override
 	public MessageInfo sendNoToneMessage(Link link, int pin, ReplyMessageCallback callback) {
-		throw new UnsupportedOperationException();
+		return sendPinMessage(link, NO_TONE_MESSAGE, pin, callback);
 	}
 	
 	@Override
 	public MessageInfo sendCustomMessage(Link link, String message, ReplyMessageCallback callback) {
-		throw new UnsupportedOperationException();
-	}
-
-	@Override
-	public IncomingMessageEvent parseMessage(int[] realMsg) {
-		throw new UnsupportedOperationException();
+		ProtocolSession session = link.getProtocolSession();
+		synchronized (session) {
+			return send(session, appendCustom(session.newMessage(), message), callback);
+		}
 	}
 
 	@Override
 	public MessageInfo startListenDigitalPin(Link link, int pin) {
-		throw new UnsupportedOperationException();
+		return startListenDigitalPin(link, pin, null);
 	}
 
 	@Override
 	public MessageInfo stopListenDigitalPin(Link link, int pin) {
-		throw new UnsupportedOperationException();
+		return stopListenDigitalPin(link, pin, null);
 	}
 
 	@Override
 	public MessageInfo startListenAnalogPin(Link link, int pin) {
-		throw new UnsupportedOperationException();
+		return startListenAnalogPin(link, pin, null);
 	}
 
 	@Override
 	public MessageInfo stopListenAnalogPin(Link link, int pin) {
-		throw new UnsupportedOperationException();
+		return stopListenAnalogPin(link, pin, null);
 	}
 
 	@Override
 	public MessageInfo startListenDigitalPin(Link link, int pin, ReplyMessageCallback callback) {
-		throw new UnsupportedOperationException();
+		return sendPinMessage(link, START_LISTEN_DIGITAL_MESSAGE, pin, callback);
 	}
 
 	@Override
 	public MessageInfo stopListenDigitalPin(Link link, int pin, ReplyMessageCallback callback) {
-		throw new UnsupportedOperationException();
+		return sendPinMessage(link, STOP_LISTEN_DIGITAL_MESSAGE, pin, callback);
 	}
 
 	@Override
 	public MessageInfo startListenAnalogPin(Link link, int pin, ReplyMessageCallback callback) {
-		throw new UnsupportedOperationException();
+		return sendPinMessage(link, START_LISTEN_ANALOG_MESSAGE, pin, callback);
 	}
 
 	@Override
 	public MessageInfo stopListenAnalogPin(Link link, int pin, ReplyMessageCallback callback) {
-		throw new UnsupportedOperationException();
+		return sendPinMessage(link, STOP_LISTEN_ANALOG_MESSAGE, pin, callback);
+	}
+
+	private MessageInfo sendPinMessage(Link link, int type, int pin, ReplyMessageCallback callback) {
+		ProtocolSession session = link.getProtocolSession();
+		synchronized (session) {
+			return send(session, append(session.newMessage().appendByte(type), pin, 1), callback);
+		}
+	}
+
+	@Override
+	protected void appendCommand(ByteArrayBuilder message, Batch batch, int index) {
+		int pin = batch.getArgument(index, 0);
+		switch(batch.getCommand(index)) {
+		case POWER_PIN_INTENSITY:
+			appendPowerPinIntensity(message, pin, batch.getArgument(index, 1));
+			break;
+		case POWER_PIN_SWITCH:
+			appendPowerPinSwitch(message, pin, batch.getArgument(index, 1));
+			break;
+		case TONE:
+			appendTone(message, pin, batch.getArgument(index, 1), batch.getArgument(index, 2));
+			break;
+		case NO_TONE:
+			append(message.appendByte(NO_TONE_MESSAGE), pin, 1);
+			break;
+		case CUSTOM:
+			appendCustom(message, batch.getCustomMessage(index));
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported command " + batch.getCommand(index));
+		}
+	}
+
+	private static ByteArrayBuilder appendPowerPinIntensity(ByteArrayBuilder message, int pin, int intensity) {
+		return append(append(message.appendByte(POWER_PIN_INTENSITY_MESSAGE), pin, 1), intensity, 2);
+	}
+
+	private static ByteArrayBuilder appendPowerPinSwitch(ByteArrayBuilder message, int pin, int power) {
+		return append(append(message.appendByte(POWER_PIN_SWITCH_MESSAGE), pin, 1), power, 1);
+	}
+
+	private static ByteArrayBuilder appendTone(ByteArrayBuilder message, int pin, int frequency, int duration) {
+		append(append(message.appendByte(TONE_MESSAGE), pin, 1), frequency, 3);
+		// 0 means no duration, like tone(pin, frequency, 0) on Arduino
+		return append(message, duration == ALProtocol.NO_DURATION ? 0 : duration, 3);
+	}
+
+	private static ByteArrayBuilder appendCustom(ByteArrayBuilder message, String custom) {
+		int start = message.appendByte(CUSTOM_MESSAGE).length();
+		message.append(custom);
+		byte[] buffer = message.getBuffer();
+		for(int i = start; i < message.length(); i++) {
+			checkArgument((buffer[i] & 0xFF) != DIVIDER, "Custom message %s contains the divider", custom);
+		}
+		return message;
+	}
+
+	/**
+	 * Appends value as big endian groups of 7 bits.
+	 */
+	private static ByteArrayBuilder append(ByteArrayBuilder message, int value, int bytes) {
+		checkArgument(value >= 0 && value < 1 << bytes * BITS_PER_BYTE,
+				"%s doesn't fit into %s bytes", value, bytes);
+		for(int shift = (bytes - 1) * BITS_PER_BYTE; shift >= 0; shift -= BITS_PER_BYTE) {
+			message.appendByte(value >>> shift & 0x7F);
+		}
+		return message;
+	}
+
+	@Override
+	protected long maxMessageId() {
+		return MAX_MESSAGE_ID;
+	}
+
+	@Override
+	protected void complete(ByteArrayBuilder message, long id) {
+		append(message, id == UNDEFINED_ID ? NO_ID : (int) id, 2).appendByte(DIVIDER);
+	}
+
+	@Override
+	protected String toString(ByteArrayBuilder message) {
+		byte[] buffer = message.getBuffer();
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < message.length(); i++) {
+			sb.append(i == 0 ? "" : " ").append(buffer[i] & 0xFF);
+		}
+		return sb.toString();
+	}
+
+	private static String toString(byte[] message, int offset, int length) {
+		StringBuilder sb = new StringBuilder();
+		for(int i = offset; i < offset + length; i++) {
+			sb.append(i == offset ? "" : " ").append(message[i] & 0xFF);
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public void parseMessage(Link link, byte[] message, int offset, int length, IncomingMessageHandler handler) {
+		int type = length > 0 ? message[offset] & 0xFF : -1;
+		if(type == ANALOG_READ_MESSAGE && length == 4) {
+			int pin = decode(message, offset + 1, 1);
+			if(pin >= 0 && !handler.wantsAnalogRead(pin)) {
+				return;
+			}
+			int value = decode(message, offset + 2, 2);
+			if(pin >= 0 && value >= 0) {
+				handler.analogReadChanged(pin, value, message, offset, length);
+				return;
+			}
+		} else if(type == DIGITAL_READ_MESSAGE && length == 3) {
+			int pin = decode(message, offset + 1, 1);
+			if(pin >= 0 && !handler.wantsDigitalRead(pin)) {
+				return;
+			}
+			int value = decode(message, offset + 2, 1);
+			if(pin >= 0 && value >= 0) {
+				handler.digitalReadChanged(pin, value, message, offset, length);
+				return;
+			}
+		} else if(type == REPLY_MESSAGE && length == 4) {
+			int id = decode(message, offset + 1, 2);
+			int result = message[offset + 3] & 0xFF;
+			if(id >= 0) {
+				replied(link, id, result == 1 ? REPLY_OK : result == 0 ? REPLY_KO : UNDEFINED_REPLY,
+						toString(message, offset, length));
+				return;
+			}
+		}
+		logger.error("Arduino sent to me a message in SimpleBinaryProtocol that I don't recognize. Msg: {}",
+				toString(message, offset, length));
+	}
+
+	/**
+	 * Decodes a number of big endian groups of 7 bits.
+	 * @return the number or -1 if a byte is out of range
+	 */
+	private static int decode(byte[] message, int offset, int bytes) {
+		int value = 0;
+		for(int i = offset; i < offset + bytes; i++) {
+			// bytes greater than 0x7F are negative
+			if(message[i] < 0) {
+				return -1;
+			}
+			value = value << BITS_PER_BYTE | message[i];
+		}
+		return value;
 	}
 
 	@Override
@@ -208,11 +399,11 @@ public class SimpleBinaryProtocol implements IProtocol {
 
 	@Override
 	public int getIncomingMessageDivider() {
-		return DigisparkUSBConnection.DEFAULT_DIVIDER;
+		return DIVIDER;
 	}
 
 	@Override
 	public int getOutgoingMessageDivider() {
-		return DigisparkUSBConnection.DEFAULT_DIVIDER;
+		return DIVIDER;
 	}
 }
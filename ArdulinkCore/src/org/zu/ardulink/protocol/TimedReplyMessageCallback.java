@@ -0,0 +1,40 @@
+/**
+Copyright 2013 project Ardulink http://www.ardulink.org/
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.zu.ardulink.protocol;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * [ardulinktitle] [ardulinkversion]
+ * A ReplyMessageCallback that defines how long to wait for the reply of its
+ * message. If Arduino does not reply in time the callback is called with
+ * {@link IProtocol#REPLY_TIMEOUT}. Callbacks not implementing this interface
+ * use the protocol's default timeout.
+ * @author project Ardulink http://www.ardulink.org/
+ * @see ReplyRegistry
+ * [adsense]
+ *
+ */
+public interface TimedReplyMessageCallback extends ReplyMessageCallback {
+
+	/**
+	 * @param unit
+	 * @return the time to wait for the reply in the given unit
+	 */
+	public long getTimeout(TimeUnit unit);
+
+}
@@ -0,0 +1,144 @@
+/**
+Copyright 2013 project Ardulink http://www.ardulink.org/
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.zu.ardulink.util;
+
+import static org.zu.ardulink.util.Strings.fromBytes;
+
+import java.util.Arrays;
+
+/**
+ * [ardulinktitle] [ardulinkversion]
+ * A growable byte array that renders numbers as ASCII digits directly into its
+ * buffer. Once the buffer has grown to the size of the longest message it is
+ * reused without producing any garbage. Characters are encoded as ISO-8859-1
+ * (see {@link Strings#LATIN_1}), those beyond it become '?'. Instances are not
+ * thread safe.
+ *
+ * @author project Ardulink http://www.ardulink.org/
+ *
+ * [adsense]
+ */
+public final class ByteArrayBuilder {
+
+	private byte[] buffer;
+	private int length;
+
+	public ByteArrayBuilder(int initialCapacity) {
+		this.buffer = new byte[initialCapacity];
+	}
+
+	public ByteArrayBuilder clear() {
+		this.length = 0;
+		return this;
+	}
+
+	public ByteArrayBuilder append(byte[] bytes) {
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, this.buffer, this.length, bytes.length);
+		this.length += bytes.length;
+		return this;
+	}
+
+	/**
+	 * Appends a single byte, e.g. of a binary message.
+	 * @param b the byte's value, only the lowest 8 bits are used
+	 */
+	public ByteArrayBuilder appendByte(int b) {
+		ensureCapacity(1);
+		this.buffer[this.length++] = (byte) b;
+		return this;
+	}
+
+	/**
+	 * Appends a character encoded as ISO-8859-1.
+	 */
+	public ByteArrayBuilder append(char c) {
+		ensureCapacity(1);
+		this.buffer[this.length++] = latin1(c);
+		return this;
+	}
+
+	/**
+	 * Appends the characters of string encoded as ISO-8859-1.
+	 */
+	public ByteArrayBuilder append(String string) {
+		int len = string.length();
+		ensureCapacity(len);
+		for (int i = 0; i < len; i++) {
+			this.buffer[this.length++] = latin1(string.charAt(i));
+		}
+		return this;
+	}
+
+	private static byte latin1(char c) {
+		return (byte) (c <= 0xFF ? c : '?');
+	}
+
+	/**
+	 * Appends the decimal representation of value (like
+	 * {@link StringBuilder#append(long)} does) without creating a String.
+	 */
+	public ByteArrayBuilder append(long value) {
+		// working with negative numbers avoids the overflow of Long.MIN_VALUE
+		long negative = value < 0 ? value : -value;
+		int digits = 1;
+		for (long rest = negative; rest <= -10; rest /= 10) {
+			digits++;
+		}
+		ensureCapacity(value < 0 ? digits + 1 : digits);
+		if (value < 0) {
+			this.buffer[this.length++] = '-';
+		}
+		int pos = this.length + digits;
+		do {
+			this.buffer[--pos] = (byte) ('0' - negative % 10);
+			negative /= 10;
+		} while (negative != 0);
+		this.length += digits;
+		return this;
+	}
+
+	/**
+	 * @return the internal buffer, valid from index 0 to {@link #length()}
+	 *         (exclusive). It is reused and overwritten by subsequent appends.
+	 */
+	public byte[] getBuffer() {
+		return this.buffer;
+	}
+
+	public int length() {
+		return this.length;
+	}
+
+	public byte[] toByteArray() {
+		return Arrays.copyOf(this.buffer, this.length);
+	}
+
+	@Override
+	public String toString() {
+		return fromBytes(this.buffer, 0, this.length);
+	}
+
+	private void ensureCapacity(int additional) {
+		int required = this.length + additional;
+		if (required > this.buffer.length) {
+			this.buffer = Arrays.copyOf(this.buffer,
+					Math.max(required, this.buffer.length * 2));
+		}
+	}
+
+}
@@ -0,0 +1,190 @@
+/**
+Copyright 2013 project Ardulink http://www.ardulink.org/
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+ */
+package org.zu.ardulink.util;
+
+/**
+ * [ardulinktitle] [ardulinkversion]
+ * Consistent Overhead Byte Stuffing: encodes a frame of arbitrary bytes so
+ * that it doesn't contain the delimiter any more. The overhead is one byte
+ * per started block of 254 bytes, at most {@link #maxEncodedLength(int)}.
+ * Plain COBS removes the value 0, to remove another delimiter (e.g. the
+ * divider 255) every encoded byte is additionally XORed with it.
+ * Neither encoding nor decoding allocate memory.
+ *
+ * @author project Ardulink http://www.ardulink.org/
+ *
+ * [adsense]
+ */
+public final class Cobs {
+
+	private static final int MAX_BLOCK = 0xFF;
+
+	private Cobs() {
+		super();
+	}
+
+	/**
+	 * @param length length of the unencoded frame
+	 * @return the maximum length of the encoded frame (without delimiter)
+	 */
+	public static int maxEncodedLength(int length) {
+		return length + length / (MAX_BLOCK - 1) + 1;
+	}
+
+	/**
+	 * Encodes the frame in source from offset to offset + length into
+	 * destination. The delimiter is not appended.
+	 * 
+	 * @param source
+	 *            the bytes of the frame (only the lowest 8 bits are used)
+	 * @param offset
+	 * @param length
+	 * @param destination
+	 *            has to have room for {@link #maxEncodedLength(int)} bytes
+	 *            starting at destinationOffset
+	 * @param destinationOffset
+	 * @param delimiter
+	 *            the byte that must not appear in the encoded frame
+	 * @return the length of the encoded frame
+	 */
+	public static int encode(int[] source, int offset, int length,
+			byte[] destination, int destinationOffset, int delimiter) {
+		return encode(source, null, offset, length, destination,
+				destinationOffset, delimiter);
+	}
+
+	/**
+	 * Byte variant of {@link #encode(int[], int, int, byte[], int, int)}.
+	 */
+	public static int encode(byte[] source, int offset, int length,
+			byte[] destination, int destinationOffset, int delimiter) {
+		return encode(null, source, offset, length, destination,
+				destinationOffset, delimiter);
+	}
+
+	/**
+	 * Encodes either intSource or byteSource (the other one is null).
+	 */
+	private static int encode(int[] intSource, byte[] byteSource, int offset,
+			int length, byte[] destination, int destinationOffset, int delimiter) {
+		int codeIndex = destinationOffset;
+		int write = destinationOffset + 1;
+		int code = 1;
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			int b = (intSource == null ? byteSource[i] : intSource[i]) & 0xFF;
+			if (b == 0) {
+				destination[codeIndex] = (byte) (code ^ delimiter);
+				codeIndex = write++;
+				code = 1;
+			} else {
+				destination[write++] = (byte) (b ^ delimiter);
+				// a full block without a zero, start a new one if there is more
+				if (++code == MAX_BLOCK && i + 1 < end) {
+					destination[codeIndex] = (byte) (code ^ delimiter);
+					codeIndex = write++;
+					code = 1;
+				}
+			}
+		}
+		destination[codeIndex] = (byte) (code ^ delimiter);
+		return write - destinationOffset;
+	}
+
+	/**
+	 * @param length length of the unencoded frames including their delimiters
+	 * @return the maximum length of the frames encoded by
+	 *         {@link #encodeFrames(byte[], int, int, byte[], int, int)}
+	 */
+	public static int maxEncodedFramesLength(int length) {
+		return 2 * length + length / (MAX_BLOCK - 1) + 2;
+	}
+
+	/**
+	 * Encodes the frames in source, each one terminated by the delimiter, into
+	 * destination. Every encoded frame is followed by the delimiter, a trailing
+	 * frame without delimiter is terminated as well.
+	 * 
+	 * @param source
+	 *            the frames as written by the protocols
+	 * @param offset
+	 * @param length
+	 * @param destination
+	 *            has to have room for {@link #maxEncodedFramesLength(int)}
+	 *            bytes starting at destinationOffset
+	 * @param destinationOffset
+	 * @param delimiter
+	 * @return the length of the encoded frames
+	 */
+	public static int encodeFrames(byte[] source, int offset, int length,
+			byte[] destination, int destinationOffset, int delimiter) {
+		int write = destinationOffset;
+		int start = offset;
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			if ((source[i] & 0xFF) == delimiter) {
+				write += encode(source, start, i - start, destination, write,
+						delimiter);
+				destination[write++] = (byte) delimiter;
+				start = i + 1;
+			}
+		}
+		if (start < end) {
+			write += encode(source, start, end - start, destination, write,
+					delimiter);
+			destination[write++] = (byte) delimiter;
+		}
+		return write - destinationOffset;
+	}
+
+	/**
+	 * Decodes a frame in place (the decoded frame is never longer than the
+	 * encoded one).
+	 * 
+	 * @param frame
+	 *            the encoded bytes without delimiter
+	 * @param offset
+	 * @param length
+	 * @param delimiter
+	 *            the delimiter the frame was encoded for
+	 * @return the length of the decoded frame starting at offset or -1 if the
+	 *         frame is malformed
+	 */
+	public static int decode(byte[] frame, int offset, int length, int delimiter) {
+		int read = offset;
+		int write = offset;
+		int end = offset + length;
+		while (read < end) {
+			int code = (frame[read++] ^ delimiter) & 0xFF;
+			if (code == 0 || read + code - 1 > end) {
+				return -1;
+			}
+			for (int i = 1; i < code; i++) {
+				int b = (frame[read++] ^ delimiter) & 0xFF;
+				if (b == 0) {
+					return -1;
+				}
+				frame[write++] = (byte) b;
+			}
+			if (code != MAX_BLOCK && read < end) {
+				frame[write++] = 0;
+			}
+		}
+		return write - offset;
+	}
+
+}
@@ -0,0 +1,212 @@
+/**
+Copyright 2013 project Ardulink http://www.ardulink.org/
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.zu.ardulink.util;
+
+import static org.zu.ardulink.util.Preconditions.checkArgument;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * [ardulinktitle] [ardulinkversion]
+ * Runs tasks on a fixed number of worker threads, each task on the worker
+ * its key (e.g. a pin) maps to. Tasks with the same key are run one after
+ * the other in the order they were submitted, tasks with different keys may
+ * run in parallel.
+ * <p>
+ * Each worker queues up to a fixed number of tasks. When the queue of a
+ * worker is full the thread submitting a task waits until the worker took
+ * one, so a producer faster than the tasks is slowed down instead of
+ * filling the heap. {@link #getBacklog()} tells how many tasks are queued.
+ *
+ * @author project Ardulink http://www.ardulink.org/
+ *
+ * [adsense]
+ *
+ */
+public class PartitionedExecutor {
+
+	private static final Logger logger = LoggerFactory.getLogger(PartitionedExecutor.class);
+
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private final ExecutorService[] workers;
+	private final Semaphore[] room;
+	private final int capacity;
+
+	/**
+	 * @param workers
+	 *            the number of worker threads
+	 * @param name
+	 *            prefix of the worker threads' names
+	 */
+	public PartitionedExecutor(int workers, String name) {
+		this(workers, DEFAULT_CAPACITY, name);
+	}
+
+	/**
+	 * @param workers
+	 *            the number of worker threads
+	 * @param capacity
+	 *            the maximum number of tasks queued per worker
+	 * @param name
+	 *            prefix of the worker threads' names
+	 */
+	public PartitionedExecutor(int workers, int capacity, final String name) {
+		checkArgument(workers > 0, "workers must be positive but was %s", workers);
+		checkArgument(capacity > 0, "capacity must be positive but was %s", capacity);
+		this.workers = new ExecutorService[workers];
+		this.room = new Semaphore[workers];
+		this.capacity = capacity;
+		for (int i = 0; i < workers; i++) {
+			this.room[i] = new Semaphore(capacity);
+			final String threadName = name + "-" + i;
+			this.workers[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, threadName);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Runs the task on the worker of the key, waits while the worker's queue
+	 * is full. A task throwing an exception is logged, the following tasks
+	 * are run anyway.
+	 * @param key
+	 * @param task
+	 * @throws RejectedExecutionException
+	 *             if the executor was shut down or the calling thread was
+	 *             interrupted while waiting
+	 */
+	public void execute(int key, final Runnable task) {
+		int index = (key & Integer.MAX_VALUE) % workers.length;
+		final Semaphore workerRoom = room[index];
+		try {
+			workerRoom.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException("Interrupted waiting for the worker's queue", e);
+		}
+		try {
+			workers[index].execute(new Runnable() {
+				@Override
+				public void run() {
+					workerRoom.release();
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						logger.error("Error running a task", e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			workerRoom.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the number of worker threads
+	 */
+	public int getWorkers() {
+		return workers.length;
+	}
+
+	/**
+	 * @return the maximum number of tasks queued per worker
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the number of tasks submitted but not yet started by the
+	 *         workers
+	 */
+	public int getBacklog() {
+		int backlog = 0;
+		for (Semaphore workerRoom : room) {
+			backlog += capacity - workerRoom.availablePermits();
+		}
+		return backlog;
+	}
+
+	/**
+	 * Waits until the tasks submitted so far are run. After a
+	 * {@link #shutdown()} waits for the termination.
+	 * @param timeout
+	 * @param unit
+	 * @return true if the tasks were run, false if the timeout elapsed
+	 * @throws InterruptedException
+	 */
+	public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+		final CountDownLatch idle = new CountDownLatch(workers.length);
+		for (ExecutorService worker : workers) {
+			try {
+				worker.execute(new Runnable() {
+					@Override
+					public void run() {
+						idle.countDown();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				return awaitTermination(timeout, unit);
+			}
+		}
+		return idle.await(timeout, unit);
+	}
+
+	/**
+	 * Runs the tasks already submitted and stops the workers. Tasks
+	 * submitted afterwards are rejected.
+	 */
+	public void shutdown() {
+		for (ExecutorService worker : workers) {
+			worker.shutdown();
+		}
+	}
+
+	/**
+	 * Waits until all the tasks are run after a {@link #shutdown()}.
+	 * @param timeout
+	 * @param unit
+	 * @return true if all the workers stopped, false if the timeout elapsed
+	 * @throws InterruptedException
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (ExecutorService worker : workers) {
+			if (!worker.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
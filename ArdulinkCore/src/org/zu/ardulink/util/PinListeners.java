@@ -0,0 +1,162 @@
+/**
+Copyright 2013 project Ardulink http://www.ardulink.org/
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.zu.ardulink.util;
+
+import static org.zu.ardulink.util.Preconditions.checkArgument;
+import static org.zu.ardulink.util.Preconditions.checkNotNull;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+
+/**
+ * [ardulinktitle] [ardulinkversion]
+ * The listeners registered per pin (plus the ones listening to all pins) as
+ * arrays indexed by pin. Every change copies the arrays changed and
+ * publishes them, so reading the listeners of a pin needs neither a lock
+ * nor an allocation. Changes are synchronized on the instance, they are
+ * expected to be rare compared to the reads.
+ * <br/>
+ * Like a set a listener is registered only once per pin.
+ *
+ * @author project Ardulink http://www.ardulink.org/
+ *
+ * [adsense]
+ *
+ */
+public class PinListeners<T> {
+
+	private final int allPins;
+	private final T[] none;
+
+	// never changed once published
+	private volatile T[][] byPin;
+	private volatile T[] all;
+
+	/**
+	 * @param type
+	 *            the type of the listeners
+	 * @param allPins
+	 *            the pin number meaning all pins
+	 */
+	@SuppressWarnings("unchecked")
+	public PinListeners(Class<T> type, int allPins) {
+		this.allPins = allPins;
+		this.none = (T[]) Array.newInstance(type, 0);
+		this.byPin = (T[][]) Array.newInstance(none.getClass(), 0);
+		this.all = none;
+	}
+
+	/**
+	 * @param pin
+	 * @return the listeners registered for the pin (not the ones of all
+	 *         pins), the array must not be changed
+	 */
+	public T[] listeners(int pin) {
+		T[][] listeners = byPin;
+		return pin >= 0 && pin < listeners.length ? listeners[pin] : none;
+	}
+
+	/**
+	 * @return the listeners registered for all pins, the array must not be
+	 *         changed
+	 */
+	public T[] allPinListeners() {
+		return all;
+	}
+
+	/**
+	 * @param pin
+	 * @return true if a listener is registered for the pin or for all pins
+	 */
+	public boolean hasListeners(int pin) {
+		return listeners(pin).length > 0 || all.length > 0;
+	}
+
+	/**
+	 * @param pin
+	 * @return true if no listener is registered for the pin
+	 */
+	public boolean isEmpty(int pin) {
+		return registered(pin).length == 0;
+	}
+
+	/**
+	 * @param pin
+	 * @param listener
+	 * @return true if the listener was not registered for the pin before
+	 */
+	public synchronized boolean add(int pin, T listener) {
+		checkNotNull(listener, "listener must not be null");
+		T[] listeners = registered(checkPin(pin));
+		if (indexOf(listeners, listener) >= 0) {
+			return false;
+		}
+		T[] changed = Arrays.copyOf(listeners, listeners.length + 1);
+		changed[listeners.length] = listener;
+		publish(pin, changed);
+		return true;
+	}
+
+	/**
+	 * @param pin
+	 * @param listener
+	 * @return true if the listener was registered for the pin
+	 */
+	public synchronized boolean remove(int pin, T listener) {
+		T[] listeners = registered(checkPin(pin));
+		int index = indexOf(listeners, listener);
+		if (index < 0) {
+			return false;
+		}
+		T[] changed = Arrays.copyOf(listeners, listeners.length - 1);
+		System.arraycopy(listeners, index + 1, changed, index, changed.length - index);
+		publish(pin, changed);
+		return true;
+	}
+
+	private T[] registered(int pin) {
+		return pin == allPins ? all : listeners(pin);
+	}
+
+	private int checkPin(int pin) {
+		checkArgument(pin >= 0 || pin == allPins, "pin must not be negative but was %s", pin);
+		return pin;
+	}
+
+	private void publish(int pin, T[] listeners) {
+		if (pin == allPins) {
+			all = listeners;
+			return;
+		}
+		T[][] changed = Arrays.copyOf(byPin, Math.max(byPin.length, pin + 1));
+		for (int i = byPin.length; i < changed.length; i++) {
+			changed[i] = none;
+		}
+		changed[pin] = listeners.length == 0 ? none : listeners;
+		byPin = changed;
+	}
+
+	private static int indexOf(Object[] listeners, Object listener) {
+		for (int i = 0; i < listeners.length; i++) {
+			if (listeners[i].equals(listener)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+}
@@ -1,5 +1,7 @@
 package org.zu.ardulink.util;
 
+import java.nio.charset.Charset;
+
 /**
  * [ardulinktitle] [ardulinkversion]
  * @author Peter Fichtner
@@ -8,6 +10,11 @@ package org.zu.ardulink.util;
  */
 public final class Strings {
 
+	/**
+	 * Maps every byte to the char with the same value (0-255).
+	 */
+	public static final Charset LATIN_1 = Charset.forName("ISO-8859-1");
+
 	private Strings() {
 		super();
 	}
@@ -16,4 +23,12 @@ public final class Strings {
 		return string == null || string.isEmpty();
 	}
 
+	/**
+	 * Creates a String having one char per byte like
+	 * {@link String#String(int[], int, int)} does for codepoints 0-255.
+	 */
+	public static String fromBytes(byte[] bytes, int offset, int length) {
+		return new String(bytes, offset, length, LATIN_1);
+	}
+
 }
@@ -0,0 +1,339 @@
+package org.zu.ardulink;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+import org.zu.ardulink.connection.serial.AbstractSerialConnection;
+import org.zu.ardulink.event.AnalogReadChangeEvent;
+import org.zu.ardulink.event.AnalogReadChangeListener;
+import org.zu.ardulink.event.IntPinListener;
+import org.zu.ardulink.protocol.ALProtocol;
+
+public class ConnectionContactTest {
+
+	private static final String LINKNAME = "connectioncontacttest";
+
+	private static final int PINS = 8;
+
+	private final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+	private final AbstractSerialConnection connection = new AbstractSerialConnection() {
+
+		{
+			setOutputStream(outputStream);
+		}
+
+		@Override
+		public List<String> getPortList() {
+			return Collections.singletonList("/dev/null");
+		}
+
+		@Override
+		public boolean disconnect() {
+			setConnected(false);
+			return isConnected();
+		}
+
+		@Override
+		public boolean connect(Object... params) {
+			setConnected(true);
+			return isConnected();
+		}
+	};
+
+	private final Link link = Link.createInstance(LINKNAME, ALProtocol.NAME,
+			connection);
+
+	@After
+	public void tearDown() {
+		link.disableListenerWorkers();
+		Link.destroyInstance(LINKNAME);
+	}
+
+	@Test
+	public void intPinListenersReceiveValuesWithoutEvents()
+			throws InterruptedException {
+		final List<String> values = new ArrayList<String>();
+		IntPinListener listener = new IntPinListener() {
+			@Override
+			public void onValue(int pin, int value, long nanoTime) {
+				values.add(pin + "=" + value);
+			}
+
+			@Override
+			public int getPinListening() {
+				return 5;
+			}
+		};
+		link.connect();
+		link.addAnalogIntPinListener(listener);
+		link.addDigitalIntPinListener(new IntPinListener() {
+			@Override
+			public void onValue(int pin, int value, long nanoTime) {
+				values.add("d" + pin + "=" + value);
+			}
+
+			@Override
+			public int getPinListening() {
+				return ALL_PINS;
+			}
+		});
+		receive("alp://ared/5/1023");
+		receive("alp://ared/6/1");
+		receive("alp://dred/7/1");
+		assertThat(values, is(Arrays.asList("5=1023", "d7=1")));
+		assertThat(new String(outputStream.toByteArray()), is("alp://srla/5\n"));
+		link.removeAnalogIntPinListener(listener);
+		assertThat(new String(outputStream.toByteArray()),
+				is("alp://srla/5\nalp://spla/5\n"));
+	}
+
+	@Test
+	public void rawFrameListenersReceiveFramesInPlace() {
+		final List<String> frames = new ArrayList<String>();
+		RawFrameListener listener = new RawFrameListener() {
+			@Override
+			public void frameReceived(String id, byte[] frame, int offset,
+					int length) {
+				frames.add(id + " " + new String(frame, offset, length));
+			}
+		};
+		assertThat(link.addRawFrameListener(listener), is(true));
+		assertThat(link.addRawFrameListener(listener), is(false));
+		byte[] buffer = "xxalp://ared/5/1023yy".getBytes();
+		connection.getContact().parseInput(LINKNAME, buffer, 2, 17);
+		assertThat(frames, is(Arrays.asList(LINKNAME + " alp://ared/5/1023")));
+		assertThat(link.removeRawFrameListener(listener), is(true));
+		assertThat(link.removeRawFrameListener(listener), is(false));
+		receive("alp://ared/5/1");
+		assertThat(frames.size(), is(1));
+	}
+
+	@Test
+	public void parsedFrameListenersReceiveWhatTheFramesWere() {
+		final List<String> frames = new ArrayList<String>();
+		link.addParsedFrameListener(new ParsedFrameListener() {
+			@Override
+			public void frameParsed(String id, byte[] frame, int offset,
+					int length, FrameType type, int pin) {
+				frames.add(new String(frame, offset, length) + " " + type + " "
+						+ pin);
+			}
+		});
+		// nobody listens to the pins, the frames are classified anyway
+		receive("alp://ared/5/1023");
+		receive("alp://dred/7/1");
+		receive("alp://rply/ok?id=1");
+		assertThat(frames, is(Arrays.asList(
+				"alp://ared/5/1023 ANALOG_READ 5",
+				"alp://dred/7/1 DIGITAL_READ 7",
+				"alp://rply/ok?id=1 OTHER -1")));
+	}
+
+	@Test
+	public void intPinListenersDontAllocate() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory
+				.getThreadMXBean();
+		assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+		final long[] sum = new long[1];
+		link.addAnalogIntPinListener(new IntPinListener() {
+			@Override
+			public void onValue(int pin, int value, long nanoTime) {
+				sum[0] += value;
+			}
+
+			@Override
+			public int getPinListening() {
+				return 5;
+			}
+		});
+		byte[] message = "alp://ared/5/1023".getBytes();
+		ConnectionContact contact = connection.getContact();
+		int parses = 10000;
+		for (int i = 0; i < parses; i++) {
+			contact.parseInput(LINKNAME, message, 0, message.length);
+		}
+		long threadId = Thread.currentThread().getId();
+		long before = threadBean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < parses; i++) {
+			contact.parseInput(LINKNAME, message, 0, message.length);
+		}
+		long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+		assertTrue("allocated " + allocated + " bytes", allocated < parses);
+		assertThat(sum[0], is(2L * parses * 1023));
+	}
+
+	@Test
+	public void workersKeepTheOrderOfEachPin() throws InterruptedException {
+		List<RecordingListener> listeners = addListeners(0);
+		link.enableListenerWorkers(3);
+		int values = 500;
+		for (int value = 0; value < values; value++) {
+			for (int pin = 0; pin < PINS; pin++) {
+				receive("alp://ared/" + pin + "/" + value);
+			}
+		}
+		assertTrue(link.awaitListeners(10, SECONDS));
+		for (RecordingListener listener : listeners) {
+			assertThat(listener.values.size(), is(values));
+			for (int value = 0; value < values; value++) {
+				assertThat(listener.values.get(value), is(value));
+			}
+		}
+	}
+
+	@Test
+	public void replacingTheWorkersKeepsTheOrderOfEachPin()
+			throws InterruptedException {
+		List<RecordingListener> listeners = addListeners(MILLISECONDS
+				.toNanos(1) / 20);
+		link.enableListenerWorkers(1);
+		int values = 200;
+		for (int value = 0; value < values; value++) {
+			if (value == values / 2) {
+				link.enableListenerWorkers(PINS);
+			}
+			for (int pin = 0; pin < PINS; pin++) {
+				receive("alp://ared/" + pin + "/" + value);
+			}
+		}
+		assertTrue(link.awaitListeners(10, SECONDS));
+		for (RecordingListener listener : listeners) {
+			assertThat(listener.values.size(), is(values));
+			for (int value = 0; value < values; value++) {
+				assertThat(listener.values.get(value), is(value));
+			}
+		}
+	}
+
+	@Test
+	public void fullWorkerQueuesHoldBackTheReception()
+			throws InterruptedException {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		RecordingListener listener = new RecordingListener(0) {
+			@Override
+			public void stateChanged(AnalogReadChangeEvent e) {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e1) {
+					Thread.currentThread().interrupt();
+				}
+				super.stateChanged(e);
+			}
+		};
+		link.addAnalogReadChangeListener(listener);
+		link.enableListenerWorkers(1, 2);
+		final int values = 5;
+		Thread receiver = new Thread() {
+			@Override
+			public void run() {
+				for (int value = 0; value < values; value++) {
+					receive("alp://ared/0/" + value);
+				}
+			}
+		};
+		receiver.start();
+		assertTrue(started.await(10, SECONDS));
+		receiver.join(200);
+		assertTrue(receiver.isAlive());
+		assertThat(link.getListenerBacklog(), is(2));
+		release.countDown();
+		receiver.join(10000);
+		assertTrue(link.awaitListeners(10, SECONDS));
+		assertThat(link.getListenerBacklog(), is(0));
+		assertThat(listener.values, is(Arrays.asList(0, 1, 2, 3, 4)));
+	}
+
+	@Test
+	public void listenersOfDifferentPinsRunInParallel()
+			throws InterruptedException {
+		final CountDownLatch allRunning = new CountDownLatch(PINS);
+		final AtomicInteger overlapping = new AtomicInteger();
+		for (int pin = 0; pin < PINS; pin++) {
+			link.addAnalogReadChangeListener(new RecordingListener(pin) {
+				@Override
+				public void stateChanged(AnalogReadChangeEvent e) {
+					allRunning.countDown();
+					try {
+						// only returns in time if the other pins' listeners run meanwhile
+						if (allRunning.await(10, SECONDS)) {
+							overlapping.incrementAndGet();
+						}
+					} catch (InterruptedException e1) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+		}
+		link.enableListenerWorkers(PINS);
+		for (int pin = 0; pin < PINS; pin++) {
+			receive("alp://ared/" + pin + "/1");
+		}
+		assertTrue(link.awaitListeners(30, SECONDS));
+		assertThat(overlapping.get(), is(PINS));
+	}
+
+	private List<RecordingListener> addListeners(final long busyNanos) {
+		List<RecordingListener> listeners = new ArrayList<RecordingListener>();
+		for (int pin = 0; pin < PINS; pin++) {
+			RecordingListener listener = new RecordingListener(pin) {
+				@Override
+				public void stateChanged(AnalogReadChangeEvent e) {
+					long end = System.nanoTime() + busyNanos;
+					while (System.nanoTime() < end) {
+						// burn CPU
+					}
+					super.stateChanged(e);
+				}
+			};
+			link.addAnalogReadChangeListener(listener);
+			listeners.add(listener);
+		}
+		return listeners;
+	}
+
+	private void receive(String message) {
+		byte[] bytes = message.getBytes();
+		connection.getContact().parseInput(LINKNAME, bytes, 0, bytes.length);
+	}
+
+	private static class RecordingListener implements AnalogReadChangeListener {
+
+		private final int pin;
+		private final List<Integer> values = new ArrayList<Integer>();
+
+		public RecordingListener(int pin) {
+			this.pin = pin;
+		}
+
+		@Override
+		public void stateChanged(AnalogReadChangeEvent e) {
+			values.add(e.getValue());
+		}
+
+		@Override
+		public int getPinListening() {
+			return pin;
+		}
+
+	}
+
+}
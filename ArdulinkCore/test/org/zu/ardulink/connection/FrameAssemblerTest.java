@@ -0,0 +1,135 @@
+package org.zu.ardulink.connection;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.zu.ardulink.connection.FrameAssembler.FrameHandler;
+
+public class FrameAssemblerTest {
+
+	private static final int DIVIDER = 255;
+
+	private final List<String> frames = new ArrayList<String>();
+
+	private final FrameHandler handler = new FrameHandler() {
+		@Override
+		public void frameReceived(byte[] buffer, int offset, int length) {
+			StringBuilder sb = new StringBuilder();
+			for (int i = offset; i < offset + length; i++) {
+				sb.append(i == offset ? "" : " ").append(buffer[i] & 0xFF);
+			}
+			frames.add(sb.toString());
+		}
+	};
+
+	@Test
+	public void completesFramesSplitAcrossReads() throws IOException {
+		FrameAssembler assembler = new FrameAssembler(DIVIDER, handler);
+		InputStream in = new ChunkedInputStream(bytes(1, 2, DIVIDER, 3, 4, 5,
+				DIVIDER, DIVIDER, 6, 254, DIVIDER), 2);
+		while (assembler.readFrom(in) >= 0) {
+			// read all
+		}
+		assertThat(frames, is(Arrays.asList("1 2", "3 4 5", "6 254")));
+	}
+
+	@Test
+	public void passesFramesOfSingleBytes() {
+		FrameAssembler assembler = new FrameAssembler(DIVIDER, handler);
+		for (byte b : bytes(7, 8, DIVIDER, 9)) {
+			assembler.append(b);
+		}
+		assertThat(frames, is(Arrays.asList("7 8")));
+		assembler.append((byte) DIVIDER);
+		assertThat(frames, is(Arrays.asList("7 8", "9")));
+	}
+
+	@Test
+	public void dropsOverlongFramesAndResyncs() {
+		FrameAssembler assembler = new FrameAssembler(DIVIDER, 3, handler);
+		assembler.append(bytes(1, 2, 3, DIVIDER, 1, 2, 3, 4, 5, 6, 7, DIVIDER,
+				4, DIVIDER), 0, 14);
+		assertThat(frames, is(Arrays.asList("1 2 3", "4")));
+		assertThat(assembler.getDroppedFrames(), is(1L));
+	}
+
+	@Test
+	public void growsForLongFrames() {
+		int length = 5000;
+		FrameAssembler assembler = new FrameAssembler(DIVIDER, length, handler);
+		int capacity = assembler.getCapacity();
+		byte[] frame = new byte[length + 1];
+		Arrays.fill(frame, (byte) 1);
+		frame[length] = (byte) DIVIDER;
+		for (int i = 0; i < frame.length; i += 100) {
+			assembler.append(frame, i, Math.min(100, frame.length - i));
+		}
+		assertThat(frames.size(), is(1));
+		assertThat(frames.get(0).length(), is(2 * length - 1));
+		assertThat(assembler.getCapacity() > capacity, is(true));
+	}
+
+	@Test
+	public void doesNotGrowForShortFrames() {
+		FrameAssembler assembler = new FrameAssembler(DIVIDER, handler);
+		int capacity = assembler.getCapacity();
+		byte[] frame = bytes(1, 2, 3, 4, 5, 6, DIVIDER);
+		for (int i = 0; i < 10000; i++) {
+			assembler.append(frame, i % 3, frame.length - i % 3);
+			assembler.append(frame, 0, i % 3);
+		}
+		assertThat(assembler.getCapacity(), is(capacity));
+		assertThat(assembler.getDroppedFrames(), is(0L));
+	}
+
+	@Test
+	public void passesSlicesOfTheBuffer() throws IOException {
+		final List<byte[]> buffers = new ArrayList<byte[]>();
+		FrameAssembler assembler = new FrameAssembler(DIVIDER,
+				new FrameHandler() {
+					@Override
+					public void frameReceived(byte[] buffer, int offset,
+							int length) {
+						buffers.add(buffer);
+						assertThat(buffer[offset + length] & 0xFF, is(DIVIDER));
+					}
+				});
+		assembler.readFrom(new ByteArrayInputStream(bytes(1, DIVIDER, 2, 3,
+				DIVIDER)));
+		assertThat(buffers.size(), is(2));
+		assertThat(buffers.get(0) == buffers.get(1), is(true));
+	}
+
+	private static byte[] bytes(int... values) {
+		byte[] bytes = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			bytes[i] = (byte) values[i];
+		}
+		return bytes;
+	}
+
+	private static class ChunkedInputStream extends ByteArrayInputStream {
+
+		private final int chunkSize;
+
+		public ChunkedInputStream(byte[] buf, int chunkSize) {
+			super(buf);
+			this.chunkSize = chunkSize;
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) {
+			return super.read(b, off, Math.min(len, chunkSize));
+		}
+
+	}
+
+}
@@ -0,0 +1,133 @@
+package org.zu.ardulink.connection;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Test;
+import org.zu.ardulink.connection.FrameAssembler.FrameHandler;
+import org.zu.ardulink.connection.FrameDispatcher.OverflowPolicy;
+
+public class FrameDispatcherTest {
+
+	private final List<Integer> received = Collections
+			.synchronizedList(new ArrayList<Integer>());
+
+	private final CountDownLatch started = new CountDownLatch(1);
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	private final FrameHandler blockingHandler = new FrameHandler() {
+		@Override
+		public void frameReceived(byte[] buffer, int offset, int length) {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			received.add(buffer[offset] & 0xFF);
+		}
+	};
+
+	private FrameDispatcher dispatcher;
+
+	@After
+	public void shutdown() {
+		release.countDown();
+		if (dispatcher != null) {
+			dispatcher.shutdown();
+		}
+	}
+
+	@Test
+	public void dispatchesAllFramesInOrder() {
+		final List<String> frames = new ArrayList<String>();
+		dispatcher = new FrameDispatcher(4, OverflowPolicy.BLOCK,
+				new FrameHandler() {
+					@Override
+					public void frameReceived(byte[] buffer, int offset,
+							int length) {
+						frames.add(length + ":" + (buffer[offset] & 0xFF));
+					}
+				}, "test-dispatcher");
+		byte[] buffer = new byte[302];
+		for (int i = 0; i < 1000; i++) {
+			buffer[i % 3] = (byte) i;
+			// frames of different sizes, some bigger than a slot
+			dispatcher.frameReceived(buffer, i % 3, 1 + i % 300);
+		}
+		dispatcher.shutdown();
+		assertThat(frames.size(), is(1000));
+		for (int i = 0; i < 1000; i++) {
+			assertThat(frames.get(i), is((1 + i % 300) + ":" + (i & 0xFF)));
+		}
+		assertThat(dispatcher.getDispatchedFrames(), is(1000L));
+		assertThat(dispatcher.getDroppedFrames(), is(0L));
+	}
+
+	@Test
+	public void dropsNewestFramesIfFull() throws InterruptedException {
+		dispatcher = new FrameDispatcher(2, OverflowPolicy.DROP_NEWEST,
+				blockingHandler, "test-dispatcher");
+		send(0);
+		assertTrue(started.await(1, SECONDS));
+		send(1, 2, 3, 4);
+		assertThat(dispatcher.getDroppedFrames(), is(2L));
+		release.countDown();
+		dispatcher.shutdown();
+		assertThat(received, is(Arrays.asList(0, 1, 2)));
+	}
+
+	@Test
+	public void dropsOldestFramesIfFull() throws InterruptedException {
+		dispatcher = new FrameDispatcher(2, OverflowPolicy.DROP_OLDEST,
+				blockingHandler, "test-dispatcher");
+		send(0);
+		assertTrue(started.await(1, SECONDS));
+		send(1, 2, 3, 4);
+		assertThat(dispatcher.getDroppedFrames(), is(2L));
+		assertThat(dispatcher.size(), is(2));
+		release.countDown();
+		dispatcher.shutdown();
+		assertThat(received, is(Arrays.asList(0, 3, 4)));
+	}
+
+	@Test
+	public void blocksIfFull() throws InterruptedException {
+		dispatcher = new FrameDispatcher(2, OverflowPolicy.BLOCK,
+				blockingHandler, "test-dispatcher");
+		send(0);
+		assertTrue(started.await(1, SECONDS));
+		send(1, 2);
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				send(3);
+			}
+		};
+		producer.start();
+		producer.join(200);
+		assertThat(producer.isAlive(), is(true));
+		release.countDown();
+		producer.join(1000);
+		assertThat(producer.isAlive(), is(false));
+		dispatcher.shutdown();
+		assertThat(received, is(Arrays.asList(0, 1, 2, 3)));
+		assertThat(dispatcher.getDroppedFrames(), is(0L));
+	}
+
+	private void send(int... values) {
+		for (int value : values) {
+			dispatcher.frameReceived(new byte[] { (byte) value }, 0, 1);
+		}
+	}
+
+}
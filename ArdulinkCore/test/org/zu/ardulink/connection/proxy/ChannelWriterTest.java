@@ -0,0 +1,167 @@
+package org.zu.ardulink.connection.proxy;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zu.ardulink.connection.proxy.ChannelWriter.OverflowPolicy;
+
+public class ChannelWriterTest {
+
+	private static final int SIZE = 1000;
+	private static final int MAX_PENDING = 4 * SIZE;
+
+	private final ChannelSelector selector = new ChannelSelector("test-selector");
+
+	private SocketChannel peer;
+	private SocketChannel channel;
+	private int next;
+
+	public ChannelWriterTest() throws IOException {
+		// the selector's constructor throws IOException
+	}
+
+	@Before
+	public void connect() throws IOException {
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress("localhost", 0));
+		peer = SocketChannel.open();
+		peer.socket().setReceiveBufferSize(4096);
+		peer.connect(server.socket().getLocalSocketAddress());
+		channel = server.accept();
+		server.close();
+		channel.socket().setSendBufferSize(4096);
+		channel.configureBlocking(false);
+	}
+
+	@After
+	public void close() throws IOException {
+		peer.close();
+		channel.close();
+		selector.shutdown();
+	}
+
+	@Test
+	public void dropsNewestBuffersIfFull() throws IOException {
+		ChannelWriter writer = writer(OverflowPolicy.DROP_NEWEST);
+		int full = fill(writer);
+		assertThat(writer.write(buffer()), is(false));
+		assertThat(writer.getDroppedBuffers(), is(1L));
+		assertThat(writer.getPendingBytes(), is(full));
+		List<Integer> received = drain(writer);
+		assertThat(received.size(), is(next - 1));
+		assertThat(received.get(received.size() - 1), is(next - 2));
+	}
+
+	@Test
+	public void dropsOldestBuffersIfFull() throws IOException {
+		ChannelWriter writer = writer(OverflowPolicy.DROP_OLDEST);
+		fill(writer);
+		assertThat(writer.write(buffer()), is(true));
+		assertThat(writer.getDroppedBuffers(), is(1L));
+		assertTrue(writer.getPendingBytes() <= MAX_PENDING);
+		List<Integer> received = drain(writer);
+		assertThat(received.size(), is(next - 1));
+		// the newest buffer is written, one before it is missing
+		assertThat(received.get(received.size() - 1), is(next - 1));
+		for (int i = 1; i < received.size(); i++) {
+			assertTrue(received + " not ascending",
+					received.get(i) > received.get(i - 1));
+		}
+	}
+
+	@Test
+	public void dropsBuffersWrittenTogetherAsAWhole() throws IOException {
+		ChannelWriter writer = writer(OverflowPolicy.DROP_NEWEST);
+		int full = fill(writer);
+		ByteBuffer header = ByteBuffer.wrap(new byte[] { 1 });
+		assertThat(writer.write(header, buffer()), is(false));
+		assertThat(writer.getDroppedBuffers(), is(1L));
+		// neither the header nor its payload is queued
+		assertThat(writer.getPendingBytes(), is(full));
+		assertThat(drain(writer).size(), is(next - 1));
+	}
+
+	@Test
+	public void failsIfFullAndDisconnecting() throws IOException {
+		ChannelWriter writer = writer(OverflowPolicy.DISCONNECT);
+		fill(writer);
+		try {
+			writer.write(buffer());
+			fail("Writing should fail if the queue is full");
+		} catch (IOException e) {
+			assertThat(writer.getDroppedBuffers(), is(1L));
+		}
+	}
+
+	@Test
+	public void writesImmediatelyIfNothingIsPending() throws IOException {
+		ChannelWriter writer = writer(OverflowPolicy.DROP_NEWEST);
+		assertThat(writer.write(buffer()), is(true));
+		assertThat(writer.getPendingBuffers(), is(0));
+		assertThat(writer.getWrittenBytes(), is((long) SIZE));
+		assertThat(drain(writer), is(Arrays.asList(0)));
+	}
+
+	private ChannelWriter writer(OverflowPolicy policy) {
+		return new ChannelWriter(channel, selector, MAX_PENDING, policy);
+	}
+
+	/**
+	 * Writes until the queue can't take another buffer.
+	 * @return the bytes pending
+	 */
+	private int fill(ChannelWriter writer) throws IOException {
+		while (writer.getPendingBytes() + SIZE <= MAX_PENDING) {
+			assertThat(writer.write(buffer()), is(true));
+			// the buffers are numbered by a byte
+			assertTrue(next < 255);
+		}
+		return writer.getPendingBytes();
+	}
+
+	private ByteBuffer buffer() {
+		byte[] bytes = new byte[SIZE];
+		Arrays.fill(bytes, (byte) next++);
+		return ByteBuffer.wrap(bytes);
+	}
+
+	/**
+	 * Reads everything written.
+	 * @return the numbers of the buffers received
+	 */
+	private List<Integer> drain(ChannelWriter writer) throws IOException {
+		long expected = (next - writer.getDroppedBuffers()) * SIZE;
+		List<Integer> received = new ArrayList<Integer>();
+		ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+		for (long read = 0; read < expected;) {
+			writer.writePending();
+			buffer.clear();
+			read += peer.read(buffer);
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				int number = buffer.get() & 0xFF;
+				if (received.isEmpty()
+						|| received.get(received.size() - 1) != number) {
+					received.add(number);
+				}
+			}
+		}
+		assertThat(writer.getPendingBytes(), is(0));
+		return received;
+	}
+
+}
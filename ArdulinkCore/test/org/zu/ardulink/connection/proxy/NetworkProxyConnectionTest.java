@@ -0,0 +1,263 @@
+package org.zu.ardulink.connection.proxy;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.junit.After;
+import org.junit.Test;
+import org.zu.ardulink.ConnectionContact;
+import org.zu.ardulink.Link;
+import org.zu.ardulink.RawFrameListener;
+import org.zu.ardulink.protocol.ALProtocol;
+import org.zu.ardulink.protocol.IProtocol;
+
+public class NetworkProxyConnectionTest {
+
+	private final ChannelSelector selector = new ChannelSelector("test-selector");
+
+	private final ServerSocket serverSocket = new ServerSocket(0);
+
+	private final List<String> linkNames = new ArrayList<String>();
+
+	public NetworkProxyConnectionTest() throws IOException {
+		// the fields' initializers throw IOException
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		for (String linkName : linkNames) {
+			Link.destroyInstance(linkName);
+		}
+		selector.shutdown();
+		serverSocket.close();
+	}
+
+	@Test
+	public void linksShareTheSelector() throws Exception {
+		int links = 5;
+		final CountDownLatch received = new CountDownLatch(links);
+		final List<String> frames = Collections
+				.synchronizedList(new ArrayList<String>());
+		List<Link> connected = new ArrayList<Link>();
+		for (int i = 0; i < links; i++) {
+			Link link = createLink("proxytest" + i);
+			link.addRawFrameListener(new RawFrameListener() {
+				@Override
+				public void frameReceived(String id, byte[] frame, int offset,
+						int length) {
+					frames.add(new String(frame, offset, length));
+					received.countDown();
+				}
+			});
+			Remote remote = connect(link, frames("alp://ared/" + i + "/1"));
+			assertThat(remote.lines.take(), is("/dev/ttyUSB0"));
+			connected.add(link);
+		}
+		assertTrue(received.await(5, SECONDS));
+		// registered by the selector's thread
+		long deadline = System.currentTimeMillis() + 5000;
+		while (selector.getChannels() < links
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertThat(selector.getChannels(), is(links));
+		Collections.sort(frames);
+		assertThat(frames, is(Arrays.asList("alp://ared/0/1", "alp://ared/1/1",
+				"alp://ared/2/1", "alp://ared/3/1", "alp://ared/4/1")));
+	}
+
+	@Test
+	public void writesAndReadsFrames() throws Exception {
+		Link link = createLink("proxytest");
+		final BlockingQueue<String> frames = new LinkedBlockingQueue<String>();
+		link.addRawFrameListener(new RawFrameListener() {
+			@Override
+			public void frameReceived(String id, byte[] frame, int offset,
+					int length) {
+				frames.add(new String(frame, offset, length));
+			}
+		});
+		Remote remote = connect(link, new byte[0]);
+		assertThat(remote.lines.take(), is("/dev/ttyUSB0"));
+		assertThat(remote.lines.take(), is(String.valueOf(Link.DEFAULT_BAUDRATE)));
+		for (int i = 0; i < 100; i++) {
+			link.sendPowerPinSwitch(i % 10, 1);
+		}
+		for (int i = 0; i < 100; i++) {
+			assertThat(remote.lines.take(), is("alp://ppsw/" + i % 10 + "/1"));
+		}
+		// frames split across several reads
+		byte[] sent = frames("alp://ared/5/1023", "alp://dred/3/1");
+		remote.out.write(sent, 0, 10);
+		remote.out.flush();
+		Thread.sleep(50);
+		remote.out.write(sent, 10, sent.length - 10);
+		remote.out.flush();
+		assertThat(frames.poll(5, SECONDS), is("alp://ared/5/1023"));
+		assertThat(frames.poll(5, SECONDS), is("alp://dred/3/1"));
+	}
+
+	@Test
+	public void disconnectsIfTheServerClosesTheConnection() throws Exception {
+		Link link = createLink("proxytest");
+		Remote remote = connect(link, new byte[0]);
+		assertThat(link.isConnected(), is(true));
+		remote.socket.close();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (link.isConnected() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertThat(link.isConnected(), is(false));
+	}
+
+	@Test
+	public void closesStreamsTheServerDidntOpenInTime() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		Future<Socket> accepted = executor.submit(new Callable<Socket>() {
+			@Override
+			public Socket call() throws IOException {
+				Socket socket = serverSocket.accept();
+				BufferedReader in = new BufferedReader(new InputStreamReader(
+						socket.getInputStream()));
+				assertThat(in.readLine(), is(NetworkProxyMessages.MULTIPLEX_CMD));
+				socket.getOutputStream().write(
+						(NetworkProxyMessages.OK + "\n").getBytes());
+				return socket;
+			}
+		});
+		NetworkProxyMultiplexer multiplexer = new NetworkProxyMultiplexer(
+				"localhost", serverSocket.getLocalPort(), selector);
+		Socket remote = accepted.get(5, SECONDS);
+		try {
+			final NetworkProxyStream stream = multiplexer.newConnection();
+			stream.setConnectionContact(new ConnectionContact(null));
+			stream.setOpenTimeout(100, MILLISECONDS);
+			assertThat(stream.connect("/dev/ttyUSB0"), is(false));
+
+			DataInputStream in = new DataInputStream(remote.getInputStream());
+			assertThat(readPacketType(in), is(PacketAssembler.OPEN));
+			assertThat(readPacketType(in), is(PacketAssembler.CLOSE));
+
+			stream.setOpenTimeout(5, SECONDS);
+			Future<Boolean> connected = executor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					return stream.connect("/dev/ttyUSB0");
+				}
+			});
+			assertThat(readPacketType(in), is(PacketAssembler.OPEN));
+			// the late reply to the first request isn't taken for the second one
+			OutputStream out = remote.getOutputStream();
+			out.write(PacketAssembler.header(PacketAssembler.OPENED,
+					stream.getStream(), 0).array());
+			out.write(PacketAssembler.header(PacketAssembler.REFUSED,
+					stream.getStream(), 0).array());
+			out.flush();
+			assertThat(connected.get(5, SECONDS), is(false));
+		} finally {
+			executor.shutdown();
+			multiplexer.close();
+			remote.close();
+		}
+	}
+
+	/**
+	 * Reads a packet and returns its type.
+	 */
+	private static int readPacketType(DataInputStream in) throws IOException {
+		int type = in.readUnsignedByte();
+		in.readUnsignedShort();
+		in.skipBytes(in.readUnsignedShort());
+		return type;
+	}
+
+	private Link createLink(String name) throws IOException {
+		linkNames.add(name);
+		return Link.createInstance(name, ALProtocol.NAME,
+				new NetworkProxyConnection("localhost",
+						serverSocket.getLocalPort(), selector));
+	}
+
+	private Remote connect(Link link, byte[] sentWithReply) throws IOException {
+		Remote remote = new Remote(serverSocket.accept(), sentWithReply);
+		assertThat(remote.lines.isEmpty(), is(true));
+		remote.start();
+		assertThat(link.connect("/dev/ttyUSB0"), is(true));
+		return remote;
+	}
+
+	private static byte[] frames(String... frames) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (String frame : frames) {
+			bytes.write(frame.getBytes(), 0, frame.length());
+			bytes.write(IProtocol.DEFAULT_INCOMING_MESSAGE_DIVIDER);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * The proxy server's side of a connection, acknowledges the connect and
+	 * records the lines received afterwards.
+	 */
+	private static class Remote extends Thread {
+
+		private final Socket socket;
+		private final OutputStream out;
+		private final byte[] sentWithReply;
+		private final BlockingQueue<String> lines = new LinkedBlockingQueue<String>();
+
+		public Remote(Socket socket, byte[] sentWithReply) throws IOException {
+			this.socket = socket;
+			this.out = socket.getOutputStream();
+			this.sentWithReply = sentWithReply;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				BufferedReader in = new BufferedReader(new InputStreamReader(
+						socket.getInputStream()));
+				String line = in.readLine();
+				if (!NetworkProxyMessages.CONNECT_CMD.equals(line)) {
+					return;
+				}
+				lines.add(in.readLine());
+				lines.add(in.readLine());
+				// the data following the reply is read with it
+				out.write((NetworkProxyMessages.OK + "\n").getBytes());
+				out.write(sentWithReply);
+				out.flush();
+				while ((line = in.readLine()) != null) {
+					lines.add(line);
+				}
+			} catch (IOException e) {
+				// closed
+			}
+		}
+	}
+
+}
@@ -0,0 +1,75 @@
+package org.zu.ardulink.connection.proxy;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.zu.ardulink.connection.proxy.PacketAssembler.PacketHandler;
+
+public class PacketAssemblerTest {
+
+	private final List<String> packets = new ArrayList<String>();
+
+	private final PacketAssembler assembler = new PacketAssembler(
+			new PacketHandler() {
+				@Override
+				public void packetReceived(int type, int stream,
+						byte[] buffer, int offset, int length) {
+					packets.add(type + "/" + stream + "/"
+							+ new String(buffer, offset, length));
+				}
+			});
+
+	@Test
+	public void passesAllPacketsOfARead() throws Exception {
+		ByteBuffer read = ByteBuffer.allocate(100);
+		read.put(packet(PacketAssembler.DATA, 1, "alp://ared/1/2"));
+		read.put(packet(PacketAssembler.OPENED, 300, ""));
+		read.put(packet(PacketAssembler.DATA, 65535, "x"));
+		read.flip();
+		assembler.append(read);
+		assertThat(packets, is(Arrays.asList("4/1/alp://ared/1/2", "2/300/",
+				"4/65535/x")));
+	}
+
+	@Test
+	public void completesPacketsSplitAcrossReads() throws Exception {
+		ByteBuffer packet = packet(PacketAssembler.DATA, 7, "alp://dred/3/1");
+		while (packet.hasRemaining()) {
+			ByteBuffer read = ByteBuffer.allocate(1);
+			read.put(packet.get()).flip();
+			assembler.append(read);
+		}
+		assertThat(packets, is(Arrays.asList("4/7/alp://dred/3/1")));
+	}
+
+	@Test
+	public void growsForBigPackets() throws Exception {
+		char[] payload = new char[PacketAssembler.MAX_PAYLOAD_LENGTH];
+		Arrays.fill(payload, 'a');
+		String big = new String(payload);
+		ByteBuffer read = ByteBuffer.allocate(2 * (payload.length + 5));
+		read.put(packet(PacketAssembler.DATA, 1, "small"));
+		read.put(packet(PacketAssembler.DATA, 2, big));
+		read.flip();
+		assembler.append(read);
+		assertThat(packets, is(Arrays.asList("4/1/small", "4/2/" + big)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsPayloadsLongerThanAPacket() {
+		PacketAssembler.header(PacketAssembler.DATA, 1,
+				PacketAssembler.MAX_PAYLOAD_LENGTH + 1);
+	}
+
+	private static ByteBuffer packet(int type, int stream, String payload) {
+		byte[] bytes = payload.getBytes();
+		return PacketAssembler.packet(type, stream, bytes, 0, bytes.length);
+	}
+
+}
@@ -0,0 +1,53 @@
+package org.zu.ardulink.connection.proxy;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.zu.ardulink.ParsedFrameListener.FrameType.ANALOG_READ;
+import static org.zu.ardulink.ParsedFrameListener.FrameType.DIGITAL_READ;
+import static org.zu.ardulink.ParsedFrameListener.FrameType.OTHER;
+
+import org.junit.Test;
+
+public class PinSubscriptionTest {
+
+	@Test
+	public void matchesThePinsSubscribedTo() {
+		PinSubscription subscription = new PinSubscription().analogPin(5)
+				.digitalPin(2);
+		assertThat(subscription.matches(ANALOG_READ, 5), is(true));
+		assertThat(subscription.matches(ANALOG_READ, 2), is(false));
+		assertThat(subscription.matches(DIGITAL_READ, 2), is(true));
+		assertThat(subscription.matches(DIGITAL_READ, 5), is(false));
+		assertThat(subscription.matches(OTHER, -1), is(false));
+	}
+
+	@Test
+	public void matchesAllPinsAndOthers() {
+		PinSubscription subscription = new PinSubscription().allAnalogPins()
+				.others();
+		assertThat(subscription.matches(ANALOG_READ, 99), is(true));
+		assertThat(subscription.matches(DIGITAL_READ, 1), is(false));
+		assertThat(subscription.matches(OTHER, -1), is(true));
+	}
+
+	@Test
+	public void canBeParsedFromItsString() {
+		String spec = "analog/1,analog/13,digital/*,other";
+		PinSubscription subscription = PinSubscription.parse(spec);
+		assertThat(subscription.toString(), is(spec));
+		assertThat(PinSubscription.parse(" digital/3 , analog/0 ").toString(),
+				is("analog/0,digital/3"));
+		assertThat(PinSubscription.parse("").toString(), is(""));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsUnknownTokens() {
+		PinSubscription.parse("analog/1,pwm/3");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsIllegalPins() {
+		PinSubscription.parse("digital/x");
+	}
+
+}
@@ -0,0 +1,263 @@
+package org.zu.ardulink.connection.serial;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.zu.ardulink.ConnectionContact;
+import org.zu.ardulink.Link;
+import org.zu.ardulink.protocol.IProtocol;
+import org.zu.ardulink.protocol.SimpleBinaryProtocol;
+
+public class AbstractSerialConnectionTest {
+
+	private static final int DIVIDER = 255;
+
+	private final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+	@Test
+	public void refusesDividerWithoutCobsFraming() {
+		TestConnection connection = new TestConnection(new ConnectionContact(null));
+		assertThat(connection.writeSerial(2, new int[] { 1, DIVIDER }), is(false));
+		assertThat(outputStream.size(), is(0));
+	}
+
+	@Test
+	public void writesAnyByteWithCobsFraming() {
+		TestConnection connection = new TestConnection(new ConnectionContact(null));
+		connection.setCobsFraming(true);
+		int[] message = { 0, 1, DIVIDER, 254, DIVIDER };
+		assertTrue(connection.writeSerial(message.length, message));
+		byte[] written = outputStream.toByteArray();
+		assertThat(written.length, is(message.length + 2));
+		for (int i = 0; i < written.length - 1; i++) {
+			assertTrue((written[i] & 0xFF) != DIVIDER);
+		}
+		assertThat(written[written.length - 1] & 0xFF, is(DIVIDER));
+	}
+
+	@Test
+	public void decodesReceivedFramesWithCobsFraming() throws Exception {
+		TestConnection sender = new TestConnection(new ConnectionContact(null));
+		sender.setCobsFraming(true);
+		sender.writeSerial(3, new int[] { DIVIDER, 0, 7 });
+		sender.writeSerial(1, new int[] { DIVIDER });
+		assertThat(receivedFrames(2), is(Arrays.asList("255 0 7", "255")));
+	}
+
+	@Test
+	public void protocolMessagesAreCobsFramed() throws Exception {
+		TestConnection sender = new TestConnection(new ConnectionContact(null));
+		sender.setCobsFraming(true);
+		Link link = Link.createInstance("cobsframingtest",
+				SimpleBinaryProtocol.NAME, sender);
+		try {
+			link.sendPowerPinSwitch(0, IProtocol.LOW);
+			link.sendPowerPinIntensity(3, 0);
+		} finally {
+			Link.destroyInstance("cobsframingtest");
+		}
+		// one code byte per frame
+		assertThat(outputStream.size(), is(6 + 1 + 7 + 1));
+		assertThat(receivedFrames(2),
+				is(Arrays.asList("12 0 0 0 0", "11 3 0 0 0 0")));
+	}
+
+	private List<String> receivedFrames(int count) throws InterruptedException {
+		final BlockingQueue<String> received = new ArrayBlockingQueue<String>(10);
+		TestConnection receiver = new TestConnection(new ConnectionContact(null) {
+			@Override
+			public void parseInput(String id, byte[] frame, int offset, int length) {
+				StringBuilder sb = new StringBuilder();
+				for (int i = offset; i < offset + length; i++) {
+					sb.append(i == offset ? "" : " ").append(frame[i] & 0xFF);
+				}
+				received.add(sb.toString());
+			}
+		});
+		receiver.setCobsFraming(true);
+		receiver.setInputStream(new ByteArrayInputStream(outputStream.toByteArray()));
+		receiver.startReader();
+		try {
+			List<String> frames = new ArrayList<String>();
+			for (int i = 0; i < count; i++) {
+				frames.add(received.poll(1, SECONDS));
+			}
+			return frames;
+		} finally {
+			receiver.stopReader();
+		}
+	}
+
+	@Test
+	public void switchingWriteBehindKeepsTheOrderOfTheMessages() throws Exception {
+		final TestConnection connection = new TestConnection(new ConnectionContact(null));
+		final int writers = 4;
+		final int messages = 20000;
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int w = 0; w < writers; w++) {
+			final int writer = w;
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < messages; i++) {
+						byte[] message = { (byte) writer, (byte) (i >> 7),
+								(byte) (i & 0x7F), (byte) DIVIDER };
+						connection.writeSerial(message, 0, message.length);
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			while (thread.isAlive()) {
+				connection.enableWriteBehind(10, MILLISECONDS, 1024);
+				MILLISECONDS.sleep(1);
+				connection.disableWriteBehind();
+			}
+		}
+		assertThat(connection.isConnected(), is(true));
+		byte[] written = outputStream.toByteArray();
+		assertThat(written.length, is(writers * messages * 4));
+		int[] next = new int[writers];
+		for (int i = 0; i < written.length; i += 4) {
+			int writer = written[i];
+			assertThat((written[i + 1] & 0xFF) << 7 | written[i + 2],
+					is(next[writer]++));
+		}
+	}
+
+	@Test
+	public void idleReaderDoesNotSpin() throws Exception {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		assumeTrue(threadBean.isThreadCpuTimeSupported());
+		NonBlockingInputStream in = new NonBlockingInputStream();
+		TestConnection connection = new TestConnection(new ConnectionContact(null));
+		connection.setInputStream(in);
+		connection.startReader();
+		try {
+			long threadId = readerThread().getId();
+			long cpuBefore = threadBean.getThreadCpuTime(threadId);
+			MILLISECONDS.sleep(500);
+			long cpuMillis = MILLISECONDS.convert(
+					threadBean.getThreadCpuTime(threadId) - cpuBefore,
+					NANOSECONDS);
+			// a spinning reader uses the whole 500ms and reads millions of times
+			assertTrue("reader used " + cpuMillis + "ms CPU", cpuMillis < 50);
+			assertTrue(in.reads.get() + " reads", in.reads.get() < 500);
+		} finally {
+			connection.stopReader();
+		}
+	}
+
+	@Test
+	public void notificationWakesUpReader() throws Exception {
+		NonBlockingInputStream in = new NonBlockingInputStream();
+		final BlockingQueue<Long> received = new ArrayBlockingQueue<Long>(10);
+		TestConnection connection = new TestConnection(new ConnectionContact(null) {
+			@Override
+			public void parseInput(String id, byte[] frame, int offset, int length) {
+				received.add(System.nanoTime());
+			}
+		});
+		connection.setDataAvailableNotifications(true);
+		connection.setInputStream(in);
+		connection.startReader();
+		try {
+			MILLISECONDS.sleep(300);
+			// no polling, only the timeouts waiting for a notification
+			assertTrue(in.reads.get() + " reads", in.reads.get() < 10);
+			in.pending = new byte[] { 1, 2, (byte) DIVIDER };
+			long start = System.nanoTime();
+			connection.dataAvailable();
+			Long arrived = received.poll(1, SECONDS);
+			long tookMillis = MILLISECONDS.convert(arrived - start,
+					NANOSECONDS);
+			assertTrue("took " + tookMillis + "ms", tookMillis < 50);
+		} finally {
+			connection.stopReader();
+		}
+	}
+
+	private static Thread readerThread() {
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().equals("ardulink-serial-reader-test")) {
+				return thread;
+			}
+		}
+		throw new IllegalStateException("No reader thread found");
+	}
+
+	/**
+	 * Like RXTX without receive timeout: read returns immediately, 0 if there is no data.
+	 */
+	private static class NonBlockingInputStream extends InputStream {
+
+		private final AtomicInteger reads = new AtomicInteger();
+		private volatile byte[] pending;
+
+		@Override
+		public int read() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			reads.incrementAndGet();
+			byte[] data = pending;
+			if (data == null) {
+				return 0;
+			}
+			pending = null;
+			System.arraycopy(data, 0, b, off, data.length);
+			return data.length;
+		}
+
+	}
+
+	private class TestConnection extends AbstractSerialConnection {
+
+		public TestConnection(ConnectionContact contact) {
+			super("test", contact, DIVIDER);
+			setOutputStream(outputStream);
+			setConnected(true);
+		}
+
+		@Override
+		public List<String> getPortList() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public boolean connect(Object... params) {
+			return true;
+		}
+
+		@Override
+		public boolean disconnect() {
+			setConnected(false);
+			return true;
+		}
+
+	}
+
+}
@@ -0,0 +1,124 @@
+package org.zu.ardulink.connection.serial;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class WriteBehindOutputStreamTest {
+
+	private static class RecordingOutputStream extends OutputStream {
+
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final List<Integer> writes = new ArrayList<Integer>();
+
+		@Override
+		public synchronized void write(int b) {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			bytes.write(b, off, len);
+			writes.add(len);
+		}
+
+		public synchronized String written() {
+			return new String(bytes.toByteArray());
+		}
+
+		public synchronized List<Integer> writes() {
+			return new ArrayList<Integer>(writes);
+		}
+
+	}
+
+	private final RecordingOutputStream target = new RecordingOutputStream();
+
+	@Test
+	public void coalescesMessagesWrittenWithinDelay() throws IOException {
+		WriteBehindOutputStream stream = new WriteBehindOutputStream(target,
+				SECONDS.toMillis(10), MILLISECONDS, 4096);
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			String message = "alp://ppin/" + i + "/" + i + "\n";
+			stream.write(message.getBytes(), 0, message.length());
+			expected.append(message);
+		}
+		assertThat(target.writes().size(), is(0));
+		stream.flush();
+		assertThat(target.written(), is(expected.toString()));
+		assertThat(target.writes().size(), is(1));
+		assertThat(stream.getBatches(), is(1L));
+		assertThat(stream.getMessages(), is(100L));
+		assertThat(stream.getAverageMessagesPerBatch(), is(100.0));
+		stream.close();
+	}
+
+	@Test
+	public void writesAfterDelay() throws Exception {
+		WriteBehindOutputStream stream = new WriteBehindOutputStream(target,
+				20, MILLISECONDS, 1024);
+		stream.write("foo".getBytes(), 0, 3);
+		stream.write("bar".getBytes(), 0, 3);
+		long deadline = System.currentTimeMillis() + SECONDS.toMillis(5);
+		while (target.writes().isEmpty()
+				&& System.currentTimeMillis() < deadline) {
+			MILLISECONDS.sleep(5);
+		}
+		assertThat(target.written(), is("foobar"));
+		assertThat(target.writes().size(), is(1));
+		stream.close();
+	}
+
+	@Test
+	public void batchesDoNotExceedMaxBatchBytes() throws IOException {
+		WriteBehindOutputStream stream = new WriteBehindOutputStream(target,
+				SECONDS.toMillis(10), MILLISECONDS, 10);
+		for (int i = 0; i < 10; i++) {
+			stream.write("1234".getBytes(), 0, 4);
+		}
+		stream.flush();
+		assertThat(target.written().length(), is(40));
+		for (int write : target.writes()) {
+			assertTrue("batch of " + write + " bytes", write <= 10);
+		}
+		assertThat(stream.getLargestBatch(), is(8));
+		stream.close();
+	}
+
+	@Test
+	public void failureIsThrownByNextWrite() throws Exception {
+		WriteBehindOutputStream stream = new WriteBehindOutputStream(
+				new OutputStream() {
+					@Override
+					public void write(int b) throws IOException {
+						throw new IOException("port gone");
+					}
+				}, 0, MILLISECONDS, 10);
+		stream.write("1234".getBytes(), 0, 4);
+		try {
+			stream.flush();
+			fail("IOException expected");
+		} catch (IOException e) {
+			assertThat(e.getMessage(), is("port gone"));
+		}
+		try {
+			stream.write("1234".getBytes(), 0, 4);
+			fail("IOException expected");
+		} catch (IOException e) {
+			assertThat(e.getMessage(), is("port gone"));
+		}
+	}
+
+}
@@ -0,0 +1,433 @@
+package org.zu.ardulink.protocol;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static org.zu.ardulink.util.Strings.fromBytes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Test;
+import org.zu.ardulink.Link;
+import org.zu.ardulink.connection.Connection;
+import org.zu.ardulink.connection.serial.AbstractSerialConnection;
+import org.zu.ardulink.event.AnalogReadChangeEvent;
+import org.zu.ardulink.event.IncomingMessageEvent;
+
+public class ALProtocolTest {
+
+	private static final String LINKNAME = "alprotocoltest";
+
+	private int writes;
+
+	private final ByteArrayOutputStream outputStream = new ByteArrayOutputStream() {
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			writes++;
+			super.write(b, off, len);
+		}
+	};
+
+	private final Link link = createLink(outputStream);
+
+	@After
+	public void tearDown() {
+		Link.destroyInstance(LINKNAME);
+	}
+
+	@Test
+	public void encodesMessagesWithoutCallback() {
+		link.sendPowerPinIntensity(3, 127);
+		link.sendPowerPinSwitch(13, IProtocol.HIGH);
+		link.sendToneMessage(4, 440, 100);
+		link.sendNoToneMessage(4);
+		link.startListenAnalogPin(5);
+		link.stopListenDigitalPin(6);
+		link.sendCustomMessage("foo/bar");
+		link.sendKeyPressEvent('a', 65, 1, 0, 0);
+		assertThat(serialReceived(), is("alp://ppin/3/127\n"
+				+ "alp://ppsw/13/1\n" + "alp://tone/4/440/100\n"
+				+ "alp://notn/4\n" + "alp://srla/5\n" + "alp://spld/6\n"
+				+ "alp://cust/foo/bar\n" + "alp://kprs/chracod65loc1mod0mex0\n"));
+	}
+
+	@Test
+	public void appendsIdIfCallbackIsGiven() {
+		MessageInfo messageInfo = link.sendPowerPinIntensity(3, 127,
+				link.getLoggerCallback());
+		String expected = "alp://ppin/3/127?id=" + messageInfo.getMessageID()
+				+ "\n";
+		assertThat(serialReceived(), is(expected));
+		assertThat(messageInfo.getMessageSent(), is(expected));
+	}
+
+	@Test
+	public void sendingWithoutCallbackOnlyAllocatesTheMessageInfo() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory
+				.getThreadMXBean();
+		assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+		Link discarding = Link.createInstance(LINKNAME + "-null",
+				ALProtocol.NAME, connection(new OutputStream() {
+					@Override
+					public void write(int b) {
+						// discard
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len) {
+						// discard
+					}
+				}));
+		try {
+			discarding.connect();
+			int sends = 10000;
+			for (int i = 0; i < sends; i++) {
+				discarding.sendPowerPinIntensity(i % 14, i % 256);
+			}
+			long threadId = Thread.currentThread().getId();
+			long before = threadBean.getThreadAllocatedBytes(threadId);
+			for (int i = 0; i < sends; i++) {
+				discarding.sendPowerPinIntensity(i % 14, i % 256);
+			}
+			long allocated = threadBean.getThreadAllocatedBytes(threadId)
+					- before;
+			// a MessageInfo is about 40 bytes, the String based encoding
+			// allocated more than 200 bytes per message
+			assertTrue("allocated " + allocated / sends + " bytes per send",
+					allocated < 64L * sends);
+		} finally {
+			Link.destroyInstance(LINKNAME + "-null");
+		}
+	}
+
+	@Test
+	public void sendsBatchWithSingleWrite() {
+		MessageInfo messageInfo = link.batch().powerPinIntensity(9, 255)
+				.powerPinIntensity(10, 128).powerPinSwitch(13, IProtocol.LOW)
+				.tone(4, 440).noTone(4).custom("foo")
+				.send(link.getLoggerCallback());
+		assertThat(messageInfo.isSent(), is(true));
+		assertThat(writes, is(1));
+		assertThat(serialReceived(), is("alp://ppin/9/255\n"
+				+ "alp://ppin/10/128\n" + "alp://ppsw/13/0\n"
+				+ "alp://tone/4/440/-1\n" + "alp://notn/4\n"
+				+ "alp://cust/foo?id=" + messageInfo.getMessageID() + "\n"));
+	}
+
+	@Test
+	public void batchCanBeReused() {
+		Batch batch = link.batch();
+		batch.powerPinSwitch(1, IProtocol.HIGH).send();
+		assertThat(batch.size(), is(0));
+		batch.powerPinSwitch(2, IProtocol.HIGH).send();
+		assertThat(serialReceived(), is("alp://ppsw/1/1\nalp://ppsw/2/1\n"));
+	}
+
+	@Test
+	public void decodesReadMessagesInPlace() {
+		byte[] buffer = bytes("xx alp://ared/5/1023 yyy");
+		RecordingHandler handler = new RecordingHandler();
+		link.parseMessage(buffer, 2, 19, handler);
+		assertThat(handler.received, is("ared 5 1023 alp://ared/5/1023"));
+
+		buffer = bytes("alp://dred/12/1");
+		link.parseMessage(buffer, 0, buffer.length, handler);
+		assertThat(handler.received, is("dred 12 1 alp://dred/12/1"));
+	}
+
+	@Test
+	public void skipsReadMessagesOfPinsNobodyListensTo() {
+		RecordingHandler handler = new RecordingHandler();
+		handler.wantedPin = 5;
+		byte[] buffer = bytes("alp://ared/6/1023");
+		link.parseMessage(buffer, 0, buffer.length, handler);
+		buffer = bytes("alp://dred/7/1");
+		link.parseMessage(buffer, 0, buffer.length, handler);
+		assertThat(handler.received, is((String) null));
+
+		buffer = bytes("alp://ared/5/1023");
+		link.parseMessage(buffer, 0, buffer.length, handler);
+		assertThat(handler.received, is("ared 5 1023 alp://ared/5/1023"));
+	}
+
+	@Test
+	public void ignoresMalformedMessages() {
+		RecordingHandler handler = new RecordingHandler();
+		for (String message : new String[] { "", "alp://", "alp://ared",
+				"alp://ared/", "alp://ared/5", "alp://ared/x/1",
+				"alp://ared/5/", "alp://dred/5/99999999999", "alp://xxxx/1/2",
+				"foo://ared/1/2" }) {
+			byte[] buffer = bytes(message);
+			link.parseMessage(buffer, 0, buffer.length, handler);
+		}
+		assertThat(handler.received, is((String) null));
+	}
+
+	@Test
+	public void legacyParseMessageCreatesEvents() {
+		IncomingMessageEvent event = link.parseMessage(ints(" alp://ared/5/1023\n"));
+		assertThat(event instanceof AnalogReadChangeEvent, is(true));
+		assertThat(event.getPin(), is(5));
+		assertThat(event.getValue(), is(1023));
+		assertThat(event.getIncomingMessage(), is("alp://ared/5/1023"));
+		assertThat(link.parseMessage(ints("alp://rply/ok?id=0")), is((IncomingMessageEvent) null));
+	}
+
+	@Test
+	public void replyIsPassedToCallback() {
+		final List<MessageInfo> replies = new ArrayList<MessageInfo>();
+		ReplyMessageCallback callback = new ReplyMessageCallback() {
+			@Override
+			public void replyInfo(MessageInfo messageInfo) {
+				replies.add(messageInfo);
+			}
+		};
+		MessageInfo ok = link.sendPowerPinSwitch(1, IProtocol.HIGH, callback);
+		MessageInfo ko = link.sendPowerPinSwitch(2, IProtocol.HIGH, callback);
+		String first = "alp://rply/ko?id=" + ko.getMessageID();
+		byte[] buffer = bytes(first + "alp://rply/ok?id=" + ok.getMessageID());
+		int split = first.length();
+		link.parseMessage(buffer, 0, split, new RecordingHandler());
+		link.parseMessage(buffer, split, buffer.length - split, new RecordingHandler());
+		assertThat(replies, is(Arrays.asList(ko, ok)));
+		assertThat(ok.getReply(), is(IProtocol.REPLY_OK));
+		assertThat(ko.getReply(), is(IProtocol.REPLY_KO));
+		assertThat(ok.getMessageReceived(), is("alp://rply/ok?id=" + ok.getMessageID()));
+	}
+
+	@Test
+	public void replyOnlyCompletesTheMessageOfItsLink() {
+		Link other = Link.createInstance(LINKNAME + "-other", ALProtocol.NAME,
+				connection(new ByteArrayOutputStream()));
+		try {
+			other.connect();
+			MessageInfo mine = link.sendPowerPinSwitch(1, IProtocol.HIGH,
+					link.getLoggerCallback());
+			MessageInfo others = other.sendPowerPinSwitch(1, IProtocol.HIGH,
+					link.getLoggerCallback());
+			// ids are counted per link
+			assertThat(others.getMessageID(), is(mine.getMessageID()));
+
+			byte[] buffer = bytes("alp://rply/ok?id=" + others.getMessageID());
+			other.parseMessage(buffer, 0, buffer.length, new RecordingHandler());
+			assertThat(others.getReply(), is(IProtocol.REPLY_OK));
+			assertThat(mine.getReply(), is(IProtocol.UNDEFINED_REPLY));
+		} finally {
+			Link.destroyInstance(LINKNAME + "-other");
+		}
+	}
+
+	@Test
+	public void unansweredMessageTimesOut() throws InterruptedException {
+		final CountDownLatch replied = new CountDownLatch(1);
+		MessageInfo messageInfo = link.sendPowerPinSwitch(1, IProtocol.HIGH,
+				new TimedReplyMessageCallback() {
+					@Override
+					public void replyInfo(MessageInfo messageInfo) {
+						replied.countDown();
+					}
+
+					@Override
+					public long getTimeout(TimeUnit unit) {
+						return unit.convert(20, MILLISECONDS);
+					}
+				});
+		assertTrue(replied.await(5, SECONDS));
+		assertThat(messageInfo.getReply(), is(IProtocol.REPLY_TIMEOUT));
+		// a late reply is ignored
+		byte[] buffer = bytes("alp://rply/ok?id=" + messageInfo.getMessageID());
+		link.parseMessage(buffer, 0, buffer.length, new RecordingHandler());
+		assertThat(messageInfo.getReply(), is(IProtocol.REPLY_TIMEOUT));
+	}
+
+	@Test
+	public void asyncSendCompletesWithTheReply() throws Exception {
+		ReplyFuture first = link.sendPowerPinIntensityAsync(3, 127);
+		ReplyFuture second = link.sendCustomMessageAsync("foo");
+		final List<MessageInfo> called = new ArrayList<MessageInfo>();
+		second.addCallback(new ReplyMessageCallback() {
+			@Override
+			public void replyInfo(MessageInfo messageInfo) {
+				called.add(messageInfo);
+			}
+		});
+		assertThat(first.isDone(), is(false));
+		assertThat(second.isDone(), is(false));
+
+		String sent = serialReceived();
+		String secondId = sent.substring(sent.lastIndexOf('=') + 1).trim();
+		byte[] buffer = bytes("alp://rply/ko?id=" + secondId);
+		link.parseMessage(buffer, 0, buffer.length, new RecordingHandler());
+		assertThat(first.isDone(), is(false));
+		assertThat(second.isDone(), is(true));
+		assertThat(second.isOk(), is(false));
+		assertThat(called, is(Arrays.asList(second.get())));
+		assertThat(String.valueOf(second.get().getMessageID()), is(secondId));
+
+		// callbacks added later are called immediately
+		second.addCallback(new ReplyMessageCallback() {
+			@Override
+			public void replyInfo(MessageInfo messageInfo) {
+				called.add(messageInfo);
+			}
+		});
+		assertThat(called.size(), is(2));
+	}
+
+	@Test(expected = TimeoutException.class)
+	public void getWithTimeoutThrowsIfThereIsNoReply() throws Exception {
+		link.sendPowerPinIntensityAsync(3, 127).get(10, MILLISECONDS);
+	}
+
+	@Test
+	public void asyncSendIsCompletedIfNotSent() throws Exception {
+		link.disconnect();
+		ReplyFuture future = link.sendPowerPinIntensityAsync(3, 127);
+		assertThat(future.isDone(), is(true));
+		assertThat(future.get().isSent(), is(false));
+	}
+
+	@Test
+	public void decodingReadMessagesDoesNotAllocate() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory
+				.getThreadMXBean();
+		assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+		byte[] buffer = bytes("alp://ared/5/1023");
+		final long[] sum = new long[1];
+		IncomingMessageHandler handler = new IncomingMessageHandler() {
+			@Override
+			public void digitalReadChanged(int pin, int value, byte[] message,
+					int offset, int length) {
+				sum[0] += value;
+			}
+
+			@Override
+			public void analogReadChanged(int pin, int value, byte[] message,
+					int offset, int length) {
+				sum[0] += value;
+			}
+
+			@Override
+			public boolean wantsDigitalRead(int pin) {
+				return true;
+			}
+
+			@Override
+			public boolean wantsAnalogRead(int pin) {
+				return true;
+			}
+		};
+		int parses = 10000;
+		for (int i = 0; i < parses; i++) {
+			link.parseMessage(buffer, 0, buffer.length, handler);
+		}
+		long threadId = Thread.currentThread().getId();
+		long before = threadBean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < parses; i++) {
+			link.parseMessage(buffer, 0, buffer.length, handler);
+		}
+		long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+		assertTrue("allocated " + allocated + " bytes", allocated < parses);
+		assertThat(sum[0], is(2L * parses * 1023));
+	}
+
+	private static byte[] bytes(String string) {
+		byte[] bytes = new byte[string.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) string.charAt(i);
+		}
+		return bytes;
+	}
+
+	private static int[] ints(String string) {
+		int[] ints = new int[string.length()];
+		for (int i = 0; i < ints.length; i++) {
+			ints[i] = string.charAt(i);
+		}
+		return ints;
+	}
+
+	private static class RecordingHandler implements IncomingMessageHandler {
+
+		private String received;
+		private int wantedPin = -1;
+
+		@Override
+		public void analogReadChanged(int pin, int value, byte[] message,
+				int offset, int length) {
+			received = "ared " + pin + " " + value + " "
+					+ fromBytes(message, offset, length);
+		}
+
+		@Override
+		public void digitalReadChanged(int pin, int value, byte[] message,
+				int offset, int length) {
+			received = "dred " + pin + " " + value + " "
+					+ fromBytes(message, offset, length);
+		}
+
+		@Override
+		public boolean wantsAnalogRead(int pin) {
+			return wantedPin < 0 || pin == wantedPin;
+		}
+
+		@Override
+		public boolean wantsDigitalRead(int pin) {
+			return wantsAnalogRead(pin);
+		}
+
+	}
+
+	private String serialReceived() {
+		return new String(outputStream.toByteArray());
+	}
+
+	private static Link createLink(OutputStream outputStream) {
+		Link link = Link.createInstance(LINKNAME, ALProtocol.NAME,
+				connection(outputStream));
+		link.connect();
+		return link;
+	}
+
+	private static Connection connection(final OutputStream outputStream) {
+		return new AbstractSerialConnection() {
+
+			{
+				setOutputStream(outputStream);
+			}
+
+			@Override
+			public List<String> getPortList() {
+				return Collections.singletonList("/dev/null");
+			}
+
+			@Override
+			public boolean disconnect() {
+				setConnected(false);
+				return isConnected();
+			}
+
+			@Override
+			public boolean connect(Object... params) {
+				setConnected(true);
+				return isConnected();
+			}
+		};
+	}
+
+}
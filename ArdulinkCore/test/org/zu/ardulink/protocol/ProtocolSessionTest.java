@@ -0,0 +1,152 @@
+package org.zu.ardulink.protocol;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Test;
+import org.zu.ardulink.ConnectionContact;
+import org.zu.ardulink.Link;
+import org.zu.ardulink.connection.Connection;
+
+public class ProtocolSessionTest {
+
+	private final List<String> linkNames = new ArrayList<String>();
+
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+		for (String linkName : linkNames) {
+			Link.destroyInstance(linkName);
+		}
+	}
+
+	@Test
+	public void blockedWriteOnOneLinkDoesNotBlockOtherLinks() throws Exception {
+		CountDownLatch writing = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		Link blocked = createLink("blocked", new BlockingConnection(writing,
+				release));
+		Link other = createLink("other", new BlockingConnection(
+				new CountDownLatch(1), new CountDownLatch(0)));
+
+		Future<MessageInfo> blockedSend = send(blocked, 1);
+		assertTrue(writing.await(10, SECONDS));
+
+		// would never complete if the sends were serialized across links
+		assertThat(send(other, 2).get(10, SECONDS).isSent(), is(true));
+		assertThat(blockedSend.isDone(), is(false));
+
+		release.countDown();
+		assertThat(blockedSend.get(10, SECONDS).isSent(), is(true));
+	}
+
+	@Test
+	public void writesOfDifferentLinksOverlap() throws Exception {
+		int numberOfLinks = 4;
+		// every write waits until the writes of all links are in progress
+		CountDownLatch allWriting = new CountDownLatch(numberOfLinks);
+		List<Future<MessageInfo>> sends = new ArrayList<Future<MessageInfo>>();
+		for (int i = 0; i < numberOfLinks; i++) {
+			sends.add(send(createLink("link" + i, new BlockingConnection(
+					allWriting, allWriting)), i));
+		}
+		for (Future<MessageInfo> send : sends) {
+			assertThat(send.get(30, SECONDS).isSent(), is(true));
+		}
+	}
+
+	private Future<MessageInfo> send(final Link link, final int pin) {
+		return executor.submit(new Callable<MessageInfo>() {
+			@Override
+			public MessageInfo call() {
+				return link.sendPowerPinIntensity(pin, pin);
+			}
+		});
+	}
+
+	private Link createLink(String name, Connection connection) {
+		linkNames.add(name);
+		Link link = Link.createInstance(name, ALProtocol.NAME, connection);
+		link.connect();
+		return link;
+	}
+
+	/**
+	 * Counts writing down when a write starts and blocks it until release is
+	 * released.
+	 */
+	private static class BlockingConnection implements Connection {
+
+		private final CountDownLatch writing;
+		private final CountDownLatch release;
+		private boolean connected;
+
+		public BlockingConnection(CountDownLatch writing, CountDownLatch release) {
+			this.writing = writing;
+			this.release = release;
+		}
+
+		@Override
+		public List<String> getPortList() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public boolean connect(Object... params) {
+			return connected = true;
+		}
+
+		@Override
+		public boolean disconnect() {
+			connected = false;
+			return true;
+		}
+
+		@Override
+		public boolean isConnected() {
+			return connected;
+		}
+
+		@Override
+		public boolean writeSerial(String message) {
+			byte[] bytes = message.getBytes();
+			return writeSerial(bytes, 0, bytes.length);
+		}
+
+		@Override
+		public boolean writeSerial(byte[] message, int offset, int length) {
+			writing.countDown();
+			try {
+				return release.await(30, SECONDS);
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+
+		@Override
+		public boolean writeSerial(int numBytes, int[] message) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void setConnectionContact(ConnectionContact contact) {
+			// nothing to do
+		}
+
+	}
+
+}
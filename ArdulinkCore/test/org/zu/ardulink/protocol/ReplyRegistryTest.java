@@ -0,0 +1,108 @@
+package org.zu.ardulink.protocol;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class ReplyRegistryTest {
+
+	private static final Object OWNER = new Object();
+
+	@Test
+	public void removesRegisteredMessages() {
+		ReplyRegistry registry = new ReplyRegistry(100);
+		Random random = new Random(42);
+		List<Long> ids = new ArrayList<Long>();
+		List<MessageInfo> messageInfos = new ArrayList<MessageInfo>();
+		for (int round = 0; round < 100; round++) {
+			while (ids.size() < 100) {
+				long id = random.nextInt(1000) * 1024L;
+				if (!ids.contains(id)) {
+					MessageInfo messageInfo = new MessageInfo(true, id);
+					assertThat(registry.register(OWNER, id, messageInfo), is(true));
+					ids.add(id);
+					messageInfos.add(messageInfo);
+				}
+			}
+			for (int i = 0; i < 50; i++) {
+				int index = random.nextInt(ids.size());
+				assertThat(registry.remove(OWNER, ids.remove(index)),
+						is(messageInfos.remove(index)));
+			}
+			assertThat(registry.size(), is(ids.size()));
+		}
+		for (int i = 0; i < ids.size(); i++) {
+			assertThat(registry.remove(OWNER, ids.get(i)), is(messageInfos.get(i)));
+			assertThat(registry.remove(OWNER, ids.get(i)), is((MessageInfo) null));
+		}
+		assertThat(registry.size(), is(0));
+	}
+
+	@Test
+	public void rejectsMessagesIfFull() {
+		ReplyRegistry registry = new ReplyRegistry(2);
+		assertThat(registry.register(OWNER, 1, new MessageInfo()), is(true));
+		assertThat(registry.register(OWNER, 2, new MessageInfo()), is(true));
+		assertThat(registry.register(OWNER, 3, new MessageInfo()), is(false));
+		registry.remove(OWNER, 1);
+		assertThat(registry.register(OWNER, 3, new MessageInfo()), is(true));
+	}
+
+	@Test
+	public void idsOfDifferentOwnersDontCollide() {
+		ReplyRegistry registry = new ReplyRegistry(2);
+		Object other = new Object();
+		MessageInfo messageInfo = new MessageInfo();
+		MessageInfo otherMessageInfo = new MessageInfo();
+		assertThat(registry.register(OWNER, 1, messageInfo), is(true));
+		assertThat(registry.isRegistered(other, 1), is(false));
+		assertThat(registry.register(other, 1, otherMessageInfo), is(true));
+		assertThat(registry.remove(other, 1), is(otherMessageInfo));
+		assertThat(registry.remove(other, 1), is((MessageInfo) null));
+		assertThat(registry.remove(OWNER, 1), is(messageInfo));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsIdsAlreadyWaitingForAReply() {
+		ReplyRegistry registry = new ReplyRegistry(2);
+		assertThat(registry.register(OWNER, 1, new MessageInfo()), is(true));
+		assertThat(registry.isRegistered(OWNER, 1), is(true));
+		registry.register(OWNER, 1, new MessageInfo());
+	}
+
+	@Test
+	public void callsCallbackOnTimeout() throws InterruptedException {
+		ReplyRegistry registry = new ReplyRegistry(10);
+		final CountDownLatch timedOut = new CountDownLatch(1);
+		MessageInfo messageInfo = new MessageInfo(true, 1);
+		messageInfo.setCallback(new ReplyMessageCallback() {
+			@Override
+			public void replyInfo(MessageInfo messageInfo) {
+				timedOut.countDown();
+			}
+		});
+		MessageInfo answered = new MessageInfo(true, 2);
+		answered.setCallback(messageInfo.getCallback());
+		long start = System.nanoTime();
+		registry.register(OWNER, 1, messageInfo, 50, MILLISECONDS);
+		registry.register(OWNER, 2, answered, 50, MILLISECONDS);
+		registry.remove(OWNER, 2);
+
+		assertTrue(timedOut.await(5, SECONDS));
+		assertTrue(System.nanoTime() - start >= MILLISECONDS.toNanos(50));
+		assertThat(messageInfo.getReply(), is(IProtocol.REPLY_TIMEOUT));
+		assertThat(answered.getReply(), is(IProtocol.UNDEFINED_REPLY));
+		assertThat(registry.size(), is(0));
+		assertThat(registry.register(OWNER, 1, messageInfo), is(true));
+	}
+
+}
@@ -0,0 +1,300 @@
+package org.zu.ardulink.protocol;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.zu.ardulink.Link;
+import org.zu.ardulink.connection.serial.AbstractSerialConnection;
+import org.zu.ardulink.protocol.RequestWindow.Policy;
+
+public class RequestWindowTest {
+
+	private static final String LINKNAME = "requestwindowtest";
+
+	private volatile CountDownLatch writesBlocked;
+
+	private final ByteArrayOutputStream outputStream = new ByteArrayOutputStream() {
+		@Override
+		public void write(byte[] b, int off, int len) {
+			CountDownLatch blocked = writesBlocked;
+			if (blocked != null) {
+				try {
+					blocked.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			super.write(b, off, len);
+		}
+	};
+
+	private final Link link = createLink();
+
+	private final RequestWindow window = link.getProtocolSession()
+			.getRequestWindow();
+
+	@After
+	public void tearDown() {
+		Link.destroyInstance(LINKNAME);
+	}
+
+	@Test
+	public void failsIfWindowIsFull() {
+		window.setMaxSize(2);
+		window.setPolicy(Policy.FAIL);
+		MessageInfo first = send(1);
+		send(2);
+		MessageInfo third = send(3);
+		assertThat(third.isSent(), is(false));
+		assertThat(window.getRejected(), is(1L));
+		// messages without reply are not limited
+		assertThat(link.sendPowerPinSwitch(4, 1).isSent(), is(true));
+
+		reply(first);
+		assertThat(send(5).isSent(), is(true));
+		assertThat(window.getInFlight(), is(2));
+		assertThat(lines(), is(4));
+	}
+
+	@Test
+	public void queuesIfWindowIsFull() throws InterruptedException {
+		window.setMaxSize(1);
+		window.setPolicy(Policy.QUEUE);
+		MessageInfo first = send(1);
+		MessageInfo second = send(2);
+		assertThat(second.isSent(), is(true));
+		assertThat(window.getQueued(), is(1));
+		assertThat(lines(), is(1));
+
+		reply(first);
+		awaitLines(2);
+		assertThat(window.getQueued(), is(0));
+		assertThat(lastLine(), is("alp://ppsw/2/1?id=" + second.getMessageID()));
+		reply(second);
+		assertThat(second.getReply(), is(IProtocol.REPLY_OK));
+		assertThat(window.getInFlight(), is(0));
+	}
+
+	@Test
+	public void repliesDontWaitForQueuedWrites() throws Exception {
+		window.setMaxSize(1);
+		window.setPolicy(Policy.QUEUE);
+		final MessageInfo first = send(1);
+		MessageInfo second = send(2);
+		writesBlocked = new CountDownLatch(1);
+		Thread receiver = new Thread() {
+			@Override
+			public void run() {
+				reply(first);
+			}
+		};
+		receiver.start();
+		receiver.join(SECONDS.toMillis(5));
+		assertThat(receiver.isAlive(), is(false));
+
+		writesBlocked.countDown();
+		awaitLines(2);
+		assertThat(lastLine(), is("alp://ppsw/2/1?id=" + second.getMessageID()));
+	}
+
+	@Test
+	public void failedQueuedWritesCallTheCallbackRightAway() throws Exception {
+		window.setMaxSize(1);
+		window.setPolicy(Policy.QUEUE);
+		MessageInfo first = send(1);
+		ReplyFuture future = new ReplyFuture();
+		MessageInfo second = link.sendPowerPinSwitch(2, 1, future);
+		assertThat(second.isSent(), is(true));
+		link.disconnect();
+
+		reply(first);
+		// long before the default timeout
+		assertThat(future.get(5, SECONDS), is(second));
+		assertThat(second.isSent(), is(false));
+		assertThat(second.getReply(), is(IProtocol.UNDEFINED_REPLY));
+		assertThat(window.getInFlight(), is(0));
+	}
+
+	@Test
+	public void blocksIfWindowIsFull() throws Exception {
+		window.setMaxSize(1);
+		window.setPolicy(Policy.BLOCK);
+		MessageInfo first = send(1);
+		final MessageInfo[] second = new MessageInfo[1];
+		Thread sender = new Thread() {
+			@Override
+			public void run() {
+				second[0] = send(2);
+			}
+		};
+		sender.start();
+		sender.join(200);
+		assertThat(sender.isAlive(), is(true));
+		// the link is not blocked for the other messages
+		assertThat(link.sendPowerPinSwitch(3, 1).isSent(), is(true));
+
+		reply(first);
+		sender.join(SECONDS.toMillis(5));
+		assertThat(sender.isAlive(), is(false));
+		assertThat(lastLine(), is("alp://ppsw/2/1?id=" + second[0].getMessageID()));
+	}
+
+	@Test
+	public void timeoutStartsWhenTheMessageIsWritten() throws Exception {
+		window.setMaxSize(1);
+		window.setPolicy(Policy.BLOCK);
+		MessageInfo first = send(1);
+		final MessageInfo[] second = new MessageInfo[1];
+		Thread sender = new Thread() {
+			@Override
+			public void run() {
+				second[0] = link.sendPowerPinSwitch(2, 1,
+						new TimedReplyMessageCallback() {
+					@Override
+					public void replyInfo(MessageInfo messageInfo) {
+						// nothing to do
+					}
+
+					@Override
+					public long getTimeout(TimeUnit unit) {
+						return unit.convert(500, MILLISECONDS);
+					}
+				});
+			}
+		};
+		sender.start();
+		sender.join(400);
+		reply(first);
+		sender.join(SECONDS.toMillis(5));
+		// more than the timeout after the send but less after the write
+		MILLISECONDS.sleep(300);
+		assertThat(second[0].getReply(), is(IProtocol.UNDEFINED_REPLY));
+		assertThat(window.getInFlight(), is(1));
+
+		reply(second[0]);
+		assertThat(second[0].getReply(), is(IProtocol.REPLY_OK));
+	}
+
+	@Test
+	public void timeoutFreesTheWindow() throws Exception {
+		window.setMaxSize(1);
+		window.setPolicy(Policy.FAIL);
+		MessageInfo messageInfo = link.sendPowerPinSwitch(1, 1,
+				new TimedReplyMessageCallback() {
+					@Override
+					public void replyInfo(MessageInfo messageInfo) {
+						// nothing to do
+					}
+
+					@Override
+					public long getTimeout(TimeUnit unit) {
+						return unit.convert(20, MILLISECONDS);
+					}
+				});
+		assertThat(messageInfo.isSent(), is(true));
+		long deadline = System.currentTimeMillis() + SECONDS.toMillis(5);
+		while (window.getInFlight() > 0
+				&& System.currentTimeMillis() < deadline) {
+			MILLISECONDS.sleep(10);
+		}
+		assertThat(messageInfo.getReply(), is(IProtocol.REPLY_TIMEOUT));
+		assertTrue(send(2).isSent());
+	}
+
+	private MessageInfo send(int pin) {
+		return link.sendPowerPinSwitch(pin, 1, new ReplyFuture());
+	}
+
+	private void reply(MessageInfo messageInfo) {
+		byte[] buffer = bytes("alp://rply/ok?id=" + messageInfo.getMessageID());
+		link.parseMessage(buffer, 0, buffer.length,
+				new IncomingMessageHandler() {
+					@Override
+					public void digitalReadChanged(int pin, int value,
+							byte[] message, int offset, int length) {
+						// no reads
+					}
+
+					@Override
+					public void analogReadChanged(int pin, int value,
+							byte[] message, int offset, int length) {
+						// no reads
+					}
+
+					@Override
+					public boolean wantsDigitalRead(int pin) {
+						return false;
+					}
+
+					@Override
+					public boolean wantsAnalogRead(int pin) {
+						return false;
+					}
+				});
+	}
+
+	private void awaitLines(int lines) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + SECONDS.toMillis(5);
+		while (lines() < lines && System.currentTimeMillis() < deadline) {
+			MILLISECONDS.sleep(10);
+		}
+	}
+
+	private int lines() {
+		return new String(outputStream.toByteArray()).split("\n").length;
+	}
+
+	private String lastLine() {
+		String[] lines = new String(outputStream.toByteArray()).split("\n");
+		return lines[lines.length - 1];
+	}
+
+	private static byte[] bytes(String string) {
+		byte[] bytes = new byte[string.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) string.charAt(i);
+		}
+		return bytes;
+	}
+
+	private Link createLink() {
+		Link link = Link.createInstance(LINKNAME, ALProtocol.NAME,
+				new AbstractSerialConnection() {
+
+					{
+						setOutputStream(outputStream);
+					}
+
+					@Override
+					public List<String> getPortList() {
+						return Collections.singletonList("/dev/null");
+					}
+
+					@Override
+					public boolean disconnect() {
+						setConnected(false);
+						return isConnected();
+					}
+
+					@Override
+					public boolean connect(Object... params) {
+						setConnected(true);
+						return isConnected();
+					}
+				});
+		link.connect();
+		return link;
+	}
+
+}
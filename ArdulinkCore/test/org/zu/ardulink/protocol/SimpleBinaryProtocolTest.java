@@ -0,0 +1,345 @@
+package org.zu.ardulink.protocol;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+import org.zu.ardulink.ConnectionContact;
+import org.zu.ardulink.Link;
+import org.zu.ardulink.connection.Connection;
+import org.zu.ardulink.event.AnalogReadChangeEvent;
+import org.zu.ardulink.event.AnalogReadChangeListener;
+import org.zu.ardulink.event.DigitalReadChangeEvent;
+import org.zu.ardulink.event.DigitalReadChangeListener;
+
+public class SimpleBinaryProtocolTest {
+
+	private static final String LINKNAME = "simplebinaryprotocoltest";
+
+	private final SimulatedBoard board = new SimulatedBoard();
+
+	private final Link link = createLink(LINKNAME, SimpleBinaryProtocol.NAME,
+			board);
+
+	@After
+	public void tearDown() {
+		Link.destroyInstance(LINKNAME);
+		Link.destroyInstance(LINKNAME + "-alp");
+	}
+
+	@Test
+	public void encodesFixedSizeFrames() {
+		link.sendPowerPinIntensity(9, 255);
+		link.sendPowerPinSwitch(13, IProtocol.HIGH);
+		link.sendToneMessage(4, 440, 100);
+		link.sendNoToneMessage(4);
+		assertThat(board.frames, is(Arrays.asList(
+				Arrays.asList(11, 9, 1, 127, 0, 0),
+				Arrays.asList(12, 13, 1, 0, 0),
+				Arrays.asList(13, 4, 0, 3, 56, 0, 0, 100, 0, 0),
+				Arrays.asList(14, 4, 0, 0))));
+		assertThat(board.pins[9], is(255));
+		assertThat(board.pins[13], is(1));
+		assertThat(board.pins[4], is(0));
+	}
+
+	@Test
+	public void boardRepliesToMessagesWithCallback() throws Exception {
+		ReplyFuture ok = link.sendPowerPinIntensityAsync(3, 1000);
+		ReplyFuture ko = link.sendCustomMessageAsync("unknown");
+		assertThat(ok.get(1, SECONDS).getReply(), is(IProtocol.REPLY_OK));
+		assertThat(ko.get(1, SECONDS).getReply(), is(IProtocol.REPLY_KO));
+		assertThat(board.pins[3], is(1000));
+		assertThat(board.custom, is(Collections.singletonList("unknown")));
+		MessageInfo messageInfo = ok.get();
+		String id = (messageInfo.getMessageID() >> 7) + " "
+				+ (messageInfo.getMessageID() & 0x7F);
+		assertThat(messageInfo.getMessageSent(), is("11 3 7 104 " + id
+				+ " 255"));
+		assertThat(messageInfo.getMessageReceived(), is("22 " + id + " 1"));
+	}
+
+	@Test
+	public void messageIdsWrapAround() throws Exception {
+		for (int i = 0; i <= SimpleBinaryProtocol.MAX_MESSAGE_ID; i++) {
+			long id = link.sendPowerPinSwitchAsync(1, IProtocol.LOW)
+					.get(1, SECONDS).getMessageID();
+			assertTrue(id > 0 && id <= SimpleBinaryProtocol.MAX_MESSAGE_ID);
+		}
+		assertThat(link.sendPowerPinSwitchAsync(1, IProtocol.HIGH)
+				.get(1, SECONDS).getReply(), is(IProtocol.REPLY_OK));
+	}
+
+	@Test
+	public void messagesWithoutCallbackGetNoId() {
+		assertThat(link.sendPowerPinSwitch(1, IProtocol.LOW).getMessageID(),
+				is((long) IProtocol.UNDEFINED_ID));
+	}
+
+	@Test
+	public void skipsIdsStillWaitingForAReply() throws Exception {
+		board.silent = true;
+		ReplyFuture pending = link.sendPowerPinSwitchAsync(1, IProtocol.LOW);
+		int pendingId = board.lastId;
+		board.silent = false;
+		for (int i = 0; i < SimpleBinaryProtocol.MAX_MESSAGE_ID; i++) {
+			MessageInfo messageInfo = link.sendPowerPinSwitchAsync(1,
+					IProtocol.HIGH).get(1, SECONDS);
+			assertThat(messageInfo.getReply(), is(IProtocol.REPLY_OK));
+			assertTrue(messageInfo.getMessageID() != pendingId);
+		}
+		assertFalse(pending.isDone());
+	}
+
+	@Test
+	public void readEventsAreDecoded() {
+		final List<String> events = new ArrayList<String>();
+		board.analogValues[5] = 1023;
+		board.digitalValues[7] = 1;
+		link.addAnalogReadChangeListener(new AnalogReadChangeListener() {
+			@Override
+			public void stateChanged(AnalogReadChangeEvent e) {
+				events.add("ared " + e.getPin() + " " + e.getValue());
+			}
+
+			@Override
+			public int getPinListening() {
+				return 5;
+			}
+		});
+		link.addDigitalReadChangeListener(new DigitalReadChangeListener() {
+			@Override
+			public void stateChanged(DigitalReadChangeEvent e) {
+				events.add("dred " + e.getPin() + " " + e.getValue());
+			}
+
+			@Override
+			public int getPinListening() {
+				return 7;
+			}
+		});
+		assertThat(events, is(Arrays.asList("ared 5 1023", "dred 7 1")));
+	}
+
+	@Test
+	public void ignoresMalformedFrames() {
+		RecordingHandler handler = new RecordingHandler();
+		link.parseMessage(new byte[] { 20, 5, 7 }, 0, 3, handler);
+		link.parseMessage(new byte[] { 20, 5, 7, (byte) 128 }, 0, 4, handler);
+		link.parseMessage(new byte[] { 99, 1, 2, 3 }, 0, 4, handler);
+		link.parseMessage(new byte[0], 0, 0, handler);
+		assertThat(handler.events, is(Collections.<String> emptyList()));
+		link.parseMessage(new byte[] { 0, 21, 2, 1, 0 }, 1, 3, handler);
+		assertThat(handler.events, is(Collections.singletonList("dred 2 1")));
+	}
+
+	@Test
+	public void sendsBatchWithSingleWrite() throws Exception {
+		ReplyFuture reply = link.batch().powerPinIntensity(9, 1)
+				.powerPinSwitch(2, IProtocol.HIGH).sendAsync();
+		assertThat(reply.get(1, SECONDS).getReply(), is(IProtocol.REPLY_OK));
+		assertThat(board.writes, is(1));
+		assertThat(board.frames.get(0), is(Arrays.asList(11, 9, 0, 1, 0, 0)));
+		assertThat(board.frames.get(1).subList(0, 3), is(Arrays.asList(12, 2, 1)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsValuesThatDoNotFitIntoTheFrame() {
+		link.sendPowerPinIntensity(3, 1 << 14);
+	}
+
+	@Test
+	public void needsAThirdOfTheBytesOfALProtocol() {
+		SimulatedBoard alpBoard = new SimulatedBoard();
+		Link alp = createLink(LINKNAME + "-alp", ALProtocol.NAME, alpBoard);
+		for (int i = 0; i < 1000; i++) {
+			for (Link l : Arrays.asList(link, alp)) {
+				l.sendPowerPinIntensity(9, i % 256);
+				l.sendPowerPinIntensity(10, (i + 85) % 256);
+				l.sendPowerPinIntensity(11, (i + 170) % 256);
+			}
+		}
+		int binary = board.bytes.size();
+		int text = alpBoard.bytes.size();
+		// 7 bytes per ppin instead of 16-18
+		assertTrue(binary + " vs " + text + " bytes", 2 * binary < text);
+
+		// analog read events: 5 bytes instead of 16-18
+		int alpEvents = 0;
+		int binaryEvents = 0;
+		for (int value = 0; value < 1024; value++) {
+			alpEvents += ("alp://ared/5/" + value).length() + 1;
+			binaryEvents += new int[] { 20, 5, value >> 7, value & 0x7F }.length + 1;
+		}
+		assertTrue(binaryEvents + " vs " + alpEvents + " bytes",
+				3 * binaryEvents < alpEvents);
+	}
+
+	private static Link createLink(String name, String protocolName,
+			Connection connection) {
+		Link link = Link.createInstance(name, protocolName, connection);
+		link.connect();
+		return link;
+	}
+
+	private static class RecordingHandler implements IncomingMessageHandler {
+
+		private final List<String> events = new ArrayList<String>();
+
+		@Override
+		public void analogReadChanged(int pin, int value, byte[] message,
+				int offset, int length) {
+			events.add("ared " + pin + " " + value);
+		}
+
+		@Override
+		public void digitalReadChanged(int pin, int value, byte[] message,
+				int offset, int length) {
+			events.add("dred " + pin + " " + value);
+		}
+
+		@Override
+		public boolean wantsAnalogRead(int pin) {
+			return true;
+		}
+
+		@Override
+		public boolean wantsDigitalRead(int pin) {
+			return true;
+		}
+
+	}
+
+	/**
+	 * Does what the SimpleBinaryProtocol sketch does on Arduino.
+	 */
+	private static class SimulatedBoard implements Connection {
+
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final List<List<Integer>> frames = new ArrayList<List<Integer>>();
+		private final List<String> custom = new ArrayList<String>();
+		private final int[] pins = new int[20];
+		private final int[] analogValues = new int[6];
+		private final int[] digitalValues = new int[20];
+		private final List<Integer> frame = new ArrayList<Integer>();
+		private ConnectionContact contact;
+		private boolean connected;
+		private boolean silent;
+		private int lastId;
+		private int writes;
+
+		@Override
+		public List<String> getPortList() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public boolean connect(Object... params) {
+			return connected = true;
+		}
+
+		@Override
+		public boolean disconnect() {
+			connected = false;
+			return true;
+		}
+
+		@Override
+		public boolean isConnected() {
+			return connected;
+		}
+
+		@Override
+		public boolean writeSerial(String message) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public boolean writeSerial(byte[] message, int offset, int length) {
+			writes++;
+			bytes.write(message, offset, length);
+			for (int i = offset; i < offset + length; i++) {
+				int b = message[i] & 0xFF;
+				if (b == 255) {
+					frames.add(new ArrayList<Integer>(frame));
+					process();
+					frame.clear();
+				} else {
+					frame.add(b);
+				}
+			}
+			return true;
+		}
+
+		private void process() {
+			// ALProtocol is only used to count bytes
+			if (frame.get(0) > 127) {
+				return;
+			}
+			int size = frame.size();
+			int id = frame.get(size - 2) << 7 | frame.get(size - 1);
+			lastId = id;
+			boolean ok = true;
+			switch (frame.get(0)) {
+			case 11:
+				pins[frame.get(1)] = frame.get(2) << 7 | frame.get(3);
+				break;
+			case 12:
+				pins[frame.get(1)] = frame.get(2);
+				break;
+			case 13:
+				pins[frame.get(1)] = 1;
+				break;
+			case 14:
+				pins[frame.get(1)] = 0;
+				break;
+			case 15:
+				send(21, frame.get(1), digitalValues[frame.get(1)]);
+				break;
+			case 17:
+				int value = analogValues[frame.get(1)];
+				send(20, frame.get(1), value >> 7, value & 0x7F);
+				break;
+			case 19:
+				StringBuilder sb = new StringBuilder();
+				for (int i = 1; i < size - 2; i++) {
+					sb.append((char) frame.get(i).intValue());
+				}
+				custom.add(sb.toString());
+				ok = false;
+				break;
+			default:
+				ok = false;
+			}
+			if (id != 0 && !silent) {
+				send(22, id >> 7, id & 0x7F, ok ? 1 : 0);
+			}
+		}
+
+		private void send(int... message) {
+			contact.parseInput("board", message.length, message);
+		}
+
+		@Override
+		public boolean writeSerial(int numBytes, int[] message) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void setConnectionContact(ConnectionContact contact) {
+			this.contact = contact;
+		}
+
+	}
+
+}
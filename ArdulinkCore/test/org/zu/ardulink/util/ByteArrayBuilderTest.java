@@ -0,0 +1,48 @@
+package org.zu.ardulink.util;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class ByteArrayBuilderTest {
+
+	@Test
+	public void rendersNumbersLikeStringBuilder() {
+		long[] values = { 0, 1, -1, 9, 10, 255, 1023, -4711, Integer.MAX_VALUE,
+				Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE };
+		for (long value : values) {
+			assertThat(new ByteArrayBuilder(1).append(value).toString(),
+					is(String.valueOf(value)));
+		}
+	}
+
+	@Test
+	public void canAppendMixedContent() {
+		ByteArrayBuilder builder = new ByteArrayBuilder(4);
+		builder.append("alp://".getBytes()).append("ppin/").append(3)
+				.append('/').append(127);
+		assertThat(builder.toString(), is("alp://ppin/3/127"));
+		assertThat(builder.length(), is("alp://ppin/3/127".length()));
+	}
+
+	@Test
+	public void encodesCharactersAsLatin1() {
+		ByteArrayBuilder builder = new ByteArrayBuilder(1);
+		builder.append("\u00e4\u20ac").append('\u00fc');
+		assertThat(builder.length(), is(3));
+		assertThat(builder.getBuffer()[0], is((byte) 0xE4));
+		assertThat(builder.toString(), is("\u00e4?\u00fc"));
+	}
+
+	@Test
+	public void canBeReusedAfterClear() {
+		ByteArrayBuilder builder = new ByteArrayBuilder(16);
+		builder.append("a rather long first message");
+		byte[] buffer = builder.getBuffer();
+		builder.clear().append("short");
+		assertThat(builder.toString(), is("short"));
+		assertThat(builder.getBuffer() == buffer, is(true));
+	}
+
+}
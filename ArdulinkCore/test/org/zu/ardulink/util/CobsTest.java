@@ -0,0 +1,120 @@
+package org.zu.ardulink.util;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CobsTest {
+
+	@Test
+	public void encodesLikeTheReferenceImplementation() {
+		assertEncoded(new int[0], 0x01);
+		assertEncoded(new int[] { 0x00 }, 0x01, 0x01);
+		assertEncoded(new int[] { 0x00, 0x00 }, 0x01, 0x01, 0x01);
+		assertEncoded(new int[] { 0x11, 0x22, 0x00, 0x33 }, 0x03, 0x11, 0x22,
+				0x02, 0x33);
+		assertEncoded(new int[] { 0x11, 0x00, 0x00, 0x00 }, 0x02, 0x11, 0x01,
+				0x01, 0x01);
+	}
+
+	@Test
+	public void splitsLongRunsIntoBlocks() {
+		int[] run = new int[254];
+		Arrays.fill(run, 7);
+		byte[] encoded = encode(run, 0);
+		assertThat(encoded.length, is(255));
+		assertThat(encoded[0] & 0xFF, is(0xFF));
+
+		int[] longer = new int[255];
+		Arrays.fill(longer, 7);
+		encoded = encode(longer, 0);
+		assertThat(encoded.length, is(257));
+		assertThat(encoded[255] & 0xFF, is(0x02));
+	}
+
+	@Test
+	public void encodedFrameNeverContainsTheDelimiter() {
+		Random random = new Random(4711);
+		for (int delimiter : new int[] { 0, 255, 10 }) {
+			for (int length = 0; length < 1000; length += 7) {
+				int[] frame = new int[length];
+				for (int i = 0; i < length; i++) {
+					// many delimiters and long runs without
+					frame[i] = random.nextInt(4) == 0 ? delimiter : random
+							.nextInt(256);
+				}
+				byte[] encoded = encode(frame, delimiter);
+				assertThat(encoded.length <= Cobs.maxEncodedLength(length),
+						is(true));
+				for (int i = 0; i < encoded.length; i++) {
+					assertThat((encoded[i] & 0xFF) != delimiter, is(true));
+				}
+				int decodedLength = Cobs.decode(encoded, 0, encoded.length,
+						delimiter);
+				assertThat(unsigned(encoded, decodedLength), is(frame));
+			}
+		}
+	}
+
+	@Test
+	public void decodesInPlaceAtOffset() {
+		byte[] buffer = bytes(9, 9, 0x03 ^ 0xFF, 0x11 ^ 0xFF, 0x22 ^ 0xFF,
+				0x02 ^ 0xFF, 0x33 ^ 0xFF, 9);
+		assertThat(Cobs.decode(buffer, 2, 5, 0xFF), is(4));
+		assertThat(Arrays.copyOfRange(buffer, 2, 6), is(new byte[] { 0x11,
+				0x22, 0x00, 0x33 }));
+	}
+
+	@Test
+	public void encodesEachFrameTerminatedByTheDelimiter() {
+		byte[] frames = bytes(0x11, 0x00, 0xFF, 0xFF, 0x22);
+		byte[] buffer = new byte[Cobs.maxEncodedFramesLength(frames.length)];
+		int length = Cobs.encodeFrames(frames, 0, frames.length, buffer, 0,
+				0xFF);
+		assertThat(Arrays.copyOf(buffer, length), is(bytes(0x02 ^ 0xFF,
+				0x11 ^ 0xFF, 0x01 ^ 0xFF, 0xFF, 0x01 ^ 0xFF, 0xFF,
+				0x02 ^ 0xFF, 0x22 ^ 0xFF, 0xFF)));
+	}
+
+	@Test
+	public void rejectsMalformedFrames() {
+		// code points behind the end of the frame
+		assertThat(Cobs.decode(new byte[] { 0x05, 0x11 }, 0, 2, 0), is(-1));
+		// contains the delimiter
+		assertThat(Cobs.decode(new byte[] { 0x03, 0x11, 0x00 }, 0, 3, 0),
+				is(-1));
+		assertThat(Cobs.decode(new byte[] { 0x00 }, 0, 1, 0), is(-1));
+	}
+
+	private static void assertEncoded(int[] frame, int... expected) {
+		byte[] encoded = encode(frame, 0);
+		assertThat(unsigned(encoded, encoded.length), is(expected));
+	}
+
+	private static byte[] bytes(int... values) {
+		byte[] bytes = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			bytes[i] = (byte) values[i];
+		}
+		return bytes;
+	}
+
+	private static int[] unsigned(byte[] bytes, int length) {
+		int[] ints = new int[length];
+		for (int i = 0; i < length; i++) {
+			ints[i] = bytes[i] & 0xFF;
+		}
+		return ints;
+	}
+
+	private static byte[] encode(int[] frame, int delimiter) {
+		byte[] buffer = new byte[Cobs.maxEncodedLength(frame.length) + 2];
+		int length = Cobs.encode(frame, 0, frame.length, buffer, 1, delimiter);
+		return Arrays.copyOfRange(buffer, 1, 1 + length);
+	}
+
+}
@@ -0,0 +1,72 @@
+package org.zu.ardulink.util;
+
+import static java.lang.Boolean.FALSE;
+import static java.lang.Boolean.TRUE;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class PinListenersTest {
+
+	private static final int ALL_PINS = -1;
+
+	private final PinListeners<String> listeners = new PinListeners<String>(
+			String.class, ALL_PINS);
+
+	@Test
+	public void canAddOncePerPin() {
+		assertThat(listeners.add(3, "foo"), is(TRUE));
+		assertThat(listeners.add(3, "foo"), is(FALSE));
+		assertThat(listeners.add(3, "bar"), is(TRUE));
+		assertThat(listeners.add(5, "foo"), is(TRUE));
+		assertThat(listeners.listeners(3), is(new String[] { "foo", "bar" }));
+		assertThat(listeners.listeners(5), is(new String[] { "foo" }));
+		assertThat(listeners.listeners(4), is(new String[0]));
+		assertThat(listeners.listeners(99), is(new String[0]));
+	}
+
+	@Test
+	public void canRemove() {
+		listeners.add(3, "foo");
+		listeners.add(3, "bar");
+		listeners.add(3, "baz");
+		assertThat(listeners.remove(3, "bar"), is(TRUE));
+		assertThat(listeners.remove(3, "bar"), is(FALSE));
+		assertThat(listeners.remove(4, "foo"), is(FALSE));
+		assertThat(listeners.listeners(3), is(new String[] { "foo", "baz" }));
+		assertThat(listeners.isEmpty(3), is(FALSE));
+		listeners.remove(3, "foo");
+		listeners.remove(3, "baz");
+		assertThat(listeners.isEmpty(3), is(TRUE));
+	}
+
+	@Test
+	public void keepsAllPinListenersSeparately() {
+		assertThat(listeners.hasListeners(7), is(FALSE));
+		listeners.add(ALL_PINS, "all");
+		assertThat(listeners.hasListeners(7), is(TRUE));
+		assertThat(listeners.listeners(7), is(new String[0]));
+		assertThat(listeners.listeners(ALL_PINS), is(new String[0]));
+		assertThat(listeners.allPinListeners(), is(new String[] { "all" }));
+		assertThat(listeners.isEmpty(ALL_PINS), is(FALSE));
+		assertThat(listeners.remove(ALL_PINS, "all"), is(TRUE));
+		assertThat(listeners.hasListeners(7), is(FALSE));
+	}
+
+	@Test
+	public void publishedArraysAreNotChanged() {
+		listeners.add(2, "foo");
+		String[] before = listeners.listeners(2);
+		listeners.add(2, "bar");
+		listeners.remove(2, "foo");
+		assertThat(before, is(new String[] { "foo" }));
+		assertThat(listeners.listeners(2), is(new String[] { "bar" }));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsNegativePins() {
+		listeners.add(-2, "foo");
+	}
+
+}
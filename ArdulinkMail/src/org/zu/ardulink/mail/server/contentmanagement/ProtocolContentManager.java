@@ -18,6 +18,7 @@ limitations under the License.
 
 package org.zu.ardulink.mail.server.contentmanagement;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.zu.ardulink.util.Preconditions.checkNotNull;
 import static org.zu.ardulink.util.Preconditions.checkState;
 import static org.zu.ardulink.util.Primitive.parseAs;
@@ -31,7 +32,8 @@ import org.zu.ardulink.Link;
 import org.zu.ardulink.mail.server.links.configuration.utils.ConfigurationUtility;
 import org.zu.ardulink.protocol.IProtocol;
 import org.zu.ardulink.protocol.MessageInfo;
-import org.zu.ardulink.protocol.ReplyMessageCallback;
+import org.zu.ardulink.protocol.ReplyFuture;
+import org.zu.ardulink.protocol.TimedReplyMessageCallback;
 
 /**
  * [ardulinktitle] [ardulinkversion]
@@ -43,6 +45,8 @@ import org.zu.ardulink.protocol.ReplyMessageCallback;
  */
 public class ProtocolContentManager implements IContentManager {
 
+	private static final int REPLY_TIMEOUT_SECONDS = 20;
+
 	@Override
 	public boolean isForContent(String content, List<String> mailContentHooks) {
 		for (String hook : mailContentHooks) {
@@ -90,14 +94,15 @@ public class ProtocolContentManager implements IContentManager {
 		
 		MethodAndParameters methodAndParameters = findMethodAndParameters(link, message);
 		
-		Caller caller = new Caller(link, message, methodAndParameters);
-		Thread thread = new Thread(caller);
-		thread.start();
-		thread.join();
-
-		checkState(caller.isMessageSent(), caller.getResult());
+		ReplyFuture reply = new TimedReplyFuture();
+		methodAndParameters.addParameter(reply);
+		MessageInfo messageInfo = (MessageInfo) methodAndParameters.getMethod().invoke(link, methodAndParameters.getParameters().toArray());
+		checkState(messageInfo.isSent(), "Message not sent.");
 
-		return caller.getResult();
+		// completed with REPLY_TIMEOUT by the link if Arduino doesn't reply in time
+		int result = reply.get().getReply();
+		checkState(result != IProtocol.REPLY_TIMEOUT, "Timed out.");
+		return result == IProtocol.REPLY_OK ? "OK" : "ERROR";
 	}
 
 	private MethodAndParameters findMethodAndParameters(Link link, String message) {
@@ -152,6 +157,15 @@ public class ProtocolContentManager implements IContentManager {
 				this.getClass().getName());
 	}
 
+	private static class TimedReplyFuture extends ReplyFuture implements TimedReplyMessageCallback {
+
+		@Override
+		public long getTimeout(TimeUnit unit) {
+			return unit.convert(REPLY_TIMEOUT_SECONDS, SECONDS);
+		}
+
+	}
+
 	private class MethodAndParameters {
 		
 		Method method;
@@ -174,66 +188,4 @@ public class ProtocolContentManager implements IContentManager {
 		}
 		
 	}
-	
-	private class Caller implements Runnable, ReplyMessageCallback {
-		
-		private Link link;
-		private String message;
-		private MethodAndParameters methodAndParameters;
-		private String result;
-		private boolean messageSent;
-		private boolean callbackCalled;
-		
-		private int counter = 0;
-		
-		private static final int MAX_COUNT = 20; // Timed out!
-
-		public Caller(Link link, String message, MethodAndParameters methodAndParameters) {
-			this.link = link;
-			this.message = message;
-			this.methodAndParameters = methodAndParameters;
-		}
-
-		public String getResult() {
-			return result;
-		}
-		
-		public boolean isMessageSent() {
-			return messageSent;
-		}
-
-		@Override
-		public void replyInfo(MessageInfo messageInfo) {
-			if(messageInfo.getReply() == IProtocol.REPLY_OK) {
-				result = "OK";
-			} else {
-				result = "ERROR";
-			}
-
-			callbackCalled = true;
-		}
-
-		@Override
-		public void run() {
-			methodAndParameters.addParameter(this);
-			try {
-
-				methodAndParameters.getMethod().invoke(link, methodAndParameters.getParameters().toArray());
-				messageSent = true;
-
-				while (!callbackCalled && counter > MAX_COUNT) {
-					TimeUnit.SECONDS.sleep(1);
-					counter++;
-				}
-
-				checkState(callbackCalled, "Timed out.");
-
-			} catch (Exception e) {
-				e.printStackTrace();
-				result = e.getMessage();
-				messageSent = false;
-			}
-		}
-		
-	}
 }
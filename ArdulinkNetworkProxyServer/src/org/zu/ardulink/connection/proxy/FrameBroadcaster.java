@@ -0,0 +1,118 @@
+/**
+Copyright 2013 project Ardulink http://www.ardulink.org/
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.zu.ardulink.connection.proxy;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.zu.ardulink.Link;
+import org.zu.ardulink.ParsedFrameListener;
+import org.zu.ardulink.protocol.IProtocol;
+
+/**
+ * [ardulinktitle] [ardulinkversion]
+ * The only listener of a board's frames, however many clients share the
+ * board. The frames are passed after the board's link parsed them, so each
+ * frame is sent only to the clients subscribed to it (see
+ * {@link PinSubscription}) without being parsed again. A frame is encoded
+ * once (with its divider) into a read-only buffer, every client gets a view
+ * of this same buffer, so no client copies or encodes the frame. Frames no
+ * client wants aren't encoded at all.
+ *
+ * @author project Ardulink http://www.ardulink.org/
+ *
+ * [adsense]
+ *
+ */
+public class FrameBroadcaster implements ParsedFrameListener {
+
+	/**
+	 * A client of the board (a connection or a stream of a multiplexed
+	 * connection).
+	 */
+	public interface Subscriber {
+
+		/**
+		 * @param type what the board's frame was
+		 * @param pin the pin of a read
+		 * @return true if the frame is to be sent to the subscriber
+		 */
+		boolean accepts(FrameType type, int pin);
+
+		/**
+		 * Sends a frame of the board.
+		 * @param frame the encoded frame (including its divider) shared with
+		 *            the other subscribers, not to be changed
+		 */
+		void send(ByteBuffer frame);
+
+	}
+
+	private final Link link;
+	private final CopyOnWriteArrayList<Subscriber> clients = new CopyOnWriteArrayList<Subscriber>();
+
+	public FrameBroadcaster(Link link) {
+		this.link = link;
+	}
+
+	public Link getLink() {
+		return link;
+	}
+
+	/**
+	 * @param client
+	 * @return true if the client wasn't subscribed before
+	 */
+	public boolean subscribe(Subscriber client) {
+		return clients.addIfAbsent(client);
+	}
+
+	/**
+	 * @param client
+	 * @return true if the client was subscribed
+	 */
+	public boolean unsubscribe(Subscriber client) {
+		return clients.remove(client);
+	}
+
+	/**
+	 * @return the number of clients subscribed
+	 */
+	public int getSubscribers() {
+		return clients.size();
+	}
+
+	@Override
+	public void frameParsed(String id, byte[] frame, int offset, int length, FrameType type, int pin) {
+		ByteBuffer encoded = null;
+		for (Subscriber client : clients) {
+			if (client.accepts(type, pin)) {
+				if (encoded == null) {
+					encoded = encode(frame, offset, length);
+				}
+				client.send(encoded);
+			}
+		}
+	}
+
+	private static ByteBuffer encode(byte[] frame, int offset, int length) {
+		ByteBuffer buffer = ByteBuffer.allocate(length + 1);
+		buffer.put(frame, offset, length).put(IProtocol.DEFAULT_INCOMING_MESSAGE_DIVIDER).flip();
+		return buffer.asReadOnlyBuffer();
+	}
+
+}
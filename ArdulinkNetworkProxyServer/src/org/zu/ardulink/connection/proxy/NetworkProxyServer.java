@@ -21,12 +21,11 @@ package org.zu.ardulink.connection.proxy;
 import static java.lang.Math.max;
 import static org.zu.ardulink.connection.proxy.NetworkProxyConnection.DEFAULT_LISTENING_PORT;
 
+import java.io.IOException;
 import java.io.PrintWriter;
-import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
 
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.CmdLineException;
@@ -36,6 +35,7 @@ import org.kohsuke.args4j.spi.SubCommand;
 import org.kohsuke.args4j.spi.SubCommandHandler;
 import org.kohsuke.args4j.spi.SubCommands;
 import org.zu.ardulink.Link;
+import org.zu.ardulink.connection.proxy.ChannelWriter.OverflowPolicy;
 
 /**
  * [ardulinktitle] [ardulinkversion]
@@ -47,28 +47,22 @@ import org.zu.ardulink.Link;
 public class NetworkProxyServer implements NetworkProxyMessages {
 
 	private interface Command {
-		void execute(int portNumber);
+		void execute(NetworkProxyServer server);
 	}
 
 	public static class StartCommand implements Command {
 
 		@Override
-		public void execute(int portNumber) {
+		public void execute(NetworkProxyServer server) {
 			try {
-				ServerSocket serverSocket = new ServerSocket(portNumber);
-				try {
-					System.out
-							.println("Ardulink Network Proxy Server running...");
-					while (listening) {
-						NetworkProxyServerConnection connection = new NetworkProxyServerConnection(
-								serverSocket.accept());
-						Thread thread = new Thread(connection);
-						thread.start();
-						TimeUnit.SECONDS.sleep(2);
-					}
-				} finally {
-					serverSocket.close();
-				}
+				NetworkProxyServerAcceptor acceptor = new NetworkProxyServerAcceptor(
+						server.portNumber, server.selectorThreads);
+				acceptor.setMaxPendingBytes(server.maxPendingBytes);
+				acceptor.setOverflowPolicy(server.overflowPolicy);
+				acceptor.setWriteQuota(server.writeQuota);
+				NetworkProxyServer.acceptor = acceptor;
+				System.out.println("Ardulink Network Proxy Server running...");
+				acceptor.serve();
 			} catch (Exception e) {
 				e.printStackTrace();
 				System.exit(-1);
@@ -81,9 +75,9 @@ public class NetworkProxyServer implements NetworkProxyMessages {
 	public static class StopCommand implements Command {
 
 		@Override
-		public void execute(int portNumber) {
+		public void execute(NetworkProxyServer server) {
 			try {
-				Socket socket = new Socket("127.0.0.1", portNumber);
+				Socket socket = new Socket("127.0.0.1", server.portNumber);
 				PrintWriter writer = new PrintWriter(socket.getOutputStream(),
 						true);
 				writer.println(STOP_SERVER_CMD);
@@ -98,7 +92,7 @@ public class NetworkProxyServer implements NetworkProxyMessages {
 
 	}
 
-	private static boolean listening = true;
+	private static volatile NetworkProxyServerAcceptor acceptor;
 
 	@Argument(required = true, usage = "command", handler = SubCommandHandler.class)
 	@SubCommands({ @SubCommand(name = "start", impl = StartCommand.class),
@@ -108,6 +102,18 @@ public class NetworkProxyServer implements NetworkProxyMessages {
 	@Option(name = "-p", aliases = "--port", usage = "Local port to bind to")
 	private int portNumber = DEFAULT_LISTENING_PORT;
 
+	@Option(name = "-t", aliases = "--threads", usage = "Number of threads serving the clients")
+	private int selectorThreads = NetworkProxyServerAcceptor.DEFAULT_SELECTOR_THREADS;
+
+	@Option(name = "-q", aliases = "--queue", usage = "Maximum number of bytes queued per client")
+	private int maxPendingBytes = NetworkProxyServerAcceptor.DEFAULT_MAX_PENDING_BYTES;
+
+	@Option(name = "-o", aliases = "--overflow", usage = "What happens to the messages for a client whose queue is full")
+	private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+
+	@Option(name = "-r", aliases = "--rate", usage = "Maximum number of bytes per second each client may write to its board (0 for no limit)")
+	private int writeQuota;
+
 	private static Map<String, Integer> linkUsers = new HashMap<String, Integer>();
 
 	public static void main(String[] args) {
@@ -123,11 +129,18 @@ public class NetworkProxyServer implements NetworkProxyMessages {
 			cmdLineParser.printUsage(System.err);
 			return;
 		}
-		command.execute(portNumber);
+		command.execute(this);
 	}
 
 	public static void stop() {
-		listening = false;
+		NetworkProxyServerAcceptor acceptor = NetworkProxyServer.acceptor;
+		if (acceptor != null) {
+			try {
+				acceptor.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
 	}
 
 	public static Link connect(String portName, int baudRate) {
@@ -0,0 +1,314 @@
+/**
+Copyright 2013 project Ardulink http://www.ardulink.org/
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.zu.ardulink.connection.proxy;
+
+import static org.zu.ardulink.util.Preconditions.checkArgument;
+import static org.zu.ardulink.util.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zu.ardulink.Link;
+import org.zu.ardulink.connection.proxy.ChannelWriter.OverflowPolicy;
+
+/**
+ * [ardulinktitle] [ardulinkversion]
+ * Accepts the clients of the NetworkProxyServer and hands them to a small
+ * number of {@link ChannelSelector}s (round robin), so hundreds of clients
+ * are served by a handful of threads. The blocking parts of the handshake
+ * (opening the serial port, listing the ports) are run by a separate pool
+ * of threads, so they don't stall the selectors.
+ * <br/>
+ * The board's messages are encoded once by the board's
+ * {@link FrameBroadcaster} and queued per client, the size of the queues
+ * and what happens to a message that doesn't fit can be configured.
+ * <br/>
+ * The clients' messages for a board are written by the board's
+ * {@link WriteScheduler}, the clients take turns, so none of them can
+ * monopolize the board. The writes per second of each client can be
+ * limited.
+ *
+ * @author project Ardulink http://www.ardulink.org/
+ *
+ * [adsense]
+ *
+ */
+public class NetworkProxyServerAcceptor {
+
+	private static final Logger logger = LoggerFactory.getLogger(NetworkProxyServerAcceptor.class);
+
+	public static final int DEFAULT_SELECTOR_THREADS = 2;
+
+	public static final int DEFAULT_MAX_PENDING_BYTES = 256 * 1024;
+
+	public static final int DEFAULT_MAX_QUEUED_BYTES_TO_BOARD = 4 * 1024;
+
+	private static final int HANDSHAKE_THREADS = 4;
+
+	private final ServerSocketChannel serverChannel;
+	private final ChannelSelector[] selectors;
+	private final ExecutorService handshakes;
+	private final ExecutorService boardWriters;
+	private final List<NetworkProxyServerConnection> clients = new CopyOnWriteArrayList<NetworkProxyServerConnection>();
+	// by link name, guarded by itself
+	private final Map<String, FrameBroadcaster> broadcasters = new HashMap<String, FrameBroadcaster>();
+	// by link name, guarded by itself
+	private final Map<String, WriteScheduler> schedulers = new HashMap<String, WriteScheduler>();
+	private int next;
+
+	private volatile int maxPendingBytes = DEFAULT_MAX_PENDING_BYTES;
+	private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+	private volatile int maxQueuedBytesToBoard = DEFAULT_MAX_QUEUED_BYTES_TO_BOARD;
+	private volatile int writeQuota;
+
+	/**
+	 * Binds the server's port.
+	 * @param portNumber the port or 0 for any free port
+	 * @param selectorThreads the number of threads serving the clients
+	 * @throws IOException
+	 */
+	public NetworkProxyServerAcceptor(int portNumber, int selectorThreads) throws IOException {
+		checkArgument(selectorThreads > 0, "selectorThreads must be positive but was %s", selectorThreads);
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress(portNumber));
+		selectors = new ChannelSelector[selectorThreads];
+		for (int i = 0; i < selectorThreads; i++) {
+			selectors[i] = new ChannelSelector("ardulink-proxy-selector-" + i);
+		}
+		handshakes = Executors.newFixedThreadPool(HANDSHAKE_THREADS, daemonThreads("ardulink-proxy-handshake-"));
+		// a thread per board being written to
+		boardWriters = Executors.newCachedThreadPool(daemonThreads("ardulink-proxy-writer-"));
+	}
+
+	private static ThreadFactory daemonThreads(final String prefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger threads = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, prefix + threads.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * @return the port the server is bound to
+	 */
+	public int getLocalPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * Accepts clients until {@link #close()} is called, then stops the
+	 * threads serving the clients.
+	 * @throws IOException
+	 */
+	public void serve() throws IOException {
+		try {
+			while (true) {
+				SocketChannel client = serverChannel.accept();
+				logger.info("{} connected.", client.socket().getRemoteSocketAddress());
+				NetworkProxyServerConnection connection = new NetworkProxyServerConnection(client, this,
+						nextSelector(), handshakes);
+				clients.add(connection);
+				connection.start();
+			}
+		} catch (ClosedChannelException e) {
+			logger.info("Stopped accepting clients.");
+		} finally {
+			for (ChannelSelector selector : selectors) {
+				selector.shutdown();
+			}
+			handshakes.shutdown();
+			boardWriters.shutdown();
+		}
+	}
+
+	/**
+	 * Stops accepting clients.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		serverChannel.close();
+	}
+
+	/**
+	 * @return the clients connected (with their statistics)
+	 */
+	public List<NetworkProxyServerConnection> getClients() {
+		return Collections.unmodifiableList(clients);
+	}
+
+	void removeClient(NetworkProxyServerConnection client) {
+		clients.remove(client);
+	}
+
+	/**
+	 * The client will receive the frames of the board's link.
+	 * @param link
+	 * @param client
+	 */
+	void subscribe(Link link, FrameBroadcaster.Subscriber client) {
+		synchronized (broadcasters) {
+			FrameBroadcaster broadcaster = broadcasters.get(link.getName());
+			if (broadcaster == null || broadcaster.getLink() != link) {
+				broadcaster = new FrameBroadcaster(link);
+				broadcasters.put(link.getName(), broadcaster);
+				link.addParsedFrameListener(broadcaster);
+			}
+			broadcaster.subscribe(client);
+		}
+	}
+
+	/**
+	 * The client won't receive the frames of the board's link anymore, the
+	 * board's broadcaster is removed with its last client.
+	 * @param link
+	 * @param client
+	 */
+	void unsubscribe(Link link, FrameBroadcaster.Subscriber client) {
+		synchronized (broadcasters) {
+			FrameBroadcaster broadcaster = broadcasters.get(link.getName());
+			if (broadcaster != null && broadcaster.getLink() == link && broadcaster.unsubscribe(client)
+					&& broadcaster.getSubscribers() == 0) {
+				link.removeParsedFrameListener(broadcaster);
+				broadcasters.remove(link.getName());
+			}
+		}
+	}
+
+	/**
+	 * @param linkName
+	 * @return the number of clients receiving the frames of the board
+	 */
+	public int getSubscribers(String linkName) {
+		synchronized (broadcasters) {
+			FrameBroadcaster broadcaster = broadcasters.get(linkName);
+			return broadcaster == null ? 0 : broadcaster.getSubscribers();
+		}
+	}
+
+	/**
+	 * @param link
+	 * @param available run when the queue, after being full, has room again
+	 * @param quota the bytes per second the client may write, 0 for no limit
+	 * @return a new queue for the messages of a client to the board
+	 */
+	WriteScheduler.Queue newWriteQueue(Link link, Runnable available, int quota) {
+		synchronized (schedulers) {
+			WriteScheduler scheduler = schedulers.get(link.getName());
+			if (scheduler == null || scheduler.getLink() != link) {
+				scheduler = new WriteScheduler(link, boardWriters, maxQueuedBytesToBoard);
+				schedulers.put(link.getName(), scheduler);
+			}
+			return scheduler.newQueue(available, quota);
+		}
+	}
+
+	/**
+	 * Closes the queue, the board's scheduler is removed with its last queue.
+	 * @param link
+	 * @param queue
+	 */
+	void closeWriteQueue(Link link, WriteScheduler.Queue queue) {
+		queue.close();
+		synchronized (schedulers) {
+			WriteScheduler scheduler = schedulers.get(link.getName());
+			if (scheduler != null && scheduler.getLink() == link && scheduler.getQueues() == 0) {
+				schedulers.remove(link.getName());
+			}
+		}
+	}
+
+	public int getMaxPendingBytes() {
+		return maxPendingBytes;
+	}
+
+	/**
+	 * @param maxPendingBytes the maximum number of bytes queued per client
+	 *            (for the clients connecting afterwards)
+	 */
+	public void setMaxPendingBytes(int maxPendingBytes) {
+		checkArgument(maxPendingBytes > 0, "maxPendingBytes must be positive but was %s", maxPendingBytes);
+		this.maxPendingBytes = maxPendingBytes;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * @param overflowPolicy what happens to a message for a client whose
+	 *            queue is full (for the clients connecting afterwards)
+	 */
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = checkNotNull(overflowPolicy, "overflowPolicy must not be null");
+	}
+
+	public int getMaxQueuedBytesToBoard() {
+		return maxQueuedBytesToBoard;
+	}
+
+	/**
+	 * @param maxQueuedBytesToBoard the bytes queued per client for the board,
+	 *            the client isn't read while its queue is full (for the
+	 *            boards connecting afterwards)
+	 */
+	public void setMaxQueuedBytesToBoard(int maxQueuedBytesToBoard) {
+		checkArgument(maxQueuedBytesToBoard > 0, "maxQueuedBytesToBoard must be positive but was %s",
+				maxQueuedBytesToBoard);
+		this.maxQueuedBytesToBoard = maxQueuedBytesToBoard;
+	}
+
+	public int getWriteQuota() {
+		return writeQuota;
+	}
+
+	/**
+	 * @param writeQuota the bytes per second each client may write to its
+	 *            board, 0 for no limit (for the clients connecting
+	 *            afterwards, see
+	 *            {@link NetworkProxyServerConnection#setWriteQuota(int)})
+	 */
+	public void setWriteQuota(int writeQuota) {
+		checkArgument(writeQuota >= 0, "writeQuota must not be negative but was %s", writeQuota);
+		this.writeQuota = writeQuota;
+	}
+
+	private ChannelSelector nextSelector() {
+		ChannelSelector selector = selectors[next];
+		next = (next + 1) % selectors.length;
+		return selector;
+	}
+
+}
@@ -18,133 +18,473 @@ limitations under the License.
 
 package org.zu.ardulink.connection.proxy;
 
-import java.io.BufferedReader;
+import static org.zu.ardulink.util.Preconditions.checkArgument;
+import static org.zu.ardulink.util.Strings.LATIN_1;
+
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.zu.ardulink.Link;
-import org.zu.ardulink.RawDataListener;
-import org.zu.ardulink.protocol.IProtocol;
+import org.zu.ardulink.ParsedFrameListener.FrameType;
+import org.zu.ardulink.connection.FrameAssembler;
+import org.zu.ardulink.protocol.ProtocolHandler;
 
 /**
  * [ardulinktitle] [ardulinkversion]
+ * A client of the NetworkProxyServer. The client's channel is read by a
+ * {@link ChannelSelector}, the handshake lines are parsed as they arrive.
+ * Commands that block (connecting the board, listing the ports) are run by
+ * the handshake executor while reading the client is paused. After the
+ * handshake the data received is cut into the messages for the board, the
+ * messages are queued and written by the board's {@link WriteScheduler}:
+ * each message is written with a single call (so the messages of the
+ * clients sharing a board don't interleave) and the clients take turns. The
+ * client isn't read while its queue is full. The board's messages are
+ * passed by the board's {@link FrameBroadcaster} (only the ones the client
+ * subscribed to, see {@link PinSubscription}) and written to the client
+ * without blocking: each client has its own bounded
+ * queue (see {@link NetworkProxyServerAcceptor#setMaxPendingBytes(int)}), so
+ * a slow client neither stalls the board nor the other clients.
+ * <br/>
+ * A client sending {@link NetworkProxyMessages#MULTIPLEX_CMD} attaches
+ * several boards through this connection instead, one stream per board (see
+ * {@link PacketAssembler}). Opening a stream's board doesn't pause the
+ * connection, so the other streams go on meanwhile.
+ * 
  * @author Luciano Zu project Ardulink http://www.ardulink.org/
  * 
  * [adsense]
  */
-public class NetworkProxyServerConnection implements Runnable, NetworkProxyMessages, RawDataListener {
+public class NetworkProxyServerConnection implements ChannelSelector.ChannelHandler, FrameBroadcaster.Subscriber,
+		NetworkProxyMessages {
 
 	private static final Logger logger = LoggerFactory.getLogger(NetworkProxyServerConnection.class);
 
-	private Link link;
-	private Socket socket;
-	
-	private BufferedReader bufferedReader;
-	private InputStream inputStream;
-	private PrintWriter printWriter;
-	private OutputStream outputStream;
+	private static final int READ_BUFFER_SIZE = 1024;
 
-	private boolean closed;
-	private boolean handshakeComplete;
-		
-	public NetworkProxyServerConnection(Socket socket) {
-		super();
-		this.socket = socket;
-		this.link = null;
+	private enum State {
+		HANDSHAKE, BLOCKING_COMMAND, FORWARDING, MULTIPLEXED, CLOSED
 	}
 
-	@Override
-	public void run() {
-		try {
-			outputStream = socket.getOutputStream();
-			printWriter = new PrintWriter(outputStream, true);
-			
-			inputStream = socket.getInputStream();
-			bufferedReader = new BufferedReader(new InputStreamReader(inputStream));
-			
-			String inputLine = bufferedReader.readLine();
-			while (!closed && !handshakeComplete) {
-				processInput(inputLine);
-				if(!closed && !handshakeComplete) {
-					inputLine = bufferedReader.readLine();
+	private final SocketChannel channel;
+	private final NetworkProxyServerAcceptor server;
+	private final ChannelSelector selector;
+	private final Executor handshakes;
+	private final ChannelWriter writer;
+	private final String remoteAddress;
+
+	// used by the selector's thread only
+	private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+	private final StringBuilder line = new StringBuilder();
+	private final List<String> commandLines = new ArrayList<String>();
+	private State state = State.HANDSHAKE;
+
+	// the frames of the board the client wants, null for all
+	private volatile PinSubscription subscription;
+
+	private volatile Link link;
+	private volatile boolean closing;
+	// the messages to the board, used by the selector's thread after the handshake
+	private volatile FrameAssembler messages;
+	private volatile boolean handshakeComplete;
+	// the packets of a multiplexed connection, used by the selector's thread
+	private PacketAssembler packets;
+	private final ConcurrentMap<Integer, Stream> streams = new ConcurrentHashMap<Integer, Stream>();
+	// not reading since a queue for the board is full, used by the selector's thread
+	private boolean readingPaused;
+
+	// the messages to the board once connected
+	private volatile WriteScheduler.Queue writeQueue;
+	private volatile int writeQuota;
+	private volatile int writeWeight = 1;
+
+	/**
+	 * Run by the board's writer when a full queue has room again.
+	 */
+	private final Runnable resumeReading = new Runnable() {
+		@Override
+		public void run() {
+			selector.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (readingPaused && !writeQueuesFull()) {
+						readingPaused = false;
+						selector.setReadInterest(channel, true);
+					}
 				}
-            }
-			if(!closed) {
-				int dataReceived = bufferedReader.read();
-				while (dataReceived != -1) {
-					String data = String.valueOf((char)dataReceived);
-					// System.out.print(data);
-					writeSerial(data);
-					dataReceived = bufferedReader.read();
-	            }			
-			}
-		} catch (IOException e) {
+			});
 		}
-		finally {
-			logger.info("{} connection closed.", socket.getRemoteSocketAddress());
-			closed = true;
-			if(link != null) {
-				link.removeRawDataListener(this);
+	};
+
+	public NetworkProxyServerConnection(SocketChannel channel, NetworkProxyServerAcceptor server,
+			ChannelSelector selector, Executor handshakes) {
+		this.channel = channel;
+		this.server = server;
+		this.selector = selector;
+		this.handshakes = handshakes;
+		this.writer = new ChannelWriter(channel, selector, server.getMaxPendingBytes(), server.getOverflowPolicy());
+		this.remoteAddress = String.valueOf(channel.socket().getRemoteSocketAddress());
+		this.writeQuota = server.getWriteQuota();
+	}
+
+	/**
+	 * Registers the client's channel with the selector.
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		selector.register(channel, this);
+	}
+
+	@Override
+	public void readable() throws IOException {
+		if (channel.read(readBuffer) < 0) {
+			throw new EOFException("Client closed the connection");
+		}
+		process();
+	}
+
+	@Override
+	public void writable() throws IOException {
+		writer.writePending();
+	}
+
+	@Override
+	public void closed(IOException cause) {
+		if (state == State.CLOSED) {
+			return;
+		}
+		state = State.CLOSED;
+		closing = true;
+		server.removeClient(this);
+		logger.info("{} connection closed, {} bytes sent, {} messages dropped.", new Object[] { remoteAddress,
+				writer.getWrittenBytes(), writer.getDroppedBuffers() });
+		Link link = this.link;
+		if (link != null) {
+			release(link, this, writeQueue);
+		}
+		for (Stream stream : streams.values()) {
+			stream.close();
+		}
+	}
+
+	/**
+	 * The subscriber doesn't use the link anymore.
+	 * @param queue the subscriber's messages for the board, null if there are none
+	 */
+	private void release(final Link link, FrameBroadcaster.Subscriber subscriber, WriteScheduler.Queue queue) {
+		server.unsubscribe(link, subscriber);
+		if (queue != null) {
+			server.closeWriteQueue(link, queue);
+		}
+		Runnable disconnect = new Runnable() {
+			@Override
+			public void run() {
 				NetworkProxyServer.disconnect(link.getName());
 			}
-			try {
-				socket.close();
-			} catch (IOException socketClosingExceptionTry) {
+		};
+		try {
+			// closing the serial port may block
+			handshakes.execute(disconnect);
+		} catch (RejectedExecutionException e) {
+			// the server has been stopped
+			disconnect.run();
+		}
+	}
+
+	private void process() throws IOException {
+		readBuffer.flip();
+		while (state == State.HANDSHAKE && readLine()) {
+			processInput(line.toString());
+			line.setLength(0);
+		}
+		if (state == State.FORWARDING) {
+			forward();
+		} else if (state == State.MULTIPLEXED) {
+			packets.append(readBuffer);
+		}
+		readBuffer.compact();
+	}
+
+	/**
+	 * @return true if a complete line has been read into {@link #line}
+	 */
+	private boolean readLine() {
+		while (readBuffer.hasRemaining()) {
+			char c = (char) (readBuffer.get() & 0xFF);
+			if (c == '\n') {
+				return true;
+			}
+			if (c != '\r') {
+				line.append(c);
 			}
-			link = null;
-			socket = null;
-			bufferedReader = null;
-			inputStream = null;
-			printWriter = null;
-			outputStream = null;
-			closed = true;
 		}
+		return false;
 	}
 
 	private void processInput(String inputLine) throws IOException {
-		if(inputLine.equals(STOP_SERVER_CMD)) {
+		if (!commandLines.isEmpty()) {
+			commandLines.add(inputLine);
+			if (commandLines.get(0).equals(SUBSCRIBE_CMD)) {
+				// the argument of SUBSCRIBE_CMD: the subscription
+				commandLines.clear();
+				subscribe(inputLine);
+			} else if (commandLines.size() == 3) {
+				// the arguments of CONNECT_CMD: port name and baud rate
+				final String portName = commandLines.get(1);
+				final int baudRate = parseBaudRate(commandLines.get(2));
+				commandLines.clear();
+				if (baudRate < 0) {
+					logger.warn("Closing {}, illegal baud rate: {}", remoteAddress, inputLine);
+					write(KO + '\n');
+					close();
+					return;
+				}
+				runBlocking(new Runnable() {
+					@Override
+					public void run() {
+						connect(portName, baudRate);
+					}
+				});
+			}
+		} else if(inputLine.equals(MULTIPLEX_CMD)) {
+			packets = new PacketAssembler(new PacketAssembler.PacketHandler() {
+				@Override
+				public void packetReceived(int type, int stream, byte[] buffer, int offset, int length) {
+					NetworkProxyServerConnection.this.packetReceived(type, stream, buffer, offset, length);
+				}
+			});
+			state = State.MULTIPLEXED;
+			write(OK + '\n');
+		} else if(inputLine.equals(SUBSCRIBE_CMD)) {
+			commandLines.add(inputLine);
+		} else if(inputLine.equals(STOP_SERVER_CMD)) {
 			logger.info("Stop request received.");
-			NetworkProxyServer.stop();
-			closed = true;
+			server.close();
+			close();
 		} else if(inputLine.equals(GET_PORT_LIST_CMD)) {
-			List<String> portList = getPortList();
-			if(portList == null || portList.isEmpty()) {
-				printWriter.println(NUMBER_OF_PORTS + "0");
-			} else {
-				printWriter.println(NUMBER_OF_PORTS + portList.size());
-				for (String port : portList) {
-					printWriter.println(port);
+			runBlocking(new Runnable() {
+				@Override
+				public void run() {
+					sendPortList();
 				}
-			}
-			printWriter.flush();
+			});
 		} else if(inputLine.equals(CONNECT_CMD)) {
-			String portName = bufferedReader.readLine();
-			Integer baudRate = new Integer(bufferedReader.readLine());
-			boolean connected = connect(portName, baudRate);
+			commandLines.add(inputLine);
+		}
+	}
+
+	private void subscribe(String spec) {
+		subscription = parseSubscription(spec);
+	}
+
+	private PinSubscription parseSubscription(String spec) {
+		try {
+			return PinSubscription.parse(spec);
+		} catch (IllegalArgumentException e) {
+			logger.warn("Client {} sent an illegal subscription, forwarding all frames: {}", remoteAddress,
+					e.getMessage());
+			return null;
+		}
+	}
+
+	private void packetReceived(int type, int id, byte[] buffer, int offset, int length) {
+		Stream stream = streams.get(id);
+		if (type == PacketAssembler.OPEN) {
+			open(id, new String(buffer, offset, length, LATIN_1));
+		} else if (stream == null) {
+			logger.debug("{} packet {} of unknown stream {} dropped", new Object[] { remoteAddress, type, id });
+		} else if (type == PacketAssembler.DATA) {
+			stream.forward(buffer, offset, length);
+		} else if (type == PacketAssembler.CLOSE) {
+			streams.remove(id, stream);
+			stream.close();
+		} else {
+			logger.debug("{} packet of unknown type {} dropped", remoteAddress, type);
+		}
+	}
+
+	/**
+	 * Opens the board of a stream on the handshake executor, the other
+	 * streams are served meanwhile.
+	 * @param payload the lines port name, baud rate and optionally the subscription
+	 */
+	private void open(int id, String payload) {
+		String[] lines = payload.split("\n");
+		final int baudRate = lines.length < 2 ? -1 : parseBaudRate(lines[1]);
+		if (streams.containsKey(id) || baudRate < 0) {
+			logger.warn("{} illegal request to open stream {}: {}", new Object[] { remoteAddress, id, payload });
+			write(PacketAssembler.header(PacketAssembler.REFUSED, id, 0));
+			return;
+		}
+		final String portName = lines[0];
+		final Stream stream = new Stream(id, lines.length > 2 ? parseSubscription(lines[2]) : null);
+		streams.put(id, stream);
+		handshakes.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					stream.open(portName, baudRate);
+				} catch (RuntimeException e) {
+					logger.error("Error opening stream {} of {}", new Object[] { stream.id, remoteAddress, e });
+					streams.remove(stream.id, stream);
+					write(PacketAssembler.header(PacketAssembler.REFUSED, stream.id, 0));
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the baud rate or -1 if value isn't a positive int
+	 */
+	private static int parseBaudRate(String value) {
+		try {
+			int baudRate = Integer.parseInt(value);
+			return baudRate > 0 ? baudRate : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Runs the command on the handshake executor, the client isn't read
+	 * until the command is done.
+	 */
+	private void runBlocking(final Runnable command) {
+		state = State.BLOCKING_COMMAND;
+		selector.setReadInterest(channel, false);
+		handshakes.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					command.run();
+				} catch (RuntimeException e) {
+					logger.error("Error processing the handshake of {}", remoteAddress, e);
+				} finally {
+					selector.execute(new Runnable() {
+						@Override
+						public void run() {
+							resume();
+						}
+					});
+				}
+			}
+		});
+	}
+
+	private void resume() {
+		if (state != State.BLOCKING_COMMAND) {
+			return;
+		}
+		state = handshakeComplete ? State.FORWARDING : State.HANDSHAKE;
+		selector.setReadInterest(channel, true);
+		try {
+			// data received before the command was done
+			process();
+		} catch (IOException e) {
+			close();
+		}
+	}
+
+	private void sendPortList() {
+		StringBuilder reply = new StringBuilder();
+		List<String> portList = getPortList();
+		if(portList == null || portList.isEmpty()) {
+			reply.append(NUMBER_OF_PORTS).append(0).append('\n');
+		} else {
+			reply.append(NUMBER_OF_PORTS).append(portList.size()).append('\n');
+			for (String port : portList) {
+				reply.append(port).append('\n');
+			}
+		}
+		write(reply.toString());
+	}
+
+	private void connect(String portName, int baudRate) {
+		final Link link = openLink(portName, baudRate);
+		this.link = link;
+		if(link.isConnected()) {
+			writeQueue = newWriteQueue(link);
+			messages = messages(link, writeQueue);
+			server.subscribe(link, this);
+			// the board's messages follow the OK, the ones before are dropped
+			synchronized (writer) {
+				write(OK + '\n');
+				handshakeComplete = true;
+			}
+		} else {
+			write(KO + '\n');
+		}
+	}
+
+	/**
+	 * Connects the board (or uses the board connected already).
+	 * @return the board's link, connected or not
+	 */
+	private static Link openLink(String portName, int baudRate) {
+		Link existing = Link.getInstance(portName);
+		boolean wasConnected = existing != null && existing.isConnected();
+		Link link = NetworkProxyServer.connect(portName, baudRate);
+		if (!wasConnected) {
 			try { // wait a wile to avoid messages with connection not valid.
 				TimeUnit.SECONDS.sleep(1);
 			} catch (InterruptedException e) {
 				throw new RuntimeException(e);
 			}
-			if(connected) {
-				printWriter.println(OK);
-				printWriter.flush();
-				handshakeComplete = true;
-				link.addRawDataListener(this);
-			} else {
-				printWriter.println(KO);
-				printWriter.flush();
+		}
+		return link;
+	}
+
+	private WriteScheduler.Queue newWriteQueue(Link link) {
+		WriteScheduler.Queue queue = server.newWriteQueue(link, resumeReading, writeQuota);
+		queue.setWeight(writeWeight);
+		return queue;
+	}
+
+	/**
+	 * @return an assembler cutting the data received into the messages for
+	 *         the board, the messages (including the divider) are queued
+	 */
+	private FrameAssembler messages(Link link, final WriteScheduler.Queue queue) {
+		return new FrameAssembler(outgoingMessageDivider(link), new FrameAssembler.FrameHandler() {
+			@Override
+			public void frameReceived(byte[] buffer, int offset, int length) {
+				if (!queue.add(buffer, offset, length + 1)) {
+					pauseReading();
+				}
+			}
+		});
+	}
+
+	private void pauseReading() {
+		if (!readingPaused) {
+			readingPaused = true;
+			selector.setReadInterest(channel, false);
+		}
+	}
+
+	private boolean writeQueuesFull() {
+		WriteScheduler.Queue writeQueue = this.writeQueue;
+		if (writeQueue != null && writeQueue.isFull()) {
+			return true;
+		}
+		for (Stream stream : streams.values()) {
+			WriteScheduler.Queue queue = stream.queue;
+			if (queue != null && queue.isFull()) {
+				return true;
 			}
-			
 		}
+		return false;
 	}
 
 	private List<String> getPortList() {
@@ -153,36 +493,284 @@ public class NetworkProxyServerConnection implements Runnable, NetworkProxyMessa
 		return Link.getDefaultInstance().getPortList();
 	}
 
-	private boolean writeSerial(String message) {
-		boolean retvalue = false;
-		synchronized (link) {
-			retvalue = link.writeSerial(message);
+	private static int outgoingMessageDivider(Link link) {
+		return ProtocolHandler.getProtocolImplementation(link.getProtocolName()).getOutgoingMessageDivider();
+	}
+
+	/**
+	 * Forwards the data received to the board, complete messages only.
+	 */
+	private void forward() {
+		messages.append(readBuffer);
+	}
+
+	private void write(String message) {
+		write(ByteBuffer.wrap(message.getBytes(LATIN_1)));
+	}
+
+	private void write(ByteBuffer... buffers) {
+		try {
+			writer.write(buffers);
+		} catch (IOException e) {
+			logger.info("Closing {}: {}", remoteAddress, e.getMessage());
+			closeLater();
 		}
-		return retvalue;
 	}
 
-	private boolean connect(String portName, int baudRate) {
-		
-		link = NetworkProxyServer.connect(portName, baudRate);
-		boolean isConnected = link.isConnected();
-		return isConnected;
+	private void closeLater() {
+		if (closing) {
+			return;
+		}
+		closing = true;
+		selector.execute(new Runnable() {
+			@Override
+			public void run() {
+				close();
+			}
+		});
 	}
 
+	private void close() {
+		try {
+			selector.close(channel);
+		} catch (IOException e) {
+			logger.debug("Error closing {}", remoteAddress, e);
+		}
+		closed(null);
+	}
+
+	/**
+	 * Sends a frame of the board.
+	 * @param frame the encoded frame shared with the other clients, not changed
+	 */
 	@Override
-	public void parseInput(String id, int numBytes, int[] message) {
-		for(int i = 0; i < numBytes; i++) {
-			try {
-				outputStream.write(message[i]);
-			} catch (IOException e) {
-				e.printStackTrace();
+	public void send(ByteBuffer frame) {
+		synchronized (writer) {
+			if (handshakeComplete && !closing) {
+				write(frame.duplicate());
 			}
 		}
-		try {
-			outputStream.write(IProtocol.DEFAULT_INCOMING_MESSAGE_DIVIDER);
-			outputStream.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
+	}
+
+	/**
+	 * @param type what the board's frame was
+	 * @param pin the pin of a read
+	 * @return true if the client subscribed to the frame (or to all frames)
+	 */
+	@Override
+	public boolean accepts(FrameType type, int pin) {
+		PinSubscription subscription = this.subscription;
+		return subscription == null || subscription.matches(type, pin);
+	}
+
+	/**
+	 * @return the frames of the board the client subscribed to, null for all
+	 */
+	public PinSubscription getSubscription() {
+		return subscription;
+	}
+
+	public int getWriteQuota() {
+		return writeQuota;
+	}
+
+	/**
+	 * @param writeQuota the bytes per second the client may write to the
+	 *            board (to each board if multiplexed), 0 for no limit
+	 */
+	public void setWriteQuota(int writeQuota) {
+		checkArgument(writeQuota >= 0, "writeQuota must not be negative but was %s", writeQuota);
+		this.writeQuota = writeQuota;
+		for (WriteScheduler.Queue queue : writeQueues()) {
+			queue.setQuota(writeQuota);
 		}
+	}
+
+	public int getWriteWeight() {
+		return writeWeight;
+	}
 
+	/**
+	 * @param writeWeight the client's share of the board's writes compared
+	 *            to the other clients of the board (1 by default)
+	 */
+	public void setWriteWeight(int writeWeight) {
+		checkArgument(writeWeight > 0, "writeWeight must be positive but was %s", writeWeight);
+		this.writeWeight = writeWeight;
+		for (WriteScheduler.Queue queue : writeQueues()) {
+			queue.setWeight(writeWeight);
+		}
+	}
+
+	private List<WriteScheduler.Queue> writeQueues() {
+		List<WriteScheduler.Queue> queues = new ArrayList<WriteScheduler.Queue>();
+		if (writeQueue != null) {
+			queues.add(writeQueue);
+		}
+		for (Stream stream : streams.values()) {
+			if (stream.queue != null) {
+				queues.add(stream.queue);
+			}
+		}
+		return queues;
+	}
+
+	/**
+	 * @return the number of bytes written to the board (to the boards if
+	 *         multiplexed)
+	 */
+	public long getBytesToBoard() {
+		long written = 0;
+		for (WriteScheduler.Queue queue : writeQueues()) {
+			written += queue.getWrittenBytes();
+		}
+		return written;
+	}
+
+	/**
+	 * @return the number of streams of a multiplexed connection
+	 */
+	public int getStreams() {
+		return streams.size();
+	}
+
+	/**
+	 * @return the address of the client
+	 */
+	public String getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	/**
+	 * @return the name of the board's link or null before the handshake
+	 */
+	public String getLinkName() {
+		Link link = this.link;
+		return link == null ? null : link.getName();
+	}
+
+	/**
+	 * @return the number of bytes sent to the client
+	 */
+	public long getSentBytes() {
+		return writer.getWrittenBytes();
+	}
+
+	/**
+	 * @return the number of bytes waiting to be sent to the client
+	 */
+	public int getPendingBytes() {
+		return writer.getPendingBytes();
+	}
+
+	/**
+	 * @return the number of the board's messages dropped since the client's
+	 *         queue was full
+	 */
+	public long getDroppedMessages() {
+		return writer.getDroppedBuffers();
+	}
+
+	public boolean isClosed() {
+		return closing;
+	}
+
+	/**
+	 * A board attached through a multiplexed connection.
+	 */
+	private class Stream implements FrameBroadcaster.Subscriber {
+
+		private final int id;
+		private final PinSubscription subscription;
+
+		// set once the board is open, guarded by the stream
+		private Link link;
+		private boolean closed;
+		// the messages to the board, used by the selector's thread once open
+		private volatile FrameAssembler messages;
+		private volatile WriteScheduler.Queue queue;
+		// the board's frames are sent, guarded by the writer
+		private boolean open;
+
+		public Stream(int id, PinSubscription subscription) {
+			this.id = id;
+			this.subscription = subscription;
+		}
+
+		/**
+		 * Run by the handshake executor.
+		 */
+		private void open(String portName, int baudRate) {
+			Link link = openLink(portName, baudRate);
+			if (link.isConnected()) {
+				queue = newWriteQueue(link);
+				messages = messages(link, queue);
+				server.subscribe(link, this);
+			}
+			synchronized (this) {
+				if (closed) {
+					release(link, this, queue);
+					// the client waits for a reply to each open request
+					write(PacketAssembler.header(PacketAssembler.REFUSED, id, 0));
+					return;
+				}
+				this.link = link;
+			}
+			if (!link.isConnected()) {
+				// the stream can be opened again
+				streams.remove(id, this);
+				close();
+				write(PacketAssembler.header(PacketAssembler.REFUSED, id, 0));
+				return;
+			}
+			synchronized (writer) {
+				// the board's frames follow the reply
+				write(PacketAssembler.header(PacketAssembler.OPENED, id, 0));
+				open = true;
+			}
+		}
+
+		private void forward(byte[] buffer, int offset, int length) {
+			FrameAssembler messages = this.messages;
+			if (messages == null) {
+				logger.debug("{} data of stream {} not open dropped", remoteAddress, id);
+			} else {
+				messages.append(buffer, offset, length);
+			}
+		}
+
+		private void close() {
+			synchronized (writer) {
+				open = false;
+			}
+			Link link;
+			synchronized (this) {
+				closed = true;
+				link = this.link;
+				this.link = null;
+			}
+			if (link != null) {
+				release(link, this, queue);
+			}
+		}
+
+		@Override
+		public boolean accepts(FrameType type, int pin) {
+			return subscription == null || subscription.matches(type, pin);
+		}
+
+		/**
+		 * Sends the frame as packet (without the divider).
+		 */
+		@Override
+		public void send(ByteBuffer frame) {
+			synchronized (writer) {
+				if (open && !closing) {
+					ByteBuffer payload = frame.duplicate();
+					payload.limit(payload.limit() - 1);
+					write(PacketAssembler.header(PacketAssembler.DATA, id, payload.remaining()), payload);
+				}
+			}
+		}
 	}
 }
@@ -0,0 +1,353 @@
+/**
+Copyright 2013 project Ardulink http://www.ardulink.org/
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+*/
+package org.zu.ardulink.connection.proxy;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.zu.ardulink.util.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zu.ardulink.Link;
+
+/**
+ * [ardulinktitle] [ardulinkversion]
+ * Writes the messages of the clients sharing a board to the board, taking
+ * turns (deficit round robin): every client has its own {@link Queue} and
+ * may write up to {@value #QUANTUM} bytes times its weight per turn, so a
+ * client writing as fast as it can doesn't starve the others. A client can
+ * be limited to a number of bytes per second as well.
+ * <br/>
+ * The messages are written by a thread of the executor while there are
+ * messages to write. The queues are bounded: a client whose queue is full
+ * should stop reading its socket until the queue has room again.
+ *
+ * @author project Ardulink http://www.ardulink.org/
+ *
+ * [adsense]
+ *
+ */
+public class WriteScheduler {
+
+	private static final Logger logger = LoggerFactory.getLogger(WriteScheduler.class);
+
+	/**
+	 * Bytes a client of weight 1 may write per turn.
+	 */
+	public static final int QUANTUM = 64;
+
+	/**
+	 * The messages of a client for the board.
+	 */
+	public class Queue {
+
+		private final Runnable available;
+
+		// guarded by the scheduler
+		private final LinkedList<byte[]> messages = new LinkedList<byte[]>();
+		private int queuedBytes;
+		private int deficit;
+		private int weight = 1;
+		private int quota;
+		// bytes the client may write now if limited, negative after a big message
+		private double allowance;
+		private long refilled = System.nanoTime();
+		private boolean full;
+
+		private volatile long writtenBytes;
+
+		private Queue(Runnable available, int quota) {
+			this.available = available;
+			setQuota(quota);
+		}
+
+		/**
+		 * Queues a copy of the message.
+		 * @param message
+		 * @param offset
+		 * @param length
+		 * @return false if the queue is full now, the client should stop
+		 *         sending until the queue tells it's available again
+		 */
+		public boolean add(byte[] message, int offset, int length) {
+			return WriteScheduler.this.add(this, Arrays.copyOfRange(message, offset, offset + length));
+		}
+
+		/**
+		 * Discards the messages queued, the queue isn't used anymore.
+		 */
+		public void close() {
+			remove(this);
+		}
+
+		/**
+		 * @param weight the share of the board's writes compared to the other clients
+		 */
+		public void setWeight(int weight) {
+			checkArgument(weight > 0, "weight must be positive but was %s", weight);
+			synchronized (WriteScheduler.this) {
+				this.weight = weight;
+			}
+		}
+
+		public int getWeight() {
+			synchronized (WriteScheduler.this) {
+				return weight;
+			}
+		}
+
+		/**
+		 * @param quota the bytes per second the client may write, 0 for no limit
+		 */
+		public void setQuota(int quota) {
+			checkArgument(quota >= 0, "quota must not be negative but was %s", quota);
+			synchronized (WriteScheduler.this) {
+				this.quota = quota;
+				// allows bursts of a second
+				this.allowance = quota;
+			}
+		}
+
+		public int getQuota() {
+			synchronized (WriteScheduler.this) {
+				return quota;
+			}
+		}
+
+		public boolean isFull() {
+			synchronized (WriteScheduler.this) {
+				return queuedBytes >= maxQueuedBytes;
+			}
+		}
+
+		public int getQueuedBytes() {
+			synchronized (WriteScheduler.this) {
+				return queuedBytes;
+			}
+		}
+
+		/**
+		 * @return the number of bytes written to the board
+		 */
+		public long getWrittenBytes() {
+			return writtenBytes;
+		}
+
+		/**
+		 * @return false if the client exceeds its quota
+		 */
+		private boolean refill(long now) {
+			if (quota == 0) {
+				return true;
+			}
+			allowance = Math.min(quota, allowance + (double) (now - refilled) * quota / SECONDS.toNanos(1));
+			refilled = now;
+			return allowance > 0;
+		}
+
+	}
+
+	private final Link link;
+	private final Executor executor;
+	private final int maxQueuedBytes;
+
+	// guarded by this
+	private final List<Queue> queues = new ArrayList<Queue>();
+	// the queue taking the next turn
+	private int next;
+	private boolean draining;
+
+	private final Runnable drain = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	/**
+	 * @param link the board
+	 * @param executor runs the writes
+	 * @param maxQueuedBytes the bytes a queue takes before it's full
+	 */
+	public WriteScheduler(Link link, Executor executor, int maxQueuedBytes) {
+		checkArgument(maxQueuedBytes > 0, "maxQueuedBytes must be positive but was %s", maxQueuedBytes);
+		this.link = link;
+		this.executor = executor;
+		this.maxQueuedBytes = maxQueuedBytes;
+	}
+
+	public Link getLink() {
+		return link;
+	}
+
+	/**
+	 * @param available run (by the writing thread) when a full queue has
+	 *            room again
+	 * @param quota the bytes per second the client may write, 0 for no limit
+	 * @return a new queue
+	 */
+	public synchronized Queue newQueue(Runnable available, int quota) {
+		Queue queue = new Queue(available, quota);
+		queues.add(queue);
+		return queue;
+	}
+
+	/**
+	 * @return the number of queues
+	 */
+	public synchronized int getQueues() {
+		return queues.size();
+	}
+
+	private synchronized boolean add(Queue queue, byte[] message) {
+		if (!queues.contains(queue)) {
+			// the queue has been closed
+			return true;
+		}
+		queue.messages.add(message);
+		queue.queuedBytes += message.length;
+		queue.full = queue.queuedBytes >= maxQueuedBytes;
+		if (draining) {
+			// may be waiting for a client exceeding its quota
+			notifyAll();
+		} else {
+			draining = true;
+			try {
+				executor.execute(drain);
+			} catch (RejectedExecutionException e) {
+				// the server has been stopped
+				draining = false;
+			}
+		}
+		return !queue.full;
+	}
+
+	private synchronized void remove(Queue queue) {
+		int index = queues.indexOf(queue);
+		if (index >= 0) {
+			queues.remove(index);
+			if (index < next) {
+				next--;
+			}
+			next = queues.isEmpty() ? 0 : next % queues.size();
+			queue.messages.clear();
+			queue.queuedBytes = 0;
+		}
+	}
+
+	/**
+	 * Writes the messages queued until all the queues are empty.
+	 */
+	private void drain() {
+		List<byte[]> messages = new ArrayList<byte[]>();
+		while (true) {
+			Queue queue;
+			Runnable available = null;
+			synchronized (this) {
+				queue = nextTurn(messages);
+				if (queue == null) {
+					long wait = untilQuotaAllows();
+					if (wait < 0) {
+						draining = false;
+						return;
+					}
+					try {
+						NANOSECONDS.timedWait(this, wait);
+					} catch (InterruptedException e) {
+						draining = false;
+						Thread.currentThread().interrupt();
+						return;
+					}
+					continue;
+				}
+				if (queue.full && queue.queuedBytes < maxQueuedBytes) {
+					queue.full = false;
+					available = queue.available;
+				}
+			}
+			// one message at a time, so the messages of the clients don't interleave
+			for (byte[] message : messages) {
+				if (!link.writeSerial(message, 0, message.length)) {
+					logger.warn("Error writing to {}", link.getName());
+				}
+				queue.writtenBytes += message.length;
+			}
+			messages.clear();
+			if (available != null) {
+				available.run();
+			}
+		}
+	}
+
+	/**
+	 * Takes the messages of the next queue allowed to write.
+	 * @return the queue or null if no queue may write now
+	 */
+	private Queue nextTurn(List<byte[]> messages) {
+		long now = System.nanoTime();
+		// the queues visited in a row that can't write
+		int idle = 0;
+		while (idle < queues.size()) {
+			Queue queue = queues.get(next);
+			next = (next + 1) % queues.size();
+			if (queue.messages.isEmpty() || !queue.refill(now)) {
+				idle++;
+				continue;
+			}
+			idle = 0;
+			queue.deficit += QUANTUM * queue.weight;
+			while (!queue.messages.isEmpty() && queue.messages.getFirst().length <= queue.deficit
+					&& (queue.quota == 0 || queue.allowance > 0)) {
+				byte[] message = queue.messages.removeFirst();
+				queue.deficit -= message.length;
+				queue.queuedBytes -= message.length;
+				queue.allowance -= message.length;
+				messages.add(message);
+			}
+			if (queue.messages.isEmpty()) {
+				queue.deficit = 0;
+			}
+			if (!messages.isEmpty()) {
+				return queue;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return nanoseconds until a queue exceeding its quota may write again
+	 *         or -1 if no messages are queued
+	 */
+	private long untilQuotaAllows() {
+		long wait = -1;
+		for (Queue queue : queues) {
+			if (!queue.messages.isEmpty()) {
+				long nanos = (long) ((1 - queue.allowance) * SECONDS.toNanos(1) / queue.quota);
+				wait = wait < 0 ? nanos : Math.min(wait, nanos);
+			}
+		}
+		return wait;
+	}
+
+}
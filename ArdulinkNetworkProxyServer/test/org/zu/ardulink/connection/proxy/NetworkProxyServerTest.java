@@ -0,0 +1,577 @@
+package org.zu.ardulink.connection.proxy;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zu.ardulink.Link;
+import org.zu.ardulink.RawFrameListener;
+import org.zu.ardulink.connection.Connection;
+import org.zu.ardulink.connection.proxy.ChannelWriter.OverflowPolicy;
+import org.zu.ardulink.connection.serial.AbstractSerialConnection;
+import org.zu.ardulink.protocol.ALProtocol;
+
+/**
+ * Load test of the server with simulated boards and many clients.
+ */
+public class NetworkProxyServerTest {
+
+	private static final int BOARDS = 4;
+	private static final int CLIENTS = 200;
+	private static final int FRAMES = 50;
+	private static final int SELECTOR_THREADS = 2;
+	private static final int MAX_PENDING_BYTES = 64 * 1024;
+
+	// the boards are disconnected by name after each test asynchronously
+	private static final AtomicInteger tests = new AtomicInteger();
+	private final int test = tests.incrementAndGet();
+
+	private final List<String> linkNames = new ArrayList<String>();
+	private final List<SimulatedBoard> boards = new ArrayList<SimulatedBoard>();
+
+	private NetworkProxyServerAcceptor acceptor;
+	private ChannelSelector clientSelector;
+
+	@Before
+	public void setup() throws IOException {
+		acceptor = new NetworkProxyServerAcceptor(0, SELECTOR_THREADS);
+		Thread server = new Thread() {
+			@Override
+			public void run() {
+				try {
+					acceptor.serve();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		server.setDaemon(true);
+		server.start();
+		clientSelector = new ChannelSelector("test-client-selector");
+		for (int i = 0; i < BOARDS; i++) {
+			SimulatedBoard board = new SimulatedBoard();
+			createLink(board(i), board).connect();
+			boards.add(board);
+		}
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		for (String linkName : linkNames) {
+			Link.destroyInstance(linkName);
+		}
+		acceptor.close();
+		clientSelector.shutdown();
+	}
+
+	@Test
+	public void servesManyClientsOnAFewThreads() throws Exception {
+		final CountDownLatch received = new CountDownLatch(CLIENTS * FRAMES);
+		final RawFrameListener counter = new RawFrameListener() {
+			@Override
+			public void frameReceived(String id, byte[] frame, int offset,
+					int length) {
+				received.countDown();
+			}
+		};
+		List<Callable<Link>> connects = new ArrayList<Callable<Link>>();
+		for (int i = 0; i < CLIENTS; i++) {
+			final String name = "client" + i;
+			final String board = board(i % BOARDS);
+			connects.add(new Callable<Link>() {
+				@Override
+				public Link call() throws IOException {
+					Link client = createLink(name, new NetworkProxyConnection(
+							"localhost", acceptor.getLocalPort(),
+							clientSelector));
+					client.addRawFrameListener(counter);
+					assertThat(client.connect(board), is(true));
+					return client;
+				}
+			});
+		}
+		ExecutorService connecting = Executors.newFixedThreadPool(20);
+		List<Link> clients = new ArrayList<Link>();
+		for (Future<Link> client : connecting.invokeAll(connects)) {
+			clients.add(client.get());
+		}
+		connecting.shutdown();
+		for (Link client : clients) {
+			assertThat(client.isConnected(), is(true));
+		}
+		// one broadcaster per board
+		for (int i = 0; i < BOARDS; i++) {
+			assertThat(acceptor.getSubscribers(board(i)), is(CLIENTS / BOARDS));
+		}
+
+		for (int value = 0; value < FRAMES; value++) {
+			for (SimulatedBoard board : boards) {
+				board.receive("alp://ared/1/" + value);
+			}
+		}
+		assertTrue(received.await(30, SECONDS));
+
+		clients.get(0).sendPowerPinSwitch(3, 1);
+		clients.get(1).sendPowerPinSwitch(4, 1);
+		assertTrue(boards.get(0).awaitReceived("alp://ppsw/3/1\n"));
+		assertTrue(boards.get(1).awaitReceived("alp://ppsw/4/1\n"));
+
+		// a writer per board written to
+		assertTrue(proxyThreads() <= SELECTOR_THREADS + 4 + BOARDS);
+	}
+
+	@Test
+	public void forwardsWholeMessagesOfClientsSharingABoard() throws Exception {
+		Link first = connectClient("first", board(0));
+		Link second = connectClient("second", board(0));
+		SimulatedBoard board = boards.get(0);
+
+		writeSerial(first, "alp://ppsw/1/");
+		MILLISECONDS.sleep(100);
+		writeSerial(second, "alp://ppsw/2/1\n");
+		assertTrue(board.awaitReceived("alp://ppsw/2/1\n"));
+		writeSerial(first, "1\n");
+		assertTrue(board.awaitReceived("alp://ppsw/1/1\n"));
+		assertThat(board.received(), is("alp://ppsw/2/1\nalp://ppsw/1/1\n"));
+		assertThat(board.writes, is(2));
+
+		StringBuilder messages = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			messages.append("alp://ppsw/").append(i % 10).append("/1\n");
+		}
+		writeSerial(second, messages.toString());
+		assertTrue(board.awaitReceived(messages.toString()));
+		assertThat(board.writes, is(1002));
+	}
+
+	@Test
+	public void clientsTakeTurnsWritingToABoard() throws Exception {
+		Link runaway = connectClient("runaway", board(0));
+		Link interactive = connectClient("interactive", board(0));
+		SimulatedBoard board = boards.get(0);
+		board.writeDelayMillis = 1;
+		int messages = 500;
+		StringBuilder flood = new StringBuilder();
+		for (int i = 0; i < messages; i++) {
+			flood.append("alp://ppsw/1/1\n");
+		}
+		writeSerial(runaway, flood.toString());
+		MILLISECONDS.sleep(50);
+		writeSerial(interactive, "alp://ppsw/9/1\n");
+		assertTrue(board.awaitReceived("alp://ppsw/9/1\n"));
+		int position = board.writes;
+		board.writeDelayMillis = 0;
+		long deadline = System.currentTimeMillis() + 5000;
+		while (board.writes < messages + 1
+				&& System.currentTimeMillis() < deadline) {
+			MILLISECONDS.sleep(10);
+		}
+		assertThat(board.writes, is(messages + 1));
+		// without turns the message would wait for the queued ones
+		assertTrue("written as " + position + ". message", position < 150);
+	}
+
+	@Test
+	public void limitsTheBytesPerSecondOfEachClient() throws Exception {
+		acceptor.setWriteQuota(300);
+		Link client = connectClient("limited", board(0));
+		assertThat(acceptor.getClients().get(0).getWriteQuota(), is(300));
+		StringBuilder messages = new StringBuilder();
+		for (int i = 0; i < 60; i++) {
+			messages.append("alp://ppsw/1/1\n");
+		}
+		long start = System.nanoTime();
+		writeSerial(client, messages.toString());
+		assertTrue(boards.get(0).awaitReceived(messages.toString()));
+		long tookMillis = MILLISECONDS.convert(System.nanoTime() - start,
+				NANOSECONDS);
+		// 900 bytes, a burst of 300 and 300 per second
+		assertTrue("took " + tookMillis + "ms", tookMillis >= 1500);
+		assertThat(acceptor.getClients().get(0).getBytesToBoard(), is(900L));
+	}
+
+	@Test
+	public void stalledClientsDontSlowDownTheOthers() throws Exception {
+		acceptor.setMaxPendingBytes(MAX_PENDING_BYTES);
+		Socket stalled = connectStalledClient(board(0));
+		AtomicInteger received = connectClients(3, board(0));
+		sendBigFrames(boards.get(0), received, 3);
+
+		int dropping = 0;
+		for (NetworkProxyServerConnection client : acceptor.getClients()) {
+			if (client.getDroppedMessages() > 0) {
+				dropping++;
+				assertTrue(client.getPendingBytes() <= MAX_PENDING_BYTES);
+			}
+		}
+		assertThat(dropping, is(1));
+		stalled.close();
+	}
+
+	@Test
+	public void forwardsOnlyTheFramesSubscribedTo() throws Exception {
+		List<String> all = record(connectClient("all", board(0), null));
+		List<String> analog5 = record(connectClient("analog5", board(0),
+				new PinSubscription().analogPin(5)));
+		List<String> digital = record(connectClient("digital", board(0),
+				PinSubscription.parse("digital/*,other")));
+		SimulatedBoard board = boards.get(0);
+		board.receive("alp://ared/5/1");
+		board.receive("alp://ared/6/2");
+		board.receive("alp://dred/5/1");
+		board.receive("alp://rply/ok?id=1");
+		board.receive("alp://ared/5/3");
+		board.receive("alp://dred/9/0");
+		awaitFrames(all, 6);
+		awaitFrames(analog5, 2);
+		awaitFrames(digital, 3);
+		assertThat(analog5, is(Arrays.asList("alp://ared/5/1", "alp://ared/5/3")));
+		assertThat(digital, is(Arrays.asList("alp://dred/5/1",
+				"alp://rply/ok?id=1", "alp://dred/9/0")));
+		assertThat(all.size(), is(6));
+	}
+
+	@Test
+	public void slowListenersDontStallTheOtherLinks() throws Exception {
+		final CountDownLatch listening = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		connectClient("slow", board(0)).addRawFrameListener(
+				new RawFrameListener() {
+					@Override
+					public void frameReceived(String id, byte[] frame,
+							int offset, int length) {
+						listening.countDown();
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				});
+		List<String> fast = record(connectClient("fast", board(1)));
+		try {
+			boards.get(0).receive("alp://ared/1/1");
+			assertTrue(listening.await(5, SECONDS));
+			boards.get(0).receive("alp://ared/1/2");
+			boards.get(1).receive("alp://ared/2/1");
+			boards.get(1).receive("alp://ared/2/2");
+			awaitFrames(fast, 2);
+		} finally {
+			release.countDown();
+		}
+	}
+
+	@Test
+	public void multiplexesSeveralBoardsOverOneConnection() throws Exception {
+		NetworkProxyMultiplexer multiplexer = new NetworkProxyMultiplexer(
+				"localhost", acceptor.getLocalPort(), clientSelector);
+		List<Link> links = new ArrayList<Link>();
+		List<List<String>> frames = new ArrayList<List<String>>();
+		for (int i = 0; i < BOARDS; i++) {
+			NetworkProxyStream stream = multiplexer.newConnection();
+			if (i == 0) {
+				stream.setSubscription(new PinSubscription().analogPin(1));
+			}
+			Link link = createLink("stream" + i, stream);
+			frames.add(record(link));
+			assertThat(link.connect(board(i)), is(true));
+			links.add(link);
+		}
+		assertThat(acceptor.getClients().size(), is(1));
+		assertThat(acceptor.getClients().get(0).getStreams(), is(BOARDS));
+
+		for (int i = 0; i < BOARDS; i++) {
+			boards.get(i).receive("alp://ared/2/" + i);
+			boards.get(i).receive("alp://ared/1/" + i);
+			writeSerial(links.get(i), "alp://ppsw/" + i + "/1\n");
+		}
+		awaitFrames(frames.get(0), 1);
+		assertThat(frames.get(0), is(Arrays.asList("alp://ared/1/0")));
+		for (int i = 1; i < BOARDS; i++) {
+			awaitFrames(frames.get(i), 2);
+			assertThat(frames.get(i), is(Arrays.asList("alp://ared/2/" + i,
+					"alp://ared/1/" + i)));
+			assertTrue(boards.get(i).awaitReceived("alp://ppsw/" + i + "/1\n"));
+			assertThat(boards.get(i).received(), is("alp://ppsw/" + i + "/1\n"));
+		}
+
+		links.get(0).disconnect();
+		awaitSubscribers(board(0), 0);
+		assertThat(acceptor.getSubscribers(board(1)), is(1));
+		multiplexer.close();
+		awaitSubscribers(board(1), 0);
+		assertThat(links.get(1).isConnected(), is(false));
+	}
+
+	@Test
+	public void removesTheBroadcasterWithTheLastClient() throws Exception {
+		Link first = connectClient("first", board(0));
+		connectClient("second", board(0));
+		assertThat(acceptor.getSubscribers(board(0)), is(2));
+		first.disconnect();
+		awaitSubscribers(board(0), 1);
+		Link.destroyInstance("second");
+		awaitSubscribers(board(0), 0);
+	}
+
+	private void awaitSubscribers(String board, int subscribers)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (acceptor.getSubscribers(board) != subscribers
+				&& System.currentTimeMillis() < deadline) {
+			MILLISECONDS.sleep(10);
+		}
+		assertThat(acceptor.getSubscribers(board), is(subscribers));
+	}
+
+	@Test
+	public void disconnectsStalledClientsIfConfigured() throws Exception {
+		acceptor.setMaxPendingBytes(MAX_PENDING_BYTES);
+		acceptor.setOverflowPolicy(OverflowPolicy.DISCONNECT);
+		Socket stalled = connectStalledClient(board(0));
+		AtomicInteger received = connectClients(3, board(0));
+		assertThat(acceptor.getClients().size(), is(4));
+		sendBigFrames(boards.get(0), received, 3);
+
+		assertThat(acceptor.getClients().size(), is(3));
+		for (NetworkProxyServerConnection client : acceptor.getClients()) {
+			assertThat(client.getDroppedMessages(), is(0L));
+		}
+		stalled.close();
+	}
+
+	@Test
+	public void refusesIllegalBaudRates() throws Exception {
+		Socket socket = new Socket("localhost", acceptor.getLocalPort());
+		try {
+			socket.setSoTimeout(5000);
+			socket.getOutputStream().write(
+					(NetworkProxyMessages.CONNECT_CMD + "\n" + board(0)
+							+ "\n99999999999\n").getBytes());
+			InputStream in = socket.getInputStream();
+			StringBuilder reply = new StringBuilder();
+			for (int b; (b = in.read()) != '\n';) {
+				reply.append((char) b);
+			}
+			assertThat(reply.toString(), is(NetworkProxyMessages.KO));
+			assertThat(in.read(), is(-1));
+		} finally {
+			socket.close();
+		}
+		// the selector still serves the other clients
+		Link client = connectClient("client", board(0));
+		List<String> frames = record(client);
+		boards.get(0).receive("alp://dred/1/1");
+		awaitFrames(frames, 1);
+	}
+
+	/**
+	 * Sends frames until far more than the stalled client can take, checking
+	 * that the other clients keep up.
+	 */
+	private static void sendBigFrames(SimulatedBoard board,
+			AtomicInteger received, int clients) throws InterruptedException {
+		char[] chars = new char[1000];
+		Arrays.fill(chars, 'x');
+		String frame = "alp://cust/" + new String(chars);
+		int frames = 4000;
+		for (int i = 1; i <= frames; i++) {
+			board.receive(frame);
+			if (i % 100 == 0) {
+				long deadline = System.currentTimeMillis() + 5000;
+				while (received.get() < clients * i
+						&& System.currentTimeMillis() < deadline) {
+					MILLISECONDS.sleep(1);
+				}
+				assertThat(received.get(), is(clients * i));
+			}
+		}
+	}
+
+	private AtomicInteger connectClients(int clients, String board)
+			throws IOException {
+		final AtomicInteger received = new AtomicInteger();
+		for (int i = 0; i < clients; i++) {
+			connectClient("client" + i, board).addRawFrameListener(
+					new RawFrameListener() {
+						@Override
+						public void frameReceived(String id, byte[] frame,
+								int offset, int length) {
+							received.incrementAndGet();
+						}
+					});
+		}
+		return received;
+	}
+
+	/**
+	 * Connects a client that never reads after the handshake.
+	 */
+	private Socket connectStalledClient(String board) throws IOException {
+		Socket socket = new Socket();
+		socket.setReceiveBufferSize(4096);
+		socket.connect(new InetSocketAddress("localhost", acceptor
+				.getLocalPort()));
+		socket.getOutputStream().write(
+				(NetworkProxyMessages.CONNECT_CMD + "\n" + board + "\n"
+						+ Link.DEFAULT_BAUDRATE + "\n").getBytes());
+		InputStream in = socket.getInputStream();
+		StringBuilder reply = new StringBuilder();
+		for (int b; (b = in.read()) != '\n';) {
+			reply.append((char) b);
+		}
+		assertThat(reply.toString(), is(NetworkProxyMessages.OK));
+		return socket;
+	}
+
+	private Link connectClient(String name, String board) throws IOException {
+		return connectClient(name, board, null);
+	}
+
+	private Link connectClient(String name, String board,
+			PinSubscription subscription) throws IOException {
+		NetworkProxyConnection connection = new NetworkProxyConnection(
+				"localhost", acceptor.getLocalPort(), clientSelector);
+		connection.setSubscription(subscription);
+		Link client = createLink(name, connection);
+		assertThat(client.connect(board), is(true));
+		return client;
+	}
+
+	private static List<String> record(Link client) {
+		final List<String> frames = Collections
+				.synchronizedList(new ArrayList<String>());
+		client.addRawFrameListener(new RawFrameListener() {
+			@Override
+			public void frameReceived(String id, byte[] frame, int offset,
+					int length) {
+				frames.add(new String(frame, offset, length));
+			}
+		});
+		return frames;
+	}
+
+	private static void awaitFrames(List<String> frames, int count)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (frames.size() < count
+				&& System.currentTimeMillis() < deadline) {
+			MILLISECONDS.sleep(10);
+		}
+		// frames not subscribed to would arrive meanwhile
+		MILLISECONDS.sleep(100);
+		assertThat(frames.size(), is(count));
+	}
+
+	private static void writeSerial(Link link, String message) {
+		byte[] bytes = message.getBytes();
+		assertThat(link.writeSerial(bytes, 0, bytes.length), is(true));
+	}
+
+	private String board(int board) {
+		return "board" + board + "-" + test;
+	}
+
+	private static int proxyThreads() {
+		int threads = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			threads += thread.getName().startsWith("ardulink-proxy-") ? 1 : 0;
+		}
+		return threads;
+	}
+
+	private Link createLink(String name, Connection connection) {
+		synchronized (linkNames) {
+			linkNames.add(name);
+		}
+		return Link.createInstance(name, ALProtocol.NAME, connection);
+	}
+
+	/**
+	 * A board connected as soon as asked, records what is written to it.
+	 */
+	private static class SimulatedBoard extends AbstractSerialConnection {
+
+		private final ByteArrayOutputStream received = new ByteArrayOutputStream() {
+			@Override
+			public synchronized void write(byte[] b, int off, int len) {
+				writes++;
+				super.write(b, off, len);
+				if (writeDelayMillis > 0) {
+					try {
+						MILLISECONDS.sleep(writeDelayMillis);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		};
+		private volatile int writes;
+		private volatile long writeDelayMillis;
+
+		public SimulatedBoard() {
+			setOutputStream(received);
+		}
+
+		public void receive(String message) {
+			byte[] bytes = message.getBytes();
+			getContact().parseInput("simulated", bytes, 0, bytes.length);
+		}
+
+		public String received() {
+			return new String(received.toByteArray());
+		}
+
+		public boolean awaitReceived(String message)
+				throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 5000;
+			while (System.currentTimeMillis() < deadline) {
+				if (received().contains(message)) {
+					return true;
+				}
+				MILLISECONDS.sleep(10);
+			}
+			return false;
+		}
+
+		@Override
+		public List<String> getPortList() {
+			return Collections.singletonList("simulated");
+		}
+
+		@Override
+		public boolean connect(Object... params) {
+			setConnected(true);
+			return isConnected();
+		}
+
+		@Override
+		public boolean disconnect() {
+			setConnected(false);
+			return isConnected();
+		}
+	}
+
+}
@@ -44,6 +44,7 @@ import org.zu.ardulink.Link;
 import org.zu.ardulink.gui.event.PWMChangeEvent;
 import org.zu.ardulink.gui.event.PWMControllerListener;
 import org.zu.ardulink.gui.facility.IntMinMaxModel;
+import org.zu.ardulink.protocol.Batch;
 import org.zu.ardulink.protocol.ReplyMessageCallback;
 
 /**
@@ -74,6 +75,7 @@ public class PWMController extends JPanel implements Linkable {
 	private List<PWMControllerListener> pwmControllerListeners = new LinkedList<PWMControllerListener>();
 	
 	private Link link = Link.getDefaultInstance();
+	private Batch batch;
 
 	/**
 	 * Create the panel.
@@ -197,7 +199,11 @@ public class PWMController extends JPanel implements Linkable {
 			        notifyListeners(powerValue);
 			        
 			        int pin = ((Integer)pinComboBox.getSelectedItem()).intValue();
-			        link.sendPowerPinIntensity(pin, powerValue);
+			        if(batch == null) {
+			        	link.sendPowerPinIntensity(pin, powerValue);
+			        } else {
+			        	batch.powerPinIntensity(pin, powerValue);
+			        }
 			    }
 			}
 
@@ -247,6 +253,14 @@ public class PWMController extends JPanel implements Linkable {
 		this.link = link;
 	}
 
+	/**
+	 * While a batch is set changes of the value are added to it instead of being sent.
+	 * @param batch the batch or null to send changes immediately
+	 */
+	void setBatch(Batch batch) {
+		this.batch = batch;
+	}
+
 	public ReplyMessageCallback getReplyMessageCallback() {
 		throw new RuntimeException("Not developed yet");
 	}
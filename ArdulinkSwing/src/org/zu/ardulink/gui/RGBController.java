@@ -39,6 +39,7 @@ import org.zu.ardulink.Link;
 import org.zu.ardulink.gui.event.PWMChangeEvent;
 import org.zu.ardulink.gui.event.PWMControllerListener;
 import org.zu.ardulink.gui.facility.UtilityColor;
+import org.zu.ardulink.protocol.Batch;
 import org.zu.ardulink.protocol.ReplyMessageCallback;
 
 /**
@@ -65,6 +66,7 @@ public class RGBController extends JPanel implements Linkable, PWMControllerList
 	private JTextField colorTextField;
 	private JCheckBox chckbxInverted;
 	private final RGBController instance = this;
+	private Link link = Link.getDefaultInstance();
 	
 	/**
 	 * Create the panel.
@@ -136,6 +138,7 @@ public class RGBController extends JPanel implements Linkable, PWMControllerList
 	}
 	
 	public void setLink(Link link) {
+		this.link = link;
 		redController.setLink(link);
 		greenController.setLink(link);
 		blueController.setLink(link);
@@ -195,6 +198,11 @@ public class RGBController extends JPanel implements Linkable, PWMControllerList
 		redController.removePWMControllerListener(this);
 		greenController.removePWMControllerListener(this);
 		blueController.removePWMControllerListener(this);
+		// the three pins are changed with a single message block
+		Batch batch = link.batch();
+		redController.setBatch(batch);
+		greenController.setBatch(batch);
+		blueController.setBatch(batch);
 		if(chckbxInverted.isSelected()) {
 			redController.setValue(255 - color.getRed());
 			greenController.setValue(255 - color.getGreen());
@@ -204,6 +212,12 @@ public class RGBController extends JPanel implements Linkable, PWMControllerList
 			greenController.setValue(color.getGreen());
 			blueController.setValue(color.getBlue());
 		}
+		redController.setBatch(null);
+		greenController.setBatch(null);
+		blueController.setBatch(null);
+		if(batch.size() > 0) {
+			batch.send();
+		}
 		redController.addPWMControllerListener(this);
 		greenController.addPWMControllerListener(this);
 		blueController.addPWMControllerListener(this);
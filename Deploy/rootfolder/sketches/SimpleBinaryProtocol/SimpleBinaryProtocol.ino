@@ -0,0 +1,216 @@
+/*
+Copyright 2013 Luciano Zu project Ardulink http://www.ardulink.org/
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+This sketch is an example to understand how Arduino can recognize SimpleBinaryProtocol.
+It does the same as the ArdulinkProtocol sketch but messages are small binary frames
+instead of text, so the serial line can carry several times more messages per second.
+However, it can easily be reused for your own purposes or as a base for a library.
+
+Each message is a frame of bytes terminated by 255. The first byte is the message type,
+numbers are split into groups of 7 bits (most significant first) so no byte but the
+divider can be 255. Messages sent to Arduino end with a two bytes message id, if it is
+not 0 Arduino sends a reply message.
+See org.zu.ardulink.protocol.SimpleBinaryProtocol for the layout of all messages.
+*/
+
+#define KEY_PRESS_MESSAGE 10
+#define POWER_PIN_INTENSITY_MESSAGE 11
+#define POWER_PIN_SWITCH_MESSAGE 12
+#define TONE_MESSAGE 13
+#define NO_TONE_MESSAGE 14
+#define START_LISTEN_DIGITAL_MESSAGE 15
+#define STOP_LISTEN_DIGITAL_MESSAGE 16
+#define START_LISTEN_ANALOG_MESSAGE 17
+#define STOP_LISTEN_ANALOG_MESSAGE 18
+#define CUSTOM_MESSAGE 19
+#define ANALOG_READ_MESSAGE 20
+#define DIGITAL_READ_MESSAGE 21
+#define REPLY_MESSAGE 22
+#define DIVIDER 255
+
+#define maxMessageSize 64 // longer (custom) messages are discarded
+#define digitalPinListeningNum 14 // Change 14 if you have a different number of pins.
+#define analogPinListeningNum 6 // Change 6 if you have a different number of pins.
+
+byte inputMessage[maxMessageSize]; // the frame received so far (this is general code you can reuse)
+int position = 0;
+boolean messageComplete = false;
+boolean messageTooLong = false;
+
+boolean digitalPinListening[digitalPinListeningNum]; // Array used to know which pins on the Arduino must be listening.
+boolean analogPinListening[analogPinListeningNum]; // Array used to know which pins on the Arduino must be listening.
+int digitalPinListenedValue[digitalPinListeningNum]; // Array used to know which value is read last time.
+int analogPinListenedValue[analogPinListeningNum]; // Array used to know which value is read last time.
+
+void setup() {
+  // initialize serial: (this is general code you can reuse)
+  Serial.begin(115200);
+
+  //set to false all listen variable
+  int index = 0;
+  for (index = 0; index < digitalPinListeningNum; index++) {
+    digitalPinListening[index] = false;
+    digitalPinListenedValue[index] = -1;
+  }
+  for (index = 0; index < analogPinListeningNum; index++) {
+    analogPinListening[index] = false;
+    analogPinListenedValue[index] = -1;
+  }
+
+  // Turn off everything (not on RXTX)
+  for (index = 2; index < digitalPinListeningNum; index++) {
+    pinMode(index, OUTPUT);
+    digitalWrite(index, LOW);
+  }
+}
+
+// Reads a number of bytes groups of 7 bits starting at offset (this is general code you can reuse)
+long number(int offset, int bytes) {
+  long value = 0;
+  for (int i = offset; i < offset + bytes; i++) {
+    value = (value << 7) | inputMessage[i];
+  }
+  return value;
+}
+
+void loop() {
+  if (messageComplete) {
+    boolean msgRecognized = true;
+    int pin = inputMessage[1];
+    long id = position >= 3 ? number(position - 2, 2) : 0;
+
+    switch (inputMessage[0]) {
+      case KEY_PRESS_MESSAGE:
+        // here you can write your own code, the char pressed is number(1, 3)
+        break;
+      case POWER_PIN_INTENSITY_MESSAGE: // Power Pin Intensity (this is general code you can reuse)
+        pinMode(pin, OUTPUT);
+        analogWrite(pin, number(2, 2));
+        break;
+      case POWER_PIN_SWITCH_MESSAGE: // Power Pin Switch (this is general code you can reuse)
+        pinMode(pin, OUTPUT);
+        digitalWrite(pin, inputMessage[2] == 1 ? HIGH : LOW);
+        break;
+      case TONE_MESSAGE: { // tone request (this is general code you can reuse)
+        long frequency = number(2, 3);
+        long duration = number(5, 3);
+        if (duration == 0) {
+          tone(pin, frequency);
+        } else {
+          tone(pin, frequency, duration);
+        }
+        break;
+      }
+      case NO_TONE_MESSAGE: // no tone request (this is general code you can reuse)
+        noTone(pin);
+        break;
+      case START_LISTEN_DIGITAL_MESSAGE: // Start Listen Digital Pin (this is general code you can reuse)
+        digitalPinListening[pin] = true;
+        digitalPinListenedValue[pin] = -1; // Ensure a message back when start listen happens.
+        pinMode(pin, INPUT);
+        break;
+      case STOP_LISTEN_DIGITAL_MESSAGE: // Stop Listen Digital Pin (this is general code you can reuse)
+        digitalPinListening[pin] = false;
+        digitalPinListenedValue[pin] = -1;
+        break;
+      case START_LISTEN_ANALOG_MESSAGE: // Start Listen Analog Pin (this is general code you can reuse)
+        analogPinListening[pin] = true;
+        analogPinListenedValue[pin] = -1; // Ensure a message back when start listen happens.
+        break;
+      case STOP_LISTEN_ANALOG_MESSAGE: // Stop Listen Analog Pin (this is general code you can reuse)
+        analogPinListening[pin] = false;
+        analogPinListenedValue[pin] = -1;
+        break;
+      default:
+        // custom messages (the bytes from 1 to position - 3) are not known by this sketch
+        msgRecognized = false; // in this case command is ko (not ok)
+    }
+
+    // Send the reply message if caller supply a message id (this is general code you can reuse)
+    if (id != 0) {
+      Serial.write(REPLY_MESSAGE);
+      Serial.write((byte) (id >> 7));
+      Serial.write((byte) (id & 0x7F));
+      Serial.write(msgRecognized ? 1 : 0);
+      Serial.write(DIVIDER); // End of Message
+    }
+
+    position = 0;
+    messageComplete = false;
+  }
+
+  // Send listen messages
+  int index = 0;
+  for (index = 0; index < digitalPinListeningNum; index++) {
+    if (digitalPinListening[index] == true) {
+      int value = digitalRead(index);
+      if (value != digitalPinListenedValue[index]) {
+        digitalPinListenedValue[index] = value;
+        Serial.write(DIGITAL_READ_MESSAGE);
+        Serial.write(index);
+        Serial.write(value);
+        Serial.write(DIVIDER); // End of Message
+      }
+    }
+  }
+  for (index = 0; index < analogPinListeningNum; index++) {
+    if (analogPinListening[index] == true) {
+      int value = highPrecisionAnalogRead(index);
+      if (value != analogPinListenedValue[index]) {
+        analogPinListenedValue[index] = value;
+        Serial.write(ANALOG_READ_MESSAGE);
+        Serial.write(index);
+        Serial.write(value >> 7);
+        Serial.write(value & 0x7F);
+        Serial.write(DIVIDER); // End of Message
+      }
+    }
+  }
+}
+
+// Reads 4 times and computes the average value
+int highPrecisionAnalogRead(int pin) {
+  int value1 = analogRead(pin);
+  int value2 = analogRead(pin);
+  int value3 = analogRead(pin);
+  int value4 = analogRead(pin);
+
+  return (value1 + value2 + value3 + value4) / 4;
+}
+
+/*
+  SerialEvent occurs whenever a new data comes in the
+ hardware serial RX.  This routine is run between each
+ time loop() runs, so using delay inside loop can delay
+ response.  Multiple bytes of data may be available.
+ This is general code you can reuse.
+ */
+void serialEvent() {
+  while (Serial.available() && !messageComplete) {
+    byte inByte = Serial.read();
+    if (inByte == DIVIDER) {
+      // a frame that didn't fit into the buffer is dropped
+      messageComplete = position > 0 && !messageTooLong;
+      if (!messageComplete) {
+        position = 0;
+      }
+      messageTooLong = false;
+    } else if (position < maxMessageSize) {
+      inputMessage[position++] = inByte;
+    } else {
+      messageTooLong = true;
+    }
+  }
+}
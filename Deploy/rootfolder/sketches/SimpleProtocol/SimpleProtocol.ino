@@ -30,7 +30,7 @@ Remember: Digispark/PicoDuino has just 6.012 bytes memory available for sketches
 #define POWER_PIN_SWITCH_MESSAGE 12
 #define digitalPinListeningNum 14 // Change 14 if you have a different number of pins.
 
-byte inputMessage[10];
+byte inputMessage[20];
 byte position = 0;
 
 void setup() {
@@ -58,8 +58,10 @@ void get_input() {
         break; // when we get a divider message, break out of loop
       } else {
         // add it to the inputString:
-        inputMessage[position] = lastRead;
-        position++;
+        if (position < sizeof(inputMessage)) {
+          inputMessage[position] = lastRead;
+          position++;
+        }
       }
     }
     
@@ -73,6 +75,6 @@ void loop() {
   if(inputMessage[0] == POWER_PIN_SWITCH_MESSAGE) { // Power Pin Switch (this is general code you can reuse)
      digitalWrite(inputMessage[1], inputMessage[2]);
   } else if(inputMessage[0] == POWER_PIN_INTENSITY_MESSAGE) { // Power Pin Intensity (this is general code you can reuse)
-      analogWrite(inputMessage[1], inputMessage[2]);          
+      analogWrite(inputMessage[1], (inputMessage[2] << 7) | inputMessage[3]);          
   }
 }